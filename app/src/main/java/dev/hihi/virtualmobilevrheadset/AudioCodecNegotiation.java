@@ -0,0 +1,227 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the audio codec at session start, like {@link CodecNegotiation} does for video.
+ *
+ * Once the command connection is up the client sends {@link #COMMAND_AUDIO_CAPABILITIES} with
+ * the codecs it decodes, in order of preference, and the bitrate it would like (big endian):
+ * <pre>
+ * 1 byte command, 1 byte codec count, 1 byte codec id per codec, 4 bytes bitrate in bit/s
+ * </pre>
+ * The server picks one of them and sends a {@link Format} as the first packet of the audio
+ * stream. Audio without one is 16 bit 44.1kHz stereo PCM, which is what servers that know
+ * nothing about this send, and {@link #AUDIO_PCM} is always advertised as the fallback.
+ */
+public class AudioCodecNegotiation {
+
+    private static final String TAG = "AudioCodecNegotiation";
+
+    // After CodecNegotiation.COMMAND_CODEC_CAPABILITIES and CongestionController's targets
+    public static final int COMMAND_AUDIO_CAPABILITIES = 4;
+
+    public static final int AUDIO_PCM = 0;
+    public static final int AUDIO_AAC = 1;
+    public static final int AUDIO_OPUS = 2;
+
+    // Indexed by codec id
+    private static final String[] MIME_TYPES = {MediaFormat.MIMETYPE_AUDIO_RAW,
+            MediaFormat.MIMETYPE_AUDIO_AAC, MediaFormat.MIMETYPE_AUDIO_OPUS};
+    // Opus has the shorter frames, so the smaller delay
+    private static final int[] PREFERENCE = {AUDIO_OPUS, AUDIO_AAC};
+
+    // Near transparent for stereo with both codecs, a tenth of PCM
+    public static final int DEFAULT_BITRATE = 128_000;
+
+    // "VMAU"
+    static final int FORMAT_MAGIC = 0x564d4155;
+    private static final int FORMAT_HEADER_SIZE = 12;
+    static final int MAX_CHANNELS = 2;
+    private static final int OPUS_SAMPLE_RATE = 48000;
+    // What the Android Opus decoder is given for seeking, unused for a live stream
+    private static final long OPUS_SEEK_PREROLL_NS = 80_000_000L;
+
+    private static List<Integer> sLocalCodecs;
+
+    /**
+     * Audio stream format, the first packet of a stream from servers that got the capabilities
+     * (big endian):
+     * <pre>
+     * 4 bytes {@link #FORMAT_MAGIC}, 1 byte codec id, 1 byte channel count, 4 bytes sample rate,
+     * 2 bytes size of the codec config, codec config (AudioSpecificConfig for AAC, OpusHead for Opus)
+     * </pre>
+     */
+    public static class Format {
+        public final int codec;
+        public final int channels;
+        public final int sampleRate;
+        public final byte[] config;
+
+        public Format(int codec, int channels, int sampleRate, byte[] config) {
+            this.codec = codec;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+            this.config = config;
+        }
+
+        public byte[] toBytes() {
+            ByteBuffer bytes = ByteBuffer.allocate(FORMAT_HEADER_SIZE + config.length);
+            bytes.putInt(FORMAT_MAGIC).put((byte) codec).put((byte) channels).putInt(sampleRate)
+                    .putShort((short) config.length).put(config);
+            return bytes.array();
+        }
+
+        /**
+         * @return the format in packet, null if it is audio rather than a format.
+         */
+        public static Format parse(Packet packet) {
+            if (packet.size < FORMAT_HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(packet.bytes, 0, packet.size);
+            if (bytes.getInt() != FORMAT_MAGIC) {
+                return null;
+            }
+            int codec = bytes.get() & 0xff;
+            int channels = bytes.get() & 0xff;
+            int sampleRate = bytes.getInt();
+            int configSize = bytes.getShort() & 0xffff;
+            // Played through a mono or stereo track
+            if (getMimeType(codec) == null || channels == 0 || channels > MAX_CHANNELS
+                    || sampleRate <= 0
+                    || bytes.remaining() < configSize) {
+                Log.w(TAG, "Bad audio format, codec " + codec + " channels " + channels);
+                return null;
+            }
+            byte[] config = new byte[configSize];
+            bytes.get(config);
+            return new Format(codec, channels, sampleRate, config);
+        }
+
+        @Override
+        public String toString() {
+            return getMimeType(codec) + " " + sampleRate + "Hz " + channels + "ch";
+        }
+    }
+
+    /**
+     * @return mime type of a codec id, null if the id is unknown.
+     */
+    public static String getMimeType(int codec) {
+        return codec >= 0 && codec < MIME_TYPES.length ? MIME_TYPES[codec] : null;
+    }
+
+    /**
+     * @return codecs this device decodes plus PCM, in order of preference. The codec list is
+     * only queried once.
+     */
+    public static synchronized List<Integer> getLocalCodecs() {
+        if (sLocalCodecs == null) {
+            List<Integer> codecs = new ArrayList<>();
+            MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+            for (int codec : PREFERENCE) {
+                if (hasDecoder(infos, getMimeType(codec))) {
+                    codecs.add(codec);
+                }
+            }
+            codecs.add(AUDIO_PCM);
+            sLocalCodecs = Collections.unmodifiableList(codecs);
+            Log.i(TAG, "Local audio codecs: " + sLocalCodecs);
+        }
+        return sLocalCodecs;
+    }
+
+    private static boolean hasDecoder(MediaCodecInfo[] infos, String mimeType) {
+        for (int i = 0; infos != null && i < infos.length; i++) {
+            if (infos[i].isEncoder()) {
+                continue;
+            }
+            for (String type : infos[i].getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static byte[] buildCapabilitiesCommand(List<Integer> codecs, int bitrate) {
+        ByteBuffer command = ByteBuffer.allocate(2 + codecs.size() + 4);
+        command.put((byte) COMMAND_AUDIO_CAPABILITIES).put((byte) codecs.size());
+        for (int codec : codecs) {
+            command.put((byte) codec);
+        }
+        command.putInt(bitrate);
+        return command.array();
+    }
+
+    /**
+     * The server side of {@link #buildCapabilitiesCommand(List, int)}.
+     *
+     * @return the advertised codecs, null if this is not a well formed capabilities command.
+     */
+    public static List<Integer> parseCapabilitiesCommand(byte[] bytes, int size) {
+        ByteBuffer command = ByteBuffer.wrap(bytes, 0, size);
+        if (size < 2 || command.get() != COMMAND_AUDIO_CAPABILITIES) {
+            return null;
+        }
+        int count = command.get() & 0xff;
+        if (command.remaining() != count + 4) {
+            return null;
+        }
+        List<Integer> codecs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            codecs.add(command.get() & 0xff);
+        }
+        return codecs;
+    }
+
+    /**
+     * @return the bitrate asked for in a command {@link #parseCapabilitiesCommand} accepted.
+     */
+    public static int parseBitrate(byte[] bytes, int size) {
+        return ByteBuffer.wrap(bytes, 0, size).getInt(size - 4);
+    }
+
+    /**
+     * @return MediaFormat to configure a decoder for a compressed format with.
+     */
+    public static MediaFormat createMediaFormat(Format format) {
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(getMimeType(format.codec),
+                format.sampleRate, format.channels);
+        mediaFormat.setByteBuffer("csd-0", ByteBuffer.wrap(format.config));
+        if (format.codec == AUDIO_OPUS) {
+            mediaFormat.setByteBuffer("csd-1", nativeOrderLong(getOpusCodecDelayNs(format.config)));
+            mediaFormat.setByteBuffer("csd-2", nativeOrderLong(OPUS_SEEK_PREROLL_NS));
+        }
+        return mediaFormat;
+    }
+
+    /**
+     * @return the pre-skip of an OpusHead (RFC 7845) in ns, 0 if it is too short.
+     */
+    static long getOpusCodecDelayNs(byte[] opusHead) {
+        if (opusHead.length < 12) {
+            return 0;
+        }
+        // Little endian, at offset 10
+        int preSkip = (opusHead[10] & 0xff) | (opusHead[11] & 0xff) << 8;
+        return preSkip * 1_000_000_000L / OPUS_SAMPLE_RATE;
+    }
+
+    private static ByteBuffer nativeOrderLong(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(value).flip();
+        return buffer;
+    }
+}
@@ -4,7 +4,9 @@ import android.content.Context;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -18,89 +20,443 @@ public class AudioDecoder {
     private static final int DEBUG_MESSAGE_INTERVAL_MS = 1000;
     private static long mLastDebugMessageTime = 0;
 
-    private static final int SAMPLE_RATE = 44100; // Hz
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int CHANNEL_MASK = AudioFormat.CHANNEL_IN_STEREO;
-    private static final int MAX_PACKETS_IN_BUF = 2;
+    // What servers send without an AudioCodecNegotiation.Format
+    private static final AudioCodecNegotiation.Format PCM_FORMAT = new AudioCodecNegotiation.Format(
+            AudioCodecNegotiation.AUDIO_PCM, 2, 44100, new byte[0]);
+    // Playout delay of the jitter buffer, see PcmJitterBuffer
+    private static final int MIN_JITTER_DELAY_MS = 20;
+    private static final int MAX_JITTER_DELAY_MS = 250;
+    // How long the audio thread blocks for a packet before re-checking mIsRunning.
+    private static final int PACKET_WAIT_TIMEOUT_MS = 100;
+    // Track buffer of the low latency output, AudioLatencyTuner trims it from there
+    private static final int LOW_LATENCY_BURSTS = 4;
+    // Tracks reopened in a row without writing anything before giving up
+    private static final int MAX_TRACK_REOPENS = 3;
 
     private boolean mIsRunning = false;
+    private boolean mUseJitterBuffer = true;
+    private boolean mUseLowLatencyOutput = false;
+    private CongestionController mCongestionController;
+    private PipelineStats mPipelineStats;
     private CountDownLatch mStoppingLock = new CountDownLatch(1);
 
+    // Audio thread only, set from the stream format
+    private int mSampleRate;
+    private int mOutputSampleRate;
+    private int mBytesPerFrame;
+    private CompressedAudioDecoder mCompressedDecoder = null;
+    private Packet mPendingPacket = null;
+    private AudioTrack mAudioTrack = null;
+    private AudioLatencyTuner mTuner;
+    private int mChannels;
+    private int mFramesPerBlock;
+    private boolean mLowLatency;
+    private PcmJitterBuffer mJitterBuffer = null;
+    // Set when the track has to be reopened at mOutputSampleRate
+    private boolean mTrackFormatChanged = false;
+
+    /**
+     * Whether to play packets through a {@link PcmJitterBuffer}, which sizes the playout delay
+     * to the arrival jitter and absorbs clock drift. Turn it off for clients that manage their
+     * own playout delay.
+     */
+    public void setUseJitterBuffer(boolean useJitterBuffer) {
+        mUseJitterBuffer = useJitterBuffer;
+    }
+
+    /**
+     * Play through a fast mixer track at the device's native sample rate, written one burst
+     * (PROPERTY_OUTPUT_FRAMES_PER_BUFFER) at a time without blocking, so only a few bursts are
+     * queued in the track. Only with the jitter buffer, which converts the sample rate. The saving
+     * depends on the device's mixer and has no figure yet. MirrorEngine logs the "audio playout"
+     * stage of {@link PipelineStats} on stopClient(), compare its p50 and p99 over two sessions
+     * with and without this. Must be called before startDecoder().
+     */
+    public void setUseLowLatencyOutput(boolean useLowLatencyOutput) {
+        mUseLowLatencyOutput = useLowLatencyOutput;
+    }
+
+    /**
+     * Report underruns and overflows of the jitter buffer to controller. Must be called before startDecoder().
+     */
+    public void setCongestionController(CongestionController controller) {
+        mCongestionController = controller;
+    }
+
+    /**
+     * Record queueing and playout latency of every packet in stats. Must be called before
+     * startDecoder().
+     */
+    public void setPipelineStats(PipelineStats stats) {
+        mPipelineStats = stats;
+    }
+
     public void startDecoder(final MirrorClientInterface client) {
         mIsRunning = true;
-        // Better threading?
-        new Thread(new Runnable() {
+        MirrorExecutors.getDefault().audio().execute(new Runnable() {
             @Override
             public void run() {
-                AudioLatencyTuner tuner;
-                AudioTrack audioTrack = null;
                 try {
-                    int bufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE,
-                            CHANNEL_MASK,
-                            ENCODING) * 2;
-                    audioTrack = new AudioTrack.Builder()
-                            .setAudioAttributes(new AudioAttributes.Builder()
-                                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                                    .build()
-                            )
-                            .setAudioFormat(new AudioFormat.Builder()
-                                    .setEncoding(ENCODING)
-                                    .setSampleRate(SAMPLE_RATE)
-                                    .setChannelMask(CHANNEL_MASK)
-                                    .build())
-                            .setTransferMode(AudioTrack.MODE_STREAM)
-                            // .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
-                            .setBufferSizeInBytes(bufferSize)
-                            .build();
+                    AudioCodecNegotiation.Format format = receiveFormat(client);
+                    if (format == null) {
+                        return;
+                    }
+                    Log.i(TAG, "Audio format " + format);
+                    mSampleRate = format.sampleRate;
+                    mChannels = format.channels;
+                    mBytesPerFrame = 2 * format.channels;
+                    if (format.codec != AudioCodecNegotiation.AUDIO_PCM) {
+                        mCompressedDecoder = new CompressedAudioDecoder(format);
+                    }
                     AudioManager audioManager =
                             (AudioManager) MyApplication.getApplication().getSystemService(Context.AUDIO_SERVICE);
                     String text = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
-                    int framesPerBlock = Integer.parseInt(text);
-                    tuner = new AudioLatencyTuner(audioTrack, framesPerBlock);
+                    mFramesPerBlock = Integer.parseInt(text);
+                    mLowLatency = mUseLowLatencyOutput && mUseJitterBuffer;
+                    mOutputSampleRate = mLowLatency ? getNativeSampleRate(audioManager) : mSampleRate;
+                    openTrack();
 
                     Log.i(TAG, "Audio streaming started");
-                    boolean init = true;
-
-                    while (mIsRunning) {
-                        Packet packet = client.getNextPacket();
-                        // TODO: No busy waiting
-                        if (packet == null) {
-                            SystemClock.sleep(1);
-                            continue;
-                        } else {
-                            // Drop old packets if buf is full
-                            while (client.packetQueueSize() >= MAX_PACKETS_IN_BUF) {
-                                packet = client.getNextPacket();
-                            }
-                        }
-                        audioTrack.write(packet.bytes, 0, packet.size, AudioTrack.WRITE_BLOCKING);
-                        if (init) {
-                            audioTrack.play();
-                            init = false;
-                        }
-                        tuner.update();
-                        if (DEBUG && (SystemClock.uptimeMillis() - mLastDebugMessageTime) > DEBUG_MESSAGE_INTERVAL_MS) {
-                            mLastDebugMessageTime = SystemClock.uptimeMillis();
-                            Log.v(TAG, "Wrote size:" + packet.size);
-                        }
+                    if (mUseJitterBuffer) {
+                        playJitterBuffered(client);
+                    } else {
+                        playAsReceived(client);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
                 } finally {
                     mIsRunning = false;
-                    if (audioTrack != null) {
-                        try {
-                            audioTrack.stop();
-                        } catch (Exception e){}
-                        try {
-                            audioTrack.release();
-                        } catch (Exception e){}
+                    if (mPendingPacket != null) {
+                        mPendingPacket.release();
+                        mPendingPacket = null;
+                    }
+                    if (mCompressedDecoder != null) {
+                        mCompressedDecoder.release();
+                        mCompressedDecoder = null;
                     }
+                    closeTrack();
+                    mJitterBuffer = null;
                     mStoppingLock.countDown();
                 }
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Open mAudioTrack and its tuner for the current format and output settings.
+     */
+    private void openTrack() {
+        int channelMask = mChannels == 1
+                ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBufferSize = AudioTrack.getMinBufferSize(mOutputSampleRate,
+                channelMask,
+                ENCODING);
+        int bufferSize = mLowLatency
+                ? Math.max(minBufferSize, LOW_LATENCY_BURSTS * mFramesPerBlock * mBytesPerFrame)
+                : minBufferSize * 2;
+        AudioAttributes.Builder attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+        if (mLowLatency && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            // What asks for a fast track before the performance mode
+            attributes.setFlags(AudioLatencyTuner.getLowLatencyFlag());
+        }
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioAttributes(attributes.build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(ENCODING)
+                        .setSampleRate(mOutputSampleRate)
+                        .setChannelMask(channelMask)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setBufferSizeInBytes(bufferSize);
+        if (mLowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        }
+        mAudioTrack = builder.build();
+        mTuner = new AudioLatencyTuner(mAudioTrack, mFramesPerBlock);
+    }
+
+    private void closeTrack() {
+        if (mAudioTrack != null) {
+            try {
+                mAudioTrack.stop();
+            } catch (Exception e){}
+            try {
+                mAudioTrack.release();
+            } catch (Exception e){}
+            mAudioTrack = null;
+        }
+    }
+
+    /**
+     * Replace a track whose output died, e.g. when the audio server restarted or the output
+     * device changed.
+     * @return false if that happened too often in a row to keep trying.
+     */
+    private boolean reopenTrack(int reopens) {
+        if (reopens >= MAX_TRACK_REOPENS) {
+            Log.e(TAG, "AudioTrack keeps dying, giving up");
+            return false;
+        }
+        Log.w(TAG, "AudioTrack died, reopening it");
+        closeTrack();
+        openTrack();
+        return true;
+    }
+
+    /**
+     * @return the sample rate of the output, which fast tracks need, or the stream's if unknown.
+     */
+    private int getNativeSampleRate(AudioManager audioManager) {
+        String text = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+        try {
+            return text != null ? Integer.parseInt(text) : mSampleRate;
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return mSampleRate;
+        }
+    }
+
+    /**
+     * @return the format the stream starts with, or {@link #PCM_FORMAT} if it starts with audio,
+     * which is then played first. Null if stopped before anything arrived.
+     */
+    private AudioCodecNegotiation.Format receiveFormat(MirrorClientInterface client) {
+        Packet packet = null;
+        while (mIsRunning && packet == null) {
+            packet = client.takeNextPacket(PACKET_WAIT_TIMEOUT_MS);
+        }
+        if (packet == null) {
+            return null;
+        }
+        AudioCodecNegotiation.Format format = AudioCodecNegotiation.Format.parse(packet);
+        if (format == null) {
+            mPendingPacket = packet;
+            return PCM_FORMAT;
+        }
+        packet.release();
+        return format;
+    }
+
+    /**
+     * @return the next packet of PCM, null if nothing arrived within timeoutMs or the codec had
+     * no output for it yet. 0 does not wait.
+     */
+    private Packet takePcm(MirrorClientInterface client, long timeoutMs) {
+        Packet packet = mPendingPacket;
+        if (packet != null) {
+            mPendingPacket = null;
+        } else {
+            packet = timeoutMs > 0 ? client.takeNextPacket(timeoutMs) : client.getNextPacket();
+        }
+        if (packet == null || mCompressedDecoder == null) {
+            return packet;
+        }
+        Packet pcm = mCompressedDecoder.decode(packet);
+        if (mCompressedDecoder.getSampleRate() != mSampleRate) {
+            onSampleRateChanged(mCompressedDecoder.getSampleRate());
+        }
+        return pcm;
+    }
+
+    /**
+     * The decoder's output has another sample rate than the stream format said, as HE-AAC does.
+     * The jitter buffer starts over at the new rate and a track at the stream's rate is reopened.
+     */
+    private void onSampleRateChanged(int sampleRate) {
+        Log.i(TAG, "Decoding to " + sampleRate + "Hz instead of " + mSampleRate + "Hz");
+        mSampleRate = sampleRate;
+        if (!mLowLatency) {
+            mOutputSampleRate = sampleRate;
+            mTrackFormatChanged = true;
+        }
+        if (mJitterBuffer != null) {
+            mJitterBuffer = new PcmJitterBuffer(mSampleRate, mOutputSampleRate, mChannels,
+                    MIN_JITTER_DELAY_MS, MAX_JITTER_DELAY_MS);
+        }
+    }
+
+    private void playAsReceived(MirrorClientInterface client) {
+        boolean init = true;
+        long framesWritten = 0;
+        int reopens = 0;
+        AudioTimestamp timestamp = new AudioTimestamp();
+        while (mIsRunning) {
+            Packet packet = takePcm(client, PACKET_WAIT_TIMEOUT_MS);
+            if (packet == null) {
+                continue;
+            }
+            if (mTrackFormatChanged) {
+                mTrackFormatChanged = false;
+                closeTrack();
+                openTrack();
+                init = true;
+                framesWritten = 0;
+            }
+            int written = mAudioTrack.write(packet.bytes, 0, packet.size, AudioTrack.WRITE_BLOCKING);
+            if (written == AudioTrack.ERROR_DEAD_OBJECT) {
+                // The packet is lost, the next one goes to the new track
+                packet.release();
+                if (!reopenTrack(reopens++)) {
+                    return;
+                }
+                init = true;
+                framesWritten = 0;
+                continue;
+            }
+            reopens = 0;
+            if (init) {
+                mAudioTrack.play();
+                init = false;
+            }
+            framesWritten += packet.size / mBytesPerFrame;
+            if (mPipelineStats != null) {
+                long writtenNs = System.nanoTime();
+                mPipelineStats.onAudioWritten(packet.receivedTimeNs, writtenNs,
+                        getTrackDelayNs(mAudioTrack, timestamp, framesWritten, writtenNs));
+            }
+            mTuner.update();
+            if (DEBUG && (SystemClock.uptimeMillis() - mLastDebugMessageTime) > DEBUG_MESSAGE_INTERVAL_MS) {
+                mLastDebugMessageTime = SystemClock.uptimeMillis();
+                Log.v(TAG, "Wrote size:" + packet.size + ", " + BufferPool.getDefault());
+            }
+            packet.release();
+        }
+    }
+
+    /**
+     * Move everything received into the jitter buffer, then write one block of it to the track.
+     * While the buffer is priming wait for packets instead.
+     *
+     * Blocking writes wait until the track has room and so pace the loop. With lowLatency the
+     * track gets exactly one burst per write without blocking, and while it has no room for
+     * the rest the loop waits for packets half a burst at a time.
+     *
+     * A track whose output died is replaced and playing carries on into the new one.
+     */
+    private void playJitterBuffered(MirrorClientInterface client) {
+        int framesPerBlock = mFramesPerBlock;
+        boolean lowLatency = mLowLatency;
+        mJitterBuffer = new PcmJitterBuffer(mSampleRate, mOutputSampleRate, mChannels,
+                MIN_JITTER_DELAY_MS, MAX_JITTER_DELAY_MS);
+        byte[] block = new byte[framesPerBlock * mBytesPerFrame];
+        int blockOffset = 0;
+        int blockRemaining = 0;
+        int writeMode = lowLatency ? AudioTrack.WRITE_NON_BLOCKING : AudioTrack.WRITE_BLOCKING;
+        long burstWaitMs = Math.max(1, framesPerBlock * 1000L / mOutputSampleRate / 2);
+        Log.i(TAG, "Output " + mOutputSampleRate + "Hz, " + framesPerBlock + " frame bursts"
+                + (lowLatency ? ", low latency" : ""));
+        boolean init = true;
+        long framesWritten = 0;
+        long trackDelayNs = 0;
+        long reportedProblems = 0;
+        int reopens = 0;
+        AudioTimestamp timestamp = new AudioTimestamp();
+        while (mIsRunning) {
+            if (mTrackFormatChanged) {
+                mTrackFormatChanged = false;
+                closeTrack();
+                openTrack();
+                init = true;
+                framesWritten = 0;
+                trackDelayNs = 0;
+                // Made for the old rate
+                blockRemaining = 0;
+            }
+            for (int queued = client.packetQueueSize(); queued > 0; queued--) {
+                Packet packet = takePcm(client, 0);
+                if (packet != null) {
+                    bufferPacket(packet, trackDelayNs);
+                }
+            }
+            if (blockRemaining == 0) {
+                int frames = mJitterBuffer.read(block, framesPerBlock);
+                if (frames == 0) {
+                    Packet packet = takePcm(client, PACKET_WAIT_TIMEOUT_MS);
+                    if (packet != null) {
+                        bufferPacket(packet, trackDelayNs);
+                    }
+                    continue;
+                }
+                blockOffset = 0;
+                blockRemaining = frames * mBytesPerFrame;
+            }
+            int written = mAudioTrack.write(block, blockOffset, blockRemaining, writeMode);
+            if (written == AudioTrack.ERROR_DEAD_OBJECT) {
+                if (!reopenTrack(reopens++)) {
+                    return;
+                }
+                init = true;
+                framesWritten = 0;
+                trackDelayNs = 0;
+                continue;
+            } else if (written < 0) {
+                Log.e(TAG, "AudioTrack write failed: " + written);
+                return;
+            }
+            blockOffset += written;
+            blockRemaining -= written;
+            if (init) {
+                mAudioTrack.play();
+                init = false;
+            }
+            if (blockRemaining > 0) {
+                // Track is full for now
+                Packet packet = takePcm(client, burstWaitMs);
+                if (packet != null) {
+                    bufferPacket(packet, trackDelayNs);
+                }
+            }
+            if (written == 0) {
+                continue;
+            }
+            reopens = 0;
+            framesWritten += written / mBytesPerFrame;
+            trackDelayNs = getTrackDelayNs(mAudioTrack, timestamp, framesWritten, System.nanoTime());
+            mTuner.update();
+
+            long problems = mJitterBuffer.getUnderrunCount() + mJitterBuffer.getOverflowCount();
+            if (problems > reportedProblems && mCongestionController != null) {
+                mCongestionController.onAudioDrops((int) (problems - reportedProblems));
+            }
+            reportedProblems = problems;
+            if (DEBUG && (SystemClock.uptimeMillis() - mLastDebugMessageTime) > DEBUG_MESSAGE_INTERVAL_MS) {
+                mLastDebugMessageTime = SystemClock.uptimeMillis();
+                Log.v(TAG, mJitterBuffer + ", " + mTuner + ", " + BufferPool.getDefault());
+            }
+        }
+    }
+
+    /**
+     * Put packet into mJitterBuffer and release it. Its audio plays after what is buffered ahead
+     * of it, and what is queued in the track.
+     */
+    private void bufferPacket(Packet packet, long trackDelayNs) {
+        long nowNs = System.nanoTime();
+        if (mPipelineStats != null) {
+            long bufferedNs = mJitterBuffer.getBufferedFrames() * 1_000_000_000L / mSampleRate;
+            mPipelineStats.onAudioWritten(packet.receivedTimeNs, nowNs + bufferedNs, trackDelayNs);
+        }
+        mJitterBuffer.put(packet.bytes, packet.size, nowNs);
+        packet.release();
+    }
+
+    /**
+     * @return how long the audio written so far takes to play out.
+     */
+    private long getTrackDelayNs(AudioTrack audioTrack, AudioTimestamp timestamp,
+            long framesWritten, long nowNs) {
+        long headFrames;
+        if (audioTrack.getTimestamp(timestamp)) {
+            headFrames = timestamp.framePosition
+                    + (nowNs - timestamp.nanoTime) * mOutputSampleRate / 1_000_000_000L;
+        } else {
+            // No timestamp before the output really started
+            headFrames = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        }
+        return Math.max(0, framesWritten - headFrames) * 1_000_000_000L / mOutputSampleRate;
     }
 
     public void stop() {
@@ -0,0 +1,307 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Reorders sequenced 16 bit PCM frames that arrive over an unreliable transport and hides losses.
+ *
+ * Playout starts once enough frames are buffered to cover the measured arrival jitter
+ * (RFC 3550 interarrival jitter), and starts over the same way after an underrun. A missing
+ * frame is replaced by the last good frame faded out by {@link #CONCEALMENT_FADE} per lost
+ * frame, so short bursts of loss degrade into a dip in volume instead of a click or a stall.
+ * A sequence number more than {@link #CAPACITY} away from the expected one in either direction
+ * means the sender restarted or skipped ahead, and the buffer starts over from it.
+ *
+ * Thread safe, typically one receive thread calls put() and one audio thread calls take().
+ */
+public class AudioJitterBuffer {
+
+    private static final int CAPACITY = 64;
+    // Gain applied per consecutive concealed frame
+    private static final float CONCEALMENT_FADE = 0.5f;
+    // Cover this many times the jitter estimate
+    private static final float JITTER_SAFETY_FACTOR = 2f;
+
+    private final Packet[] mSlots = new Packet[CAPACITY];
+    private final int mMinDelayFrames;
+    private final int mMaxDelayFrames;
+
+    private boolean mInitialized = false;
+    private boolean mPriming = true;
+    private boolean mWakeUp = false;
+    private int mNextSeq;
+    private int mCount = 0;
+
+    private Packet mLastFrame = null;
+    private int mConcealedInARow = 0;
+
+    private boolean mHasTransit = false;
+    private long mLastTransitMs;
+    private long mLastSenderTimeMs;
+    private int mLastSenderSeq;
+    private float mJitterMs = 0;
+    private float mFrameDurationMs = 0;
+
+    private long mReceivedCount = 0;
+    private long mConcealedCount = 0;
+    private long mLateCount = 0;
+    private long mDroppedCount = 0;
+    private long mUnderrunCount = 0;
+    private long mResyncCount = 0;
+
+    /**
+     * @param minDelayFrames frames buffered before playout regardless of jitter.
+     * @param maxDelayFrames frames buffered at most, older ones are dropped beyond that.
+     */
+    public AudioJitterBuffer(int minDelayFrames, int maxDelayFrames) {
+        mMinDelayFrames = Math.max(1, minDelayFrames);
+        mMaxDelayFrames = Math.min(CAPACITY, Math.max(mMinDelayFrames, maxDelayFrames));
+    }
+
+    /**
+     * Take ownership of packet, which holds the frame with sequence number seq.
+     *
+     * @param senderTimeMs timestamp the sender put into the frame.
+     * @param arrivalTimeMs local receive time, any monotonic clock.
+     */
+    public synchronized void put(int seq, long senderTimeMs, long arrivalTimeMs, Packet packet) {
+        if (!mInitialized) {
+            mInitialized = true;
+            mNextSeq = seq;
+        }
+        int gap = seq - mNextSeq;
+        if (gap <= -CAPACITY || gap >= CAPACITY) {
+            resync(seq);
+        }
+        if (seq - mNextSeq < 0) {
+            // Already played or concealed
+            mLateCount++;
+            packet.release();
+            return;
+        }
+        mReceivedCount++;
+        updateJitter(seq, senderTimeMs, arrivalTimeMs);
+
+        // Too far ahead, give up on the oldest frames, less than CAPACITY of them
+        while (seq - mNextSeq >= mMaxDelayFrames) {
+            dropNext();
+        }
+        int index = seq & (CAPACITY - 1);
+        if (mSlots[index] != null) {
+            // Duplicate
+            packet.release();
+            return;
+        }
+        mSlots[index] = packet;
+        mCount++;
+        notifyAll();
+    }
+
+    /**
+     * @return the next frame to play, a concealment frame, or null if playout has to wait.
+     * The caller owns the returned packet.
+     */
+    public synchronized Packet poll() {
+        if (mCount == 0) {
+            if (!mPriming && mInitialized) {
+                mUnderrunCount++;
+                mPriming = true;
+            }
+            return null;
+        }
+        if (mPriming) {
+            if (mCount < getTargetDelayFrames()) {
+                return null;
+            }
+            mPriming = false;
+        }
+        int index = mNextSeq & (CAPACITY - 1);
+        Packet packet = mSlots[index];
+        mNextSeq++;
+        if (packet == null) {
+            mConcealedCount++;
+            mConcealedInARow++;
+            return conceal();
+        }
+        mSlots[index] = null;
+        mCount--;
+        mConcealedInARow = 0;
+        if (mLastFrame != null) {
+            mLastFrame.release();
+        }
+        mLastFrame = packet.retain();
+        return packet;
+    }
+
+    /**
+     * Block until {@link #poll()} returns a frame, the timeout elapses or {@link #wakeUp()}.
+     */
+    public synchronized Packet take(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        Packet packet;
+        while ((packet = poll()) == null && !mWakeUp) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        mWakeUp = false;
+        return packet;
+    }
+
+    public synchronized void wakeUp() {
+        mWakeUp = true;
+        notifyAll();
+    }
+
+    /**
+     * Release everything buffered and start over.
+     */
+    public synchronized void clear() {
+        releaseSlots();
+        if (mLastFrame != null) {
+            mLastFrame.release();
+            mLastFrame = null;
+        }
+        mCount = 0;
+        mInitialized = false;
+        mPriming = true;
+        mHasTransit = false;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized int getTargetDelayFrames() {
+        int frames = mMinDelayFrames;
+        if (mFrameDurationMs > 0) {
+            frames += (int) Math.ceil(JITTER_SAFETY_FACTOR * mJitterMs / mFrameDurationMs);
+        }
+        return Math.min(frames, mMaxDelayFrames);
+    }
+
+    public synchronized float getJitterMs() {
+        return mJitterMs;
+    }
+
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return frames that never arrived in time and were replaced by concealment.
+     */
+    public synchronized long getConcealedCount() {
+        return mConcealedCount;
+    }
+
+    public synchronized long getLateCount() {
+        return mLateCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /**
+     * @return times the sequence numbers jumped so far that the buffer started over.
+     */
+    public synchronized long getResyncCount() {
+        return mResyncCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AudioJitterBuffer{size=" + mCount + ", target=" + getTargetDelayFrames()
+                + ", jitterMs=" + mJitterMs + ", received=" + mReceivedCount
+                + ", concealed=" + mConcealedCount + ", late=" + mLateCount
+                + ", dropped=" + mDroppedCount + ", underruns=" + mUnderrunCount
+                + ", resyncs=" + mResyncCount + "}";
+    }
+
+    private void releaseSlots() {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mSlots[i] != null) {
+                mSlots[i].release();
+                mSlots[i] = null;
+            }
+        }
+        mCount = 0;
+    }
+
+    /**
+     * Start over at seq, keeping the last frame for concealment.
+     */
+    private void resync(int seq) {
+        releaseSlots();
+        mNextSeq = seq;
+        mPriming = true;
+        // Transit times of the old sequence say nothing about the new one
+        mHasTransit = false;
+        mResyncCount++;
+    }
+
+    private void dropNext() {
+        int index = mNextSeq & (CAPACITY - 1);
+        if (mSlots[index] != null) {
+            mSlots[index].release();
+            mSlots[index] = null;
+            mCount--;
+        }
+        mDroppedCount++;
+        mNextSeq++;
+    }
+
+    private void updateJitter(int seq, long senderTimeMs, long arrivalTimeMs) {
+        long transit = arrivalTimeMs - senderTimeMs;
+        if (mHasTransit) {
+            int seqDelta = seq - mLastSenderSeq;
+            if (seqDelta > 0) {
+                float duration = (float) (senderTimeMs - mLastSenderTimeMs) / seqDelta;
+                mFrameDurationMs = mFrameDurationMs == 0 ? duration
+                        : mFrameDurationMs + (duration - mFrameDurationMs) / 16;
+            }
+            long d = Math.abs(transit - mLastTransitMs);
+            mJitterMs += (d - mJitterMs) / 16;
+        }
+        mHasTransit = true;
+        mLastTransitMs = transit;
+        mLastSenderTimeMs = senderTimeMs;
+        mLastSenderSeq = seq;
+    }
+
+    /**
+     * @return mLastFrame faded from the gain of the previous concealed frame to the next one,
+     * with the receive time of mLastFrame, whose audio it plays.
+     */
+    private Packet conceal() {
+        if (mLastFrame == null) {
+            return Packet.obtain(0);
+        }
+        int size = mLastFrame.size & ~1;
+        Packet packet = Packet.obtain(size);
+        packet.receivedTimeNs = mLastFrame.receivedTimeNs;
+        byte[] in = mLastFrame.bytes;
+        byte[] out = packet.bytes;
+        float startGain = (float) Math.pow(CONCEALMENT_FADE, mConcealedInARow - 1);
+        float endGain = startGain * CONCEALMENT_FADE;
+        int samples = size / 2;
+        for (int i = 0; i < samples; i++) {
+            float gain = startGain + (endGain - startGain) * i / samples;
+            // 16 bit little endian PCM
+            int sample = (short) ((in[2 * i] & 0xff) | (in[2 * i + 1] << 8));
+            int faded = (int) (sample * gain);
+            out[2 * i] = (byte) faded;
+            out[2 * i + 1] = (byte) (faded >> 8);
+        }
+        return packet;
+    }
+}
@@ -20,37 +20,72 @@ import android.annotation.TargetApi;
 import android.media.AudioAttributes;
 import android.media.AudioTrack;
 import android.os.Build;
-import android.util.Log;
-
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import android.os.SystemClock;
 
 /**
  * Optimize the buffer size for an AudioTrack based on the underrun count.
  * Just call update() after every write() to the AudioTrack.
  *
- * The buffer size determines the latency.
- * Lower the latency until there are glitches.
- * Then raise the latency until the glitches stop.
+ * The buffer size determines the latency. After priming it is lowered a block every
+ * {@link #LOWER_INTERVAL_MS} until the first underrun, then raised a block per underrun, at most
+ * every {@link #RAISE_INTERVAL_MS} so one glitch raises it once. Once it has been stable for the
+ * decay time it tries one block lower again. If that underruns within {@link #PROBE_MS} it goes
+ * back up and the decay time doubles, up to {@link #MAX_DECAY_MS}, so the size does not keep
+ * flipping between two values; a successful probe resets it to {@link #DECAY_MS}. So latency
+ * comes back down after a transient glitch.
  *
  * <p/>
- * This feature was added in N. So we check for support based on the SDK version.
+ * Buffer sizes can only be changed from N on, before that the tuner does nothing.
+ * All methods are thread safe.
  */
 public class AudioLatencyTuner {
-    private static final String TAG = "AudioLatencyTuner";
-    private static final int STATE_PRIMING = 0;
-    private static final int STATE_LOWERING = 1;
-    private static final int STATE_RAISING = 2;
+    public static final int STATE_PRIMING = 0;
+    public static final int STATE_LOWERING = 1;
+    public static final int STATE_STABLE = 2;
+
+    // Played before the first change
+    static final int PRIMING_BLOCKS = 8;
+    static final int LOWER_INTERVAL_MS = 50;
+    static final int RAISE_INTERVAL_MS = 100;
+    static final int DECAY_MS = 10_000;
+    static final int MAX_DECAY_MS = 160_000;
+    static final int PROBE_MS = 2_000;
+    // Underrun rate is counted over this long
+    private static final int RATE_WINDOW_MS = 10_000;
 
     private static boolean mLowLatencySupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
 
+    /**
+     * The parts of an AudioTrack the tuner uses.
+     */
+    public interface Track {
+        int getUnderrunCount();
+        int getBufferSizeInFrames();
+
+        /**
+         * @return the size actually set.
+         */
+        int setBufferSizeInFrames(int frames);
+        int getBufferCapacityInFrames();
+        int getPlaybackHeadPosition();
+    }
+
+    private final Track mTrack;
     private final int mInitialSize;
-    private final AudioTrack mAudioTrack;
     private final int mFramesPerBlock;
 
     private int mState = STATE_PRIMING;
+    private long mStateSinceMs;
     private int mPreviousUnderrunCount;
+    private long mLastChangeMs;
+    private long mLastRaiseMs = Long.MIN_VALUE / 2;
+    private int mDecayMs = DECAY_MS;
+    // Set while a lower size is on trial
+    private long mProbeUntilMs = -1;
+
+    private long mRateWindowStartMs;
+    private int mRateWindowUnderruns = 0;
+    private float mUnderrunsPerMinute = 0;
 
     /**
      * An application can determine the optimal framesPerBlock as follows:
@@ -63,59 +98,49 @@ public class AudioLatencyTuner {
      */
     @TargetApi(23)
     public AudioLatencyTuner(AudioTrack track, int framesPerBlock) {
-        mAudioTrack = track;
+        this(wrap(track), framesPerBlock, SystemClock.uptimeMillis());
+    }
+
+    AudioLatencyTuner(Track track, int framesPerBlock, long nowMs) {
+        mTrack = track;
         mInitialSize = track.getBufferSizeInFrames();
         mFramesPerBlock = framesPerBlock;
-        reset();
+        reset(nowMs);
     }
 
     /**
-     * This only works on N or later versions of Android.
-     * @return number of times the audio buffer underflowed and glitched.
+     * @return track, whose buffer size stays put before N.
      */
     @TargetApi(24)
-    public int getUnderrunCount() {
-        if (mLowLatencySupported) {
-            return mAudioTrack.getUnderrunCount();
-        } else {
-            return 0;
-        }
-    }
+    static Track wrap(final AudioTrack track) {
+        return new Track() {
+            @Override
+            public int getUnderrunCount() {
+                return mLowLatencySupported ? track.getUnderrunCount() : 0;
+            }
 
-    /**
-     * This only works on N or later versions of Android.
-     * @return allocated size of the buffer
-     */
-    @TargetApi(24)
-    public int getBufferCapacityInFrames() {
-        if (mLowLatencySupported) {
-            return mAudioTrack.getBufferCapacityInFrames();
-        } else {
-            return mInitialSize;
-        }
-    }
+            @Override
+            public int getBufferSizeInFrames() {
+                return track.getBufferSizeInFrames();
+            }
 
-    /**
-     * Set the amount of the buffer capacity that we want to use.
-     * Lower values will reduce latency but may cause glitches.
-     * Note that you may not get the size you asked for.
-     *
-     * This only works on N or later versions of Android.
-     *
-     * @return actual size of the buffer
-     */
-    @TargetApi(24)
-    public int setBufferSizeInFrames(int thresholdFrames) {
-        if (mLowLatencySupported) {
-            return mAudioTrack.setBufferSizeInFrames(thresholdFrames);
-        } else {
-            return mInitialSize;
-        }
-    }
+            @Override
+            public int setBufferSizeInFrames(int frames) {
+                return mLowLatencySupported ? track.setBufferSizeInFrames(frames)
+                        : track.getBufferSizeInFrames();
+            }
 
-    @TargetApi(23)
-    public int getBufferSizeInFrames() {
-        return mAudioTrack.getBufferSizeInFrames();
+            @Override
+            public int getBufferCapacityInFrames() {
+                return mLowLatencySupported ? track.getBufferCapacityInFrames()
+                        : track.getBufferSizeInFrames();
+            }
+
+            @Override
+            public int getPlaybackHeadPosition() {
+                return track.getPlaybackHeadPosition();
+            }
+        };
     }
 
     public static boolean isLowLatencySupported() {
@@ -141,64 +166,135 @@ public class AudioLatencyTuner {
      * the original size. The tuning process will then restart.
      */
     public void reset() {
-        mState = STATE_PRIMING;
-        setBufferSizeInFrames(mInitialSize);
+        reset(SystemClock.uptimeMillis());
+    }
+
+    synchronized void reset(long nowMs) {
+        setState(STATE_PRIMING, nowMs);
+        mTrack.setBufferSizeInFrames(mInitialSize);
+        mPreviousUnderrunCount = mTrack.getUnderrunCount();
+        mDecayMs = DECAY_MS;
+        mProbeUntilMs = -1;
+        mLastChangeMs = nowMs;
+        mRateWindowStartMs = nowMs;
+        mRateWindowUnderruns = 0;
     }
 
     /**
      * This should be called after every write().
-     * It will lower the latency until there are underruns.
-     * Then it raises the latency until the underruns stop.
      */
-    @TargetApi(3)
     public void update() {
-        if (!mLowLatencySupported) {
-            return;
-        }
-        int nextState = mState;
-        int underrunCount;
+        update(SystemClock.uptimeMillis());
+    }
+
+    synchronized void update(long nowMs) {
+        int underrunCount = mTrack.getUnderrunCount();
+        int underruns = underrunCount - mPreviousUnderrunCount;
+        mPreviousUnderrunCount = underrunCount;
+        countUnderruns(underruns, nowMs);
+
         switch (mState) {
             case STATE_PRIMING:
-                if (mAudioTrack.getPlaybackHeadPosition() > (8 * mFramesPerBlock)) {
-                    nextState = STATE_LOWERING;
-                    mPreviousUnderrunCount = getUnderrunCount();
+                if (mTrack.getPlaybackHeadPosition() > PRIMING_BLOCKS * mFramesPerBlock) {
+                    setState(STATE_LOWERING, nowMs);
                 }
                 break;
             case STATE_LOWERING:
-                underrunCount = getUnderrunCount();
-                if (underrunCount > mPreviousUnderrunCount) {
-                    nextState = STATE_RAISING;
-                } else {
-                    if (incrementThreshold(-1)) {
-                        // If we hit bottom then start raising it back up.
-                        nextState = STATE_RAISING;
-                    }
+                if (underruns > 0) {
+                    raise(nowMs);
+                    setState(STATE_STABLE, nowMs);
+                } else if (nowMs - mLastChangeMs >= LOWER_INTERVAL_MS && !changeBlocks(-1, nowMs)) {
+                    // Hit bottom
+                    setState(STATE_STABLE, nowMs);
                 }
-                mPreviousUnderrunCount = underrunCount;
                 break;
-            case STATE_RAISING:
-                underrunCount = getUnderrunCount();
-                if (underrunCount > mPreviousUnderrunCount) {
-                    incrementThreshold(1);
+            case STATE_STABLE:
+                if (underruns > 0) {
+                    if (mProbeUntilMs >= 0) {
+                        // The lower size did not hold, stay away from it for longer
+                        mDecayMs = Math.min(2 * mDecayMs, MAX_DECAY_MS);
+                        mProbeUntilMs = -1;
+                    }
+                    raise(nowMs);
+                } else if (mProbeUntilMs >= 0 && nowMs >= mProbeUntilMs) {
+                    mDecayMs = DECAY_MS;
+                    mProbeUntilMs = -1;
+                } else if (mProbeUntilMs < 0 && nowMs - mLastChangeMs >= mDecayMs
+                        && changeBlocks(-1, nowMs)) {
+                    mProbeUntilMs = nowMs + PROBE_MS;
                 }
-                mPreviousUnderrunCount = underrunCount;
                 break;
         }
-        mState = nextState;
+    }
+
+    private void raise(long nowMs) {
+        if (nowMs - mLastRaiseMs >= RAISE_INTERVAL_MS) {
+            changeBlocks(1, nowMs);
+            mLastRaiseMs = nowMs;
+        }
+    }
+
+    /**
+     * Raise or lower the buffer size in blocks, between one block and the capacity.
+     * @return true if the size changed
+     */
+    private boolean changeBlocks(int deltaBlocks, long nowMs) {
+        int original = mTrack.getBufferSizeInFrames();
+        int numBlocks = Math.max(1, original / mFramesPerBlock + deltaBlocks);
+        int target = Math.min(numBlocks * mFramesPerBlock, mTrack.getBufferCapacityInFrames());
+        int actual = mTrack.setBufferSizeInFrames(target);
+        mLastChangeMs = nowMs;
+        return actual != original;
+    }
+
+    private void setState(int state, long nowMs) {
+        mState = state;
+        mStateSinceMs = nowMs;
+    }
+
+    private void countUnderruns(int underruns, long nowMs) {
+        mRateWindowUnderruns += underruns;
+        long windowMs = nowMs - mRateWindowStartMs;
+        if (windowMs >= RATE_WINDOW_MS) {
+            mUnderrunsPerMinute = mRateWindowUnderruns * 60_000f / windowMs;
+            mRateWindowUnderruns = 0;
+            mRateWindowStartMs = nowMs;
+        }
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public long getTimeInStateMs() {
+        return getTimeInStateMs(SystemClock.uptimeMillis());
+    }
+
+    synchronized long getTimeInStateMs(long nowMs) {
+        return nowMs - mStateSinceMs;
+    }
+
+    public synchronized int getBufferSizeInFrames() {
+        return mTrack.getBufferSizeInFrames();
+    }
+
+    /**
+     * @return underruns per minute over the last complete {@link #RATE_WINDOW_MS}.
+     */
+    public synchronized float getUnderrunsPerMinute() {
+        return mUnderrunsPerMinute;
     }
 
     /**
-     * Raise or lower the buffer size in blocks.
-     * @return true if the size did not change
+     * @return how long a stable size is kept before trying one block lower.
      */
-    private boolean incrementThreshold(int deltaBlocks) {
-        int original = getBufferSizeInFrames();
-        int numBlocks = original / mFramesPerBlock;
-        numBlocks += deltaBlocks;
-        int target = numBlocks * mFramesPerBlock;
-        int actual = setBufferSizeInFrames(target);
-        Log.i(TAG, "Buffer size changed from " + original + " to " + actual);
-        return actual == original;
+    public synchronized int getDecayMs() {
+        return mDecayMs;
     }
 
-}
\ No newline at end of file
+    @Override
+    public synchronized String toString() {
+        return "AudioLatencyTuner{state=" + mState + ", bufferFrames=" + mTrack.getBufferSizeInFrames()
+                + ", underrunsPerMinute=" + mUnderrunsPerMinute + ", decayMs=" + mDecayMs + "}";
+    }
+}
@@ -0,0 +1,64 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Helpers for AV1 streams in low overhead bitstream format (OBUs with size fields, AV1 spec
+ * 5.2 and 5.3), the counterpart of {@link NalUnits}.
+ */
+public class Av1Obus {
+
+    public static final int TYPE_SEQUENCE_HEADER = 1;
+    public static final int TYPE_TEMPORAL_DELIMITER = 2;
+    public static final int TYPE_FRAME_HEADER = 3;
+    public static final int TYPE_FRAME = 6;
+
+    private static final int FRAME_TYPE_KEY = 0;
+
+    public static int obuType(byte header) {
+        return (header >> 3) & 0xf;
+    }
+
+    /**
+     * Classify a temporal unit by its sequence header and first frame header. Which frames are
+     * referenced is not looked at, every non key frame counts as
+     * {@link NalUnits#FRAME_REFERENCE}.
+     *
+     * @return one of the NalUnits.FRAME_ constants.
+     */
+    public static int frameType(byte[] bytes, int size) {
+        boolean sequenceHeader = false;
+        int offset = 0;
+        while (offset < size) {
+            int header = bytes[offset];
+            int type = obuType(bytes[offset]);
+            int pos = offset + 1 + ((header >> 2) & 1);
+            long obuSize;
+            if ((header & 0x2) != 0) {
+                // leb128
+                obuSize = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (pos >= size || shift > 28) {
+                        return NalUnits.FRAME_UNKNOWN;
+                    }
+                    b = bytes[pos++];
+                    obuSize |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+            } else {
+                obuSize = size - pos;
+            }
+            if (type == TYPE_SEQUENCE_HEADER) {
+                sequenceHeader = true;
+            } else if ((type == TYPE_FRAME || type == TYPE_FRAME_HEADER) && pos < size && obuSize > 0) {
+                int firstByte = bytes[pos] & 0xff;
+                boolean showExistingFrame = (firstByte & 0x80) != 0;
+                int frameType = (firstByte >> 5) & 0x3;
+                return !showExistingFrame && frameType == FRAME_TYPE_KEY
+                        ? NalUnits.FRAME_KEY : NalUnits.FRAME_REFERENCE;
+            }
+            offset = (int) Math.min(size, pos + obuSize);
+        }
+        return sequenceHeader ? NalUnits.FRAME_CONFIG : NalUnits.FRAME_UNKNOWN;
+    }
+}
@@ -0,0 +1,146 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of byte arrays backing {@link Packet}s.
+ *
+ * Arrays are handed out in power of two sizes from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}, so the returned array may be longer than requested. Bigger requests
+ * are allocated exactly and never pooled. Each class keeps at most
+ * {@link #MAX_FREE_PER_CLASS} free arrays and all classes together at most
+ * {@link #MAX_RETAINED_BYTES}, anything beyond that is left to the GC. Without the total a few
+ * bursts of big keyframes would pin tens of MB in the top classes for good.
+ *
+ * Arrays that are never released are not leaked, they only show up in
+ * {@link #getOutstandingCount()} until collected.
+ */
+public class BufferPool {
+
+    public static final int MIN_CLASS_SIZE = 1024;
+    public static final int MAX_CLASS_SIZE = 4 * 1024 * 1024;
+    public static final int MAX_FREE_PER_CLASS = 8;
+    public static final int MAX_RETAINED_BYTES = 16 * 1024 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int CLASS_COUNT =
+            Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_CLASS_SHIFT + 1;
+
+    private static final BufferPool sDefault = new BufferPool();
+
+    private final byte[][][] mFree = new byte[CLASS_COUNT][MAX_FREE_PER_CLASS][];
+    private final int[] mFreeCount = new int[CLASS_COUNT];
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    // Bytes in the free lists
+    private final AtomicLong mRetainedBytes = new AtomicLong();
+
+    public static BufferPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @return an array of at least size bytes. Give it back with {@link #release(byte[])}.
+     */
+    public byte[] acquire(int size) {
+        mOutstanding.incrementAndGet();
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            mMisses.incrementAndGet();
+            return new byte[size];
+        }
+        byte[][] free = mFree[sizeClass];
+        synchronized (free) {
+            int count = mFreeCount[sizeClass];
+            if (count > 0) {
+                byte[] bytes = free[count - 1];
+                free[count - 1] = null;
+                mFreeCount[sizeClass] = count - 1;
+                mRetainedBytes.addAndGet(-bytes.length);
+                mHits.incrementAndGet();
+                return bytes;
+            }
+        }
+        mMisses.incrementAndGet();
+        return new byte[MIN_CLASS_SIZE << sizeClass];
+    }
+
+    public void release(byte[] bytes) {
+        mOutstanding.decrementAndGet();
+        int sizeClass = sizeClassOf(bytes.length);
+        if (sizeClass < 0 || bytes.length != MIN_CLASS_SIZE << sizeClass) {
+            return;
+        }
+        byte[][] free = mFree[sizeClass];
+        synchronized (free) {
+            int count = mFreeCount[sizeClass];
+            if (count < MAX_FREE_PER_CLASS && retain(bytes.length)) {
+                free[count] = bytes;
+                mFreeCount[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * @return false if size more bytes would take the free lists over {@link #MAX_RETAINED_BYTES}.
+     */
+    private boolean retain(int size) {
+        while (true) {
+            long retained = mRetainedBytes.get();
+            if (retained + size > MAX_RETAINED_BYTES) {
+                return false;
+            }
+            if (mRetainedBytes.compareAndSet(retained, retained + size)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return bytes held in the free lists.
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes.get();
+    }
+
+    /**
+     * @return number of acquire() calls served from a free list.
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of acquire() calls that had to allocate.
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return number of arrays acquired and not released yet.
+     */
+    public int getOutstandingCount() {
+        return mOutstanding.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", outstanding=" + getOutstandingCount()
+                + ", retainedKb=" + getRetainedBytes() / 1024 + "}";
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size > MAX_CLASS_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+    }
+}
@@ -0,0 +1,45 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Usual transit time plus the offset between the sender's and the receiver's clock, estimated as
+ * the smallest (arrival - capture) of the last {@link #WINDOW_MS} to twice that. Subtracting it
+ * from the (arrival - capture) of a frame leaves how much longer than usual the frame took. The
+ * window moves on, so a clock that drifts or a route that gets slower is followed within two
+ * windows.
+ *
+ * Not thread safe, the owner calls it under its own lock.
+ */
+public class ClockOffsetEstimator {
+
+    static final int WINDOW_MS = 5_000;
+
+    // Smallest (arrival - capture) in the current and the previous window
+    private long mWindowStartNs = -1;
+    private long mWindowMinOffsetUs = Long.MAX_VALUE;
+    private long mPreviousMinOffsetUs = Long.MAX_VALUE;
+
+    /**
+     * Something captured at captureTimeUs in the sender's clock arrived at arrivalNs,
+     * System.nanoTime() based.
+     */
+    public void onArrival(long arrivalNs, long captureTimeUs) {
+        if (mWindowStartNs < 0 || arrivalNs - mWindowStartNs > WINDOW_MS * 1_000_000L) {
+            mPreviousMinOffsetUs = mWindowMinOffsetUs;
+            mWindowMinOffsetUs = Long.MAX_VALUE;
+            mWindowStartNs = arrivalNs;
+        }
+        mWindowMinOffsetUs = Math.min(mWindowMinOffsetUs, arrivalNs / 1000 - captureTimeUs);
+    }
+
+    public boolean hasOffset() {
+        return mWindowStartNs >= 0;
+    }
+
+    /**
+     * @return the offset to add to a capture time to get its usual arrival time, only valid
+     * once {@link #hasOffset()}.
+     */
+    public long getOffsetUs() {
+        return Math.min(mWindowMinOffsetUs, mPreviousMinOffsetUs);
+    }
+}
@@ -0,0 +1,178 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+/**
+ * Keeps one codec alive across reconnects and releases it exactly once.
+ *
+ * Each connection {@link #acquire}s the codec and {@link #park}s it when done. A codec parked
+ * with the configuration it is running with stays started and is only flushed, so a next
+ * connection with the same configuration goes straight to queueing input. Parked without one it
+ * is stopped and needs a configure. A codec of another mime type, or one that failed and was
+ * {@link #discard}ed, is released and the next acquire creates a new one.
+ *
+ * {@link #release()} ends it all: the codec is released right away if parked, or on park if a
+ * connection still has it. All methods are thread safe.
+ *
+ * @param <C> the codec, MediaCodec outside of tests.
+ */
+public class CodecLifecycle<C> {
+
+    private static final String TAG = "CodecLifecycle";
+
+    public interface Operations<C> {
+        /**
+         * @return a new codec, null if none can be created for this mime type.
+         */
+        C create(String mimeType);
+
+        void flush(C codec);
+
+        void stop(C codec);
+
+        void release(C codec);
+    }
+
+    private final Operations<C> mOperations;
+    private C mCodec = null;
+    private String mMimeType = null;
+    // What the parked codec is configured and started with, null if it is stopped
+    private Object mRunningConfig = null;
+    private boolean mInUse = false;
+    private boolean mReleased = false;
+
+    private int mCreatedCount = 0;
+    private int mReleasedCount = 0;
+    private int mReuseCount = 0;
+
+    public CodecLifecycle(Operations<C> operations) {
+        mOperations = operations;
+    }
+
+    /**
+     * @return the codec for mimeType, the kept one if it has the same mime type, null if none can
+     * be created. Give it back with {@link #park} or {@link #discard}.
+     * @throws IllegalStateException if the codec is still in use or everything was released.
+     */
+    public synchronized C acquire(String mimeType) {
+        if (mReleased) {
+            throw new IllegalStateException("Released");
+        }
+        if (mInUse) {
+            throw new IllegalStateException("Codec still in use");
+        }
+        if (mCodec != null && !mimeType.equals(mMimeType)) {
+            Log.i(TAG, "Releasing the " + mMimeType + " codec for a " + mimeType + " one");
+            releaseCodec();
+        }
+        if (mCodec == null) {
+            mCodec = mOperations.create(mimeType);
+            if (mCodec == null) {
+                return null;
+            }
+            mCreatedCount++;
+            mMimeType = mimeType;
+            mRunningConfig = null;
+        } else {
+            mReuseCount++;
+        }
+        mInUse = true;
+        return mCodec;
+    }
+
+    /**
+     * @return configuration the acquired codec is still started with from the last connection,
+     * null if it is stopped.
+     */
+    public synchronized Object getRunningConfig() {
+        return mRunningConfig;
+    }
+
+    /**
+     * Give the codec back at the end of a connection.
+     *
+     * @param runningConfig configuration to keep the codec started with, null to stop it.
+     */
+    public synchronized void park(C codec, Object runningConfig) {
+        if (codec != mCodec || !mInUse) {
+            // Not ours to keep
+            mOperations.release(codec);
+            return;
+        }
+        mInUse = false;
+        mRunningConfig = null;
+        try {
+            if (runningConfig != null && !mReleased) {
+                mOperations.flush(codec);
+                mRunningConfig = runningConfig;
+            } else {
+                mOperations.stop(codec);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Codec failed on park: " + e.getMessage());
+            releaseCodec();
+            return;
+        }
+        if (mReleased) {
+            releaseCodec();
+        }
+    }
+
+    /**
+     * Give the codec back broken, it is released right away.
+     */
+    public synchronized void discard(C codec) {
+        if (codec != mCodec) {
+            mOperations.release(codec);
+            return;
+        }
+        mInUse = false;
+        releaseCodec();
+    }
+
+    /**
+     * Release the codec now if parked, or once it is parked. No acquire after this.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        if (!mInUse) {
+            releaseCodec();
+        }
+    }
+
+    private void releaseCodec() {
+        if (mCodec == null) {
+            return;
+        }
+        try {
+            mOperations.release(mCodec);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        mReleasedCount++;
+        mCodec = null;
+        mMimeType = null;
+        mRunningConfig = null;
+    }
+
+    public synchronized int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    public synchronized int getReleasedCount() {
+        return mReleasedCount;
+    }
+
+    /**
+     * @return acquires served with the kept codec.
+     */
+    public synchronized int getReuseCount() {
+        return mReuseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CodecLifecycle{" + mMimeType + ", created=" + mCreatedCount + ", released="
+                + mReleasedCount + ", reused=" + mReuseCount + ", inUse=" + mInUse + "}";
+    }
+}
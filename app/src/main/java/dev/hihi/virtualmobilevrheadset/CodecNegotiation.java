@@ -0,0 +1,277 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the video codec at session start.
+ *
+ * Once the command connection is up the client sends {@link #COMMAND_CODEC_CAPABILITIES} with
+ * the codecs it decodes in hardware, in order of preference (big endian):
+ * <pre>
+ * 1 byte command, 1 byte codec count, per codec:
+ *     1 byte codec id, 1 byte profile level count, per profile level:
+ *         4 bytes profile, 4 bytes level (MediaCodecInfo.CodecProfileLevel values)
+ * </pre>
+ * The server picks one of them and names it in a {@link Format} packet, sent first on the video
+ * stream and again whenever the format changes. The 4 byte size preamble that servers which
+ * know nothing about this send first means {@link #CODEC_AVC}, which is always advertised as
+ * the fallback, with or without a hardware decoder.
+ */
+public class CodecNegotiation {
+
+    private static final String TAG = "CodecNegotiation";
+
+    // Command 1 is a gesture, see MyTextureView.COMMAND
+    public static final int COMMAND_CODEC_CAPABILITIES = 2;
+
+    public static final int CODEC_AVC = 0;
+    public static final int CODEC_HEVC = 1;
+    public static final int CODEC_AV1 = 2;
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+    public static final String MIME_AV1 = "video/av01";
+
+    // Indexed by codec id
+    private static final String[] MIME_TYPES = {MIME_AVC, MIME_HEVC, MIME_AV1};
+    // Same quality at a lower bitrate first, AVC is the fallback
+    private static final int[] PREFERENCE = {CODEC_HEVC, CODEC_AV1, CODEC_AVC};
+    // Keeps the command small, decoders list a handful at most
+    private static final int MAX_PROFILE_LEVELS = 16;
+
+    // "VMVF"
+    static final int FORMAT_MAGIC = 0x564d5646;
+    static final int FORMAT_SIZE = 9;
+    private static final int LEGACY_PREAMBLE_SIZE = 4;
+
+    private static List<CodecSupport> sLocalCodecs;
+
+    /**
+     * One codec the client can decode.
+     */
+    public static class CodecSupport {
+        public final int codec;
+        public final int[] profiles;
+        public final int[] levels;
+
+        public CodecSupport(int codec, int[] profiles, int[] levels) {
+            this.codec = codec;
+            this.profiles = profiles;
+            this.levels = levels;
+        }
+
+        @Override
+        public String toString() {
+            return getMimeType(codec) + " (" + profiles.length + " profile levels)";
+        }
+    }
+
+    /**
+     * Video stream format (big endian):
+     * <pre>
+     * 4 bytes {@link #FORMAT_MAGIC}, 1 byte codec id, 2 bytes width, 2 bytes height
+     * </pre>
+     * The magic keeps tiny frames, such as an AV1 temporal unit of a few bytes, from being
+     * taken for a format.
+     */
+    public static class Format {
+        public final int codec;
+        public final int width;
+        public final int height;
+
+        public Format(int codec, int width, int height) {
+            this.codec = codec;
+            this.width = width;
+            this.height = height;
+        }
+
+        public byte[] toBytes() {
+            return ByteBuffer.allocate(FORMAT_SIZE).putInt(FORMAT_MAGIC).put((byte) codec)
+                    .putShort((short) width).putShort((short) height).array();
+        }
+
+        /**
+         * @return true if packet holds a format, valid or not, rather than a frame.
+         */
+        public static boolean matches(Packet packet) {
+            return packet.size == FORMAT_SIZE
+                    && ByteBuffer.wrap(packet.bytes, 0, packet.size).getInt() == FORMAT_MAGIC;
+        }
+
+        /**
+         * @return the format in packet, null if it is a frame rather than a format.
+         */
+        public static Format parse(Packet packet) {
+            if (!matches(packet)) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(packet.bytes, 0, packet.size);
+            bytes.getInt();
+            int codec = bytes.get() & 0xff;
+            int width = bytes.getShort() & 0xffff;
+            int height = bytes.getShort() & 0xffff;
+            if (getMimeType(codec) == null || width == 0 || height == 0) {
+                Log.w(TAG, "Bad video format, codec " + codec + " size " + width + "x" + height);
+                return null;
+            }
+            return new Format(codec, width, height);
+        }
+
+        /**
+         * Only for the first packet of a connection: the 2 bytes width, 2 bytes height preamble
+         * of servers without codec negotiation, which are H.264.
+         *
+         * @return the format in packet, null if it is a frame rather than a preamble.
+         */
+        public static Format parseLegacyPreamble(Packet packet) {
+            if (packet.size != LEGACY_PREAMBLE_SIZE
+                    || NalUnits.findNalStart(packet.bytes, 0, packet.size) >= 0) {
+                return null;
+            }
+            int width = (packet.bytes[0] & 0xff) << 8 | (packet.bytes[1] & 0xff);
+            int height = (packet.bytes[2] & 0xff) << 8 | (packet.bytes[3] & 0xff);
+            return new Format(CODEC_AVC, width, height);
+        }
+
+        @Override
+        public String toString() {
+            return getMimeType(codec) + " " + width + "x" + height;
+        }
+    }
+
+    /**
+     * @return mime type of a codec id, null if the id is unknown.
+     */
+    public static String getMimeType(int codec) {
+        return codec >= 0 && codec < MIME_TYPES.length ? MIME_TYPES[codec] : null;
+    }
+
+    /**
+     * @return codec id of a mime type, -1 if it is not one of ours.
+     */
+    public static int getCodec(String mimeType) {
+        for (int i = 0; i < MIME_TYPES.length; i++) {
+            if (MIME_TYPES[i].equalsIgnoreCase(mimeType)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return codecs this device decodes in hardware plus AVC, in order of preference. The codec
+     * list is only queried once.
+     */
+    public static synchronized List<CodecSupport> getLocalCodecs() {
+        if (sLocalCodecs == null) {
+            List<CodecSupport> codecs = new ArrayList<>();
+            for (int codec : PREFERENCE) {
+                CodecSupport support = queryCodec(codec);
+                if (support != null) {
+                    codecs.add(support);
+                }
+            }
+            sLocalCodecs = Collections.unmodifiableList(withFallback(codecs));
+            Log.i(TAG, "Local codecs: " + sLocalCodecs);
+        }
+        return sLocalCodecs;
+    }
+
+    /**
+     * @return codecs with AVC at the end unless it is already in there.
+     */
+    static List<CodecSupport> withFallback(List<CodecSupport> codecs) {
+        List<CodecSupport> result = new ArrayList<>(codecs);
+        for (CodecSupport support : codecs) {
+            if (support.codec == CODEC_AVC) {
+                return result;
+            }
+        }
+        result.add(new CodecSupport(CODEC_AVC, new int[0], new int[0]));
+        return result;
+    }
+
+    private static CodecSupport queryCodec(int codec) {
+        String mimeType = getMimeType(codec);
+        List<DecoderSelector.DecoderInfo> decoders = DecoderSelector.getRankedDecoders(mimeType);
+        if (decoders.isEmpty() || !decoders.get(0).hardware) {
+            return null;
+        }
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = null;
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (int i = 0; infos != null && i < infos.length; i++) {
+            if (infos[i].getName().equals(decoders.get(0).name)) {
+                try {
+                    profileLevels = infos[i].getCapabilitiesForType(mimeType).profileLevels;
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+                break;
+            }
+        }
+        int count = profileLevels == null ? 0 : Math.min(profileLevels.length, MAX_PROFILE_LEVELS);
+        int[] profiles = new int[count];
+        int[] levels = new int[count];
+        for (int i = 0; i < count; i++) {
+            profiles[i] = profileLevels[i].profile;
+            levels[i] = profileLevels[i].level;
+        }
+        return new CodecSupport(codec, profiles, levels);
+    }
+
+    public static byte[] buildCapabilitiesCommand(List<CodecSupport> codecs) {
+        int size = 2;
+        for (CodecSupport support : codecs) {
+            size += 2 + 8 * Math.min(support.profiles.length, MAX_PROFILE_LEVELS);
+        }
+        ByteBuffer command = ByteBuffer.allocate(size);
+        command.put((byte) COMMAND_CODEC_CAPABILITIES).put((byte) codecs.size());
+        for (CodecSupport support : codecs) {
+            int count = Math.min(support.profiles.length, MAX_PROFILE_LEVELS);
+            command.put((byte) support.codec).put((byte) count);
+            for (int i = 0; i < count; i++) {
+                command.putInt(support.profiles[i]).putInt(support.levels[i]);
+            }
+        }
+        return command.array();
+    }
+
+    /**
+     * The server side of {@link #buildCapabilitiesCommand(List)}.
+     *
+     * @return the advertised codecs, null if this is not a well formed capabilities command.
+     */
+    public static List<CodecSupport> parseCapabilitiesCommand(byte[] bytes, int size) {
+        ByteBuffer command = ByteBuffer.wrap(bytes, 0, size);
+        if (size < 2 || command.get() != COMMAND_CODEC_CAPABILITIES) {
+            return null;
+        }
+        int codecCount = command.get() & 0xff;
+        List<CodecSupport> codecs = new ArrayList<>();
+        for (int c = 0; c < codecCount; c++) {
+            if (command.remaining() < 2) {
+                return null;
+            }
+            int codec = command.get() & 0xff;
+            int count = command.get() & 0xff;
+            if (command.remaining() < 8 * count) {
+                return null;
+            }
+            int[] profiles = new int[count];
+            int[] levels = new int[count];
+            for (int i = 0; i < count; i++) {
+                profiles[i] = command.getInt();
+                levels[i] = command.getInt();
+            }
+            codecs.add(new CodecSupport(codec, profiles, levels));
+        }
+        return codecs;
+    }
+}
@@ -0,0 +1,65 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Counts the frames queued to a decoder that have not come out yet, by their presentation time.
+ *
+ * Not every input produces an output: codec config buffers, frames the decoder skips and
+ * whatever a flush throws away never do. A plain counter of inputs minus outputs creeps up with
+ * every one of those, so instead the presentation times are kept and an input that has not come
+ * out within {@link #MAX_AGE_US} is taken as never coming out. Presentation times are
+ * System.nanoTime() in us at queueing, like VideoDecoder uses them, so they double as the age.
+ *
+ * All methods are thread safe.
+ */
+public class CodecQueueDepth {
+
+    // Far more than a decoder holds on to a frame that it is going to output
+    static final long MAX_AGE_US = 500_000;
+    private static final int CAPACITY = 64;
+
+    // Ring of outstanding presentation times, 0 for a slot that came out
+    private final long[] mPtsUs = new long[CAPACITY];
+    private int mNext = 0;
+
+    public synchronized void onQueued(long ptsUs) {
+        // A full ring overwrites the oldest, which is long stale by then
+        mPtsUs[mNext] = ptsUs;
+        mNext = (mNext + 1) % CAPACITY;
+    }
+
+    public synchronized void onOutput(long ptsUs) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mPtsUs[i] == ptsUs) {
+                mPtsUs[i] = 0;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return frames queued within {@link #MAX_AGE_US} of nowUs that have not come out.
+     */
+    public synchronized int getDepth(long nowUs) {
+        int depth = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mPtsUs[i] == 0) {
+                continue;
+            }
+            if (nowUs - mPtsUs[i] > MAX_AGE_US) {
+                mPtsUs[i] = 0;
+            } else {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * The codec was flushed or reconfigured.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mPtsUs[i] = 0;
+        }
+    }
+}
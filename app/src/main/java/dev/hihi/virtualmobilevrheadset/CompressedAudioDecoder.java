@@ -0,0 +1,181 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the AAC or Opus packets of an audio stream into 16 bit PCM packets with a MediaCodec,
+ * synchronously on the audio thread.
+ *
+ * Every packet goes into the codec right away and whatever output it has ready comes back out,
+ * waiting {@link #OUTPUT_WAIT_US} at most, so decoding adds about one codec frame of delay.
+ *
+ * The codec's output format can differ from the stream's: HE-AAC decodes to twice the signalled
+ * sample rate, and some decoders upmix mono to stereo. The PCM always has the stream's channels,
+ * converted if needed, and {@link #getSampleRate()} tells its sample rate.
+ * Not thread safe, owned by the audio thread.
+ */
+public class CompressedAudioDecoder {
+
+    private static final String TAG = "CompressedAudioDecoder";
+
+    private static final int INPUT_WAIT_US = 10_000;
+    private static final int OUTPUT_WAIT_US = 2_000;
+
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private byte[] mOutput = new byte[8192];
+    // Codec output with fewer channels than the stream, before it is converted into mOutput
+    private byte[] mScratch = new byte[0];
+    // Input buffer dequeued but not filled, used for the next packet
+    private int mFreeInputIndex = -1;
+    private long mPtsUs = 0;
+    private final int mChannels;
+    // Of the codec's output
+    private int mCodecChannels;
+    private int mSampleRate;
+
+    public CompressedAudioDecoder(AudioCodecNegotiation.Format format) throws IOException {
+        mChannels = format.channels;
+        mCodecChannels = format.channels;
+        mSampleRate = format.sampleRate;
+        MediaFormat mediaFormat = AudioCodecNegotiation.createMediaFormat(format);
+        mCodec = MediaCodec.createDecoderByType(AudioCodecNegotiation.getMimeType(format.codec));
+        try {
+            mCodec.configure(mediaFormat, null, null, 0);
+            mCodec.start();
+        } catch (RuntimeException e) {
+            mCodec.release();
+            throw e;
+        }
+        Log.i(TAG, "Decoding " + format + " with " + mCodec.getName());
+    }
+
+    /**
+     * Decode packet, which is released.
+     *
+     * @return PCM the codec had ready, with the receive time of packet, or null if none yet.
+     */
+    public Packet decode(Packet packet) {
+        long receivedTimeNs = packet.receivedTimeNs;
+        try {
+            int index = mFreeInputIndex >= 0
+                    ? mFreeInputIndex : mCodec.dequeueInputBuffer(INPUT_WAIT_US);
+            mFreeInputIndex = -1;
+            if (index >= 0) {
+                ByteBuffer input = mCodec.getInputBuffer(index);
+                input.clear();
+                if (input.remaining() < packet.size) {
+                    Log.w(TAG, "Packet of " + packet.size + " bytes does not fit the codec input of "
+                            + input.remaining() + ", dropped");
+                    mFreeInputIndex = index;
+                } else {
+                    input.put(packet.bytes, 0, packet.size);
+                    // Only has to go up, the codec does not pace anything
+                    mCodec.queueInputBuffer(index, 0, packet.size, mPtsUs++, 0);
+                }
+            } else {
+                Log.w(TAG, "Codec input full, dropped packet");
+            }
+        } finally {
+            packet.release();
+        }
+
+        int size = 0;
+        long timeoutUs = OUTPUT_WAIT_US;
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat outputFormat = mCodec.getOutputFormat();
+                Log.i(TAG, "Output format " + outputFormat);
+                if (outputFormat.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+                    mSampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                }
+                if (outputFormat.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
+                    mCodecChannels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+                continue;
+            } else if (index < 0) {
+                break;
+            }
+            ByteBuffer output = mCodec.getOutputBuffer(index);
+            int frames = mInfo.size / (2 * mCodecChannels);
+            int pcmSize = frames * 2 * mChannels;
+            if (size + Math.max(pcmSize, mInfo.size) > mOutput.length) {
+                byte[] grown = new byte[Math.max(2 * mOutput.length, size + Math.max(pcmSize, mInfo.size))];
+                System.arraycopy(mOutput, 0, grown, 0, size);
+                mOutput = grown;
+            }
+            output.position(mInfo.offset);
+            if (mCodecChannels == mChannels) {
+                output.get(mOutput, size, mInfo.size);
+                size += mInfo.size;
+            } else {
+                // Converted in place, fewer channels are written behind what is read
+                if (mCodecChannels < mChannels && mScratch.length < mInfo.size) {
+                    mScratch = new byte[mInfo.size];
+                }
+                byte[] codecPcm = mCodecChannels > mChannels ? mOutput : mScratch;
+                int codecOffset = mCodecChannels > mChannels ? size : 0;
+                output.get(codecPcm, codecOffset, mInfo.size);
+                convertChannels(codecPcm, codecOffset, mCodecChannels, mOutput, size, mChannels, frames);
+                size += pcmSize;
+            }
+            mCodec.releaseOutputBuffer(index, false);
+            // Take what else is ready, but do not wait for it
+            timeoutUs = 0;
+        }
+        if (size == 0) {
+            return null;
+        }
+        Packet pcm = Packet.obtain(size);
+        System.arraycopy(mOutput, 0, pcm.bytes, 0, size);
+        pcm.receivedTimeNs = receivedTimeNs;
+        return pcm;
+    }
+
+    /**
+     * @return the sample rate of the PCM {@link #decode(Packet)} returns.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Convert frames of 16 bit PCM between channel counts. Mono is copied to every channel,
+     * the first two channels are mixed down to mono and further channels are left out.
+     * in and out may be the same array if out does not start behind in.
+     */
+    static void convertChannels(byte[] in, int inOffset, int inChannels, byte[] out,
+            int outOffset, int outChannels, int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            int inFrame = inOffset + frame * 2 * inChannels;
+            int outFrame = outOffset + frame * 2 * outChannels;
+            if (outChannels == 1 && inChannels > 1) {
+                int mixed = ((short) ((in[inFrame] & 0xff) | (in[inFrame + 1] << 8))
+                        + (short) ((in[inFrame + 2] & 0xff) | (in[inFrame + 3] << 8))) / 2;
+                out[outFrame] = (byte) mixed;
+                out[outFrame + 1] = (byte) (mixed >> 8);
+                continue;
+            }
+            for (int channel = 0; channel < outChannels; channel++) {
+                int from = inFrame + 2 * Math.min(channel, inChannels - 1);
+                out[outFrame + 2 * channel] = in[from];
+                out[outFrame + 2 * channel + 1] = in[from + 1];
+            }
+        }
+    }
+
+    public void release() {
+        try {
+            mCodec.stop();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        mCodec.release();
+    }
+}
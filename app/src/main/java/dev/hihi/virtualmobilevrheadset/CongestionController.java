@@ -0,0 +1,283 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver side congestion control: tells the server which bitrate, resolution and frame rate
+ * the link and the headset keep up with.
+ *
+ * Every {@link #FEEDBACK_INTERVAL_MS} {@link #update(long)} looks at what happened since the last
+ * call and the result is sent as {@link #COMMAND_STREAM_TARGETS} on the command channel (big
+ * endian):
+ * <pre>
+ * 1 byte command, 4 bytes bitrate in bits/s, 1 byte resolution in percent of the source size,
+ * 1 byte frames per second
+ * </pre>
+ * The link is overused when the queueing delay of video frames is above the latency target, the
+ * receive and decode queues back up, or video frames are late or audio packets dropped. Then the
+ * bitrate goes to {@link #DECREASE_FACTOR} of the delivered throughput and stays there for
+ * {@link #HOLD_AFTER_DECREASE_MS} to let the queues drain. Below half the latency target it grows
+ * by {@link #INCREASE_FACTOR} per interval, up to {@link #MAX_GROWTH_OVER_DELIVERED} times what
+ * actually arrived, so a server that sends less than asked does not make it run away. In
+ * between it holds.
+ *
+ * Queueing delay is (arrival - capture) of a frame minus the {@link ClockOffsetEstimator} offset,
+ * which cancels the clock offset between the two sides.
+ * Frames without a capture time only count towards throughput.
+ *
+ * Resolution goes down before the frame rate, in the steps of {@link #RESOLUTION_STEPS}, as soon
+ * as the bitrate gives less than {@link #MIN_BITS_PER_PIXEL} per pixel, and back up only with some
+ * margin. The source size is taken to be the largest stream size seen.
+ *
+ * All times are System.nanoTime() based. All methods are thread safe.
+ */
+public class CongestionController {
+
+    // Command 1 is a gesture, 2 the codec capabilities of CodecNegotiation
+    public static final int COMMAND_STREAM_TARGETS = 3;
+    public static final int COMMAND_SIZE = 7;
+
+    public static final int FEEDBACK_INTERVAL_MS = 500;
+    public static final int DEFAULT_LATENCY_TARGET_MS = 30;
+
+    static final double DECREASE_FACTOR = 0.85;
+    static final double INCREASE_FACTOR = 1.08;
+    static final double MAX_GROWTH_OVER_DELIVERED = 1.5;
+    static final int HOLD_AFTER_DECREASE_MS = 1000;
+    // Frames waiting in the receive queue and the decoder, more is a decoder falling behind
+    static final int MAX_QUEUED_FRAMES = 4;
+    static final double MIN_BITS_PER_PIXEL = 0.05;
+    // A better step is only taken if it still gets this much more than the minimum
+    static final double STEP_UP_MARGIN = 1.4;
+    static final int[] RESOLUTION_STEPS = {100, 75, 50};
+
+    private static final int DEFAULT_WIDTH = 1920;
+    private static final int DEFAULT_HEIGHT = 1080;
+
+    /**
+     * What the server is asked to send.
+     */
+    public static class Targets {
+        public final int bitrateBps;
+        public final int resolutionPercent;
+        public final int fps;
+
+        public Targets(int bitrateBps, int resolutionPercent, int fps) {
+            this.bitrateBps = bitrateBps;
+            this.resolutionPercent = resolutionPercent;
+            this.fps = fps;
+        }
+
+        @Override
+        public String toString() {
+            return bitrateBps / 1000 + "kbps, " + resolutionPercent + "%, " + fps + "fps";
+        }
+    }
+
+    private final int mMaxFps;
+    private long mLatencyTargetUs = DEFAULT_LATENCY_TARGET_MS * 1000L;
+    private int mMinBitrateBps = 1_000_000;
+    private int mMaxBitrateBps = 30_000_000;
+    private int mBitrateBps = 8_000_000;
+    private int mStep = 0;
+    private long mSourcePixels = (long) DEFAULT_WIDTH * DEFAULT_HEIGHT;
+
+    // Since the last update
+    private long mBytes = 0;
+    private long mQueueDelaySumUs = 0;
+    private int mQueueDelaySamples = 0;
+    private int mMaxQueueDepth = 0;
+    private int mLateFrames = 0;
+    private int mAudioDrops = 0;
+
+    private final ClockOffsetEstimator mClockOffset = new ClockOffsetEstimator();
+
+    private long mLastUpdateNs = -1;
+    private long mLastDecreaseNs = -1;
+    private long mDeliveredBps = -1;
+    private long mQueueDelayUs = -1;
+    private boolean mOverused = false;
+
+    public CongestionController(int maxFps) {
+        mMaxFps = maxFps;
+    }
+
+    /**
+     * Queueing delay to stay below, {@link #DEFAULT_LATENCY_TARGET_MS} by default.
+     */
+    public synchronized void setLatencyTarget(long latencyTargetMs) {
+        mLatencyTargetUs = latencyTargetMs * 1000;
+    }
+
+    public synchronized void setBitrateRange(int minBitrateBps, int maxBitrateBps) {
+        mMinBitrateBps = minBitrateBps;
+        mMaxBitrateBps = maxBitrateBps;
+        mBitrateBps = Math.max(minBitrateBps, Math.min(maxBitrateBps, mBitrateBps));
+    }
+
+    /**
+     * A video frame of bytes arrived at arrivalNs. Frames with a capture time of 0 or no arrival
+     * time only count towards throughput.
+     */
+    public synchronized void onFrameReceived(int bytes, long arrivalNs, long captureTimeUs) {
+        mBytes += bytes;
+        if (captureTimeUs <= 0 || arrivalNs <= 0) {
+            return;
+        }
+        mClockOffset.onArrival(arrivalNs, captureTimeUs);
+        mQueueDelaySumUs += arrivalNs / 1000 - captureTimeUs - mClockOffset.getOffsetUs();
+        mQueueDelaySamples++;
+    }
+
+    /**
+     * Frames received but not decoded yet.
+     */
+    public synchronized void onQueueDepth(int frames) {
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, frames);
+    }
+
+    /**
+     * Video frames skipped or dropped for being too late.
+     */
+    public synchronized void onLateFrames(int frames) {
+        mLateFrames += frames;
+    }
+
+    public synchronized void onAudioDrops(int packets) {
+        mAudioDrops += packets;
+    }
+
+    /**
+     * Size of the video stream as received.
+     */
+    public synchronized void onStreamSize(int width, int height) {
+        mSourcePixels = Math.max(mSourcePixels, (long) width * height);
+    }
+
+    /**
+     * Adjust the targets to what happened since the last call, meant to be called every
+     * {@link #FEEDBACK_INTERVAL_MS}.
+     */
+    public synchronized Targets update(long nowNs) {
+        if (mLastUpdateNs < 0) {
+            mLastUpdateNs = nowNs;
+            resetInterval();
+            return getTargets();
+        }
+        long intervalNs = nowNs - mLastUpdateNs;
+        if (intervalNs <= 0) {
+            return getTargets();
+        }
+        mLastUpdateNs = nowNs;
+        mDeliveredBps = mBytes * 8 * 1_000_000_000L / intervalNs;
+        mQueueDelayUs = mQueueDelaySamples > 0 ? mQueueDelaySumUs / mQueueDelaySamples : -1;
+
+        mOverused = mQueueDelayUs > mLatencyTargetUs || mMaxQueueDepth > MAX_QUEUED_FRAMES
+                || mLateFrames > 0 || mAudioDrops > 0;
+        boolean holding = mLastDecreaseNs >= 0
+                && nowNs - mLastDecreaseNs < HOLD_AFTER_DECREASE_MS * 1_000_000L;
+        long bitrate = mBitrateBps;
+        if (mOverused) {
+            if (!holding) {
+                // Nothing got through at all, the delivered rate says nothing
+                bitrate = mDeliveredBps > 0 ? Math.min(bitrate, (long) (mDeliveredBps * DECREASE_FACTOR))
+                        : bitrate / 2;
+                mLastDecreaseNs = nowNs;
+            }
+        } else if (!holding && mQueueDelayUs <= mLatencyTargetUs / 2) {
+            bitrate = (long) (bitrate * INCREASE_FACTOR);
+            if (mDeliveredBps > 0) {
+                bitrate = Math.min(bitrate, Math.max(mBitrateBps,
+                        (long) (mDeliveredBps * MAX_GROWTH_OVER_DELIVERED)));
+            }
+        }
+        mBitrateBps = (int) Math.max(mMinBitrateBps, Math.min(mMaxBitrateBps, bitrate));
+        mStep = pickStep(mStep);
+        resetInterval();
+        return getTargets();
+    }
+
+    private void resetInterval() {
+        mBytes = 0;
+        mQueueDelaySumUs = 0;
+        mQueueDelaySamples = 0;
+        mMaxQueueDepth = 0;
+        mLateFrames = 0;
+        mAudioDrops = 0;
+    }
+
+    /**
+     * Steps are resolutions at full frame rate, then the lowest resolution at half.
+     */
+    private int pickStep(int step) {
+        int lastStep = RESOLUTION_STEPS.length;
+        while (step < lastStep && bitsPerPixel(step) < MIN_BITS_PER_PIXEL) {
+            step++;
+        }
+        while (step > 0 && bitsPerPixel(step - 1) >= MIN_BITS_PER_PIXEL * STEP_UP_MARGIN) {
+            step--;
+        }
+        return step;
+    }
+
+    private double bitsPerPixel(int step) {
+        int percent = RESOLUTION_STEPS[Math.min(step, RESOLUTION_STEPS.length - 1)];
+        double pixels = mSourcePixels * percent * percent / 10000.0;
+        return mBitrateBps / (pixels * stepFps(step));
+    }
+
+    private int stepFps(int step) {
+        return step < RESOLUTION_STEPS.length ? mMaxFps : Math.max(1, mMaxFps / 2);
+    }
+
+    public synchronized Targets getTargets() {
+        return new Targets(mBitrateBps, RESOLUTION_STEPS[Math.min(mStep, RESOLUTION_STEPS.length - 1)],
+                stepFps(mStep));
+    }
+
+    /**
+     * @return throughput over the last interval, -1 before the second update.
+     */
+    public synchronized long getDeliveredBps() {
+        return mDeliveredBps;
+    }
+
+    /**
+     * @return average queueing delay over the last interval, -1 if unknown.
+     */
+    public synchronized long getQueueDelayUs() {
+        return mQueueDelayUs;
+    }
+
+    public synchronized boolean isOverused() {
+        return mOverused;
+    }
+
+    public static byte[] buildTargetsCommand(Targets targets) {
+        return ByteBuffer.allocate(COMMAND_SIZE)
+                .put((byte) COMMAND_STREAM_TARGETS)
+                .putInt(targets.bitrateBps)
+                .put((byte) targets.resolutionPercent)
+                .put((byte) targets.fps)
+                .array();
+    }
+
+    /**
+     * The server side of {@link #buildTargetsCommand(Targets)}.
+     *
+     * @return the targets, null if this is not a stream targets command.
+     */
+    public static Targets parseTargetsCommand(byte[] bytes, int size) {
+        if (size < COMMAND_SIZE || bytes[0] != COMMAND_STREAM_TARGETS) {
+            return null;
+        }
+        ByteBuffer command = ByteBuffer.wrap(bytes, 1, COMMAND_SIZE - 1);
+        return new Targets(command.getInt(), command.get() & 0xff, command.get() & 0xff);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CongestionController{" + getTargets() + ", delivered=" + mDeliveredBps / 1000
+                + "kbps, queueDelay=" + mQueueDelayUs + "us, overused=" + mOverused + "}";
+    }
+}
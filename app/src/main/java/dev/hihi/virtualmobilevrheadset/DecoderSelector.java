@@ -0,0 +1,247 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the video decoder and the format keys that tune it for latency.
+ *
+ * Decoders are ranked hardware before software, and within each group the ones advertising
+ * the low latency feature first. The tuning comes in levels, so a decoder that rejects some
+ * keys can still be configured with fewer:
+ * <ul>
+ * <li>{@link #TUNING_FULL}: standard keys plus the vendor low latency keys of the decoder.</li>
+ * <li>{@link #TUNING_STANDARD}: low latency, realtime priority and max operating rate.</li>
+ * <li>{@link #TUNING_NONE}: nothing.</li>
+ * </ul>
+ * The level a decoder got configured with is remembered for the lifetime of the process.
+ *
+ * Decoders with adaptive playback are configured for the largest size they may have to switch
+ * to, see {@link #getAdaptiveMaxSize}, so a new resolution or orientation needs no reconfigure.
+ */
+public class DecoderSelector {
+
+    private static final String TAG = "DecoderSelector";
+
+    public static final int TUNING_FULL = 0;
+    public static final int TUNING_STANDARD = 1;
+    public static final int TUNING_NONE = 2;
+
+    // MediaFormat.KEY_LOW_LATENCY and CodecCapabilities.FEATURE_LowLatency, API 30
+    static final String KEY_LOW_LATENCY = "low-latency";
+    private static final int API_LOW_LATENCY = 30;
+    private static final int PRIORITY_REALTIME = 0;
+
+    private static final String[] SOFTWARE_PREFIXES = {"omx.google.", "c2.android.", "omx.ffmpeg."};
+
+    // Codec name prefixes and their vendor specific low latency keys
+    private static final String[][] VENDOR_PREFIXES = {
+            {"omx.qcom.", "c2.qti."},
+            {"omx.hisi.", "c2.hisi."},
+            {"omx.exynos.", "c2.exynos."},
+            {"omx.amlogic.", "c2.amlogic."},
+    };
+    private static final String[][][] VENDOR_KEYS = {
+            {{"vendor.qti-ext-dec-picture-order.enable", "1"},
+                    {"vendor.qti-ext-dec-low-latency.enable", "1"}},
+            {{"vendor.hisi-ext-low-latency-video-dec.video-scene-for-low-latency-req", "1"},
+                    {"vendor.hisi-ext-low-latency-video-dec.video-scene-for-low-latency-rdy", "-1"}},
+            {{"vendor.rtc-ext-dec-low-latency.enable", "1"}},
+            {{"vendor.low-latency.enable", "1"}},
+    };
+
+    private static final Map<String, List<DecoderInfo>> sRankedDecoders = new HashMap<>();
+    private static final Map<String, Integer> sTuningLevels = new HashMap<>();
+
+    /**
+     * What the selection needs to know about one decoder.
+     */
+    public static class DecoderInfo {
+        public final String name;
+        public final boolean hardware;
+        public final boolean lowLatency;
+        public final boolean adaptivePlayback;
+        // Largest supported size, 0 if not known
+        public final int maxWidth;
+        public final int maxHeight;
+
+        public DecoderInfo(String name, boolean hardware, boolean lowLatency) {
+            this(name, hardware, lowLatency, false, 0, 0);
+        }
+
+        public DecoderInfo(String name, boolean hardware, boolean lowLatency,
+                boolean adaptivePlayback, int maxWidth, int maxHeight) {
+            this.name = name;
+            this.hardware = hardware;
+            this.lowLatency = lowLatency;
+            this.adaptivePlayback = adaptivePlayback;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        @Override
+        public String toString() {
+            return name + (hardware ? " (hardware" : " (software")
+                    + (lowLatency ? ", low latency)" : ")");
+        }
+    }
+
+    /**
+     * @return decoders for mime, best first. The codec list is only queried once per mime.
+     */
+    public static synchronized List<DecoderInfo> getRankedDecoders(String mime) {
+        List<DecoderInfo> ranked = sRankedDecoders.get(mime);
+        if (ranked == null) {
+            ranked = rank(queryDecoders(mime));
+            Log.i(TAG, "Decoders for " + mime + ": " + ranked);
+            sRankedDecoders.put(mime, ranked);
+        }
+        return ranked;
+    }
+
+    /**
+     * @return a copy of decoders, best first. Keeps the order of equally ranked decoders, which
+     * is the platform's order of preference.
+     */
+    public static List<DecoderInfo> rank(List<DecoderInfo> decoders) {
+        List<DecoderInfo> ranked = new ArrayList<>(decoders);
+        Collections.sort(ranked, new Comparator<DecoderInfo>() {
+            @Override
+            public int compare(DecoderInfo a, DecoderInfo b) {
+                return score(b) - score(a);
+            }
+        });
+        return ranked;
+    }
+
+    private static int score(DecoderInfo decoder) {
+        return (decoder.hardware ? 2 : 0) + (decoder.lowLatency ? 1 : 0);
+    }
+
+    private static List<DecoderInfo> queryDecoders(String mime) {
+        List<DecoderInfo> decoders = new ArrayList<>();
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        if (infos == null) {
+            return decoders;
+        }
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder() || !supportsType(info, mime)) {
+                continue;
+            }
+            boolean hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                    ? info.isHardwareAccelerated() : !isSoftwareName(info.getName());
+            boolean lowLatency = false;
+            boolean adaptivePlayback = false;
+            int maxWidth = 0;
+            int maxHeight = 0;
+            try {
+                MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mime);
+                lowLatency = Build.VERSION.SDK_INT >= API_LOW_LATENCY
+                        && capabilities.isFeatureSupported(KEY_LOW_LATENCY);
+                adaptivePlayback = capabilities.isFeatureSupported(
+                        MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+                MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+                if (video != null) {
+                    maxWidth = video.getSupportedWidths().getUpper();
+                    maxHeight = video.getSupportedHeights().getUpper();
+                }
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+            decoders.add(new DecoderInfo(info.getName(), hardware, lowLatency, adaptivePlayback,
+                    maxWidth, maxHeight));
+        }
+        return decoders;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isSoftwareName(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        for (String prefix : SOFTWARE_PREFIXES) {
+            if (lower.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param decoder the decoder the format is for, null if it is not known.
+     * @return integer format keys to set for tuningLevel, in the order they should be set.
+     */
+    public static Map<String, Integer> getTuningKeys(DecoderInfo decoder, int tuningLevel, int sdkInt) {
+        Map<String, Integer> keys = new LinkedHashMap<>();
+        if (tuningLevel >= TUNING_NONE) {
+            return keys;
+        }
+        if (sdkInt >= API_LOW_LATENCY) {
+            keys.put(KEY_LOW_LATENCY, 1);
+        }
+        keys.put(MediaFormat.KEY_PRIORITY, PRIORITY_REALTIME);
+        // Decode every frame as fast as possible instead of pacing to the frame rate
+        keys.put(MediaFormat.KEY_OPERATING_RATE, (int) Short.MAX_VALUE);
+        if (tuningLevel == TUNING_FULL && decoder != null) {
+            String lower = decoder.name.toLowerCase(Locale.US);
+            for (int i = 0; i < VENDOR_PREFIXES.length; i++) {
+                for (String prefix : VENDOR_PREFIXES[i]) {
+                    if (lower.startsWith(prefix)) {
+                        for (String[] key : VENDOR_KEYS[i]) {
+                            keys.put(key[0], Integer.parseInt(key[1]));
+                        }
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return {max width, max height} to configure decoder with for a stream of this size, or
+     * null if it cannot switch sizes without a reconfigure. Both are the longer side of the
+     * stream, so it can also turn by 90 degrees, as far as the decoder supports.
+     */
+    public static int[] getAdaptiveMaxSize(DecoderInfo decoder, int width, int height) {
+        if (decoder == null || !decoder.adaptivePlayback) {
+            return null;
+        }
+        int longSide = Math.max(width, height);
+        int maxWidth = decoder.maxWidth > 0 ? Math.min(longSide, decoder.maxWidth) : longSide;
+        int maxHeight = decoder.maxHeight > 0 ? Math.min(longSide, decoder.maxHeight) : longSide;
+        return new int[] {Math.max(width, maxWidth), Math.max(height, maxHeight)};
+    }
+
+    /**
+     * @return tuning level to try first for this decoder.
+     */
+    public static synchronized int getTuningLevel(String decoderName) {
+        Integer level = sTuningLevels.get(decoderName);
+        return level != null ? level : TUNING_FULL;
+    }
+
+    /**
+     * Configuring failed at tuningLevel, start with the next level from now on.
+     */
+    public static synchronized void onTuningFailed(String decoderName, int tuningLevel) {
+        sTuningLevels.put(decoderName, Math.min(TUNING_NONE, tuningLevel + 1));
+    }
+}
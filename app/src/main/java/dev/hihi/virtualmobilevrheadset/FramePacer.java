@@ -0,0 +1,159 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Decides when a decoded video frame should hit the display, or that it should not at all.
+ *
+ * Frames are rendered at the first vsync that is still far enough away to make it, as given by
+ * {@link #onVsync(long)}. A frame that would take the same vsync as the previous one is pushed to
+ * the next vsync, up to {@link #MAX_PUSH_VSYNCS} vsyncs late, so a burst of frames does not
+ * collapse into one. Render times never go backwards.
+ *
+ * Staleness is judged by how much longer than usual a frame took since it was captured. Sender
+ * and receiver clocks differ, so the usual transit time plus the clock offset comes from a
+ * {@link ClockOffsetEstimator}. Frames later than that by more than
+ * the stale threshold are dropped, unless nothing was rendered for that long, so a link that got
+ * permanently slower freezes the picture for at most one threshold.
+ *
+ * Only the phone gets anything out of the vsync alignment: its TextureView is drawn on the
+ * Choreographer vsyncs the pacer follows. On the headset frames go into a SurfaceTexture that the
+ * native VR renderer samples on its own frame loop, which is not visible from here, so pacing
+ * there only adds delay and VrActivity turns it off.
+ *
+ * All times are System.nanoTime() based, like Choreographer frame times and MediaCodec render
+ * timestamps. All methods are thread safe.
+ */
+public class FramePacer {
+
+    public static final long DROP = -1;
+
+    private static final int MAX_PENDING_FRAMES = 32;
+    // Vsync deltas outside this are missed callbacks or pauses, not a refresh rate
+    private static final long MIN_VSYNC_PERIOD_NS = 4_000_000L;
+    private static final long MAX_VSYNC_PERIOD_NS = 50_000_000L;
+    // Leave the compositor this much time before the vsync a frame is meant for
+    private static final long RENDER_MARGIN_NS = 2_000_000L;
+    // How many vsyncs a frame may be pushed back to keep a burst of frames apart
+    private static final int MAX_PUSH_VSYNCS = 2;
+
+    private final long mStaleThresholdNs;
+
+    private long mLastVsyncNs = -1;
+    private long mVsyncPeriodNs = -1;
+
+    // Ring of queued frames: presentation time to capture time, in ns
+    private final long[] mPendingPtsUs = new long[MAX_PENDING_FRAMES];
+    private final long[] mPendingCaptureNs = new long[MAX_PENDING_FRAMES];
+    private int mPendingNext = 0;
+
+    private final ClockOffsetEstimator mClockOffset = new ClockOffsetEstimator();
+
+    private long mLastRenderTimeNs = -1;
+    private long mLastRenderedAtNs = -1;
+    private int mRenderedFrames = 0;
+    private int mDroppedFrames = 0;
+
+    public FramePacer(long staleThresholdMs) {
+        mStaleThresholdNs = staleThresholdMs * 1_000_000L;
+    }
+
+    /**
+     * A vsync happened at frameTimeNs.
+     */
+    public synchronized void onVsync(long frameTimeNs) {
+        if (mLastVsyncNs > 0) {
+            long delta = frameTimeNs - mLastVsyncNs;
+            if (mVsyncPeriodNs > 0 && delta > mVsyncPeriodNs * 3 / 2) {
+                // Callbacks were skipped, what matters is the period in between
+                delta /= (delta + mVsyncPeriodNs / 2) / mVsyncPeriodNs;
+            }
+            if (delta >= MIN_VSYNC_PERIOD_NS && delta <= MAX_VSYNC_PERIOD_NS) {
+                mVsyncPeriodNs = mVsyncPeriodNs < 0 ? delta : mVsyncPeriodNs + (delta - mVsyncPeriodNs) / 8;
+            }
+        }
+        mLastVsyncNs = frameTimeNs;
+    }
+
+    /**
+     * A frame was queued to the decoder.
+     *
+     * @param captureTimeUs capture time in the sender's clock.
+     * @param arrivalNs when the frame arrived from the network.
+     */
+    public synchronized void onFrameQueued(long ptsUs, long captureTimeUs, long arrivalNs) {
+        mClockOffset.onArrival(arrivalNs, captureTimeUs);
+        mPendingPtsUs[mPendingNext] = ptsUs;
+        mPendingCaptureNs[mPendingNext] = captureTimeUs * 1000;
+        mPendingNext = (mPendingNext + 1) % MAX_PENDING_FRAMES;
+    }
+
+    /**
+     * The frame queued with ptsUs is decoded.
+     *
+     * @return System.nanoTime() based time to render it at, or {@link #DROP}.
+     */
+    public synchronized long onFrameDecoded(long ptsUs, long nowNs) {
+        long lateNs = getLatenessNs(ptsUs, nowNs);
+        long sinceLastRenderNs = mLastRenderedAtNs < 0 ? 0 : nowNs - mLastRenderedAtNs;
+        if (lateNs > mStaleThresholdNs && sinceLastRenderNs < mStaleThresholdNs) {
+            mDroppedFrames++;
+            return DROP;
+        }
+        mLastRenderedAtNs = nowNs;
+        mRenderedFrames++;
+        if (mVsyncPeriodNs < 0) {
+            mLastRenderTimeNs = nowNs;
+            return nowNs;
+        }
+
+        long target = nextVsync(nowNs + RENDER_MARGIN_NS);
+        if (mLastRenderTimeNs > 0 && target < mLastRenderTimeNs + mVsyncPeriodNs / 2
+                && lateNs <= mVsyncPeriodNs) {
+            // The previous frame has this vsync, the next one keeps both on screen. Further out
+            // than that only adds latency, and the frame replaces the previous one instead.
+            long later = nextVsync(mLastRenderTimeNs + mVsyncPeriodNs / 2);
+            target = later - target <= MAX_PUSH_VSYNCS * mVsyncPeriodNs
+                    ? later : Math.max(target, mLastRenderTimeNs);
+        }
+        mLastRenderTimeNs = target;
+        return target;
+    }
+
+    private long nextVsync(long timeNs) {
+        if (timeNs <= mLastVsyncNs) {
+            return mLastVsyncNs;
+        }
+        long periods = (timeNs - mLastVsyncNs + mVsyncPeriodNs - 1) / mVsyncPeriodNs;
+        return mLastVsyncNs + periods * mVsyncPeriodNs;
+    }
+
+    /**
+     * @return how much longer than the usual transit the frame is on its way, 0 if unknown.
+     */
+    private long getLatenessNs(long ptsUs, long nowNs) {
+        if (!mClockOffset.hasOffset()) {
+            return 0;
+        }
+        long minOffsetNs = mClockOffset.getOffsetUs() * 1000;
+        for (int i = 0; i < MAX_PENDING_FRAMES; i++) {
+            if (mPendingPtsUs[i] == ptsUs) {
+                return Math.max(0, nowNs - mPendingCaptureNs[i] - minOffsetNs);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return smoothed vsync period in ns, -1 until two vsyncs were seen.
+     */
+    public synchronized long getVsyncPeriodNs() {
+        return mVsyncPeriodNs;
+    }
+
+    public synchronized int getRenderedFrames() {
+        return mRenderedFrames;
+    }
+
+    public synchronized int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
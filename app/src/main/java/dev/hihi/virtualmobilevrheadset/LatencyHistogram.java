@@ -0,0 +1,99 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Fixed memory histogram of latencies in microseconds.
+ *
+ * Values below {@link #SUB_BUCKETS} get a bucket each, every power of two above is split into
+ * {@link #SUB_BUCKETS} buckets, so percentiles are off by at most 1/{@link #SUB_BUCKETS} of
+ * the value. Values above {@link #MAX_VALUE_US} count as that. Recording is a few shifts and an
+ * increment, nothing is allocated after construction. All methods are thread safe.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    // About a minute
+    private static final int MAX_POWER = 26;
+    public static final long MAX_VALUE_US = (1L << MAX_POWER) - 1;
+
+    private final long[] mCounts = new long[SUB_BUCKETS + (MAX_POWER - SUB_BUCKET_BITS) * SUB_BUCKETS];
+    private long mCount = 0;
+    private long mSumUs = 0;
+    private long mMaxUs = 0;
+
+    static int bucketOf(long valueUs) {
+        if (valueUs < SUB_BUCKETS) {
+            return (int) Math.max(0, valueUs);
+        }
+        valueUs = Math.min(valueUs, MAX_VALUE_US);
+        int power = 63 - Long.numberOfLeadingZeros(valueUs);
+        int subBucket = (int) (valueUs >> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (power - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return middle of the range of values in bucket.
+     */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int power = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (power - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + subBucket) * width + width / 2;
+    }
+
+    public synchronized void record(long valueUs) {
+        mCounts[bucketOf(valueUs)]++;
+        mCount++;
+        mSumUs += Math.max(0, valueUs);
+        mMaxUs = Math.max(mMaxUs, valueUs);
+    }
+
+    /**
+     * @param percentile 0 to 100, like 99.9.
+     * @return the latency that percentile of the values are at or below, 0 if there are none.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), mMaxUs);
+            }
+        }
+        return mMaxUs;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    public synchronized long getMeanUs() {
+        return mCount == 0 ? 0 : mSumUs / mCount;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSumUs = 0;
+        mMaxUs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "p50=" + getPercentile(50) + "us p99=" + getPercentile(99) + "us p999="
+                + getPercentile(99.9) + "us max=" + mMaxUs + "us n=" + mCount;
+    }
+}
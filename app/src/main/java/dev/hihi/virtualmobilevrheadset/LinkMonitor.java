@@ -0,0 +1,166 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Heartbeat protocol and round trip time estimate of one connection.
+ *
+ * Heartbeats are {@link #MESSAGE_SIZE} byte messages: 1 byte type + 8 bytes big endian timestamp
+ * in microseconds of the side that sent the {@link #TYPE_PING}. The receiver of a ping echoes
+ * the timestamp back unchanged in a {@link #TYPE_PONG}, so timestamps never cross clock domains.
+ * <ul>
+ * <li>On the reverse direction of a {@link Tcp} stream (which used to carry single zero bytes)
+ * messages are written as is. A lone {@link #TYPE_KEEPALIVE} byte is an old style ping.</li>
+ * <li>On the framed direction a message is sent as a frame whose length has
+ * {@link #CONTROL_FRAME_FLAG} set.</li>
+ * </ul>
+ * A {@link #TYPE_CAPTURE_TIME} control frame right in front of a frame carries the sender's
+ * capture time of that frame, in the sender's clock.
+ *
+ * Peers that never sent a timestamped message are treated as old peers: nothing is sent to them
+ * on the framed direction and they are never declared dead, as they may go silent when idle.
+ *
+ * The RTT estimate follows RFC 6298 (gains 1/8 and 1/4). All methods are thread safe.
+ */
+public class LinkMonitor {
+
+    public static final int TYPE_KEEPALIVE = 0;
+    public static final int TYPE_PING = 1;
+    public static final int TYPE_PONG = 2;
+    public static final int TYPE_CAPTURE_TIME = 3;
+
+    public static final int MESSAGE_SIZE = 9;
+    public static final int CONTROL_FRAME_FLAG = 0x80000000;
+
+    public static final int PING_INTERVAL_MS = 500;
+    // Never declare a peer dead before this, whatever the RTT
+    public static final int MIN_DEAD_PEER_TIMEOUT_MS = 1500;
+
+    private long mSmoothedRttUs = -1;
+    private long mRttVarianceUs = -1;
+    private long mLastRttUs = -1;
+    private long mMinRttUs = Long.MAX_VALUE;
+    private int mSampleCount = 0;
+    private long mLastHeardNs;
+    private boolean mPeerSupportsHeartbeat = false;
+
+    public LinkMonitor() {
+        mLastHeardNs = System.nanoTime();
+    }
+
+    public static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * @return bytes taken by a message starting with this type byte on the reverse direction.
+     */
+    public static int messageSize(int type) {
+        return type == TYPE_PING || type == TYPE_PONG ? MESSAGE_SIZE : 1;
+    }
+
+    public static void writeMessage(byte[] dst, int offset, int type, long timestampUs) {
+        ByteBuffer.wrap(dst, offset, MESSAGE_SIZE).put((byte) type).putLong(timestampUs);
+    }
+
+    public static long readTimestamp(byte[] src, int offset) {
+        return ByteBuffer.wrap(src, offset + 1, MESSAGE_SIZE - 1).getLong();
+    }
+
+    /**
+     * Anything at all arrived from the peer.
+     */
+    public synchronized void onPeerActivity(long nowNs) {
+        mLastHeardNs = nowNs;
+    }
+
+    /**
+     * A timestamped ping or pong arrived, so the peer speaks this protocol.
+     */
+    public synchronized void onHeartbeat(long nowNs) {
+        mPeerSupportsHeartbeat = true;
+        mLastHeardNs = nowNs;
+    }
+
+    /**
+     * A pong echoing sentTimeUs arrived at nowUs.
+     */
+    public synchronized void onPong(long sentTimeUs, long nowUs) {
+        long rtt = nowUs - sentTimeUs;
+        if (rtt < 0) {
+            return;
+        }
+        mLastRttUs = rtt;
+        mMinRttUs = Math.min(mMinRttUs, rtt);
+        if (mSampleCount == 0) {
+            mSmoothedRttUs = rtt;
+            mRttVarianceUs = rtt / 2;
+        } else {
+            mRttVarianceUs += (Math.abs(mSmoothedRttUs - rtt) - mRttVarianceUs) / 4;
+            mSmoothedRttUs += (rtt - mSmoothedRttUs) / 8;
+        }
+        mSampleCount++;
+    }
+
+    public synchronized boolean peerSupportsHeartbeat() {
+        return mPeerSupportsHeartbeat;
+    }
+
+    /**
+     * @return how long the peer may stay silent before it is considered dead: one ping interval
+     * plus a few retransmission timeouts (SRTT + 4 * RTTVAR), at least
+     * {@link #MIN_DEAD_PEER_TIMEOUT_MS}.
+     */
+    public synchronized long getDeadPeerTimeoutMs() {
+        if (mSampleCount == 0) {
+            return MIN_DEAD_PEER_TIMEOUT_MS;
+        }
+        long rtoMs = (mSmoothedRttUs + 4 * mRttVarianceUs) / 1000;
+        return Math.max(MIN_DEAD_PEER_TIMEOUT_MS, PING_INTERVAL_MS + 4 * rtoMs);
+    }
+
+    public synchronized boolean isPeerDead(long nowNs) {
+        return mPeerSupportsHeartbeat
+                && (nowNs - mLastHeardNs) / 1_000_000 > getDeadPeerTimeoutMs();
+    }
+
+    /**
+     * @return smoothed round trip time in microseconds, -1 before the first pong.
+     */
+    public synchronized long getSmoothedRttUs() {
+        return mSmoothedRttUs;
+    }
+
+    /**
+     * @return smoothed mean deviation of the round trip time in microseconds, -1 before the
+     * first pong.
+     */
+    public synchronized long getRttVarianceUs() {
+        return mRttVarianceUs;
+    }
+
+    public synchronized long getLastRttUs() {
+        return mLastRttUs;
+    }
+
+    /**
+     * @return smallest round trip time seen, -1 before the first pong.
+     */
+    public synchronized long getMinRttUs() {
+        return mSampleCount == 0 ? -1 : mMinRttUs;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public synchronized long getTimeSinceLastHeardMs(long nowNs) {
+        return (nowNs - mLastHeardNs) / 1_000_000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LinkMonitor{srtt=" + mSmoothedRttUs + "us, rttvar=" + mRttVarianceUs
+                + "us, samples=" + mSampleCount + ", heartbeat=" + mPeerSupportsHeartbeat + "}";
+    }
+}
@@ -1,7 +1,12 @@
 package dev.hihi.virtualmobilevrheadset;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
+/**
+ * Received packets returned by getNextPacket() / takeNextPacket() are owned by the caller,
+ * which must call {@link Packet#release()} once it is done with the bytes.
+ */
 public interface MirrorClientInterface {
     void start(final String ip, final int port, final Runnable connectedCallback,
             final Runnable stoppedCallback, final boolean receiveMode);
@@ -9,6 +14,54 @@ public interface MirrorClientInterface {
     boolean isConnected();
     void waitUntilStopped();
     Packet getNextPacket();
+
+    /**
+     * Block until the next received packet is available.
+     * Must only be called from the single consumer thread of this client.
+     *
+     * @return next packet, or null if nothing arrived within timeoutMs or the client is stopping.
+     */
+    Packet takeNextPacket(long timeoutMs);
     int packetQueueSize();
     void sendBuf(byte[] buf, int len);
+
+    /**
+     * @return round trip time and liveness of the current connection, measured with
+     * timestamped heartbeats.
+     */
+    LinkMonitor getLinkMonitor();
+
+    /**
+     * Lets the consumer hand out its own buffers (e.g. codec input buffers) so a received frame
+     * can be read straight into them instead of going through a queued {@link Packet}.
+     * Both methods are called on the receive thread.
+     */
+    interface DirectReceiver {
+        /**
+         * @param queuedFrames frames the transport has queued as Packets so far, including ones
+         * already taken. Frames dropped because the queue was full are not counted.
+         * @return a buffer with at least size bytes remaining to read the next frame into, or
+         * null to receive this frame as a queued Packet instead.
+         */
+        ByteBuffer obtainBuffer(int size, long queuedFrames);
+
+        /**
+         * The size bytes of the frame have been written to buffer, starting at the position it
+         * had when returned from obtainBuffer().
+         */
+        void onBufferFilled(ByteBuffer buffer, int size);
+    }
+
+    /**
+     * Transports that cannot read into a ByteBuffer ignore this and keep queueing Packets.
+     * Returns only once a frame being read into a buffer of the previous receiver is complete,
+     * so after setDirectReceiver(null) the buffers it handed out are no longer written.
+     */
+    void setDirectReceiver(DirectReceiver receiver);
+
+    /**
+     * Returns once a frame being read into a buffer of the current receiver is complete, without
+     * changing the receiver. Returns at once on transports that ignore setDirectReceiver().
+     */
+    void awaitDirectReceiveIdle();
 }
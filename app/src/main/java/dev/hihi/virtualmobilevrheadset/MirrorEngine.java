@@ -1,11 +1,20 @@
 package dev.hihi.virtualmobilevrheadset;
 
 import android.content.Context;
+import android.media.MediaCodec;
 import android.net.nsd.NsdServiceInfo;
+import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 public class MirrorEngine {
 
     private static final String TAG = "MirrorEngine";
@@ -13,8 +22,46 @@ public class MirrorEngine {
     private final static int AUDIO_PORT = 1235;
     private final static int VIDEO_PORT = 1234;
     private final static int COMMAND_PORT = 1236;
+    private final static int MUX_PORT = 1237;
+
+    // SO_RCVBUF / SO_SNDBUF used by the NIO transport, 0 keeps the system default.
+    private final static int VIDEO_SOCKET_BUFFER_SIZE = 1024 * 1024;
+    private final static int AUDIO_SOCKET_BUFFER_SIZE = 64 * 1024;
+    private final static int COMMAND_SOCKET_BUFFER_SIZE = 0;
+    private final static int MUX_SOCKET_BUFFER_SIZE = 1024 * 1024;
+
+    // Highest frame rate the adaptive bitrate asks for
+    private final static int MAX_FPS = 60;
+
+    // Launch intent extras for applyOptions(), e.g.
+    // adb shell am start -n dev.hihi.virtualmobilevrheadset/.PhoneActivity --ez use_nio_transport true
+    public static final String EXTRA_USE_NIO_TRANSPORT = "use_nio_transport";
+    public static final String EXTRA_USE_DIRECT_VIDEO_RECEIVE = "use_direct_video_receive";
+    public static final String EXTRA_USE_UDP_AUDIO = "use_udp_audio";
+    public static final String EXTRA_USE_MUX_SESSION = "use_mux_session";
+    public static final String EXTRA_USE_ASYNC_VIDEO_DECODER = "use_async_video_decoder";
+    public static final String EXTRA_USE_VSYNC_RENDERING = "use_vsync_rendering";
+    public static final String EXTRA_USE_CODEC_NEGOTIATION = "use_codec_negotiation";
+    public static final String EXTRA_USE_COMPRESSED_AUDIO = "use_compressed_audio";
+    public static final String EXTRA_USE_LOW_LATENCY_AUDIO = "use_low_latency_audio";
+    public static final String EXTRA_USE_ADAPTIVE_BITRATE = "use_adaptive_bitrate";
+    public static final String EXTRA_LATENCY_TARGET_MS = "latency_target_ms";
+    public static final String EXTRA_CAPTURE_FILE = "capture_file";
+    public static final String EXTRA_REPLAY_FILE = "replay_file";
+    public static final String EXTRA_REPLAY_SPEED = "replay_speed";
 
     private boolean mIsRunning = false;
+    private volatile boolean mUseNioTransport = false;
+    private volatile boolean mUseDirectVideoReceive = false;
+    private volatile boolean mUseUdpAudio = false;
+    private volatile boolean mUseMuxSession = false;
+    private volatile boolean mUseAsyncVideoDecoder = false;
+    private volatile boolean mUseVsyncRendering = false;
+    private volatile boolean mUseCodecNegotiation = false;
+    private volatile boolean mUseAdaptiveBitrate = false;
+    private volatile boolean mUseCompressedAudio = false;
+    private volatile boolean mUseLowLatencyAudio = false;
+    private volatile int mLatencyTargetMs = CongestionController.DEFAULT_LATENCY_TARGET_MS;
 
     private AudioDecoder mAudioDecoder = null;
     private VideoDecoder mVideoDecoder = null;
@@ -23,6 +70,21 @@ public class MirrorEngine {
     private MirrorClientInterface mVideoClient = null;
     private MirrorClientInterface mCommandClient = null;
 
+    // Survives reconnects so a new decoder can be configured before the first packet
+    private final VideoConfigCache mVideoConfigCache = new VideoConfigCache();
+    private final List<ReconnectManager> mReconnectManagers = new ArrayList<>();
+    // Null unless the adaptive bitrate is on, lives as long as the client
+    private CongestionController mCongestionController = null;
+    private ScheduledFuture<?> mFeedbackTask = null;
+    // One video codec for all connections of a client, released on stopClient()
+    private CodecLifecycle<MediaCodec> mCodecLifecycle = null;
+    private final PipelineStats mPipelineStats = new PipelineStats();
+    private volatile File mCaptureFile = null;
+    private volatile File mReplayFile = null;
+    private volatile double mReplaySpeed = 1;
+    // Null unless capturing, lives as long as the client
+    private volatile StreamRecorder mRecorder = null;
+
     private NsdHelper mNsdHelper = null;
     private String mDiscoveredIp = null;
 
@@ -70,6 +132,23 @@ public class MirrorEngine {
         }
         Log.i(TAG, "startClient()");
         mIsRunning = true;
+        mCodecLifecycle = new CodecLifecycle<>(VideoDecoder.CODEC_OPERATIONS);
+        if (mUseAdaptiveBitrate) {
+            startFeedback();
+        }
+        if (mReplayFile != null) {
+            // Nothing to talk to, the capture only has received streams
+            startAudioMirror(ip);
+            startVideoMirror(ip, isLandscapeScreen, onSizeChangeCallback, surface);
+            return;
+        }
+        if (mCaptureFile != null) {
+            startCapture(mCaptureFile);
+        }
+        if (mUseMuxSession) {
+            startMuxMirror(ip, isLandscapeScreen, onSizeChangeCallback, surface, touchSurfaceInterface);
+            return;
+        }
         startAudioMirror(ip);
         startVideoMirror(ip, isLandscapeScreen, onSizeChangeCallback, surface);
         if (touchSurfaceInterface != null) {
@@ -84,6 +163,24 @@ public class MirrorEngine {
         }
         Log.i(TAG, "stopClient()");
         mIsRunning = false;
+        // Before and after figures for the optional paths, e.g. the low latency audio output
+        Log.i(TAG, "Latency with lowLatencyAudio=" + mUseLowLatencyAudio + ", vsyncRendering="
+                + mUseVsyncRendering + ": " + mPipelineStats);
+        for (ReconnectManager reconnectManager : mReconnectManagers) {
+            reconnectManager.cancel();
+        }
+        mReconnectManagers.clear();
+        if (mFeedbackTask != null) {
+            mFeedbackTask.cancel(false);
+            mFeedbackTask = null;
+        }
+        mCongestionController = null;
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
+        }
+        // Deferred until the running decoder gives the codec back
+        mCodecLifecycle.release();
         AudioDecoder audioDecoder = mAudioDecoder;
         if (audioDecoder != null) {
             audioDecoder.stop();
@@ -110,19 +207,297 @@ public class MirrorEngine {
         return mIsRunning;
     }
 
+    /**
+     * @return number of threads alive in the shared {@link MirrorExecutors} pools.
+     */
+    public int getThreadCount() {
+        return MirrorExecutors.getDefault().getThreadCount();
+    }
+
+    /**
+     * @return per stage latency histograms of all connections so far.
+     */
+    public PipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
+    /**
+     * Turn features on or off from the EXTRA_ keys in extras, which may be null. The features
+     * stay off by default until they have been tried on enough servers and devices, this is how
+     * to try them without a build: boolean extras for the setters of the same name, an int for
+     * the latency target, file paths for capture and replay and a float for the replay speed.
+     * Keys that are not there keep their setting. Takes effect on the next startClient().
+     */
+    public void applyOptions(Bundle extras) {
+        if (extras == null) {
+            return;
+        }
+        if (extras.containsKey(EXTRA_USE_NIO_TRANSPORT)) {
+            setUseNioTransport(extras.getBoolean(EXTRA_USE_NIO_TRANSPORT));
+        }
+        if (extras.containsKey(EXTRA_USE_DIRECT_VIDEO_RECEIVE)) {
+            setUseDirectVideoReceive(extras.getBoolean(EXTRA_USE_DIRECT_VIDEO_RECEIVE));
+        }
+        if (extras.containsKey(EXTRA_USE_UDP_AUDIO)) {
+            setUseUdpAudio(extras.getBoolean(EXTRA_USE_UDP_AUDIO));
+        }
+        if (extras.containsKey(EXTRA_USE_MUX_SESSION)) {
+            setUseMuxSession(extras.getBoolean(EXTRA_USE_MUX_SESSION));
+        }
+        if (extras.containsKey(EXTRA_USE_ASYNC_VIDEO_DECODER)) {
+            setUseAsyncVideoDecoder(extras.getBoolean(EXTRA_USE_ASYNC_VIDEO_DECODER));
+        }
+        if (extras.containsKey(EXTRA_USE_VSYNC_RENDERING)) {
+            setUseVsyncRendering(extras.getBoolean(EXTRA_USE_VSYNC_RENDERING));
+        }
+        if (extras.containsKey(EXTRA_USE_CODEC_NEGOTIATION)) {
+            setUseCodecNegotiation(extras.getBoolean(EXTRA_USE_CODEC_NEGOTIATION));
+        }
+        if (extras.containsKey(EXTRA_USE_COMPRESSED_AUDIO)) {
+            setUseCompressedAudio(extras.getBoolean(EXTRA_USE_COMPRESSED_AUDIO));
+        }
+        if (extras.containsKey(EXTRA_USE_LOW_LATENCY_AUDIO)) {
+            setUseLowLatencyAudio(extras.getBoolean(EXTRA_USE_LOW_LATENCY_AUDIO));
+        }
+        if (extras.containsKey(EXTRA_USE_ADAPTIVE_BITRATE)) {
+            setUseAdaptiveBitrate(extras.getBoolean(EXTRA_USE_ADAPTIVE_BITRATE));
+        }
+        if (extras.containsKey(EXTRA_LATENCY_TARGET_MS)) {
+            setAdaptiveBitrateLatencyTarget(extras.getInt(EXTRA_LATENCY_TARGET_MS,
+                    CongestionController.DEFAULT_LATENCY_TARGET_MS));
+        }
+        String captureFile = extras.getString(EXTRA_CAPTURE_FILE);
+        if (captureFile != null) {
+            setCaptureFile(new File(captureFile));
+        }
+        String replayFile = extras.getString(EXTRA_REPLAY_FILE);
+        if (replayFile != null) {
+            setReplay(new File(replayFile), extras.getFloat(EXTRA_REPLAY_SPEED, 1));
+        }
+    }
+
+    /**
+     * Select {@link NioTcp} instead of {@link Tcp} for connections made after this call.
+     */
+    public void setUseNioTransport(boolean useNioTransport) {
+        mUseNioTransport = useNioTransport;
+    }
+
+    /**
+     * Read video frames straight into codec input buffers. Only effective with the NIO transport.
+     */
+    public void setUseDirectVideoReceive(boolean useDirectVideoReceive) {
+        mUseDirectVideoReceive = useDirectVideoReceive;
+    }
+
+    /**
+     * Receive audio over UDP through a jitter buffer instead of over TCP.
+     */
+    public void setUseUdpAudio(boolean useUdpAudio) {
+        mUseUdpAudio = useUdpAudio;
+    }
+
+    /**
+     * Carry video, audio and commands over one {@link MuxSession} connection instead of three.
+     * Takes effect on the next startClient().
+     */
+    public void setUseMuxSession(boolean useMuxSession) {
+        mUseMuxSession = useMuxSession;
+    }
+
+    /**
+     * Drive the video decoder with MediaCodec callbacks instead of polling threads.
+     * Takes effect on the next connection.
+     */
+    public void setUseAsyncVideoDecoder(boolean useAsyncVideoDecoder) {
+        mUseAsyncVideoDecoder = useAsyncVideoDecoder;
+    }
+
+    /**
+     * Render video frames at the next vsync and drop stale ones, instead of showing every frame
+     * as soon as it is decoded. Only for the phone, the headset's renderer does not follow these
+     * vsyncs, see {@link FramePacer}. Takes effect on the next connection.
+     */
+    public void setUseVsyncRendering(boolean useVsyncRendering) {
+        mUseVsyncRendering = useVsyncRendering;
+    }
+
+    /**
+     * Advertise the hardware decodable video codecs on the command channel so the server can
+     * pick one, see {@link CodecNegotiation}. Needs a server that knows the command and a touch
+     * surface, which the command channel comes with. Takes effect on the next connection.
+     */
+    public void setUseCodecNegotiation(boolean useCodecNegotiation) {
+        mUseCodecNegotiation = useCodecNegotiation;
+    }
+
+    /**
+     * Advertise the audio codecs this device decodes on the command channel so the server can
+     * send AAC or Opus instead of PCM, see {@link AudioCodecNegotiation}. Not with UDP audio,
+     * which conceals losses in PCM. Needs a server that knows the command and a touch surface,
+     * which the command channel comes with. Takes effect on the next connection.
+     */
+    public void setUseCompressedAudio(boolean useCompressedAudio) {
+        mUseCompressedAudio = useCompressedAudio;
+    }
+
+    /**
+     * Play audio through a fast mixer track at the native sample rate, see
+     * {@link AudioDecoder#setUseLowLatencyOutput(boolean)}. Not with UDP audio. Takes effect on
+     * the next connection.
+     */
+    public void setUseLowLatencyAudio(boolean useLowLatencyAudio) {
+        mUseLowLatencyAudio = useLowLatencyAudio;
+    }
+
+    private void sendCodecCapabilities(MirrorClientInterface commandClient) {
+        if (mUseCodecNegotiation) {
+            byte[] command = CodecNegotiation.buildCapabilitiesCommand(CodecNegotiation.getLocalCodecs());
+            commandClient.sendBuf(command, command.length);
+        }
+        if (mUseCompressedAudio && !mUseUdpAudio) {
+            byte[] command = AudioCodecNegotiation.buildCapabilitiesCommand(
+                    AudioCodecNegotiation.getLocalCodecs(), AudioCodecNegotiation.DEFAULT_BITRATE);
+            commandClient.sendBuf(command, command.length);
+        }
+    }
+
+    /**
+     * Send bitrate, resolution and frame rate targets to the server on the command channel,
+     * from how well video and audio keep up, see {@link CongestionController}. Needs a server that
+     * knows the command and a touch surface, which the command channel comes with. Takes effect on
+     * the next startClient().
+     */
+    public void setUseAdaptiveBitrate(boolean useAdaptiveBitrate) {
+        mUseAdaptiveBitrate = useAdaptiveBitrate;
+    }
+
+    /**
+     * Queueing delay of video frames the adaptive bitrate stays below. Takes effect on the next
+     * startClient().
+     */
+    public void setAdaptiveBitrateLatencyTarget(int latencyTargetMs) {
+        mLatencyTargetMs = latencyTargetMs;
+    }
+
+    /**
+     * Append the audio and video received over {@link Tcp} or {@link NioTcp} to file, for
+     * {@link #setReplay(File, double)}. Direct video receive is off while capturing, as it skips
+     * the packets that get recorded. Null stops capturing. Takes effect on the next startClient().
+     */
+    public void setCaptureFile(File file) {
+        mCaptureFile = file;
+    }
+
+    /**
+     * Play audio and video back from a {@link #setCaptureFile(File) capture} instead of
+     * connecting to a server, see {@link ReplayClient}. The capture starts over every time it
+     * ends, until stopClient(). Null connects again. Takes effect on the next startClient().
+     *
+     * @param speed 1 for the original pace, or {@link ReplayClient#SPEED_UNLIMITED}.
+     */
+    public void setReplay(File file, double speed) {
+        mReplaySpeed = speed;
+        mReplayFile = file;
+    }
+
+    private void startCapture(File file) {
+        try {
+            StreamRecorder recorder = StreamRecorder.open(file);
+            recorder.start();
+            mRecorder = recorder;
+            Log.i(TAG, "Capturing to " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startFeedback() {
+        final CongestionController controller = new CongestionController(MAX_FPS);
+        controller.setLatencyTarget(mLatencyTargetMs);
+        mCongestionController = controller;
+        mFeedbackTask = MirrorExecutors.getDefault().timer().scheduleAtFixedRate(new Runnable() {
+            CongestionController.Targets mLastTargets = null;
+
+            @Override
+            public void run() {
+                CongestionController.Targets targets = controller.update(System.nanoTime());
+                MirrorClientInterface commandClient = mCommandClient;
+                if (commandClient == null || !commandClient.isConnected()) {
+                    return;
+                }
+                byte[] command = CongestionController.buildTargetsCommand(targets);
+                commandClient.sendBuf(command, command.length);
+                if (mLastTargets == null || targets.resolutionPercent != mLastTargets.resolutionPercent
+                        || targets.fps != mLastTargets.fps) {
+                    Log.i(TAG, "Stream targets: " + controller);
+                }
+                mLastTargets = targets;
+            }
+        }, CongestionController.FEEDBACK_INTERVAL_MS, CongestionController.FEEDBACK_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ReconnectManager newReconnectManager(String tag) {
+        ReconnectManager reconnectManager = new ReconnectManager(tag);
+        mReconnectManagers.add(reconnectManager);
+        return reconnectManager;
+    }
+
+    private static Runnable recoveredCallback(final ReconnectManager reconnectManager) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                reconnectManager.onRecovered();
+            }
+        };
+    }
+
+    /**
+     * @param streamId MuxSession.STREAM_* the client carries, for capture and replay.
+     */
+    private MirrorClientInterface createClient(String tag, int streamId, int socketBufferSize) {
+        File replayFile = mReplayFile;
+        if (replayFile != null) {
+            return new ReplayClient(tag, replayFile, streamId, mReplaySpeed);
+        }
+        if (mUseNioTransport) {
+            NioTcp client = new NioTcp(tag, socketBufferSize);
+            client.setRecorder(mRecorder, streamId);
+            return client;
+        }
+        Tcp client = new Tcp(tag, false);
+        client.setRecorder(mRecorder, streamId);
+        return client;
+    }
+
     private void startAudioMirror(final String originalIp) {
-        new Thread() {
+        final ReconnectManager reconnectManager = newReconnectManager("AudioReconnect");
+        MirrorExecutors.getDefault().control().execute(new Runnable() {
+            @Override
             public void run() {
+                boolean reconnecting = false;
                 while (mIsRunning) {
                     String ip = mDiscoveredIp != null ? mDiscoveredIp : originalIp;
-                    if (ip == null) {
+                    if (ip == null && mReplayFile == null) {
                         SystemClock.sleep(500);
                         continue;
                     }
-                    mAudioClient = new Tcp("AudioClient", false);
+                    if (reconnecting && !reconnectManager.awaitNextAttempt()) {
+                        break;
+                    }
+                    reconnecting = true;
+                    boolean useUdp = mUseUdpAudio && mReplayFile == null;
+                    mAudioClient = useUdp ? new UdpAudioClient("AudioClient")
+                            : createClient("AudioClient", MuxSession.STREAM_AUDIO,
+                            AUDIO_SOCKET_BUFFER_SIZE);
                     mAudioDecoder = new AudioDecoder();
+                    mAudioDecoder.setUseJitterBuffer(!useUdp);
+                    mAudioDecoder.setUseLowLatencyOutput(mUseLowLatencyAudio);
+                    mAudioDecoder.setCongestionController(mCongestionController);
+                    mAudioDecoder.setPipelineStats(mPipelineStats);
 
-                    mAudioClient.start(ip, AUDIO_PORT, null, null, true);
+                    mAudioClient.start(ip, AUDIO_PORT, recoveredCallback(reconnectManager), null, true);
                     mAudioDecoder.startDecoder(mAudioClient);
 
                     mAudioClient.waitUntilStopped();
@@ -135,25 +510,43 @@ public class MirrorEngine {
                     mAudioClient.waitUntilStopped();
 
                     Log.i(TAG, "Audio decoder stopped");
+                    reconnectManager.onDisconnected();
                     mAudioClient = null;
                     mAudioDecoder = null;
                 }
             }
-        }.start();
+        });
     }
 
     private void startVideoMirror(final String originalIp, final boolean isLandscapeScreen,
             final VideoDecoder.OnSizeChangeCallback onSizeChangeCallback, final Surface surface) {
-        new Thread() {
+        final ReconnectManager reconnectManager = newReconnectManager("VideoReconnect");
+        final CodecLifecycle<MediaCodec> codecLifecycle = mCodecLifecycle;
+        MirrorExecutors.getDefault().control().execute(new Runnable() {
+            @Override
             public void run() {
+                boolean reconnecting = false;
                 while (mIsRunning) {
                     String ip = mDiscoveredIp != null ? mDiscoveredIp : originalIp;
-                    if (ip == null) {
+                    if (ip == null && mReplayFile == null) {
                         SystemClock.sleep(500);
                         continue;
                     }
-                    mVideoClient = new Tcp("VideoClient", false);
+                    if (reconnecting && !reconnectManager.awaitNextAttempt()) {
+                        break;
+                    }
+                    reconnecting = true;
+                    mVideoClient = createClient("VideoClient", MuxSession.STREAM_VIDEO,
+                            VIDEO_SOCKET_BUFFER_SIZE);
                     mVideoDecoder = new VideoDecoder();
+                    mVideoDecoder.setDirectReceive(mUseDirectVideoReceive && mRecorder == null);
+                    mVideoDecoder.setAsyncMode(mUseAsyncVideoDecoder);
+                    mVideoDecoder.setVsyncRendering(mUseVsyncRendering);
+                    mVideoDecoder.setConfigCache(mVideoConfigCache);
+                    mVideoDecoder.setFirstFrameCallback(recoveredCallback(reconnectManager));
+                    mVideoDecoder.setCongestionController(mCongestionController);
+                    mVideoDecoder.setCodecLifecycle(codecLifecycle);
+                    mVideoDecoder.setPipelineStats(mPipelineStats);
 
                     mVideoClient.start(ip, VIDEO_PORT, null, null, true);
                     mVideoDecoder.startDecoder(onSizeChangeCallback, surface, isLandscapeScreen, mVideoClient);
@@ -167,26 +560,44 @@ public class MirrorEngine {
                     mVideoDecoder.waitUntilStopped();
                     mVideoClient.waitUntilStopped();
 
-                    Log.i(TAG, "TCP client stopped");
+                    Log.i(TAG, "TCP client stopped, " + MirrorExecutors.getDefault());
+                    reconnectManager.onDisconnected();
                     mVideoDecoder = null;
                     mVideoClient = null;
                 }
             }
-        }.start();
+        });
     }
 
     private void startCommandClient(final String originalIp, final TouchSurfaceInterface touchSurfaceInterface) {
-        new Thread() {
+        final ReconnectManager reconnectManager = newReconnectManager("CommandReconnect");
+        MirrorExecutors.getDefault().control().execute(new Runnable() {
+            @Override
             public void run() {
+                boolean reconnecting = false;
                 while (mIsRunning) {
                     String ip = mDiscoveredIp != null ? mDiscoveredIp : originalIp;
                     if (ip == null) {
                         SystemClock.sleep(500);
                         continue;
                     }
-                    mCommandClient = new Tcp("CommandClient", false);
+                    if (reconnecting && !reconnectManager.awaitNextAttempt()) {
+                        break;
+                    }
+                    reconnecting = true;
+                    final MirrorClientInterface commandClient =
+                            createClient("CommandClient", MuxSession.STREAM_COMMAND,
+                                    COMMAND_SOCKET_BUFFER_SIZE);
+                    final Runnable recoveredCallback = recoveredCallback(reconnectManager);
+                    mCommandClient = commandClient;
                     touchSurfaceInterface.attachCommandClient(mCommandClient);
-                    mCommandClient.start(ip, COMMAND_PORT, null, null, false);
+                    mCommandClient.start(ip, COMMAND_PORT, new Runnable() {
+                        @Override
+                        public void run() {
+                            sendCodecCapabilities(commandClient);
+                            recoveredCallback.run();
+                        }
+                    }, null, false);
 
                     mCommandClient.waitUntilStopped();
 
@@ -195,8 +606,77 @@ public class MirrorEngine {
 
                     touchSurfaceInterface.removeCommandClient();
                     mCommandClient = null;
+                    reconnectManager.onDisconnected();
+                }
+            }
+        });
+    }
+
+    private void startMuxMirror(final String originalIp, final boolean isLandscapeScreen,
+            final VideoDecoder.OnSizeChangeCallback onSizeChangeCallback, final Surface surface,
+            final TouchSurfaceInterface touchSurfaceInterface) {
+        final ReconnectManager reconnectManager = newReconnectManager("MuxReconnect");
+        final CodecLifecycle<MediaCodec> codecLifecycle = mCodecLifecycle;
+        MirrorExecutors.getDefault().control().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean reconnecting = false;
+                while (mIsRunning) {
+                    String ip = mDiscoveredIp != null ? mDiscoveredIp : originalIp;
+                    if (ip == null) {
+                        SystemClock.sleep(500);
+                        continue;
+                    }
+                    if (reconnecting && !reconnectManager.awaitNextAttempt()) {
+                        break;
+                    }
+                    reconnecting = true;
+                    MuxSession session = new MuxSession("MuxSession", MUX_SOCKET_BUFFER_SIZE);
+                    mVideoClient = session.openStream(MuxSession.STREAM_VIDEO, "VideoClient");
+                    mAudioClient = session.openStream(MuxSession.STREAM_AUDIO, "AudioClient");
+                    mCommandClient = session.openStream(MuxSession.STREAM_COMMAND, "CommandClient");
+                    mVideoDecoder = new VideoDecoder();
+                    mVideoDecoder.setAsyncMode(mUseAsyncVideoDecoder);
+                    mVideoDecoder.setVsyncRendering(mUseVsyncRendering);
+                    mVideoDecoder.setConfigCache(mVideoConfigCache);
+                    mVideoDecoder.setFirstFrameCallback(recoveredCallback(reconnectManager));
+                    mVideoDecoder.setCongestionController(mCongestionController);
+                    mVideoDecoder.setCodecLifecycle(codecLifecycle);
+                    mVideoDecoder.setPipelineStats(mPipelineStats);
+                    mAudioDecoder = new AudioDecoder();
+                    mAudioDecoder.setUseLowLatencyOutput(mUseLowLatencyAudio);
+                    mAudioDecoder.setCongestionController(mCongestionController);
+                    mAudioDecoder.setPipelineStats(mPipelineStats);
+                    if (touchSurfaceInterface != null) {
+                        touchSurfaceInterface.attachCommandClient(mCommandClient);
+                    }
+
+                    session.start(ip, MUX_PORT, null);
+                    // Queued until the session is connected
+                    sendCodecCapabilities(mCommandClient);
+                    mAudioDecoder.startDecoder(mAudioClient);
+                    mVideoDecoder.startDecoder(onSizeChangeCallback, surface, isLandscapeScreen, mVideoClient);
+
+                    session.waitUntilStopped();
+
+                    Log.i(TAG, "Mux session stopped, waiting decoders to stop, "
+                            + MirrorExecutors.getDefault());
+                    mAudioDecoder.stop();
+                    mVideoDecoder.stop();
+                    mAudioDecoder.waitUntilStopped();
+                    mVideoDecoder.waitUntilStopped();
+
+                    if (touchSurfaceInterface != null) {
+                        touchSurfaceInterface.removeCommandClient();
+                    }
+                    mAudioDecoder = null;
+                    mVideoDecoder = null;
+                    mAudioClient = null;
+                    mVideoClient = null;
+                    mCommandClient = null;
+                    reconnectManager.onDisconnected();
                 }
             }
-        }.start();
+        });
     }
 }
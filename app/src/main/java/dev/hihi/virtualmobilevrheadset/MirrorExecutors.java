@@ -0,0 +1,164 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide threads for all stream pipelines, so reconnecting reuses threads instead of
+ * creating new ones.
+ *
+ * <ul>
+ * <li>{@link #control()}: reconnect loops, default priority.</li>
+ * <li>{@link #io()}: blocking socket loops, display priority.</li>
+ * <li>{@link #video()}: decoder input / output loops, display priority.</li>
+ * <li>{@link #audio()}: audio playback loop, urgent audio priority.</li>
+ * <li>{@link #timer()}: one thread for periodic work such as heartbeats.</li>
+ * <li>{@link #codecHandler()}: one looper thread for MediaCodec callbacks, display priority.</li>
+ * </ul>
+ * Each pool has a fixed number of threads, sized for the loops of all streams at once (they
+ * block for the lifetime of a connection) twice over, as the loops of a closing connection may
+ * still be finishing when the next one starts. Beyond that tasks wait for a thread instead of
+ * growing the pool. Idle threads are kept around for {@link #KEEP_ALIVE_SECONDS}, which is
+ * longer than any reconnect cycle.
+ */
+public class MirrorExecutors {
+
+    private static final int KEEP_ALIVE_SECONDS = 60;
+    // One reconnect loop per stream: video, audio and command, or the mux session
+    static final int CONTROL_THREADS = 6;
+    // Receive and send loops of three connections, a capture writer and spares
+    static final int IO_THREADS = 16;
+    // Input and output loop of the decoder
+    static final int VIDEO_THREADS = 4;
+    static final int AUDIO_THREADS = 2;
+
+    private static final MirrorExecutors sDefault = new MirrorExecutors();
+
+    private final ThreadPoolExecutor mControl =
+            newPool("mirror-control", Process.THREAD_PRIORITY_DEFAULT, CONTROL_THREADS);
+    private final ThreadPoolExecutor mIo =
+            newPool("mirror-io", Process.THREAD_PRIORITY_DISPLAY, IO_THREADS);
+    private final ThreadPoolExecutor mVideo =
+            newPool("mirror-video", Process.THREAD_PRIORITY_DISPLAY, VIDEO_THREADS);
+    private final ThreadPoolExecutor mAudio =
+            newPool("mirror-audio", Process.THREAD_PRIORITY_URGENT_AUDIO, AUDIO_THREADS);
+    private final ScheduledThreadPoolExecutor mTimer = new ScheduledThreadPoolExecutor(1,
+            new PriorityThreadFactory("mirror-timer", Process.THREAD_PRIORITY_DISPLAY));
+
+    private HandlerThread mCodecThread;
+    private Handler mCodecHandler;
+
+    public static MirrorExecutors getDefault() {
+        return sDefault;
+    }
+
+    private MirrorExecutors() {
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    public ThreadPoolExecutor control() {
+        return mControl;
+    }
+
+    public ThreadPoolExecutor io() {
+        return mIo;
+    }
+
+    public ThreadPoolExecutor video() {
+        return mVideo;
+    }
+
+    public ThreadPoolExecutor audio() {
+        return mAudio;
+    }
+
+    public ScheduledThreadPoolExecutor timer() {
+        return mTimer;
+    }
+
+    /**
+     * @return handler of a looper thread that is started on first use and never quits.
+     */
+    public synchronized Handler codecHandler() {
+        if (mCodecHandler == null) {
+            mCodecThread = new HandlerThread("mirror-codec", Process.THREAD_PRIORITY_DISPLAY);
+            mCodecThread.start();
+            mCodecHandler = new Handler(mCodecThread.getLooper());
+            PriorityThreadFactory.sCreated.incrementAndGet();
+        }
+        return mCodecHandler;
+    }
+
+    /**
+     * @return number of threads currently alive in all pools, busy or idle.
+     */
+    public int getThreadCount() {
+        return mControl.getPoolSize() + mIo.getPoolSize() + mVideo.getPoolSize()
+                + mAudio.getPoolSize() + mTimer.getPoolSize() + getCodecThreadCount();
+    }
+
+    private synchronized int getCodecThreadCount() {
+        return mCodecThread != null ? 1 : 0;
+    }
+
+    /**
+     * @return total number of threads ever created by all pools.
+     */
+    public int getCreatedThreadCount() {
+        return PriorityThreadFactory.sCreated.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MirrorExecutors{control=" + mControl.getPoolSize() + ", io=" + mIo.getPoolSize()
+                + ", video=" + mVideo.getPoolSize() + ", audio=" + mAudio.getPoolSize()
+                + ", timer=" + mTimer.getPoolSize() + ", codec=" + getCodecThreadCount()
+                + ", created=" + getCreatedThreadCount() + "}";
+    }
+
+    static ThreadPoolExecutor newPool(String name, int priority, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new PriorityThreadFactory(name, priority));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class PriorityThreadFactory implements ThreadFactory {
+
+        static final AtomicInteger sCreated = new AtomicInteger();
+
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        PriorityThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            sCreated.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Has to be set from the thread itself to reach the Linux thread priority
+                    Process.setThreadPriority(mPriority);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+            // Idle pool threads must not keep the process alive
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
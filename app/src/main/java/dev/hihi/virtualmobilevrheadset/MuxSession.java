@@ -0,0 +1,477 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Carries the video, audio and command streams over a single TCP connection.
+ *
+ * Every message is split into fragments of at most {@link #MAX_FRAGMENT_SIZE} bytes, each
+ * preceded by a {@link #HEADER_SIZE} byte header:
+ * <pre>
+ * 1 byte   stream id, one of STREAM_*
+ * 1 byte   flags, FLAG_FIRST on the first fragment of a message, FLAG_LAST on the last one
+ * 4 bytes  message length, big endian
+ * 4 bytes  fragment length, big endian
+ * </pre>
+ * The sender picks the next fragment by stream priority (ping, command, audio, then video), so
+ * a small message never waits for more than one fragment of a big keyframe. Every
+ * {@link LinkMonitor#PING_INTERVAL_MS} a {@link LinkMonitor} ping is sent on {@link #STREAM_PING},
+ * pings from the peer are answered with a pong on the same stream. An empty message on
+ * {@link #STREAM_PING} is an old style keepalive.
+ *
+ * One {@link MirrorExecutors#io()} thread connects and receives, another one sends.
+ */
+public class MuxSession {
+
+    public static final int STREAM_COMMAND = 0;
+    public static final int STREAM_AUDIO = 1;
+    public static final int STREAM_VIDEO = 2;
+    public static final int STREAM_PING = 3;
+
+    public static final int FLAG_FIRST = 0x1;
+    public static final int FLAG_LAST = 0x2;
+
+    public static final int HEADER_SIZE = 10;
+    public static final int MAX_FRAGMENT_SIZE = 16 * 1024;
+    // Bigger than any keyframe, a header asking for more is corrupted
+    public static final int MAX_MESSAGE_SIZE = 8 * 1024 * 1024;
+
+    private static final int STREAM_COUNT = 4;
+    // Highest priority first
+    private static final int[] SEND_PRIORITY = {STREAM_PING, STREAM_COMMAND, STREAM_AUDIO, STREAM_VIDEO};
+    private static final int MAX_PENDING_PACKETS = 256;
+
+    volatile private boolean mIsConnected = false;
+    volatile private boolean mIsRunning = false;
+    volatile private SocketChannel mChannel;
+
+    private final String mTag;
+    private final int mSocketBufferSize;
+    private final MuxStream[] mStreams = new MuxStream[STREAM_COUNT];
+    private final PacketRingBuffer[] mSendQueues = new PacketRingBuffer[STREAM_COUNT];
+    private final Object mSendSignal = new Object();
+    private final LinkMonitor mLinkMonitor = new LinkMonitor();
+
+    private CountDownLatch mStoppingLock = new CountDownLatch(1);
+
+    public MuxSession(String tag, int socketBufferSize) {
+        mTag = tag;
+        mSocketBufferSize = socketBufferSize;
+        for (int i = 0; i < STREAM_COUNT; i++) {
+            mSendQueues[i] = new PacketRingBuffer(MAX_PENDING_PACKETS);
+        }
+    }
+
+    /**
+     * @return the stream with this id as a {@link MirrorClientInterface}. Streams are started and
+     * stopped together with the session, stopping any stream stops the whole session.
+     */
+    public synchronized MirrorClientInterface openStream(int streamId, String tag) {
+        if (mStreams[streamId] == null) {
+            mStreams[streamId] = new MuxStream(streamId, tag);
+        }
+        return mStreams[streamId];
+    }
+
+    public void start(final String ip, final int port, final Runnable stoppedCallback) {
+        Log.i(mTag, "Start()");
+        mIsRunning = true;
+        MirrorExecutors.getDefault().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                SocketChannel channel = null;
+                Future<?> sendTask = null;
+                try {
+                    channel = SocketChannel.open();
+                    mChannel = channel;
+                    channel.socket().setTcpNoDelay(true);
+                    if (mSocketBufferSize > 0) {
+                        channel.socket().setReceiveBufferSize(mSocketBufferSize);
+                        channel.socket().setSendBufferSize(mSocketBufferSize);
+                    }
+                    channel.connect(new InetSocketAddress(ip, port));
+                    if (!mIsRunning) {
+                        return;
+                    }
+                    mIsConnected = true;
+
+                    final SocketChannel c = channel;
+                    sendTask = MirrorExecutors.getDefault().io().submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendLoop(c);
+                        }
+                    });
+                    recvLoop(channel);
+                    Log.i(mTag, "Session disconnected");
+                } catch (IOException ex) {
+                    Log.e(mTag, "Session exception: " + ex.getMessage());
+                    ex.printStackTrace();
+                } finally {
+                    mIsConnected = false;
+                    mIsRunning = false;
+                    closeQuietly(channel);
+                    wakeUpSender();
+                    if (sendTask != null) {
+                        try {
+                            sendTask.get();
+                        } catch (InterruptedException | ExecutionException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    for (MuxStream stream : mStreams) {
+                        if (stream != null) {
+                            stream.mReceiveQueue.wakeUp();
+                        }
+                    }
+                    mStoppingLock.countDown();
+                    if (stoppedCallback != null) {
+                        stoppedCallback.run();
+                    }
+                }
+            }
+        });
+    }
+
+    public void stop() {
+        mIsRunning = false;
+        closeQuietly(mChannel);
+        wakeUpSender();
+    }
+
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    public void waitUntilStopped() {
+        try {
+            mStoppingLock.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void send(int streamId, byte[] buf, int len) {
+        PacketRingBuffer queue = mSendQueues[streamId];
+        if (queue.size() >= queue.capacity()) {
+            Log.w(mTag, "Buffer full, stream " + streamId + " size: " + queue.size());
+            return;
+        }
+        Packet packet = Packet.obtain(len);
+        System.arraycopy(buf, 0, packet.bytes, 0, len);
+        // Called from the UI, timer and io threads
+        if (!queue.offerShared(packet)) {
+            packet.release();
+            return;
+        }
+        synchronized (mSendSignal) {
+            mSendSignal.notify();
+        }
+    }
+
+    private void wakeUpSender() {
+        synchronized (mSendSignal) {
+            mSendSignal.notify();
+        }
+    }
+
+    private void sendLoop(SocketChannel channel) {
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        ByteBuffer[] fragment = new ByteBuffer[2];
+        // Message currently being fragmented, per stream
+        Packet[] current = new Packet[STREAM_COUNT];
+        int[] offsets = new int[STREAM_COUNT];
+        long lastPingMs = nowMs();
+        try {
+            while (mIsRunning) {
+                long now = nowMs();
+                if (now - lastPingMs >= LinkMonitor.PING_INTERVAL_MS) {
+                    if (mLinkMonitor.isPeerDead(System.nanoTime())) {
+                        Log.w(mTag, "Peer silent for "
+                                + mLinkMonitor.getTimeSinceLastHeardMs(System.nanoTime())
+                                + "ms, closing session");
+                        return;
+                    }
+                    if (current[STREAM_PING] == null) {
+                        // Set directly, the ping queue is only fed by the receive thread
+                        current[STREAM_PING] = newHeartbeat(LinkMonitor.TYPE_PING, LinkMonitor.nowUs());
+                        offsets[STREAM_PING] = 0;
+                    }
+                    lastPingMs = now;
+                }
+                int streamId = -1;
+                for (int id : SEND_PRIORITY) {
+                    if (current[id] == null) {
+                        current[id] = mSendQueues[id].poll();
+                        offsets[id] = 0;
+                    }
+                    if (current[id] != null) {
+                        streamId = id;
+                        break;
+                    }
+                }
+                if (streamId < 0) {
+                    long waitMs = LinkMonitor.PING_INTERVAL_MS - (nowMs() - lastPingMs);
+                    synchronized (mSendSignal) {
+                        if (waitMs > 0 && allSendQueuesEmpty() && mIsRunning) {
+                            mSendSignal.wait(waitMs);
+                        }
+                    }
+                    continue;
+                }
+
+                Packet packet = current[streamId];
+                int offset = offsets[streamId];
+                int length = Math.min(MAX_FRAGMENT_SIZE, packet.size - offset);
+                int flags = (offset == 0 ? FLAG_FIRST : 0)
+                        | (offset + length == packet.size ? FLAG_LAST : 0);
+                header.clear();
+                header.put((byte) streamId);
+                header.put((byte) flags);
+                header.putInt(packet.size);
+                header.putInt(length);
+                header.flip();
+                fragment[0] = header;
+                fragment[1] = ByteBuffer.wrap(packet.bytes, offset, length);
+                while (header.hasRemaining() || fragment[1].hasRemaining()) {
+                    channel.write(fragment);
+                }
+
+                if ((flags & FLAG_LAST) != 0) {
+                    packet.release();
+                    current[streamId] = null;
+                } else {
+                    offsets[streamId] = offset + length;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            for (Packet packet : current) {
+                if (packet != null) {
+                    packet.release();
+                }
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    private boolean allSendQueuesEmpty() {
+        for (PacketRingBuffer queue : mSendQueues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void recvLoop(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        // Message currently being reassembled, per stream
+        Packet[] current = new Packet[STREAM_COUNT];
+        int[] offsets = new int[STREAM_COUNT];
+        try {
+            while (mIsRunning) {
+                header.clear();
+                if (!readFully(channel, header)) {
+                    return;
+                }
+                header.flip();
+                int streamId = header.get() & 0xff;
+                int flags = header.get() & 0xff;
+                int messageLength = header.getInt();
+                int length = header.getInt();
+                if (streamId >= STREAM_COUNT || length < 0 || messageLength < 0
+                        || messageLength > MAX_MESSAGE_SIZE) {
+                    Log.e(mTag, "Corrupted header, stream: " + streamId + ", message length: "
+                            + messageLength + ", length: " + length);
+                    return;
+                }
+
+                if ((flags & FLAG_FIRST) != 0) {
+                    if (current[streamId] != null) {
+                        current[streamId].release();
+                    }
+                    current[streamId] = Packet.obtain(messageLength);
+                    offsets[streamId] = 0;
+                }
+                Packet packet = current[streamId];
+                if (packet == null || offsets[streamId] + length > packet.size) {
+                    Log.e(mTag, "Unexpected fragment on stream " + streamId);
+                    return;
+                }
+                if (!readFully(channel, ByteBuffer.wrap(packet.bytes, offsets[streamId], length))) {
+                    return;
+                }
+                offsets[streamId] += length;
+
+                if ((flags & FLAG_LAST) != 0) {
+                    current[streamId] = null;
+                    packet.receivedTimeNs = System.nanoTime();
+                    mLinkMonitor.onPeerActivity(packet.receivedTimeNs);
+                    if (streamId == STREAM_PING) {
+                        onPingStream(packet);
+                        continue;
+                    }
+                    MuxStream stream = mStreams[streamId];
+                    if (stream == null) {
+                        packet.release();
+                        continue;
+                    }
+                    packet.followsDrop = stream.mDroppedReceived;
+                    if (stream.mReceiveQueue.offer(packet)) {
+                        stream.mDroppedReceived = false;
+                    } else {
+                        Log.w(stream.mTag, "Buffer full, dropped received packet");
+                        packet.release();
+                        stream.mDroppedReceived = true;
+                    }
+                }
+            }
+        } finally {
+            for (Packet packet : current) {
+                if (packet != null) {
+                    packet.release();
+                }
+            }
+        }
+    }
+
+    private void onPingStream(Packet packet) {
+        try {
+            if (packet.size < LinkMonitor.MESSAGE_SIZE) {
+                // Old style keepalive
+                return;
+            }
+            int type = packet.bytes[0];
+            long timestampUs = LinkMonitor.readTimestamp(packet.bytes, 0);
+            mLinkMonitor.onHeartbeat(packet.receivedTimeNs);
+            if (type == LinkMonitor.TYPE_PING) {
+                Packet pong = newHeartbeat(LinkMonitor.TYPE_PONG, timestampUs);
+                if (!mSendQueues[STREAM_PING].offerShared(pong)) {
+                    pong.release();
+                    return;
+                }
+                wakeUpSender();
+            } else if (type == LinkMonitor.TYPE_PONG) {
+                mLinkMonitor.onPong(timestampUs, LinkMonitor.nowUs());
+            }
+        } finally {
+            packet.release();
+        }
+    }
+
+    private static Packet newHeartbeat(int type, long timestampUs) {
+        Packet packet = Packet.obtain(LinkMonitor.MESSAGE_SIZE);
+        LinkMonitor.writeMessage(packet.bytes, 0, type, timestampUs);
+        return packet;
+    }
+
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * One stream of the session. Received messages are queued per stream, sent messages are
+     * handed to the session's scheduler.
+     */
+    private class MuxStream implements MirrorClientInterface {
+
+        private final int mStreamId;
+        private final String mTag;
+        private final PacketRingBuffer mReceiveQueue = new PacketRingBuffer(MAX_PENDING_PACKETS);
+        // A received packet was dropped since the last one queued, receive thread only
+        private boolean mDroppedReceived = false;
+
+        MuxStream(int streamId, String tag) {
+            mStreamId = streamId;
+            mTag = tag;
+        }
+
+        @Override
+        public void start(String ip, int port, Runnable connectedCallback,
+                Runnable stoppedCallback, boolean receiveMode) {
+            // Started by the session
+        }
+
+        @Override
+        public void stop() {
+            MuxSession.this.stop();
+            mReceiveQueue.wakeUp();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mIsConnected;
+        }
+
+        @Override
+        public void waitUntilStopped() {
+            MuxSession.this.waitUntilStopped();
+        }
+
+        @Override
+        public Packet getNextPacket() {
+            return mReceiveQueue.poll();
+        }
+
+        @Override
+        public Packet takeNextPacket(long timeoutMs) {
+            return mReceiveQueue.take(timeoutMs);
+        }
+
+        @Override
+        public int packetQueueSize() {
+            return mReceiveQueue.size();
+        }
+
+        @Override
+        public void sendBuf(byte[] buf, int len) {
+            send(mStreamId, buf, len);
+        }
+
+        @Override
+        public void setDirectReceiver(DirectReceiver receiver) {
+        }
+
+        @Override
+        public void awaitDirectReceiveIdle() {
+        }
+
+        @Override
+        public LinkMonitor getLinkMonitor() {
+            return mLinkMonitor;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Helpers for H.264 Annex-B byte streams (NAL units separated by 00 00 01 / 00 00 00 01), and
+ * frame types of H.265 streams, which share the byte stream format.
+ *
+ * Nothing here allocates, the scans run on every received frame.
+ */
+public class NalUnits {
+
+    public static final int TYPE_SLICE = 1;
+    public static final int TYPE_IDR = 5;
+    public static final int TYPE_SEI = 6;
+    public static final int TYPE_SPS = 7;
+    public static final int TYPE_PPS = 8;
+
+    private static final int SEI_RECOVERY_POINT = 6;
+
+    // H.265 NAL unit types
+    private static final int HEVC_MAX_VCL = 9;
+    private static final int HEVC_MAX_SUB_LAYER_NON_REFERENCE = 14;
+    private static final int HEVC_IRAP_FIRST = 16;
+    private static final int HEVC_IRAP_LAST = 23;
+    private static final int HEVC_VPS = 32;
+    private static final int HEVC_PPS = 34;
+
+    // What an access unit is to the decoder, see frameType()
+    public static final int FRAME_UNKNOWN = 0;
+    // Parameter sets only, no picture
+    public static final int FRAME_CONFIG = 1;
+    // Decoding can start here
+    public static final int FRAME_KEY = 2;
+    // Later frames may depend on it
+    public static final int FRAME_REFERENCE = 3;
+    // Nothing depends on it, it can be dropped on its own
+    public static final int FRAME_NON_REFERENCE = 4;
+
+    /**
+     * @return offset of the first byte after the next start code at or after from, or -1.
+     */
+    public static int findNalStart(byte[] bytes, int from, int size) {
+        for (int i = from; i + 2 < size; i++) {
+            if ((bytes[i + 2] & 0xff) > 1) {
+                // Cannot be part of a start code ending at i + 2, skip ahead
+                i += 2;
+            } else if (bytes[i] == 0 && bytes[i + 1] == 0 && bytes[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return end of the NAL unit starting at offset: the next start code, without the zero
+     * bytes in front of it, or size.
+     */
+    public static int nalEnd(byte[] bytes, int offset, int size) {
+        int next = findNalStart(bytes, offset, size);
+        if (next < 0) {
+            return size;
+        }
+        int end = next - 3;
+        // Zero bytes in front of the next start code belong to it (00 00 00 01)
+        while (end > offset && bytes[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return offset of the header byte of the first NAL unit of this type in front of the
+     * first slice, or -1.
+     */
+    public static int findNal(byte[] bytes, int size, int nalType) {
+        int offset = 0;
+        while ((offset = findNalStart(bytes, offset, size)) >= 0 && offset < size) {
+            int type = nalType(bytes[offset]);
+            if (type == nalType) {
+                return offset;
+            }
+            if (type >= TYPE_SLICE && type <= TYPE_IDR) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    public static int nalType(byte header) {
+        return header & 0x1f;
+    }
+
+    public static int nalRefIdc(byte header) {
+        return (header >> 5) & 0x3;
+    }
+
+    /**
+     * @return true if decoding can start at this access unit: it holds an IDR slice or a
+     * recovery point SEI in front of its first slice, or nothing but parameter sets.
+     */
+    public static boolean isRandomAccessPoint(byte[] bytes, int size) {
+        int frameType = frameType(bytes, size);
+        return frameType == FRAME_KEY || frameType == FRAME_CONFIG;
+    }
+
+    /**
+     * Classify an access unit by the NAL units up to its first slice. Like for H.265 only IDR
+     * pictures count as keyframes, parameter sets in front of another slice do not make it one.
+     *
+     * @return one of the FRAME_ constants.
+     */
+    public static int frameType(byte[] bytes, int size) {
+        boolean parameterSets = false;
+        int offset = 0;
+        while ((offset = findNalStart(bytes, offset, size)) >= 0 && offset < size) {
+            int type = nalType(bytes[offset]);
+            if (type == TYPE_IDR) {
+                return FRAME_KEY;
+            }
+            if (type >= TYPE_SLICE && type < TYPE_IDR) {
+                // First slice of a non IDR picture, the rest of the access unit does not matter
+                return nalRefIdc(bytes[offset]) == 0 ? FRAME_NON_REFERENCE : FRAME_REFERENCE;
+            }
+            if (type == TYPE_SPS || type == TYPE_PPS) {
+                parameterSets = true;
+            } else if (type == TYPE_SEI && offset + 1 < size && isRecoveryPointSei(bytes, offset + 1, size)) {
+                return FRAME_KEY;
+            }
+        }
+        return parameterSets ? FRAME_CONFIG : FRAME_UNKNOWN;
+    }
+
+    /**
+     * Classify an H.265 access unit by the NAL units up to its first slice. Only IRAP pictures
+     * count as keyframes.
+     *
+     * @return one of the FRAME_ constants.
+     */
+    public static int hevcFrameType(byte[] bytes, int size) {
+        boolean parameterSets = false;
+        int offset = 0;
+        while ((offset = findNalStart(bytes, offset, size)) >= 0 && offset < size) {
+            int type = (bytes[offset] >> 1) & 0x3f;
+            if (type >= HEVC_IRAP_FIRST && type <= HEVC_IRAP_LAST) {
+                return FRAME_KEY;
+            }
+            if (type <= HEVC_MAX_VCL) {
+                // Even types up to 14 are sub-layer non-reference pictures
+                return type % 2 == 0 && type <= HEVC_MAX_SUB_LAYER_NON_REFERENCE
+                        ? FRAME_NON_REFERENCE : FRAME_REFERENCE;
+            }
+            if (type >= HEVC_VPS && type <= HEVC_PPS) {
+                parameterSets = true;
+            }
+        }
+        return parameterSets ? FRAME_CONFIG : FRAME_UNKNOWN;
+    }
+
+    /**
+     * @return frame type of an access unit of the given codec, see {@link CodecNegotiation}.
+     */
+    public static int frameType(String mimeType, byte[] bytes, int size) {
+        if (CodecNegotiation.MIME_HEVC.equals(mimeType)) {
+            return hevcFrameType(bytes, size);
+        }
+        if (CodecNegotiation.MIME_AV1.equals(mimeType)) {
+            return Av1Obus.frameType(bytes, size);
+        }
+        return frameType(bytes, size);
+    }
+
+    /**
+     * Classify the packet unless it already is.
+     *
+     * @return {@link Packet#frameType}.
+     */
+    public static int tag(Packet packet, String mimeType) {
+        if (packet.frameType == FRAME_UNKNOWN) {
+            packet.frameType = frameType(mimeType, packet.bytes, packet.size);
+        }
+        return packet.frameType;
+    }
+
+    private static boolean isRecoveryPointSei(byte[] bytes, int offset, int size) {
+        int payloadType = 0;
+        while (offset < size && (bytes[offset] & 0xff) == 0xff) {
+            payloadType += 255;
+            offset++;
+        }
+        return offset < size && payloadType + (bytes[offset] & 0xff) == SEI_RECOVERY_POINT;
+    }
+}
@@ -0,0 +1,561 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MirrorClientInterface} on top of a blocking {@link SocketChannel}, wire compatible with
+ * {@link Tcp} (4 bytes big endian length + payload, {@link LinkMonitor} heartbeats).
+ *
+ * Differences to {@link Tcp}: Nagle is disabled, socket buffers are sized by the caller,
+ * received data is read into a large direct buffer and split into frames from there, and
+ * header + payload are sent with a single gathering write. A {@link DirectReceiver} gets frames
+ * read straight into its own buffers.
+ *
+ * Client mode only.
+ */
+public class NioTcp implements MirrorClientInterface {
+
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_PENDING_PACKETS = 256;
+    private static final int SEND_IDLE_WAIT_MS = 500;
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_CONTROL_FRAME_SIZE = 64;
+    // Pings and pongs waiting for the writing thread
+    private static final int MAX_PENDING_HEARTBEATS = 8;
+    // Nothing legitimate is bigger, a larger size is a corrupted stream
+    static final int MAX_FRAME_SIZE = MuxSession.MAX_MESSAGE_SIZE;
+    // Frames larger than this are read straight into the packet array.
+    private static final int RECV_CHUNK_SIZE = 256 * 1024;
+    private static final int INITIAL_SEND_BUFFER_SIZE = 4 * 1024;
+
+    volatile private boolean mIsConnected = false;
+    volatile private boolean mIsRunning = false;
+    volatile private SocketChannel mChannel;
+    // Held while a frame is read into a buffer of mDirectReceiver
+    private final Object mDirectLock = new Object();
+    private DirectReceiver mDirectReceiver;
+
+    private final String mTag;
+    private final int mSocketBufferSize;
+
+    private CountDownLatch mStoppingLock = new CountDownLatch(1);
+
+    private final PacketRingBuffer mPendingPacketQueue = new PacketRingBuffer(MAX_PENDING_PACKETS);
+    private final LinkMonitor mLinkMonitor = new LinkMonitor();
+
+    // Heartbeats from the timer and the receiving thread, written by the one thread that writes
+    // to the channel: the send loop, or the heartbeat loop in receive mode
+    private final PacketRingBuffer mHeartbeatQueue = new PacketRingBuffer(MAX_PENDING_HEARTBEATS);
+    // Writing thread only
+    private final ByteBuffer mHeartbeatBuf = ByteBuffer.allocateDirect(HEADER_SIZE + LinkMonitor.MESSAGE_SIZE);
+    // Capture time announced for the next received frame, receive thread only
+    private long mNextCaptureTimeUs = 0;
+    // A received packet was dropped since the last one queued, receive thread only
+    private boolean mDroppedReceived = false;
+    // Frames queued as Packets so far, receive thread only
+    private long mQueuedFrames = 0;
+    // Receive thread copies packets here when set
+    private volatile StreamRecorder mRecorder = null;
+    private volatile int mRecordStreamId = 0;
+
+    /**
+     * @param socketBufferSize SO_SNDBUF / SO_RCVBUF to request, or 0 to keep system defaults.
+     */
+    public NioTcp(String tag, int socketBufferSize) {
+        mTag = tag;
+        mSocketBufferSize = socketBufferSize;
+    }
+
+    @Override
+    public void start(final String ip, final int port, final Runnable connectedCallback,
+            final Runnable stoppedCallback, final boolean receiveMode) {
+        Log.i(mTag, "Start()");
+        mIsRunning = true;
+        MirrorExecutors.getDefault().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                SocketChannel channel = null;
+                ScheduledFuture<?> heartbeats = null;
+                try {
+                    channel = SocketChannel.open();
+                    mChannel = channel;
+                    // SocketChannel.setOption() needs API 24, go through socket() instead
+                    channel.socket().setTcpNoDelay(true);
+                    if (mSocketBufferSize > 0) {
+                        // Must be set before connect() so the window scale is negotiated
+                        channel.socket().setReceiveBufferSize(mSocketBufferSize);
+                        channel.socket().setSendBufferSize(mSocketBufferSize);
+                    }
+                    channel.connect(new InetSocketAddress(ip, port));
+                    if (!mIsRunning) {
+                        return;
+                    }
+                    if (DEBUG) {
+                        Log.i(mTag, "Connected, rcvbuf: " + channel.socket().getReceiveBufferSize()
+                                + ", sndbuf: " + channel.socket().getSendBufferSize());
+                    }
+
+                    if (!receiveMode) {
+                        mPendingPacketQueue.clear();
+                    }
+                    mIsConnected = true;
+
+                    if (connectedCallback != null) {
+                        connectedCallback.run();
+                    }
+
+                    final SocketChannel c = channel;
+                    heartbeats = scheduleHeartbeats(c, receiveMode);
+                    if (receiveMode) {
+                        MirrorExecutors.getDefault().io().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                heartbeatLoop(c);
+                            }
+                        });
+                        recvModeLoop(c);
+                    } else {
+                        MirrorExecutors.getDefault().io().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                recvPingLoop(c);
+                            }
+                        });
+                        sendModeLoop(c);
+                    }
+                    Log.i(mTag, "Client disconnected");
+                } catch (IOException ex) {
+                    Log.e(mTag, "Client exception: " + ex.getMessage());
+                    ex.printStackTrace();
+                } finally {
+                    mIsConnected = false;
+                    if (heartbeats != null) {
+                        heartbeats.cancel(false);
+                    }
+                    closeQuietly(channel);
+                    mStoppingLock.countDown();
+                    if (stoppedCallback != null) {
+                        stoppedCallback.run();
+                    }
+                }
+            }
+        });
+    }
+
+    private void sendModeLoop(final SocketChannel channel) {
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocateDirect(INITIAL_SEND_BUFFER_SIZE);
+        ByteBuffer[] frame = new ByteBuffer[2];
+        try {
+            while (mIsRunning) {
+                writeHeartbeats(channel);
+                // Parks until sendBuf() queues a packet, or a heartbeat or stop() wakes us up
+                Packet packet = mPendingPacketQueue.take(SEND_IDLE_WAIT_MS);
+                if (packet == null) {
+                    if (!channel.isOpen()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (payload.capacity() < packet.size) {
+                    payload = ByteBuffer.allocateDirect(Integer.highestOneBit(packet.size) << 1);
+                }
+                header.clear();
+                header.putInt(packet.size);
+                header.flip();
+                payload.clear();
+                payload.put(packet.bytes, 0, packet.size);
+                payload.flip();
+                packet.release();
+
+                frame[0] = header;
+                frame[1] = payload;
+                while (header.hasRemaining() || payload.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mHeartbeatQueue.clear();
+            closeQuietly(channel);
+        }
+    }
+
+    private void recvModeLoop(final SocketChannel channel) {
+        ByteBuffer in = ByteBuffer.allocateDirect(RECV_CHUNK_SIZE);
+        Packet pending = null;
+        int pendingOffset = 0;
+        try {
+            while (mIsRunning) {
+                if (channel.read(in) < 0) {
+                    return;
+                }
+                in.flip();
+                while (true) {
+                    if (pending == null) {
+                        if (in.remaining() < HEADER_SIZE) {
+                            break;
+                        }
+                        int size = in.getInt(in.position());
+                        if ((size & LinkMonitor.CONTROL_FRAME_FLAG) != 0) {
+                            int controlSize = size & ~LinkMonitor.CONTROL_FRAME_FLAG;
+                            if (controlSize > MAX_CONTROL_FRAME_SIZE) {
+                                Log.e(mTag, "Corrupted control frame, size: " + controlSize);
+                                return;
+                            }
+                            if (in.remaining() < HEADER_SIZE + controlSize) {
+                                break;
+                            }
+                            in.getInt();
+                            readControlFrame(in, controlSize);
+                            continue;
+                        }
+                        if (size > MAX_FRAME_SIZE) {
+                            Log.e(mTag, "Corrupted frame, size: " + size);
+                            return;
+                        }
+                        in.getInt();
+                        mLinkMonitor.onPeerActivity(System.nanoTime());
+                        synchronized (mDirectLock) {
+                            DirectReceiver receiver = mDirectReceiver;
+                            ByteBuffer target = receiver != null
+                                    ? receiver.obtainBuffer(size, mQueuedFrames) : null;
+                            if (target != null) {
+                                if (!readDirect(channel, in, target, size)) {
+                                    return;
+                                }
+                                receiver.onBufferFilled(target, size);
+                                // Direct frames have no Packet to carry it
+                                mNextCaptureTimeUs = 0;
+                                continue;
+                            }
+                        }
+                        pending = Packet.obtain(size);
+                        pendingOffset = 0;
+                    }
+                    int n = Math.min(in.remaining(), pending.size - pendingOffset);
+                    in.get(pending.bytes, pendingOffset, n);
+                    pendingOffset += n;
+                    if (pendingOffset < pending.size) {
+                        break;
+                    }
+                    queuePacket(pending);
+                    pending = null;
+                }
+                in.compact();
+
+                // in is empty here if a frame is still incomplete. Big frames skip the chunk buffer.
+                if (pending != null && pending.size - pendingOffset > RECV_CHUNK_SIZE) {
+                    ByteBuffer direct = ByteBuffer.wrap(pending.bytes, pendingOffset, pending.size - pendingOffset);
+                    while (direct.hasRemaining() && mIsRunning) {
+                        if (channel.read(direct) < 0) {
+                            return;
+                        }
+                    }
+                    if (direct.hasRemaining()) {
+                        return;
+                    }
+                    queuePacket(pending);
+                    pending = null;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            Log.w(mTag, "Stopped..");
+            if (pending != null) {
+                pending.release();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Move what is already buffered of the frame into target, then read the rest from the socket
+     * straight into target.
+     */
+    private static boolean readDirect(SocketChannel channel, ByteBuffer in, ByteBuffer target,
+            int size) throws IOException {
+        target.limit(target.position() + size);
+        int buffered = Math.min(in.remaining(), size);
+        int inLimit = in.limit();
+        in.limit(in.position() + buffered);
+        target.put(in);
+        in.limit(inLimit);
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void queuePacket(Packet packet) {
+        packet.receivedTimeNs = System.nanoTime();
+        packet.captureTimeUs = mNextCaptureTimeUs;
+        mNextCaptureTimeUs = 0;
+        StreamRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.record(mRecordStreamId, packet);
+        }
+        packet.followsDrop = mDroppedReceived;
+        if (mPendingPacketQueue.offer(packet)) {
+            mQueuedFrames++;
+            mDroppedReceived = false;
+        } else {
+            Log.w(mTag, "Buffer full, dropped received packet");
+            packet.release();
+            mDroppedReceived = true;
+        }
+    }
+
+    /**
+     * See {@link Tcp}: close the channel if the peer went silent, otherwise queue a timestamped
+     * ping every {@link LinkMonitor#PING_INTERVAL_MS}. Never writes to the channel itself.
+     */
+    private ScheduledFuture<?> scheduleHeartbeats(final SocketChannel channel,
+            final boolean receiveMode) {
+        return MirrorExecutors.getDefault().timer().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                if (mLinkMonitor.isPeerDead(now)) {
+                    Log.w(mTag, "Peer silent for " + mLinkMonitor.getTimeSinceLastHeardMs(now)
+                            + "ms, closing connection");
+                    closeQuietly(channel);
+                    return;
+                }
+                if (receiveMode || mLinkMonitor.peerSupportsHeartbeat()) {
+                    queueHeartbeat(!receiveMode, LinkMonitor.TYPE_PING, LinkMonitor.nowUs());
+                }
+            }
+        }, LinkMonitor.PING_INTERVAL_MS, LinkMonitor.PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand a heartbeat to the thread that writes to the channel.
+     *
+     * @param framed true to send it as a control frame on the framed direction, false to send it
+     * on the reverse direction.
+     */
+    private void queueHeartbeat(boolean framed, int type, long timestampUs) {
+        int offset = framed ? HEADER_SIZE : 0;
+        Packet packet = Packet.obtain(offset + LinkMonitor.MESSAGE_SIZE);
+        if (framed) {
+            int header = LinkMonitor.CONTROL_FRAME_FLAG | LinkMonitor.MESSAGE_SIZE;
+            packet.bytes[0] = (byte) ((header >> 24) & 0xff);
+            packet.bytes[1] = (byte) ((header >> 16) & 0xff);
+            packet.bytes[2] = (byte) ((header >> 8) & 0xff);
+            packet.bytes[3] = (byte) (header & 0xff);
+        }
+        LinkMonitor.writeMessage(packet.bytes, offset, type, timestampUs);
+        // Called from the timer and the receiving thread
+        if (!mHeartbeatQueue.offerShared(packet)) {
+            Log.w(mTag, "Heartbeat queue full, writer stalled");
+            packet.release();
+            return;
+        }
+        if (framed) {
+            // The send loop may be parked on the frame queue
+            mPendingPacketQueue.wakeUp();
+        }
+    }
+
+    private void writeHeartbeat(SocketChannel channel, Packet packet) throws IOException {
+        try {
+            mHeartbeatBuf.clear();
+            mHeartbeatBuf.put(packet.bytes, 0, packet.size);
+            mHeartbeatBuf.flip();
+            while (mHeartbeatBuf.hasRemaining()) {
+                channel.write(mHeartbeatBuf);
+            }
+        } finally {
+            packet.release();
+        }
+    }
+
+    private void writeHeartbeats(SocketChannel channel) throws IOException {
+        Packet packet;
+        while ((packet = mHeartbeatQueue.poll()) != null) {
+            writeHeartbeat(channel, packet);
+        }
+    }
+
+    /**
+     * Writes the heartbeats on the reverse direction while {@link #recvModeLoop} reads frames.
+     */
+    private void heartbeatLoop(final SocketChannel channel) {
+        try {
+            while (mIsRunning) {
+                Packet packet = mHeartbeatQueue.take(SEND_IDLE_WAIT_MS);
+                if (packet == null) {
+                    if (!channel.isOpen()) {
+                        break;
+                    }
+                    continue;
+                }
+                writeHeartbeat(channel, packet);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            mHeartbeatQueue.clear();
+            closeQuietly(channel);
+        }
+    }
+
+    private void onHeartbeat(boolean framed, int type, long timestampUs) {
+        mLinkMonitor.onHeartbeat(System.nanoTime());
+        if (type == LinkMonitor.TYPE_PING) {
+            queueHeartbeat(framed, LinkMonitor.TYPE_PONG, timestampUs);
+        } else if (type == LinkMonitor.TYPE_PONG) {
+            mLinkMonitor.onPong(timestampUs, LinkMonitor.nowUs());
+        }
+    }
+
+    /**
+     * in holds the whole control frame.
+     */
+    private void readControlFrame(ByteBuffer in, int size) {
+        int end = in.position() + size;
+        if (size >= LinkMonitor.MESSAGE_SIZE) {
+            int type = in.get();
+            if (type == LinkMonitor.TYPE_CAPTURE_TIME) {
+                mNextCaptureTimeUs = in.getLong();
+            } else {
+                onHeartbeat(false, type, in.getLong());
+            }
+        }
+        in.position(end);
+    }
+
+    private void recvPingLoop(final SocketChannel channel) {
+        ByteBuffer in = ByteBuffer.allocateDirect(64);
+        try {
+            while (mIsRunning) {
+                if (channel.read(in) < 0) {
+                    return;
+                }
+                in.flip();
+                while (in.hasRemaining()) {
+                    int type = in.get(in.position());
+                    int size = LinkMonitor.messageSize(type);
+                    if (in.remaining() < size) {
+                        break;
+                    }
+                    in.get();
+                    if (size == LinkMonitor.MESSAGE_SIZE) {
+                        onHeartbeat(true, type, in.getLong());
+                    } else {
+                        // Old style 1 byte ping
+                        mLinkMonitor.onPeerActivity(System.nanoTime());
+                    }
+                }
+                in.compact();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public void stop() {
+        mIsRunning = false;
+        mPendingPacketQueue.wakeUp();
+        mHeartbeatQueue.wakeUp();
+        closeQuietly(mChannel);
+    }
+
+    @Override
+    public void sendBuf(byte[] buf, int len) {
+        if (mPendingPacketQueue.size() >= mPendingPacketQueue.capacity()) {
+            Log.w(mTag, "Buffer full, mPendingPacketQueue size: " + mPendingPacketQueue.size());
+            return;
+        }
+        Packet packet = Packet.obtain(len);
+        System.arraycopy(buf, 0, packet.bytes, 0, len);
+        // Called from the UI, timer and io threads
+        if (!mPendingPacketQueue.offerShared(packet)) {
+            packet.release();
+        }
+    }
+
+    /**
+     * Copy received packets into recorder, tagged with streamId. Null stops recording.
+     */
+    public void setRecorder(StreamRecorder recorder, int streamId) {
+        mRecordStreamId = streamId;
+        mRecorder = recorder;
+    }
+
+    @Override
+    public void setDirectReceiver(DirectReceiver receiver) {
+        // Waits for a frame that is being read into a buffer of the old receiver
+        synchronized (mDirectLock) {
+            mDirectReceiver = receiver;
+        }
+    }
+
+    @Override
+    public void awaitDirectReceiveIdle() {
+        // Held by the read loop while it fills a buffer of the receiver
+        synchronized (mDirectLock) {
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    @Override
+    public void waitUntilStopped() {
+        try {
+            mStoppingLock.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Packet getNextPacket() {
+        return mPendingPacketQueue.poll();
+    }
+
+    @Override
+    public Packet takeNextPacket(long timeoutMs) {
+        return mPendingPacketQueue.take(timeoutMs);
+    }
+
+    @Override
+    public int packetQueueSize() {
+        return mPendingPacketQueue.size();
+    }
+
+    @Override
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+}
@@ -1,11 +1,61 @@
 package dev.hihi.virtualmobilevrheadset;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Packet {
+    // May be longer than size when the array comes from a BufferPool.
     public byte[] bytes;
     public int size;
+    // System.nanoTime() when the transport finished receiving the packet, 0 if unknown.
+    public long receivedTimeNs;
+    // Capture time in us in the sender's clock, 0 if the sender did not send one.
+    public long captureTimeUs;
+    // One of the NalUnits.FRAME_ constants for video, see NalUnits#tag(Packet).
+    public int frameType;
+    // Set by the transport on the first packet it queues after dropping some on a full queue.
+    public boolean followsDrop;
+
+    private final BufferPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
 
     public Packet(byte[] bytes, int size) {
+        this(bytes, size, null);
+    }
+
+    private Packet(byte[] bytes, int size, BufferPool pool) {
         this.bytes = bytes;
         this.size = size;
+        mPool = pool;
+    }
+
+    /**
+     * @return a packet of size bytes backed by the default {@link BufferPool}. The caller owns
+     * the only reference and must {@link #release()} it once the bytes are consumed.
+     */
+    public static Packet obtain(int size) {
+        BufferPool pool = BufferPool.getDefault();
+        return new Packet(pool.acquire(size), size, pool);
+    }
+
+    public Packet retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Packet already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drop one reference. The last release hands the bytes back to the pool, after which they
+     * must not be touched any more.
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount < 0) {
+            throw new IllegalStateException("Packet released too many times");
+        }
+        if (refCount == 0 && mPool != null) {
+            mPool.release(bytes);
+            bytes = null;
+        }
     }
 }
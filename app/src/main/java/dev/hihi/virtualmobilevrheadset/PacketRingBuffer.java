@@ -0,0 +1,214 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer / single-consumer queue of {@link Packet}s.
+ *
+ * Only one thread may call {@link #offer(Packet)} and only one (other) thread may call
+ * {@link #poll()}, {@link #take(long)} or {@link #clear()}. Queues fed from several threads
+ * use {@link #offerShared(Packet)} instead, which serializes the producers. The consumer parks while the ring is
+ * empty and is unparked by the producer, so an idle channel costs no CPU. A producer that would
+ * rather wait than drop parks in {@link #offer(Packet, long)} and is unparked by the consumer.
+ */
+public class PacketRingBuffer {
+
+    private final Packet[] mSlots;
+    private final int mMask;
+
+    // Next slot to read, only written by the consumer.
+    private volatile long mHead = 0;
+    // Next slot to write, only written by the producer.
+    private volatile long mTail = 0;
+
+    private volatile Thread mWaiter = null;
+    // Set by wakeUp() until take() has seen it
+    private volatile boolean mWakeUpPending = false;
+    private volatile Thread mProducerWaiter = null;
+
+    private final Object mProducerLock = new Object();
+
+    /**
+     * @param capacity Maximum number of packets, rounded up to a power of two.
+     */
+    public PacketRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSlots = new Packet[size];
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return number of queued packets, O(1).
+     */
+    public int size() {
+        long head = mHead;
+        long tail = mTail;
+        return (int) (tail - head);
+    }
+
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    /**
+     * Producer side. Wakes the consumer if it is parked.
+     *
+     * @return false if the ring is full and the packet was not queued.
+     */
+    public boolean offer(Packet packet) {
+        long tail = mTail;
+        if (tail - mHead >= mSlots.length) {
+            return false;
+        }
+        mSlots[(int) tail & mMask] = packet;
+        mTail = tail + 1;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Producer side. Parks the calling thread while the ring is full, until the consumer takes a
+     * packet, {@link #wakeUp()} is called or the timeout elapses.
+     *
+     * @return false if the packet was not queued.
+     */
+    public boolean offer(Packet packet, long timeoutMs) {
+        if (offer(packet)) {
+            return true;
+        }
+        if (timeoutMs <= 0) {
+            return false;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        mProducerWaiter = Thread.currentThread();
+        try {
+            while (!offer(packet)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (mProducerWaiter == null) {
+                    // Woken up by wakeUp()
+                    return offer(packet);
+                }
+            }
+            return true;
+        } finally {
+            mProducerWaiter = null;
+        }
+    }
+
+    /**
+     * Producer side for any number of threads, as long as none of them calls
+     * {@link #offer(Packet)} directly.
+     *
+     * @return false if the ring is full and the packet was not queued.
+     */
+    public boolean offerShared(Packet packet) {
+        synchronized (mProducerLock) {
+            return offer(packet);
+        }
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return next packet, or null if the ring is empty.
+     */
+    public Packet poll() {
+        long head = mHead;
+        if (head == mTail) {
+            return null;
+        }
+        int index = (int) head & mMask;
+        Packet packet = mSlots[index];
+        mSlots[index] = null;
+        mHead = head + 1;
+        Thread producer = mProducerWaiter;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return packet;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return the packet index positions behind the head without removing it, or null.
+     */
+    public Packet peek(int index) {
+        long head = mHead;
+        if (index < 0 || head + index >= mTail) {
+            return null;
+        }
+        return mSlots[(int) (head + index) & mMask];
+    }
+
+    /**
+     * Consumer side. Parks the calling thread until a packet arrives, {@link #wakeUp()} is
+     * called or the timeout elapses. A wake up that came while nobody was parked makes the next
+     * call that finds the ring empty return at once.
+     *
+     * @return next packet, or null on timeout / wake up.
+     */
+    public Packet take(long timeoutMs) {
+        Packet packet = poll();
+        if (packet != null || timeoutMs <= 0) {
+            return packet;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        mWaiter = Thread.currentThread();
+        try {
+            while ((packet = poll()) == null) {
+                if (mWakeUpPending) {
+                    mWakeUpPending = false;
+                    return null;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return packet;
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Unpark a consumer blocked in {@link #take(long)}, e.g. when stopping or when it has
+     * something else to do, and a producer blocked in {@link #offer(Packet, long)}.
+     */
+    public void wakeUp() {
+        mWakeUpPending = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        Thread producer = mProducerWaiter;
+        mProducerWaiter = null;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Consumer side. Drop and release all queued packets.
+     */
+    public void clear() {
+        Packet packet;
+        while ((packet = poll()) != null) {
+            packet.release();
+        }
+    }
+}
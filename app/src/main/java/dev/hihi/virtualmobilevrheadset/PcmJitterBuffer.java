@@ -0,0 +1,288 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Playout buffer for 16 bit little endian PCM that arrives in packets of any size over a
+ * reliable but bursty transport.
+ *
+ * The target delay covers the spread of the packet transit times (arrival minus media time)
+ * over the last {@link #SPREAD_WINDOW_MS} to twice that, so one Wi-Fi stall keeps it raised for
+ * a while, plus the minimum delay. Playout starts once the target
+ * is buffered, and starts over the same way after an underrun. The buffer is kept at the target
+ * by reading it {@link #MAX_STRETCH} faster or slower at most, with linear interpolation, which
+ * absorbs the clock drift between sender and receiver and follows changes of the target without
+ * an audible gap or skip. Only a buffer over the maximum delay drops whole chunks of audio.
+ * A gap in arrivals longer than the maximum delay while priming is the sender pausing rather
+ * than jitter, so transit is measured from scratch after it.
+ * The same interpolation converts to an output sample rate other than the input one, such as
+ * the native rate of a low latency AudioTrack.
+ *
+ * All methods are thread safe.
+ */
+public class PcmJitterBuffer {
+
+    // Largest deviation of the read rate from 1, 0.5% is not audible
+    static final double MAX_STRETCH = 0.005;
+    // Read rate change per second of buffer above or below the target
+    private static final double DRIFT_GAIN = 0.5;
+    // Number of reads the buffer level is averaged over
+    private static final int FILL_SMOOTHING = 64;
+    static final int SPREAD_WINDOW_MS = 10_000;
+
+    private final int mSampleRate;
+    // Input frames per output frame without drift
+    private final double mRateRatio;
+    private final int mChannels;
+    private final int mMinDelayFrames;
+    private final int mMaxDelayFrames;
+
+    // Interleaved samples, mBuffered frames from mReadFrame on
+    private final short[] mSamples;
+    private final int mCapacityFrames;
+    private int mReadFrame = 0;
+    private int mBuffered = 0;
+    // Read position between mReadFrame and the next one
+    private double mPosition = 0;
+    private double mRatio;
+    private double mSmoothedFill = 0;
+    private boolean mPriming = true;
+
+    private boolean mHasTransit = false;
+    private long mLastArrivalNs;
+    private long mLastTransitNs;
+    private long mReceivedFrames = 0;
+    private long mFirstArrivalNs;
+    private float mJitterNs = 0;
+    // Smallest and largest transit in the current window, largest spread of the previous one
+    private long mWindowStartNs;
+    private long mWindowMinTransitNs;
+    private long mWindowMaxTransitNs;
+    private long mPreviousSpreadNs = 0;
+
+    private long mUnderrunCount = 0;
+    private long mOverflowCount = 0;
+    private long mDroppedFrames = 0;
+
+    /**
+     * @param minDelayMs delay buffered before playout regardless of jitter.
+     * @param maxDelayMs delay buffered at most, audio beyond it is dropped.
+     */
+    public PcmJitterBuffer(int sampleRate, int channels, int minDelayMs, int maxDelayMs) {
+        this(sampleRate, sampleRate, channels, minDelayMs, maxDelayMs);
+    }
+
+    /**
+     * @param outputSampleRate rate {@link #read} converts to.
+     */
+    public PcmJitterBuffer(int sampleRate, int outputSampleRate, int channels, int minDelayMs,
+            int maxDelayMs) {
+        mSampleRate = sampleRate;
+        mRateRatio = (double) sampleRate / outputSampleRate;
+        mRatio = mRateRatio;
+        mChannels = channels;
+        mMinDelayFrames = Math.max(1, msToFrames(minDelayMs));
+        mMaxDelayFrames = Math.max(2 * mMinDelayFrames, msToFrames(maxDelayMs));
+        mCapacityFrames = mMaxDelayFrames;
+        mSamples = new short[mCapacityFrames * channels];
+        mSmoothedFill = mMinDelayFrames;
+    }
+
+    private int msToFrames(int ms) {
+        return (int) ((long) ms * mSampleRate / 1000);
+    }
+
+    /**
+     * Append size bytes of PCM that were received at arrivalNs, any monotonic clock.
+     */
+    public synchronized void put(byte[] pcm, int size, long arrivalNs) {
+        int frameBytes = 2 * mChannels;
+        int frames = size / frameBytes;
+        if (frames == 0) {
+            return;
+        }
+        updateJitter(frames, arrivalNs);
+
+        int offset = 0;
+        if (frames > mCapacityFrames) {
+            // Keep the newest
+            offset = (frames - mCapacityFrames) * frameBytes;
+            mDroppedFrames += frames - mCapacityFrames;
+            frames = mCapacityFrames;
+        }
+        if (mBuffered + frames > mMaxDelayFrames) {
+            // Fell too far behind, skip to the target at once
+            int drop = Math.min(mBuffered, mBuffered + frames - getTargetDelayFrames());
+            skip(drop);
+            mDroppedFrames += drop;
+            mOverflowCount++;
+        }
+        int writeFrame = (mReadFrame + mBuffered) % mCapacityFrames;
+        for (int i = 0; i < frames; i++) {
+            int sample = ((writeFrame + i) % mCapacityFrames) * mChannels;
+            for (int c = 0; c < mChannels; c++) {
+                mSamples[sample + c] = (short) ((pcm[offset] & 0xff) | (pcm[offset + 1] << 8));
+                offset += 2;
+            }
+        }
+        mBuffered += frames;
+    }
+
+    /**
+     * Fill out with up to frames frames of 16 bit little endian PCM at the output sample rate.
+     *
+     * @return frames written, less than asked for while priming or on an underrun.
+     */
+    public synchronized int read(byte[] out, int frames) {
+        if (mPriming) {
+            if (mBuffered < getTargetDelayFrames()) {
+                return 0;
+            }
+            mPriming = false;
+            mPosition = 0;
+            mSmoothedFill = mBuffered;
+        }
+        updateRatio();
+
+        int written = 0;
+        int offset = 0;
+        while (written < frames) {
+            int frame = (int) mPosition;
+            if (frame + 1 >= mBuffered) {
+                break;
+            }
+            double fraction = mPosition - frame;
+            int first = ((mReadFrame + frame) % mCapacityFrames) * mChannels;
+            int second = ((mReadFrame + frame + 1) % mCapacityFrames) * mChannels;
+            for (int c = 0; c < mChannels; c++) {
+                int a = mSamples[first + c];
+                int b = mSamples[second + c];
+                int sample = (int) Math.round(a + (b - a) * fraction);
+                out[offset++] = (byte) sample;
+                out[offset++] = (byte) (sample >> 8);
+            }
+            mPosition += mRatio;
+            written++;
+        }
+        int consumed = Math.min((int) mPosition, mBuffered);
+        skip(consumed);
+        mPosition -= consumed;
+
+        if (written < frames) {
+            mUnderrunCount++;
+            mPriming = true;
+        }
+        return written;
+    }
+
+    private void skip(int frames) {
+        mReadFrame = (mReadFrame + frames) % mCapacityFrames;
+        mBuffered -= frames;
+    }
+
+    private void updateRatio() {
+        mSmoothedFill += (mBuffered - mSmoothedFill) / FILL_SMOOTHING;
+        double errorSeconds = (mSmoothedFill - getTargetDelayFrames()) / mSampleRate;
+        mRatio = mRateRatio
+                * (1 + Math.max(-MAX_STRETCH, Math.min(MAX_STRETCH, DRIFT_GAIN * errorSeconds)));
+    }
+
+    /**
+     * Transit is arrival time minus the media time of the packet. Its change from one packet to
+     * the next is the RFC 3550 jitter, its spread is the delay it takes to cover late packets.
+     */
+    private void updateJitter(int frames, long arrivalNs) {
+        if (mHasTransit && mPriming
+                && arrivalNs - mLastArrivalNs > mMaxDelayFrames * 1_000_000_000L / mSampleRate) {
+            // Nothing came for longer than could ever be buffered, the sender paused
+            resetTransit();
+        }
+        mLastArrivalNs = arrivalNs;
+        if (!mHasTransit) {
+            mHasTransit = true;
+            mFirstArrivalNs = arrivalNs;
+            mLastTransitNs = 0;
+            mReceivedFrames = frames;
+            mWindowStartNs = arrivalNs;
+            mWindowMinTransitNs = 0;
+            mWindowMaxTransitNs = 0;
+            return;
+        }
+        long mediaNs = mReceivedFrames * 1_000_000_000L / mSampleRate;
+        long transitNs = arrivalNs - mFirstArrivalNs - mediaNs;
+        mJitterNs += (Math.abs(transitNs - mLastTransitNs) - mJitterNs) / 16;
+        mLastTransitNs = transitNs;
+        mReceivedFrames += frames;
+
+        if (arrivalNs - mWindowStartNs > SPREAD_WINDOW_MS * 1_000_000L) {
+            mPreviousSpreadNs = mWindowMaxTransitNs - mWindowMinTransitNs;
+            mWindowStartNs = arrivalNs;
+            mWindowMinTransitNs = transitNs;
+            mWindowMaxTransitNs = transitNs;
+        }
+        mWindowMinTransitNs = Math.min(mWindowMinTransitNs, transitNs);
+        mWindowMaxTransitNs = Math.max(mWindowMaxTransitNs, transitNs);
+    }
+
+    /**
+     * Drop everything buffered and start over.
+     */
+    public synchronized void clear() {
+        mBuffered = 0;
+        mReadFrame = 0;
+        mPosition = 0;
+        mRatio = mRateRatio;
+        mPriming = true;
+        mJitterNs = 0;
+        resetTransit();
+    }
+
+    private void resetTransit() {
+        mHasTransit = false;
+        mWindowMinTransitNs = 0;
+        mWindowMaxTransitNs = 0;
+        mPreviousSpreadNs = 0;
+    }
+
+    public synchronized int getTargetDelayFrames() {
+        long spreadNs = Math.max(mPreviousSpreadNs, mWindowMaxTransitNs - mWindowMinTransitNs);
+        int frames = mMinDelayFrames + (int) (spreadNs * mSampleRate / 1_000_000_000L);
+        // Leave room for bursts above the target
+        return Math.min(frames, mMaxDelayFrames * 3 / 4);
+    }
+
+    public synchronized int getBufferedFrames() {
+        return mBuffered;
+    }
+
+    public synchronized float getJitterMs() {
+        return mJitterNs / 1_000_000;
+    }
+
+    /**
+     * @return input frames consumed per output frame, above the ratio of the sample rates when
+     * the sender's clock runs faster.
+     */
+    public synchronized double getRatio() {
+        return mRatio;
+    }
+
+    public synchronized long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PcmJitterBuffer{bufferedMs=" + mBuffered * 1000 / mSampleRate
+                + ", targetMs=" + getTargetDelayFrames() * 1000 / mSampleRate
+                + ", jitterMs=" + getJitterMs() + ", ratio=" + mRatio
+                + ", underruns=" + mUnderrunCount + ", overflows=" + mOverflowCount
+                + ", droppedFrames=" + mDroppedFrames + "}";
+    }
+}
@@ -85,12 +85,13 @@ public class PhoneActivity extends Activity implements TextureView.SurfaceTextur
             return;
         }
 
+        mMirrorEngine.applyOptions(getIntent().getExtras());
         mMirrorEngine.startClient(ip, false, mOnSizeChangeCallback, new Surface(surfaceTexture), mTextureView);
     }
 
     private VideoDecoder.OnSizeChangeCallback mOnSizeChangeCallback = new VideoDecoder.OnSizeChangeCallback() {
         @Override
-        public void onChange(int width, int height, boolean isRotated) {
+        public void onChange(final int width, final int height, final boolean isRotated) {
             DisplayMetrics displayMetrics = new DisplayMetrics();
             getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
             float screenProportion = (float) displayMetrics.widthPixels / (float) displayMetrics.heightPixels;
@@ -106,13 +107,14 @@ public class PhoneActivity extends Activity implements TextureView.SurfaceTextur
                 lp.height = displayMetrics.heightPixels;
             }
 
+            // Called mid-stream as well, touch mapping and layout switch over together
             mTextureView.post(new Runnable() {
                 @Override
                 public void run() {
+                    mTextureView.setVideoSourceSize(width, height, isRotated);
                     mTextureView.setLayoutParams(lp);
                 }
             });
-            mTextureView.setVideoSourceSize(width, height, isRotated);
         }
     };
 
@@ -0,0 +1,164 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Where the latency of video frames and audio packets goes, one {@link LatencyHistogram} per
+ * stage. Each stage runs from the end of the one before:
+ * <ul>
+ * <li>{@link #VIDEO_RECEIVE_QUEUE}: socket read complete until the decoder thread takes it.</li>
+ * <li>{@link #VIDEO_INPUT_WAIT}: until queued into the codec.</li>
+ * <li>{@link #VIDEO_DECODE}: until the output buffer is available.</li>
+ * <li>{@link #VIDEO_RENDER}: until rendered, as reported by the codec.</li>
+ * <li>{@link #VIDEO_TOTAL}: socket read complete until rendered.</li>
+ * <li>{@link #VIDEO_GLASS_TO_GLASS}: capture on the sender until rendered. The clocks differ,
+ * so this takes the fastest transit seen by a {@link ClockOffsetEstimator} to be half the smallest
+ * round trip time, see {@link #setMinRttUs(long)}.</li>
+ * <li>{@link #AUDIO_QUEUE}: socket read complete until written to the AudioTrack.</li>
+ * <li>{@link #AUDIO_PLAYOUT}: until the playback head gets to the end of the packet.</li>
+ * <li>{@link #AUDIO_TOTAL}: socket read complete until played.</li>
+ * </ul>
+ * Video frames are matched up by presentation time in a ring of the last
+ * {@link #MAX_FRAMES_IN_FLIGHT} frames, frames that never render drop out of it. All times are
+ * System.nanoTime() based. All methods are thread safe.
+ */
+public class PipelineStats {
+
+    public static final int VIDEO_RECEIVE_QUEUE = 0;
+    public static final int VIDEO_INPUT_WAIT = 1;
+    public static final int VIDEO_DECODE = 2;
+    public static final int VIDEO_RENDER = 3;
+    public static final int VIDEO_TOTAL = 4;
+    public static final int VIDEO_GLASS_TO_GLASS = 5;
+    public static final int AUDIO_QUEUE = 6;
+    public static final int AUDIO_PLAYOUT = 7;
+    public static final int AUDIO_TOTAL = 8;
+
+    private static final String[] STAGE_NAMES = {"receive queue", "input wait", "decode", "render",
+            "video total", "glass to glass", "audio queue", "audio playout", "audio total"};
+
+    static final int MAX_FRAMES_IN_FLIGHT = 64;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_NAMES.length];
+
+    // Ring of frames queued into the codec
+    private final long[] mPtsUs = new long[MAX_FRAMES_IN_FLIGHT];
+    private final long[] mReceivedNs = new long[MAX_FRAMES_IN_FLIGHT];
+    private final long[] mQueuedNs = new long[MAX_FRAMES_IN_FLIGHT];
+    private final long[] mOutputNs = new long[MAX_FRAMES_IN_FLIGHT];
+    private final long[] mCaptureUs = new long[MAX_FRAMES_IN_FLIGHT];
+    private int mNext = 0;
+
+    private final ClockOffsetEstimator mClockOffset = new ClockOffsetEstimator();
+    private long mMinRttUs = 0;
+
+    public PipelineStats() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    /**
+     * Smallest round trip time of the link, for {@link #VIDEO_GLASS_TO_GLASS}.
+     */
+    public synchronized void setMinRttUs(long minRttUs) {
+        mMinRttUs = Math.max(0, minRttUs);
+    }
+
+    /**
+     * A frame went into the codec with presentation time ptsUs.
+     *
+     * @param receivedNs socket read complete, 0 if unknown.
+     * @param dequeuedNs taken by the decoder thread.
+     * @param captureTimeUs sender's capture time, 0 if unknown.
+     */
+    public synchronized void onVideoQueued(long ptsUs, long receivedNs, long dequeuedNs, long queuedNs,
+            long captureTimeUs) {
+        if (receivedNs > 0) {
+            record(VIDEO_RECEIVE_QUEUE, dequeuedNs - receivedNs);
+        }
+        record(VIDEO_INPUT_WAIT, queuedNs - dequeuedNs);
+        if (captureTimeUs > 0 && receivedNs > 0) {
+            mClockOffset.onArrival(receivedNs, captureTimeUs);
+        }
+        int slot = mNext;
+        mNext = (mNext + 1) % MAX_FRAMES_IN_FLIGHT;
+        mPtsUs[slot] = ptsUs;
+        mReceivedNs[slot] = receivedNs;
+        mQueuedNs[slot] = queuedNs;
+        mOutputNs[slot] = 0;
+        mCaptureUs[slot] = captureTimeUs;
+    }
+
+    public synchronized void onVideoOutput(long ptsUs, long nowNs) {
+        int slot = find(ptsUs);
+        if (slot >= 0) {
+            mOutputNs[slot] = nowNs;
+            record(VIDEO_DECODE, nowNs - mQueuedNs[slot]);
+        }
+    }
+
+    public synchronized void onVideoRendered(long ptsUs, long renderedNs) {
+        int slot = find(ptsUs);
+        if (slot < 0) {
+            return;
+        }
+        if (mOutputNs[slot] > 0) {
+            record(VIDEO_RENDER, renderedNs - mOutputNs[slot]);
+        }
+        if (mReceivedNs[slot] > 0) {
+            record(VIDEO_TOTAL, renderedNs - mReceivedNs[slot]);
+        }
+        if (mCaptureUs[slot] > 0 && mClockOffset.hasOffset()) {
+            long capturedNs = (mCaptureUs[slot] + mClockOffset.getOffsetUs() - mMinRttUs / 2) * 1000;
+            record(VIDEO_GLASS_TO_GLASS, renderedNs - capturedNs);
+        }
+        // Rendered once
+        mPtsUs[slot] = -1;
+    }
+
+    /**
+     * An audio packet was written to the AudioTrack and will play in playoutNs.
+     */
+    public void onAudioWritten(long receivedNs, long writtenNs, long playoutNs) {
+        if (receivedNs > 0) {
+            record(AUDIO_QUEUE, writtenNs - receivedNs);
+            record(AUDIO_TOTAL, writtenNs - receivedNs + playoutNs);
+        }
+        record(AUDIO_PLAYOUT, playoutNs);
+    }
+
+    private void record(int stage, long ns) {
+        mHistograms[stage].record(ns / 1000);
+    }
+
+    private int find(long ptsUs) {
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            // Newest first
+            int slot = (mNext - 1 - i + MAX_FRAMES_IN_FLIGHT) % MAX_FRAMES_IN_FLIGHT;
+            if (mPtsUs[slot] == ptsUs) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("PipelineStats{");
+        for (int i = 0; i < mHistograms.length; i++) {
+            if (mHistograms[i].getCount() > 0) {
+                result.append("\n  ").append(STAGE_NAMES[i]).append(": ").append(mHistograms[i]);
+            }
+        }
+        return result.append("}").toString();
+    }
+}
@@ -0,0 +1,137 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Paces the reconnect attempts of one stream and measures how long it takes to recover.
+ *
+ * Attempts back off exponentially from {@link #DEFAULT_BASE_DELAY_MS} up to
+ * {@link #DEFAULT_MAX_DELAY_MS}, each delay picked at random from the upper half of its range so
+ * several streams (or several headsets) do not retry in lockstep. A successful recovery resets
+ * the backoff, so the first retry after a drop is almost immediate.
+ *
+ * Time to recover is measured from {@link #onDisconnected()} to {@link #onRecovered()}, which
+ * the caller invokes once the stream is usable again (e.g. the first frame is on screen).
+ */
+public class ReconnectManager {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 50;
+    public static final long DEFAULT_MAX_DELAY_MS = 5000;
+
+    private final String mTag;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+
+    private int mAttempts = 0;
+    private long mDisconnectedNs = -1;
+    private boolean mCancelled = false;
+
+    private int mRecoveryCount = 0;
+    private long mLastRecoveryMs = -1;
+    private long mMaxRecoveryMs = 0;
+
+    public ReconnectManager(String tag) {
+        this(tag, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+
+    ReconnectManager(String tag, long baseDelayMs, long maxDelayMs, Random random) {
+        mTag = tag;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * The stream went down. Starts the recovery clock unless it is already running, so failed
+     * attempts count towards the same recovery.
+     */
+    public synchronized void onDisconnected() {
+        if (mDisconnectedNs < 0) {
+            mDisconnectedNs = System.nanoTime();
+        }
+    }
+
+    /**
+     * The stream is usable again: log the time to recover and reset the backoff.
+     *
+     * @return milliseconds since {@link #onDisconnected()}, -1 if it was not disconnected.
+     */
+    public synchronized long onRecovered() {
+        int attempts = mAttempts;
+        mAttempts = 0;
+        if (mDisconnectedNs < 0) {
+            return -1;
+        }
+        long recoveryMs = (System.nanoTime() - mDisconnectedNs) / 1_000_000;
+        mDisconnectedNs = -1;
+        mRecoveryCount++;
+        mLastRecoveryMs = recoveryMs;
+        mMaxRecoveryMs = Math.max(mMaxRecoveryMs, recoveryMs);
+        Log.i(mTag, "Recovered in " + recoveryMs + "ms after " + attempts + " attempts, max: "
+                + mMaxRecoveryMs + "ms, recoveries: " + mRecoveryCount);
+        return recoveryMs;
+    }
+
+    /**
+     * @return delay before the next attempt, and count the attempt.
+     */
+    public synchronized long nextDelayMs() {
+        // Cap the shift, the delay saturates at mMaxDelayMs long before that anyway
+        long cap = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(mAttempts, 20));
+        mAttempts++;
+        long half = cap / 2;
+        return half + (long) (mRandom.nextDouble() * (cap - half));
+    }
+
+    /**
+     * Wait out {@link #nextDelayMs()}.
+     *
+     * @return false if {@link #cancel()} was called, the stream must not reconnect then.
+     */
+    public synchronized boolean awaitNextAttempt() {
+        long delayMs = nextDelayMs();
+        Log.i(mTag, "Reconnecting in " + delayMs + "ms, attempt " + mAttempts);
+        long deadline = System.nanoTime() / 1_000_000 + delayMs;
+        long remaining = delayMs;
+        while (!mCancelled && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            }
+            remaining = deadline - System.nanoTime() / 1_000_000;
+        }
+        return !mCancelled;
+    }
+
+    /**
+     * Wake up and fail any current or future {@link #awaitNextAttempt()}.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    public synchronized int getRecoveryCount() {
+        return mRecoveryCount;
+    }
+
+    /**
+     * @return time to recover of the last reconnect in ms, -1 if there was none yet.
+     */
+    public synchronized long getLastRecoveryMs() {
+        return mLastRecoveryMs;
+    }
+
+    public synchronized long getMaxRecoveryMs() {
+        return mMaxRecoveryMs;
+    }
+}
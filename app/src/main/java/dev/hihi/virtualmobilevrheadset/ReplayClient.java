@@ -0,0 +1,231 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays one stream of a {@link StreamRecorder} capture file back in place of a transport, so
+ * decoders can be benchmarked without a server.
+ *
+ * Packets come out at their original spacing divided by the speed, or as fast as the consumer
+ * takes them with {@link #SPEED_UNLIMITED}. Like {@link Tcp}, paced packets are dropped when the
+ * consumer falls {@link #MAX_PENDING_PACKETS} behind, unlimited replay waits for it instead.
+ * Arrival times are those of the replay, capture times are scaled with the speed. Each session
+ * of the file follows right after the one before, however long the pause between them was. The
+ * stream ends with the file: the client stops and {@link #waitUntilStopped()} returns.
+ */
+public class ReplayClient implements MirrorClientInterface {
+
+    public static final double SPEED_UNLIMITED = 0;
+
+    private static final int MAX_PENDING_PACKETS = 256;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    // Longest unlimited replay parks at a time while the queue is full
+    private static final int FULL_QUEUE_WAIT_MS = 500;
+
+    private final String mTag;
+    private final File mFile;
+    private final int mStreamId;
+    private final double mSpeed;
+
+    private volatile boolean mIsRunning = false;
+    private volatile boolean mIsConnected = false;
+    private final CountDownLatch mStoppingLock = new CountDownLatch(1);
+    private final PacketRingBuffer mPendingPacketQueue = new PacketRingBuffer(MAX_PENDING_PACKETS);
+    private final LinkMonitor mLinkMonitor = new LinkMonitor();
+    private volatile int mReplayedCount = 0;
+    private volatile int mDroppedCount = 0;
+
+    /**
+     * @param streamId the MuxSession.STREAM_* to play back, other records are skipped.
+     * @param speed 1 for the original pace, 2 for twice as fast, or {@link #SPEED_UNLIMITED}.
+     */
+    public ReplayClient(String tag, File file, int streamId, double speed) {
+        mTag = tag;
+        mFile = file;
+        mStreamId = streamId;
+        mSpeed = speed;
+    }
+
+    /**
+     * @return when a record that arrived at arrivalNs is due, given the first one arrived at
+     * firstArrivalNs and got replayed at startNs.
+     */
+    static long dueTimeNs(long firstArrivalNs, long arrivalNs, long startNs, double speed) {
+        if (speed <= 0) {
+            return startNs;
+        }
+        return startNs + (long) ((arrivalNs - firstArrivalNs) / speed);
+    }
+
+    @Override
+    public void start(String ip, int port, final Runnable connectedCallback,
+            final Runnable stoppedCallback, boolean receiveMode) {
+        Log.i(mTag, "Replaying stream " + mStreamId + " of " + mFile + " at speed " + mSpeed);
+        mIsRunning = true;
+        MirrorExecutors.getDefault().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                try (InputStream file = new FileInputStream(mFile)) {
+                    mIsConnected = true;
+                    if (connectedCallback != null) {
+                        connectedCallback.run();
+                    }
+                    replay(new DataInputStream(new BufferedInputStream(file, READ_BUFFER_SIZE)));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    Log.i(mTag, "Replay done, " + mReplayedCount + " packets, dropped " + mDroppedCount);
+                    mIsConnected = false;
+                    mIsRunning = false;
+                    mPendingPacketQueue.wakeUp();
+                    if (stoppedCallback != null) {
+                        stoppedCallback.run();
+                    }
+                    mStoppingLock.countDown();
+                }
+            }
+        });
+    }
+
+    void replay(DataInputStream in) throws IOException {
+        if (in.readLong() != StreamRecorder.MAGIC) {
+            throw new IOException("Not a capture file");
+        }
+        StreamRecorder.Record record = new StreamRecorder.Record();
+        long firstArrivalNs = -1;
+        long firstCaptureUs = -1;
+        long startNs = 0;
+        // Added to the times of the current session to carry on from the one before
+        long arrivalOffsetNs = 0;
+        long captureOffsetUs = 0;
+        long lastArrivalNs = -1;
+        long lastCaptureUs = -1;
+        boolean newSession = false;
+        // A packet was dropped since the last one queued
+        boolean dropped = false;
+        while (mIsRunning && StreamRecorder.readRecord(in, record) != null) {
+            Packet packet = record.packet;
+            newSession |= record.sessionStart;
+            if (record.streamId != mStreamId) {
+                packet.release();
+                continue;
+            }
+            if (newSession && lastArrivalNs >= 0) {
+                arrivalOffsetNs = lastArrivalNs - record.arrivalTimeNs;
+                if (lastCaptureUs >= 0 && record.captureTimeUs > 0) {
+                    captureOffsetUs = lastCaptureUs - record.captureTimeUs;
+                }
+            }
+            newSession = false;
+            long arrivalNs = record.arrivalTimeNs + arrivalOffsetNs;
+            lastArrivalNs = arrivalNs;
+            if (firstArrivalNs < 0) {
+                firstArrivalNs = arrivalNs;
+                startNs = System.nanoTime();
+            }
+            long dueNs = dueTimeNs(firstArrivalNs, arrivalNs, startNs, mSpeed);
+            long waitNs;
+            while (mIsRunning && (waitNs = dueNs - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNs);
+            }
+            if (record.captureTimeUs > 0) {
+                long captureUs = record.captureTimeUs + captureOffsetUs;
+                lastCaptureUs = captureUs;
+                if (firstCaptureUs < 0) {
+                    firstCaptureUs = captureUs;
+                }
+                packet.captureTimeUs = mSpeed > 0
+                        ? firstCaptureUs + (long) ((captureUs - firstCaptureUs) / mSpeed)
+                        : captureUs;
+            }
+            packet.receivedTimeNs = System.nanoTime();
+            packet.followsDrop = dropped;
+            boolean queued = mPendingPacketQueue.offer(packet);
+            // Unlimited replay waits for the consumer instead, stop() wakes it up
+            while (!queued && mSpeed <= 0 && mIsRunning) {
+                queued = mPendingPacketQueue.offer(packet, FULL_QUEUE_WAIT_MS);
+            }
+            if (!queued) {
+                mDroppedCount++;
+                packet.release();
+                dropped = true;
+                continue;
+            }
+            dropped = false;
+            mReplayedCount++;
+        }
+    }
+
+    @Override
+    public void stop() {
+        mIsRunning = false;
+        mPendingPacketQueue.wakeUp();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    @Override
+    public void waitUntilStopped() {
+        try {
+            synchronized (mStoppingLock) {
+                mStoppingLock.await();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Packet getNextPacket() {
+        return mPendingPacketQueue.poll();
+    }
+
+    @Override
+    public Packet takeNextPacket(long timeoutMs) {
+        return mPendingPacketQueue.take(timeoutMs);
+    }
+
+    @Override
+    public int packetQueueSize() {
+        return mPendingPacketQueue.size();
+    }
+
+    @Override
+    public void sendBuf(byte[] buf, int len) {
+        // Nobody to send to
+    }
+
+    @Override
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    @Override
+    public void setDirectReceiver(DirectReceiver receiver) {
+        // Replayed packets are queued like those of Tcp
+    }
+
+    @Override
+    public void awaitDirectReceiveIdle() {
+    }
+
+    public int getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+}
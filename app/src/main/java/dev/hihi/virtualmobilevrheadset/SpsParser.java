@@ -0,0 +1,217 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Reads the picture size out of an H.264 sequence parameter set (ITU-T H.264 7.3.2.1.1).
+ *
+ * Works on the NAL unit as found in the stream, emulation prevention bytes included, and does
+ * not allocate: one instance is meant to be reused by the thread that owns it.
+ */
+public class SpsParser {
+
+    // Profiles whose SPS carries chroma format, bit depths and scaling matrices
+    private static final int[] HIGH_PROFILES = {100, 110, 122, 244, 44, 83, 86, 118, 128, 138, 139, 134, 135};
+
+    private byte[] mBytes;
+    private int mOffset;
+    private int mEnd;
+    private int mBit;
+    private int mZeros;
+
+    private int mProfileIdc;
+    private int mLevelIdc;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Find the SPS in an access unit and parse it.
+     *
+     * @return true if there is one and it parsed.
+     */
+    public boolean parseAccessUnit(byte[] bytes, int size) {
+        int offset = NalUnits.findNal(bytes, size, NalUnits.TYPE_SPS);
+        return offset >= 0 && parse(bytes, offset, NalUnits.nalEnd(bytes, offset, size));
+    }
+
+    /**
+     * @param offset offset of the NAL header byte.
+     * @param end end of the NAL unit.
+     * @return true if the SPS parsed, the getters are only valid then.
+     */
+    public boolean parse(byte[] bytes, int offset, int end) {
+        if (offset >= end || NalUnits.nalType(bytes[offset]) != NalUnits.TYPE_SPS) {
+            return false;
+        }
+        mBytes = bytes;
+        mOffset = offset + 1;
+        mEnd = end;
+        mBit = 0;
+        mZeros = 0;
+        try {
+            return parseSps();
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated
+            return false;
+        } finally {
+            mBytes = null;
+        }
+    }
+
+    private boolean parseSps() {
+        mProfileIdc = readBits(8);
+        readBits(8);  // constraint flags
+        mLevelIdc = readBits(8);
+        readUe();  // seq_parameter_set_id
+
+        int chromaFormatIdc = 1;
+        boolean separateColourPlanes = false;
+        if (isHighProfile(mProfileIdc)) {
+            chromaFormatIdc = readUe();
+            if (chromaFormatIdc == 3) {
+                separateColourPlanes = readBit() == 1;
+            }
+            readUe();  // bit_depth_luma_minus8
+            readUe();  // bit_depth_chroma_minus8
+            readBit();  // qpprime_y_zero_transform_bypass_flag
+            if (readBit() == 1) {
+                int lists = chromaFormatIdc == 3 ? 12 : 8;
+                for (int i = 0; i < lists; i++) {
+                    if (readBit() == 1) {
+                        skipScalingList(i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        readUe();  // log2_max_frame_num_minus4
+        int picOrderCntType = readUe();
+        if (picOrderCntType == 0) {
+            readUe();  // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            readBit();  // delta_pic_order_always_zero_flag
+            readSe();  // offset_for_non_ref_pic
+            readSe();  // offset_for_top_to_bottom_field
+            int cycle = readUe();
+            for (int i = 0; i < cycle; i++) {
+                readSe();
+            }
+        } else if (picOrderCntType != 2) {
+            return false;
+        }
+        readUe();  // max_num_ref_frames
+        readBit();  // gaps_in_frame_num_value_allowed_flag
+
+        int widthInMbs = readUe() + 1;
+        int heightInMapUnits = readUe() + 1;
+        int frameMbsOnly = readBit();
+        if (frameMbsOnly == 0) {
+            readBit();  // mb_adaptive_frame_field_flag
+        }
+        readBit();  // direct_8x8_inference_flag
+
+        int width = widthInMbs * 16;
+        int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+        if (readBit() == 1) {
+            int cropUnitX = 1;
+            int cropUnitY = 2 - frameMbsOnly;
+            if (!separateColourPlanes && chromaFormatIdc != 0) {
+                cropUnitX = chromaFormatIdc == 3 ? 1 : 2;
+                cropUnitY *= chromaFormatIdc == 1 ? 2 : 1;
+            }
+            width -= (readUe() + readUe()) * cropUnitX;
+            height -= (readUe() + readUe()) * cropUnitY;
+        }
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        mWidth = width;
+        mHeight = height;
+        return true;
+    }
+
+    private static boolean isHighProfile(int profileIdc) {
+        for (int profile : HIGH_PROFILES) {
+            if (profile == profileIdc) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void skipScalingList(int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size; i++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + readSe() + 256) % 256;
+            }
+            if (nextScale != 0) {
+                lastScale = nextScale;
+            }
+        }
+    }
+
+    private int readBit() {
+        if (mBit == 0) {
+            // 00 00 03 is an escaped 00 00, the 03 is not part of the payload
+            if (mZeros >= 2 && mBytes[mOffset] == 3) {
+                mOffset++;
+                mZeros = 0;
+            }
+            if (mOffset >= mEnd) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+        int bit = (mBytes[mOffset] >> (7 - mBit)) & 1;
+        if (++mBit == 8) {
+            mZeros = mBytes[mOffset] == 0 ? mZeros + 1 : 0;
+            mBit = 0;
+            mOffset++;
+        }
+        return bit;
+    }
+
+    private int readBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | readBit();
+        }
+        return value;
+    }
+
+    private int readUe() {
+        int leadingZeros = 0;
+        while (readBit() == 0) {
+            if (++leadingZeros > 31) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+        return (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+    }
+
+    private int readSe() {
+        int value = readUe();
+        return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+    }
+
+    public int getProfileIdc() {
+        return mProfileIdc;
+    }
+
+    public int getLevelIdc() {
+        return mLevelIdc;
+    }
+
+    /**
+     * @return display width, cropping applied.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return display height, cropping applied.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+}
@@ -0,0 +1,241 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes received packets to an append-only capture file, for {@link ReplayClient}.
+ *
+ * The file is one or more sessions, each {@link #MAGIC} followed by records (big endian):
+ * <pre>
+ * 1 byte stream id (MuxSession.STREAM_*), 8 bytes arrival time in ns (System.nanoTime()),
+ * 8 bytes capture time in us in the sender's clock or 0, 4 bytes size, size bytes
+ * </pre>
+ * Every connection appends a session. Times are only comparable within a session, the clocks
+ * may have restarted in between, so readers rebase them at every session header. Stream ids
+ * stay below the first byte of {@link #MAGIC}, which tells a session header from a record.
+ * {@link #record} only retains the packet and queues it, a writer thread does the I/O. When the
+ * writer falls {@link #MAX_QUEUED_PACKETS} behind, packets are left out of the capture rather
+ * than holding up the receive thread. All methods are thread safe.
+ */
+public class StreamRecorder {
+
+    private static final String TAG = "StreamRecorder";
+
+    // "VMVRCAP1"
+    public static final long MAGIC = 0x564d565243415031L;
+    static final int MAX_QUEUED_PACKETS = 512;
+    // Nothing bigger is ever received, a bigger size is a corrupted file
+    static final int MAX_RECORD_SIZE = MuxSession.MAX_MESSAGE_SIZE;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * One record of a capture file.
+     */
+    public static class Record {
+        public int streamId;
+        public long arrivalTimeNs;
+        public long captureTimeUs;
+        public Packet packet;
+        // First record of a session after the first one, its times start over
+        public boolean sessionStart;
+    }
+
+    private final DataOutputStream mOut;
+    private final Packet[] mPackets = new Packet[MAX_QUEUED_PACKETS];
+    private final int[] mStreamIds = new int[MAX_QUEUED_PACKETS];
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean mClosed = false;
+    private long mRecorded = 0;
+    private long mDropped = 0;
+
+    /**
+     * @param out gets the header right away, records once {@link #start()}ed.
+     */
+    public StreamRecorder(OutputStream out, boolean writeHeader) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out, WRITE_BUFFER_SIZE));
+        if (writeHeader) {
+            mOut.writeLong(MAGIC);
+        }
+    }
+
+    /**
+     * Start a new session at the end of file.
+     */
+    public static StreamRecorder open(File file) throws IOException {
+        return new StreamRecorder(new FileOutputStream(file, true), true);
+    }
+
+    public void start() {
+        MirrorExecutors.getDefault().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (writePending(true)) {
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    closeQuietly();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue packet for the capture. Never blocks on I/O.
+     */
+    public synchronized void record(int streamId, Packet packet) {
+        if (mClosed || mCount == MAX_QUEUED_PACKETS) {
+            mDropped++;
+            return;
+        }
+        int tail = (mHead + mCount) % MAX_QUEUED_PACKETS;
+        mPackets[tail] = packet.retain();
+        mStreamIds[tail] = streamId;
+        mCount++;
+        notifyAll();
+    }
+
+    /**
+     * Write everything queued, waiting for packets first if wait is set.
+     *
+     * @return false once closed and everything is written.
+     */
+    boolean writePending(boolean wait) throws IOException {
+        while (true) {
+            Packet packet;
+            int streamId;
+            boolean closed;
+            synchronized (this) {
+                while (wait && mCount == 0 && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                closed = mClosed;
+                packet = null;
+                streamId = 0;
+                if (mCount > 0) {
+                    packet = mPackets[mHead];
+                    streamId = mStreamIds[mHead];
+                    mPackets[mHead] = null;
+                    mHead = (mHead + 1) % MAX_QUEUED_PACKETS;
+                    mCount--;
+                    mRecorded++;
+                }
+            }
+            if (packet == null) {
+                // Nothing more for now, get it to the file outside of the lock
+                mOut.flush();
+                return !closed;
+            }
+            try {
+                mOut.writeByte(streamId);
+                mOut.writeLong(packet.receivedTimeNs);
+                mOut.writeLong(packet.captureTimeUs);
+                mOut.writeInt(packet.size);
+                mOut.write(packet.bytes, 0, packet.size);
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    /**
+     * Stop taking packets, the writer finishes what is queued and closes the file.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private void closeQuietly() {
+        synchronized (this) {
+            mClosed = true;
+            while (mCount > 0) {
+                mPackets[mHead].release();
+                mPackets[mHead] = null;
+                mHead = (mHead + 1) % MAX_QUEUED_PACKETS;
+                mCount--;
+            }
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.i(TAG, "Capture closed, " + this);
+    }
+
+    /**
+     * @return the next record of a capture file positioned after {@link #MAGIC}, null at the end.
+     * The packet in it is the caller's to release.
+     */
+    public static Record readRecord(DataInputStream in, Record record) throws IOException {
+        record.sessionStart = false;
+        int streamId = in.read();
+        if (streamId < 0) {
+            return null;
+        }
+        try {
+            while (streamId == (int) (MAGIC >>> 56)) {
+                long magic = streamId;
+                for (int i = 0; i < 7; i++) {
+                    magic = (magic << 8) | in.readUnsignedByte();
+                }
+                if (magic != MAGIC) {
+                    throw new IOException("Bad session header");
+                }
+                record.sessionStart = true;
+                streamId = in.read();
+                if (streamId < 0) {
+                    return null;
+                }
+            }
+            record.streamId = streamId;
+            record.arrivalTimeNs = in.readLong();
+            record.captureTimeUs = in.readLong();
+            int size = in.readInt();
+            if (size < 0 || size > MAX_RECORD_SIZE) {
+                throw new IOException("Bad record size " + size);
+            }
+            Packet packet = Packet.obtain(size);
+            try {
+                in.readFully(packet.bytes, 0, size);
+            } catch (IOException e) {
+                packet.release();
+                throw e;
+            }
+            record.packet = packet;
+            return record;
+        } catch (EOFException e) {
+            // Cut off while capturing
+            return null;
+        }
+    }
+
+    public synchronized long getRecordedCount() {
+        return mRecorded;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StreamRecorder{recorded=" + mRecorded + ", dropped=" + mDropped + ", queued=" + mCount + "}";
+    }
+}
@@ -1,31 +1,57 @@
 package dev.hihi.virtualmobilevrheadset;
 
-import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Tcp implements MirrorClientInterface {
 
     private static final boolean DEBUG = true;
 
+    // TODO: Better buf limit ?
+    private static final int MAX_PENDING_PACKETS = 256;
+    // Upper bound of how long the idle sender stays parked before re-checking the socket.
+    private static final int SEND_IDLE_WAIT_MS = 500;
+    // Control frames are tiny, anything bigger means the stream is out of sync
+    private static final int MAX_CONTROL_FRAME_SIZE = 64;
+    // Nothing legitimate is bigger, a larger size is a corrupted stream
+    static final int MAX_FRAME_SIZE = MuxSession.MAX_MESSAGE_SIZE;
+    // Pings and pongs waiting for the writing thread
+    private static final int MAX_PENDING_HEARTBEATS = 8;
+
     volatile private boolean mIsConnected = false;
     volatile private boolean mIsRunning = false;
     volatile  ServerSocket mServerSocket;
+    volatile private Socket mSocket;
 
     private final boolean mIsServer;
     private final String mTag;
 
     private CountDownLatch mStoppingLock = new CountDownLatch(1);
 
-    private Queue<Packet> mPendingPacketQueue = new ConcurrentLinkedQueue<>();
+    private final PacketRingBuffer mPendingPacketQueue = new PacketRingBuffer(MAX_PENDING_PACKETS);
+    private final LinkMonitor mLinkMonitor = new LinkMonitor();
+
+    // Heartbeats from the timer and the receiving thread, written by the one thread that writes
+    // to the socket: the send loop, or the heartbeat loop in receive mode
+    private final PacketRingBuffer mHeartbeatQueue = new PacketRingBuffer(MAX_PENDING_HEARTBEATS);
+    // Control frame being read, receive thread only
+    private final byte[] mControlFrame = new byte[MAX_CONTROL_FRAME_SIZE];
+    // Capture time announced for the next received frame, receive thread only
+    private long mNextCaptureTimeUs = 0;
+    // A received packet was dropped since the last one queued, receive thread only
+    private boolean mDroppedReceived = false;
+    // Receive thread copies packets here when set
+    private volatile StreamRecorder mRecorder = null;
+    private volatile int mRecordStreamId = 0;
 
     public Tcp(String tag, boolean isServer) {
         mTag = tag;
@@ -37,10 +63,11 @@ public class Tcp implements MirrorClientInterface {
             final Runnable stoppedCallback, final boolean receiveMode) {
         Log.i(mTag, "Start()");
         mIsRunning = true;
-        // Better way to handling threading?
-        new Thread() {
+        MirrorExecutors.getDefault().io().execute(new Runnable() {
+            @Override
             public void run() {
                 Socket socket = null;
+                ScheduledFuture<?> heartbeats = null;
                 try {
                     if (mIsServer) {
                         mServerSocket = new ServerSocket(port);
@@ -52,8 +79,12 @@ public class Tcp implements MirrorClientInterface {
                     if (socket == null || !mIsRunning) {
                         return;
                     }
+                    mSocket = socket;
 
-                    mPendingPacketQueue.clear();
+                    if (!receiveMode) {
+                        // This thread becomes the only consumer of the queue from here on
+                        mPendingPacketQueue.clear();
+                    }
                     mIsConnected = true;
 
                     if (connectedCallback != null) {
@@ -61,19 +92,22 @@ public class Tcp implements MirrorClientInterface {
                     }
 
                     final Socket s = socket;
+                    heartbeats = scheduleHeartbeats(s, receiveMode);
                     if (receiveMode) {
-                        new Thread() {
+                        MirrorExecutors.getDefault().io().execute(new Runnable() {
+                            @Override
                             public void run() {
-                                sendPingLoop(s);
+                                heartbeatLoop(s);
                             }
-                        }.start();
+                        });
                         recvModeLoop(s);
                     } else {
-                        new Thread() {
+                        MirrorExecutors.getDefault().io().execute(new Runnable() {
+                            @Override
                             public void run() {
                                 recvPingLoop(s);
                             }
-                        }.start();
+                        });
                         sendModeLoop(s);
                     }
                     Log.i(mTag, "Client disconnected");
@@ -83,6 +117,9 @@ public class Tcp implements MirrorClientInterface {
                     ex.printStackTrace();
                 } finally {
                     mIsConnected = false;
+                    if (heartbeats != null) {
+                        heartbeats.cancel(false);
+                    }
                     try {
                         if (mServerSocket != null) {
                             mServerSocket.close();
@@ -100,14 +137,17 @@ public class Tcp implements MirrorClientInterface {
                     }
                 }
             }
-        }.start();
+        });
     }
 
     private void sendModeLoop(final Socket socket) {
         try (OutputStream os = socket.getOutputStream()) {
+            byte[] header = new byte[4];
             while (mIsRunning) {
-                // TODO: Better busy waiting?
-                if (mPendingPacketQueue.size() == 0) {
+                writeHeartbeats(os);
+                // Parks until sendBuf() queues a packet, or a heartbeat or stop() wakes us up
+                Packet packet = mPendingPacketQueue.take(SEND_IDLE_WAIT_MS);
+                if (packet == null) {
                     if (socket.isClosed()) {
                         break;
                     }
@@ -116,22 +156,25 @@ public class Tcp implements MirrorClientInterface {
                 if (DEBUG) {
                     Log.i(mTag, "Ready to send, pending size: " + mPendingPacketQueue.size());
                 }
-                Packet packet = mPendingPacketQueue.poll();
 
                 // Header: Length of packet
-                byte[] header = new byte[4];
                 header[0] =  (byte) ((packet.size >> 24) & 0xff);
                 header[1] =  (byte) ((packet.size >> 16) & 0xff);
                 header[2] =  (byte) ((packet.size >> 8) & 0xff);
                 header[3] =  (byte) ((packet.size >> 0) & 0xff);
-                os.write(header);
+                try {
+                    os.write(header);
 
-                // Payload
-                os.write(packet.bytes, 0, packet.size);
+                    // Payload
+                    os.write(packet.bytes, 0, packet.size);
+                } finally {
+                    packet.release();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            mHeartbeatQueue.clear();
             try {
                 socket.close();
             } catch (IOException e) {
@@ -139,31 +182,127 @@ public class Tcp implements MirrorClientInterface {
         }
     }
 
-    private void sendPingLoop(final Socket socket) {
-        try (OutputStream os = socket.getOutputStream()) {
+    /**
+     * Every {@link LinkMonitor#PING_INTERVAL_MS}: close the socket if the peer went silent,
+     * otherwise queue a timestamped ping. The receiving side pings on the reverse direction, the
+     * sending side pings in a control frame once the peer has shown that it understands them.
+     * Runs on the shared timer thread, so it never touches the socket's streams.
+     */
+    private ScheduledFuture<?> scheduleHeartbeats(final Socket socket, final boolean receiveMode) {
+        return MirrorExecutors.getDefault().timer().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                if (mLinkMonitor.isPeerDead(now)) {
+                    Log.w(mTag, "Peer silent for " + mLinkMonitor.getTimeSinceLastHeardMs(now)
+                            + "ms, closing connection");
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                if (receiveMode || mLinkMonitor.peerSupportsHeartbeat()) {
+                    queueHeartbeat(!receiveMode, LinkMonitor.TYPE_PING, LinkMonitor.nowUs());
+                }
+            }
+        }, LinkMonitor.PING_INTERVAL_MS, LinkMonitor.PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand a heartbeat to the thread that writes to the socket.
+     *
+     * @param framed true to send it as a control frame on the framed direction, false to send it
+     * on the reverse direction.
+     */
+    private void queueHeartbeat(boolean framed, int type, long timestampUs) {
+        int offset = framed ? 4 : 0;
+        Packet packet = Packet.obtain(offset + LinkMonitor.MESSAGE_SIZE);
+        if (framed) {
+            int header = LinkMonitor.CONTROL_FRAME_FLAG | LinkMonitor.MESSAGE_SIZE;
+            packet.bytes[0] = (byte) ((header >> 24) & 0xff);
+            packet.bytes[1] = (byte) ((header >> 16) & 0xff);
+            packet.bytes[2] = (byte) ((header >> 8) & 0xff);
+            packet.bytes[3] = (byte) (header & 0xff);
+        }
+        LinkMonitor.writeMessage(packet.bytes, offset, type, timestampUs);
+        // Called from the timer and the receiving thread
+        if (!mHeartbeatQueue.offerShared(packet)) {
+            Log.w(mTag, "Heartbeat queue full, writer stalled");
+            packet.release();
+            return;
+        }
+        if (framed) {
+            // The send loop may be parked on the frame queue
+            mPendingPacketQueue.wakeUp();
+        }
+    }
+
+    private void writeHeartbeats(OutputStream os) throws IOException {
+        Packet packet;
+        while ((packet = mHeartbeatQueue.poll()) != null) {
+            try {
+                os.write(packet.bytes, 0, packet.size);
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the heartbeats on the reverse direction while {@link #recvModeLoop} reads frames.
+     */
+    private void heartbeatLoop(final Socket socket) {
+        try {
+            OutputStream os = socket.getOutputStream();
             while (mIsRunning) {
-                SystemClock.sleep(500);
-                os.write(0);
-                Log.w(mTag, "sendPingLoop");
+                Packet packet = mHeartbeatQueue.take(SEND_IDLE_WAIT_MS);
+                if (packet == null) {
+                    if (socket.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    os.write(packet.bytes, 0, packet.size);
+                } finally {
+                    packet.release();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            mHeartbeatQueue.clear();
             try {
                 socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
             }
         }
     }
 
+    private void onHeartbeat(boolean framed, int type, long timestampUs) {
+        mLinkMonitor.onHeartbeat(System.nanoTime());
+        if (type == LinkMonitor.TYPE_PING) {
+            queueHeartbeat(framed, LinkMonitor.TYPE_PONG, timestampUs);
+        } else if (type == LinkMonitor.TYPE_PONG) {
+            mLinkMonitor.onPong(timestampUs, LinkMonitor.nowUs());
+        }
+    }
 
     private void recvPingLoop(final Socket socket) {
-        try (InputStream is = socket.getInputStream()) {
+        try (DataInputStream is = new DataInputStream(socket.getInputStream())) {
             while (mIsRunning) {
-                if (is.read() < 0) {
+                int type = is.read();
+                if (type < 0) {
                     return;
                 }
+                if (LinkMonitor.messageSize(type) == LinkMonitor.MESSAGE_SIZE) {
+                    onHeartbeat(true, type, is.readLong());
+                } else {
+                    // Old style 1 byte ping
+                    mLinkMonitor.onPeerActivity(System.nanoTime());
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -177,6 +316,7 @@ public class Tcp implements MirrorClientInterface {
     }
 
     private void recvModeLoop(final Socket socket) {
+        // Reads block until data arrives, stop() closes the socket to unblock them.
         try (InputStream is = socket.getInputStream()) {
             while (mIsRunning) {
                 byte[] header = new byte[4];
@@ -188,10 +328,6 @@ public class Tcp implements MirrorClientInterface {
                         if (!mIsRunning) {
                             return;
                         }
-                        if (is.available() == 0 && !socket.isClosed() && socket.isConnected()) {
-                            SystemClock.sleep(1);
-                            continue;
-                        }
                         int size = is.read(header, headerOffset, headerRemain);
                         if (size > 0) {
                             headerOffset += size;
@@ -204,25 +340,49 @@ public class Tcp implements MirrorClientInterface {
                             (((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) |
                                     ((header[2] & 0xff) << 8) | (header[3] & 0xff));
                     int nextPacketOffset = 0;
+                    mLinkMonitor.onPeerActivity(System.nanoTime());
+                    if ((nextPacketSize & LinkMonitor.CONTROL_FRAME_FLAG) != 0) {
+                        if (!readControlFrame(is, nextPacketSize & ~LinkMonitor.CONTROL_FRAME_FLAG)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (nextPacketSize > MAX_FRAME_SIZE) {
+                        Log.e(mTag, "Corrupted frame, size: " + nextPacketSize);
+                        return;
+                    }
 
-                    byte[] buffer = new byte[nextPacketSize];
+                    Packet packet = Packet.obtain(nextPacketSize);
+                    byte[] buffer = packet.bytes;
                     while(nextPacketSize != 0) {
                         if (!mIsRunning) {
+                            packet.release();
                             return;
                         }
-                        if (is.available() == 0 && !socket.isClosed() && socket.isConnected()) {
-                            SystemClock.sleep(1);
-                            continue;
-                        }
                         int size = is.read(buffer, nextPacketOffset, nextPacketSize);
                         if (size > 0) {
                             nextPacketOffset += size;
                             nextPacketSize = nextPacketSize - size;
                         } else if (size < 0 || socket.isClosed()) {
+                            packet.release();
                             return;
                         }
                     }
-                    mPendingPacketQueue.add(new Packet(buffer, nextPacketOffset));
+                    packet.receivedTimeNs = System.nanoTime();
+                    packet.captureTimeUs = mNextCaptureTimeUs;
+                    mNextCaptureTimeUs = 0;
+                    StreamRecorder recorder = mRecorder;
+                    if (recorder != null) {
+                        recorder.record(mRecordStreamId, packet);
+                    }
+                    packet.followsDrop = mDroppedReceived;
+                    if (mPendingPacketQueue.offer(packet)) {
+                        mDroppedReceived = false;
+                    } else {
+                        Log.w(mTag, "Buffer full, dropped received packet");
+                        packet.release();
+                        mDroppedReceived = true;
+                    }
                 }
             }
         } catch (IOException e) {
@@ -236,9 +396,35 @@ public class Tcp implements MirrorClientInterface {
         }
     }
 
+    private boolean readControlFrame(InputStream is, int size) throws IOException {
+        if (size > MAX_CONTROL_FRAME_SIZE) {
+            Log.e(mTag, "Corrupted control frame, size: " + size);
+            return false;
+        }
+        byte[] frame = mControlFrame;
+        int offset = 0;
+        while (offset < size) {
+            int n = is.read(frame, offset, size - offset);
+            if (n < 0) {
+                return false;
+            }
+            offset += n;
+        }
+        if (size >= LinkMonitor.MESSAGE_SIZE) {
+            if (frame[0] == LinkMonitor.TYPE_CAPTURE_TIME) {
+                mNextCaptureTimeUs = LinkMonitor.readTimestamp(frame, 0);
+            } else {
+                onHeartbeat(false, frame[0], LinkMonitor.readTimestamp(frame, 0));
+            }
+        }
+        return true;
+    }
+
     @Override
     public void stop() {
         mIsRunning = false;
+        mPendingPacketQueue.wakeUp();
+        mHeartbeatQueue.wakeUp();
         if (mServerSocket != null) {
             try {
                 mServerSocket.close();
@@ -246,19 +432,45 @@ public class Tcp implements MirrorClientInterface {
                 e.printStackTrace();
             }
         }
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     @Override
     public void sendBuf(byte[] buf, int len) {
-        // TODO: Better buf limit ?
-        if (mPendingPacketQueue.size() >= 200) {
+        if (mPendingPacketQueue.size() >= mPendingPacketQueue.capacity()) {
             Log.w(mTag, "Buffer full, mPendingPacketQueue size: " + mPendingPacketQueue.size());
             return;
         }
-        // TODO: need extra copy?
-        byte[] bytes = new byte[len];
-        System.arraycopy(buf, 0, bytes, 0, len);
-        mPendingPacketQueue.add(new Packet(bytes, len));
+        Packet packet = Packet.obtain(len);
+        System.arraycopy(buf, 0, packet.bytes, 0, len);
+        // Called from the UI, timer and io threads
+        if (!mPendingPacketQueue.offerShared(packet)) {
+            packet.release();
+        }
+    }
+
+    /**
+     * Copy received packets into recorder, tagged with streamId. Null stops recording.
+     */
+    public void setRecorder(StreamRecorder recorder, int streamId) {
+        mRecordStreamId = streamId;
+        mRecorder = recorder;
+    }
+
+    @Override
+    public void setDirectReceiver(DirectReceiver receiver) {
+        // Stream based socket, there is nothing to gain from reading into a ByteBuffer.
+    }
+
+    @Override
+    public void awaitDirectReceiveIdle() {
     }
 
     @Override
@@ -282,8 +494,18 @@ public class Tcp implements MirrorClientInterface {
         return mPendingPacketQueue.poll();
     }
 
+    @Override
+    public Packet takeNextPacket(long timeoutMs) {
+        return mPendingPacketQueue.take(timeoutMs);
+    }
+
     @Override
     public int packetQueueSize() {
         return mPendingPacketQueue.size();
     }
+
+    @Override
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
 }
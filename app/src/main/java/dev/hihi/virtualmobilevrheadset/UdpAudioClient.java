@@ -0,0 +1,218 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Receive only {@link MirrorClientInterface} for audio over UDP.
+ *
+ * The client sends a hello datagram to the server every {@link #HELLO_INTERVAL_MS} so the
+ * server knows where to stream to. The hello is a {@link LinkMonitor} ping, a server that
+ * answers it with a {@link LinkMonitor#MESSAGE_SIZE} byte pong datagram gets the round trip
+ * measured. Every other datagram from the server is one PCM frame:
+ * <pre>
+ * 4 bytes  sequence number, big endian, incremented by one per frame
+ * 4 bytes  sender timestamp in ms, big endian, wraps around
+ * N bytes  16 bit PCM payload
+ * </pre>
+ * Frames go through an {@link AudioJitterBuffer}, so a lost datagram costs one concealed frame
+ * instead of stalling the stream behind a TCP retransmission.
+ */
+public class UdpAudioClient implements MirrorClientInterface {
+
+    public static final int HEADER_SIZE = 8;
+
+    private static final int HELLO_INTERVAL_MS = 500;
+    // Nothing received for this long means the server is gone
+    private static final int PEER_TIMEOUT_MS = 3000;
+    private static final int MAX_DATAGRAM_SIZE = 64 * 1024;
+    private static final int MIN_DELAY_FRAMES = 2;
+    private static final int MAX_DELAY_FRAMES = 16;
+
+    volatile private boolean mIsConnected = false;
+    volatile private boolean mIsRunning = false;
+    volatile private DatagramSocket mSocket;
+
+    private final String mTag;
+    private final LinkMonitor mLinkMonitor = new LinkMonitor();
+    private final AudioJitterBuffer mJitterBuffer =
+            new AudioJitterBuffer(MIN_DELAY_FRAMES, MAX_DELAY_FRAMES);
+
+    private CountDownLatch mStoppingLock = new CountDownLatch(1);
+
+    public UdpAudioClient(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Write the datagram header in front of a frame, for senders of this protocol.
+     */
+    public static void writeHeader(byte[] datagram, int seq, int senderTimeMs) {
+        ByteBuffer.wrap(datagram, 0, HEADER_SIZE).putInt(seq).putInt(senderTimeMs);
+    }
+
+    @Override
+    public void start(final String ip, final int port, final Runnable connectedCallback,
+            final Runnable stoppedCallback, final boolean receiveMode) {
+        Log.i(mTag, "Start()");
+        if (!receiveMode) {
+            throw new IllegalArgumentException("UdpAudioClient only supports receive mode");
+        }
+        mIsRunning = true;
+        MirrorExecutors.getDefault().io().execute(new Runnable() {
+            @Override
+            public void run() {
+                DatagramSocket socket = null;
+                try {
+                    socket = new DatagramSocket();
+                    socket.connect(InetAddress.getByName(ip), port);
+                    socket.setSoTimeout(HELLO_INTERVAL_MS);
+                    mSocket = socket;
+                    if (!mIsRunning) {
+                        return;
+                    }
+                    mJitterBuffer.clear();
+                    recvLoop(socket, connectedCallback);
+                    Log.i(mTag, "Server disconnected");
+                } catch (IOException ex) {
+                    Log.e(mTag, "Client exception: " + ex.getMessage());
+                    ex.printStackTrace();
+                } finally {
+                    mIsConnected = false;
+                    if (socket != null) {
+                        socket.close();
+                    }
+                    mJitterBuffer.wakeUp();
+                    mStoppingLock.countDown();
+                    if (stoppedCallback != null) {
+                        stoppedCallback.run();
+                    }
+                }
+            }
+        });
+    }
+
+    private void recvLoop(DatagramSocket socket, Runnable connectedCallback) throws IOException {
+        byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+        DatagramPacket datagram = new DatagramPacket(buf, buf.length);
+        DatagramPacket hello = new DatagramPacket(new byte[LinkMonitor.MESSAGE_SIZE],
+                LinkMonitor.MESSAGE_SIZE);
+        long lastHelloMs = 0;
+        long lastReceiveMs = nowMs();
+        while (mIsRunning) {
+            long now = nowMs();
+            if (now - lastHelloMs >= HELLO_INTERVAL_MS) {
+                LinkMonitor.writeMessage(hello.getData(), 0, LinkMonitor.TYPE_PING, LinkMonitor.nowUs());
+                socket.send(hello);
+                lastHelloMs = now;
+            }
+            if (now - lastReceiveMs > PEER_TIMEOUT_MS || mLinkMonitor.isPeerDead(System.nanoTime())) {
+                return;
+            }
+            datagram.setLength(buf.length);
+            try {
+                socket.receive(datagram);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            now = nowMs();
+            lastReceiveMs = now;
+            mLinkMonitor.onPeerActivity(System.nanoTime());
+            int length = datagram.getLength();
+            if (length == LinkMonitor.MESSAGE_SIZE && buf[0] == LinkMonitor.TYPE_PONG) {
+                // Too short to be a PCM frame
+                mLinkMonitor.onHeartbeat(System.nanoTime());
+                mLinkMonitor.onPong(LinkMonitor.readTimestamp(buf, 0), LinkMonitor.nowUs());
+                continue;
+            }
+            if (length < HEADER_SIZE) {
+                continue;
+            }
+            if (!mIsConnected) {
+                mIsConnected = true;
+                if (connectedCallback != null) {
+                    connectedCallback.run();
+                }
+            }
+            ByteBuffer header = ByteBuffer.wrap(buf, 0, HEADER_SIZE);
+            int seq = header.getInt();
+            long senderTimeMs = header.getInt() & 0xffffffffL;
+            Packet packet = Packet.obtain(length - HEADER_SIZE);
+            System.arraycopy(buf, HEADER_SIZE, packet.bytes, 0, packet.size);
+            packet.receivedTimeNs = System.nanoTime();
+            mJitterBuffer.put(seq, senderTimeMs, now, packet);
+        }
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    public AudioJitterBuffer getJitterBuffer() {
+        return mJitterBuffer;
+    }
+
+    @Override
+    public LinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    @Override
+    public void stop() {
+        mIsRunning = false;
+        DatagramSocket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+        mJitterBuffer.wakeUp();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    @Override
+    public void waitUntilStopped() {
+        try {
+            mStoppingLock.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Packet getNextPacket() {
+        return mJitterBuffer.poll();
+    }
+
+    @Override
+    public Packet takeNextPacket(long timeoutMs) {
+        return mJitterBuffer.take(timeoutMs);
+    }
+
+    @Override
+    public int packetQueueSize() {
+        return mJitterBuffer.size();
+    }
+
+    @Override
+    public void sendBuf(byte[] buf, int len) {
+        Log.w(mTag, "sendBuf() not supported");
+    }
+
+    @Override
+    public void setDirectReceiver(DirectReceiver receiver) {
+    }
+
+    @Override
+    public void awaitDirectReceiveIdle() {
+    }
+}
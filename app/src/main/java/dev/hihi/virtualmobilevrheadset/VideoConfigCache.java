@@ -0,0 +1,107 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Remembers the last video stream configuration (dimensions from the config packet, SPS and
+ * PPS from the stream) across connections, so a decoder for a reconnected stream can be
+ * configured before the first packet arrives and decode the first IDR right away.
+ *
+ * Parameter sets are kept with their 4 byte start code, ready to be used as csd-0 / csd-1. They
+ * are only picked up from H.264 streams, other codecs get their configuration in band.
+ */
+public class VideoConfigCache {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private String mMimeType = CodecNegotiation.MIME_AVC;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private byte[] mSps;
+    private byte[] mPps;
+
+    public synchronized boolean hasConfig() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    /**
+     * @return codec of the last stream, H.264 until told otherwise.
+     */
+    public synchronized String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * The configuration of another codec is useless, it is dropped when the codec changes.
+     */
+    public synchronized void setMimeType(String mimeType) {
+        if (!mimeType.equals(mMimeType)) {
+            mMimeType = mimeType;
+            mWidth = 0;
+            mHeight = 0;
+            mSps = null;
+            mPps = null;
+        }
+    }
+
+    public synchronized int getWidth() {
+        return mWidth;
+    }
+
+    public synchronized int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return SPS with start code, or null if none was seen at the current size.
+     */
+    public synchronized byte[] getSps() {
+        return mSps;
+    }
+
+    /**
+     * @return PPS with start code, or null if none was seen at the current size.
+     */
+    public synchronized byte[] getPps() {
+        return mPps;
+    }
+
+    /**
+     * Parameter sets of another size are useless, they are dropped when the size changes.
+     */
+    public synchronized void setSize(int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mSps = null;
+            mPps = null;
+        }
+    }
+
+    /**
+     * Pick up SPS / PPS in front of the first slice of an access unit.
+     */
+    public void onFrame(byte[] bytes, int size) {
+        if (!CodecNegotiation.MIME_AVC.equals(getMimeType())) {
+            return;
+        }
+        int offset = 0;
+        while ((offset = NalUnits.findNalStart(bytes, offset, size)) >= 0 && offset < size) {
+            int type = NalUnits.nalType(bytes[offset]);
+            if (type >= NalUnits.TYPE_SLICE && type <= NalUnits.TYPE_IDR) {
+                return;
+            }
+            if (type == NalUnits.TYPE_SPS || type == NalUnits.TYPE_PPS) {
+                int end = NalUnits.nalEnd(bytes, offset, size);
+                byte[] nal = new byte[START_CODE.length + end - offset];
+                System.arraycopy(START_CODE, 0, nal, 0, START_CODE.length);
+                System.arraycopy(bytes, offset, nal, START_CODE.length, end - offset);
+                synchronized (this) {
+                    if (type == NalUnits.TYPE_SPS) {
+                        mSps = nal;
+                    } else {
+                        mPps = nal;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -4,106 +4,711 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
-import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class VideoDecoder {
 
     private static final String TAG = "VideoDecoder";
-    private static final String MIME_TYPE = "video/avc";
     private static boolean DEBUG = true;
+    // How long the input thread blocks for a packet before re-checking mIsStopped.
+    private static final int PACKET_WAIT_TIMEOUT_MS = 100;
+    // Frames that waited longer than this are skipped up to the next keyframe
+    private static final int LATENCY_BUDGET_MS = 150;
+    // More than any decoder has input buffers
+    private static final int MAX_INPUT_BUFFERS = 64;
+    private static final int LATENCY_LOG_INTERVAL_FRAMES = 600;
+    // Decoded frames later than usual by more than this are dropped instead of shown
+    private static final int STALE_FRAME_MS = 60;
 
+    // Size last reported to the OnSizeChangeCallback, output thread only
     private int mWidth = 0;
     private int mHeight = 0;
-    private boolean mIsRotated = false;
+    private boolean mReportedRotated = false;
+    private volatile boolean mIsRotated = false;
+    // Stream size the codec is configured for, before rotation
+    private int mConfiguredWidth = 0;
+    private int mConfiguredHeight = 0;
+    // Largest stream the configured codec adapts to without a reconfigure, 0 if it does not
+    private int mAdaptiveMaxWidth = 0;
+    private int mAdaptiveMaxHeight = 0;
+    private OnSizeChangeCallback mOnSizeChangeCallback;
 
-    private boolean mIsStopped = false;
+    private VideoConfigCache mConfigCache;
+    // Codec of the stream, see CodecNegotiation
+    private String mMimeType = CodecNegotiation.MIME_AVC;
+    private volatile MediaCodec mDecoder;
+    // Null if no decoder from the codec list could be created
+    private DecoderSelector.DecoderInfo mDecoderInfo;
+    private CodecLifecycle<MediaCodec> mCodecLifecycle = null;
+    private boolean mOwnsCodecLifecycle = false;
+    // Config the codec is still started with from the last connection, input thread only
+    private RunningConfig mResumedConfig = null;
+    private volatile Runnable mFirstFrameCallback;
+
+    private volatile boolean mIsStopped = false;
     private CountDownLatch mCountDownLatch = new CountDownLatch(2);
+    private final CountDownLatch mOutputStopped = new CountDownLatch(1);
+    // Set while the input thread waits for the sync output loop to let go of the codec
+    private volatile CountDownLatch mOutputParked = null;
+    private final Object mOutputResume = new Object();
+    // Set by an async codec error: the input thread resets the codec, or gives it up if fatal
+    private volatile boolean mCodecNeedsReset = false;
+    private volatile boolean mCodecFailed = false;
+
+    // Direct receive: the transport reads frames straight into codec input buffers.
+    private boolean mDirectReceive = false;
+    private volatile boolean mCodecStarted = false;
+    // Packets the input thread is done with. Direct frames are only accepted once this caught up
+    // with the frames the transport queued, so they never overtake queued ones.
+    private volatile long mFinishedPackets = 0;
+    private int mDirectInputIndex = -1;
+    private int mDirectFrameCount = 0;
+    private int mFallbackFrameCount = 0;
+
+    private final VideoFrameDropper mFrameDropper = new VideoFrameDropper(LATENCY_BUDGET_MS);
+    private CongestionController mCongestionController;
+    private PipelineStats mPipelineStats;
+    private final MediaCodec.OnFrameRenderedListener mFrameRenderedListener =
+            new MediaCodec.OnFrameRenderedListener() {
+        @Override
+        public void onFrameRendered(MediaCodec codec, long presentationTimeUs, long nanoTime) {
+            PipelineStats stats = mPipelineStats;
+            if (stats != null) {
+                stats.onVideoRendered(presentationTimeUs, nanoTime);
+            }
+        }
+    };
+    // Queued to the codec and not come out yet
+    private final CodecQueueDepth mCodecQueueDepth = new CodecQueueDepth();
+
+    // Async mode: MediaCodec callbacks on MirrorExecutors#codecHandler() instead of polling
+    private boolean mAsyncMode = false;
+    private MediaCodec.Callback mCodecCallback;
+    private final ArrayBlockingQueue<Integer> mFreeInputBuffers =
+            new ArrayBlockingQueue<>(MAX_INPUT_BUFFERS);
+
+    // Only touched by whichever thread handles output buffers
+    private boolean mFirstFrameRendered = false;
+    private long mDecodeLatencySumUs = 0;
+    private int mDecodeLatencyFrames = 0;
+    private volatile long mAverageDecodeLatencyUs = -1;
+
+    // Vsync rendering: release output buffers with a render time instead of right away
+    private boolean mVsyncRendering = false;
+    private final FramePacer mFramePacer = new FramePacer(STALE_FRAME_MS);
+    // Input thread only
+    private final SpsParser mSpsParser = new SpsParser();
+    private final Choreographer.FrameCallback mVsyncCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mIsStopped) {
+                return;
+            }
+            mFramePacer.onVsync(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
 
     public interface OnSizeChangeCallback {
         void onChange(int width, int height, boolean isRotated);
     }
 
+    /**
+     * Creates decoders by rank, see {@link DecoderSelector}, falling back to whatever the system
+     * picks for the mime type.
+     */
+    public static final CodecLifecycle.Operations<MediaCodec> CODEC_OPERATIONS =
+            new CodecLifecycle.Operations<MediaCodec>() {
+        @Override
+        public MediaCodec create(String mimeType) {
+            for (DecoderSelector.DecoderInfo info : DecoderSelector.getRankedDecoders(mimeType)) {
+                try {
+                    return MediaCodec.createByCodecName(info.name);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.w(TAG, "Cannot create decoder " + info.name + ": " + e.getMessage());
+                }
+            }
+            try {
+                return MediaCodec.createDecoderByType(mimeType);
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        @Override
+        public void flush(MediaCodec codec) {
+            codec.flush();
+        }
+
+        @Override
+        public void stop(MediaCodec codec) {
+            codec.stop();
+        }
+
+        @Override
+        public void release(MediaCodec codec) {
+            codec.release();
+        }
+    };
+
+    /**
+     * What a codec parked in the {@link CodecLifecycle} is configured with.
+     */
+    private static class RunningConfig {
+        final Surface surface;
+        final boolean isLandscapeScreen;
+        final int width;
+        final int height;
+        final int adaptiveMaxWidth;
+        final int adaptiveMaxHeight;
+        final boolean isRotated;
+
+        RunningConfig(Surface surface, boolean isLandscapeScreen, int width, int height,
+                int adaptiveMaxWidth, int adaptiveMaxHeight, boolean isRotated) {
+            this.surface = surface;
+            this.isLandscapeScreen = isLandscapeScreen;
+            this.width = width;
+            this.height = height;
+            this.adaptiveMaxWidth = adaptiveMaxWidth;
+            this.adaptiveMaxHeight = adaptiveMaxHeight;
+            this.isRotated = isRotated;
+        }
+    }
+
+    /**
+     * Read frames straight into codec input buffers when the transport supports it, falling back
+     * to queued packets whenever no input buffer is free. Must be called before startDecoder().
+     */
+    public void setDirectReceive(boolean directReceive) {
+        mDirectReceive = directReceive;
+    }
+
+    /**
+     * Use MediaCodec's asynchronous callbacks: input buffers are handed out as the codec frees
+     * them and output buffers released as soon as they are ready, without polling threads.
+     * Must be called before startDecoder().
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * Render each frame at the next vsync and drop frames that are already stale, instead of
+     * showing every frame as soon as it is decoded. Off by default. Must be called before
+     * startDecoder().
+     */
+    public void setVsyncRendering(boolean vsyncRendering) {
+        mVsyncRendering = vsyncRendering;
+    }
+
+    /**
+     * @return frames dropped for being stale since startDecoder().
+     */
+    public int getDroppedStaleFrames() {
+        return mFramePacer.getDroppedFrames();
+    }
+
+    /**
+     * @return average time from queueing a frame to its output buffer, over the last
+     * {@link #LATENCY_LOG_INTERVAL_FRAMES} frames, -1 until then.
+     */
+    public long getAverageDecodeLatencyUs() {
+        return mAverageDecodeLatencyUs;
+    }
+
+    /**
+     * Configure the decoder from the config of the previous connection right away instead of
+     * waiting for the config packet, and keep the cache up to date. Must be called before
+     * startDecoder().
+     */
+    public void setConfigCache(VideoConfigCache configCache) {
+        mConfigCache = configCache;
+    }
+
+    /**
+     * Report received frames, queue depths and late frames to controller. Frames read straight
+     * into codec input buffers are not seen. Must be called before startDecoder().
+     */
+    public void setCongestionController(CongestionController controller) {
+        mCongestionController = controller;
+    }
+
+    /**
+     * Record per stage latencies of every frame in stats. Must be called before startDecoder().
+     */
+    public void setPipelineStats(PipelineStats stats) {
+        mPipelineStats = stats;
+    }
+
+    /**
+     * Take the codec from lifecycle and give it back there when stopped, so it outlives this
+     * decoder. Without one the codec is created for this decoder and released when it stops.
+     * Must be called before startDecoder().
+     */
+    public void setCodecLifecycle(CodecLifecycle<MediaCodec> lifecycle) {
+        mCodecLifecycle = lifecycle;
+    }
+
+    /**
+     * Called on the decoder output thread once the first frame is rendered.
+     */
+    public void setFirstFrameCallback(Runnable firstFrameCallback) {
+        mFirstFrameCallback = firstFrameCallback;
+    }
+
     public void startDecoder(final OnSizeChangeCallback onSizeChangeCallback,
             final Surface surface, final boolean isLandscapeScreen, final MirrorClientInterface client) {
         mIsStopped = false;
-        MediaCodec decoderReal;
-        try {
-            decoderReal = MediaCodec.createDecoderByType(MIME_TYPE);
-        } catch (IOException e) {
-            e.printStackTrace();
-            decoderReal = null;
+        mOnSizeChangeCallback = onSizeChangeCallback;
+        mWidth = 0;
+        mHeight = 0;
+        if (mVsyncRendering) {
+            // Choreographer needs a looper thread, the codec thread has one
+            MirrorExecutors.getDefault().codecHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(mVsyncCallback);
+                }
+            });
+        }
+        if (mCodecLifecycle == null) {
+            mCodecLifecycle = new CodecLifecycle<>(CODEC_OPERATIONS);
+            mOwnsCodecLifecycle = true;
         }
-        final MediaCodec decoder = decoderReal;
+        // Most likely the server picks the codec of the last connection again
+        createDecoder(mConfigCache != null ? mConfigCache.getMimeType() : CodecNegotiation.MIME_AVC);
 
-        final Thread outputBufThread = new Thread() {
+        if (mAsyncMode) {
+            mCodecCallback = new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    mFreeInputBuffers.offer(index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index,
+                        MediaCodec.BufferInfo info) {
+                    try {
+                        handleOutputBuffer(codec, index, info);
+                    } catch (IllegalStateException e) {
+                        // Codec stopped while the callback was pending
+                        Log.w(TAG, "Output buffer dropped: " + e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    if (e.isTransient()) {
+                        // Goes away by itself, input that failed can be queued again later
+                        Log.w(TAG, "Transient codec error: " + e.getMessage());
+                    } else if (e.isRecoverable()) {
+                        Log.e(TAG, "Recoverable codec error, resetting: " + e.getMessage());
+                        mCodecNeedsReset = true;
+                    } else {
+                        Log.e(TAG, "Fatal codec error, restarting: " + e.getMessage());
+                        mCodecFailed = true;
+                    }
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    reportOutputSize(format);
+                }
+            };
+        }
+
+        final MirrorClientInterface.DirectReceiver directReceiver = !mDirectReceive ? null
+                : new MirrorClientInterface.DirectReceiver() {
+                @Override
+                public ByteBuffer obtainBuffer(int size, long queuedFrames) {
+                    // A format has to reach the input thread, frames of its size always do
+                    if (mCodecStarted && mFinishedPackets >= queuedFrames
+                            && size != CodecNegotiation.FORMAT_SIZE) {
+                        MediaCodec decoder = mDecoder;
+                        try {
+                            int index = dequeueInputIndex(decoder, 0);
+                            if (index >= 0) {
+                                ByteBuffer codecBuffer = decoder.getInputBuffer(index);
+                                codecBuffer.clear();
+                                if (codecBuffer.capacity() >= size) {
+                                    mDirectInputIndex = index;
+                                    return codecBuffer;
+                                }
+                                // Too big for the codec buffer, give it back empty
+                                decoder.queueInputBuffer(index, 0, 0, 0, 0);
+                            }
+                        } catch (IllegalStateException e) {
+                            Log.w(TAG, "Direct receive failed: " + e.getMessage());
+                        }
+                    }
+                    // No input buffer free, let the transport queue it instead of stalling the socket
+                    mFallbackFrameCount++;
+                    return null;
+                }
+
+                @Override
+                public void onBufferFilled(ByteBuffer buffer, int size) {
+                    try {
+                        // No capture time reaches direct frames, arrival time is the best there is
+                        long nowUs = System.nanoTime() / 1000;
+                        mFramePacer.onFrameQueued(nowUs, nowUs, nowUs * 1000);
+                        mDecoder.queueInputBuffer(mDirectInputIndex, 0, size, nowUs, 0);
+                        mCodecQueueDepth.onQueued(nowUs);
+                        PipelineStats stats = mPipelineStats;
+                        if (stats != null) {
+                            stats.onVideoQueued(nowUs, nowUs * 1000, nowUs * 1000, nowUs * 1000, 0);
+                        }
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Direct receive failed: " + e.getMessage());
+                    }
+                    mDirectInputIndex = -1;
+                    if (DEBUG && (++mDirectFrameCount % 600) == 0) {
+                        Log.v(TAG, "Direct frames: " + mDirectFrameCount + ", fallback frames: "
+                                + mFallbackFrameCount);
+                    }
+                }
+            };
+        if (directReceiver != null) {
+            client.setDirectReceiver(directReceiver);
+        }
+
+        final Runnable outputLoop = new Runnable() {
+            @Override
             public void run() {
+                // Only started once the codec of the stream is known
+                MediaCodec decoder = mDecoder;
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
                 while (!mIsStopped) {
                     try {
-                        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                        CountDownLatch parked = mOutputParked;
+                        if (parked != null) {
+                            // Off the codec until the input thread has reconfigured it
+                            parked.countDown();
+                            synchronized (mOutputResume) {
+                                while (mOutputParked != null && !mIsStopped) {
+                                    mOutputResume.wait(100);
+                                }
+                            }
+                            continue;
+                        }
                         int outIndex = decoder.dequeueOutputBuffer(info, 100_000);
                         if (outIndex >= 0) {
-                            decoder.releaseOutputBuffer(outIndex, true);
+                            handleOutputBuffer(decoder, outIndex, info);
+                        } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            reportOutputSize(decoder.getOutputFormat());
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
                 }
+                mOutputStopped.countDown();
                 mCountDownLatch.countDown();
             }
         };
 
-        new Thread(new Runnable() {
+        MirrorExecutors.getDefault().video().execute(new Runnable() {
             boolean firstFrame = true;
+            int queuedFrames = 0;
+            boolean configured = false;
+            boolean outputStarted = false;
+            // The codec of the stream is known
+            boolean streaming = false;
+            VideoConfigCache cache = mConfigCache;
+
+            /**
+             * (Re)configure the decoder for a stream of this size, unless it already is or
+             * adapts to the new size by itself.
+             */
+            private void configureFor(int width, int height) {
+                if (configured && width == mConfiguredWidth && height == mConfiguredHeight) {
+                    return;
+                }
+                if (mCongestionController != null) {
+                    mCongestionController.onStreamSize(width, height);
+                }
+                if (configured && canAdapt(width, height, isLandscapeScreen)) {
+                    Log.i(TAG, "Stream size changed to " + width + "x" + height + ", adapting in place");
+                    mConfiguredWidth = width;
+                    mConfiguredHeight = height;
+                    return;
+                }
+                if (configured) {
+                    Log.i(TAG, "Stream size changed to " + width + "x" + height + ", reconfiguring");
+                    reconfigure(width, height);
+                } else {
+                    configure(mDecoder, width, height, surface, isLandscapeScreen);
+                }
+                configured = true;
+                startOutput();
+            }
+
+            /**
+             * Stop and configure the running codec once neither the output loop nor the transport
+             * is in the middle of using it.
+             */
+            private void reconfigure(int width, int height) {
+                CountDownLatch parked = null;
+                boolean codecStarted = mCodecStarted;
+                try {
+                    if (outputStarted) {
+                        parked = new CountDownLatch(1);
+                        mOutputParked = parked;
+                        // dequeueOutputBuffer() gives up within 100ms
+                        parked.await();
+                    }
+                    if (directReceiver != null) {
+                        mCodecStarted = false;
+                        // The transport may still be reading a frame into a buffer of the old codec
+                        client.awaitDirectReceiveIdle();
+                    }
+                    mDecoder.stop();
+                    configure(mDecoder, width, height, surface, isLandscapeScreen);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    mCodecStarted = codecStarted;
+                    if (parked != null) {
+                        synchronized (mOutputResume) {
+                            mOutputParked = null;
+                            mOutputResume.notifyAll();
+                        }
+                    }
+                }
+            }
+
+            private void startOutput() {
+                if (streaming && configured && !outputStarted && !mAsyncMode) {
+                    MirrorExecutors.getDefault().video().execute(outputLoop);
+                    outputStarted = true;
+                }
+            }
+
+            /**
+             * The server picked another codec than the decoder was created for.
+             */
+            private void switchCodec(String mimeType) {
+                Log.i(TAG, "Stream codec is " + mimeType + ", replacing the " + mMimeType + " decoder");
+                configured = false;
+                if (mDecoder != null) {
+                    mCodecLifecycle.discard(mDecoder);
+                }
+                mFreeInputBuffers.clear();
+                if (cache != null) {
+                    cache.setMimeType(mimeType);
+                }
+                createDecoder(mimeType);
+            }
+
+            /**
+             * Handle a stream format, the first packet of a connection or an in-band format
+             * change later on.
+             *
+             * @return false if the stream cannot go on with this decoder.
+             */
+            private boolean onFormatChange(CodecNegotiation.Format format) {
+                try {
+                    int width = format.width;
+                    int height = format.height;
+                    String mimeType = CodecNegotiation.getMimeType(format.codec);
+                    if (!mimeType.equals(mMimeType)) {
+                        if (streaming) {
+                            // The output loop is still on the old codec, start over with the new one
+                            Log.w(TAG, "Codec changed to " + mimeType + " mid-stream, restarting");
+                            if (cache != null) {
+                                cache.setMimeType(mimeType);
+                            }
+                            client.stop();
+                            return false;
+                        }
+                        switchCodec(mimeType);
+                    }
+                    if (cache != null) {
+                        cache.setSize(width, height);
+                    }
+                    configureFor(width, height);
+                    return true;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+
+            /**
+             * Go on with the codec of the last connection if it is still started for this
+             * surface, otherwise stop it for a configure.
+             */
+            private void resume(RunningConfig config) {
+                if (config.surface == surface && config.isLandscapeScreen == isLandscapeScreen
+                        && !mAsyncMode) {
+                    mConfiguredWidth = config.width;
+                    mConfiguredHeight = config.height;
+                    mAdaptiveMaxWidth = config.adaptiveMaxWidth;
+                    mAdaptiveMaxHeight = config.adaptiveMaxHeight;
+                    mIsRotated = config.isRotated;
+                    configured = true;
+                    Log.i(TAG, "Resuming the flushed codec at " + config.width + "x" + config.height);
+                } else {
+                    mDecoder.stop();
+                }
+            }
+
             @Override
             public void run() {
+                boolean failed = false;
                 try {
+                    if (mDecoder == null) {
+                        Log.e(TAG, "No " + mMimeType + " decoder");
+                        return;
+                    }
+                    if (mResumedConfig != null) {
+                        resume(mResumedConfig);
+                        mResumedConfig = null;
+                    }
+                    if (cache != null && cache.hasConfig()) {
+                        // Get the codec ready while the transport is still connecting
+                        configureFor(cache.getWidth(), cache.getHeight());
+                        Log.v(TAG, "Decoder configured from cached stream config");
+                    }
+
                     Packet packet = null;
-                    // TODO: No busy waiting
-                    while ((packet = client.getNextPacket()) == null && !mIsStopped) {
-                        SystemClock.sleep(1);
+                    while ((packet = client.takeNextPacket(PACKET_WAIT_TIMEOUT_MS)) == null && !mIsStopped) {
                     }
                     if (mIsStopped) {
-                        mCountDownLatch.countDown();
                         return;
                     }
 
-                    try {
-                        decoder.configure(createFormat(packet, isLandscapeScreen), surface, null, 0);
-                        onSizeChangeCallback.onChange(mWidth, mHeight, mIsRotated);
-                        decoder.start();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        mCountDownLatch.countDown();
-                        return;
+                    // First packet of a connection: the format, or the 4 byte size preamble of
+                    // servers without codec negotiation. Streams without either are H.264 and
+                    // configured from the SPS of their first keyframe.
+                    Packet firstPacket = null;
+                    CodecNegotiation.Format format = CodecNegotiation.Format.parse(packet);
+                    if (format == null) {
+                        format = CodecNegotiation.Format.parseLegacyPreamble(packet);
                     }
-                    outputBufThread.start();
+                    if (format != null) {
+                        boolean handled = onFormatChange(format);
+                        packet.release();
+                        packetHandled();
+                        if (!handled) {
+                            return;
+                        }
+                    } else {
+                        firstPacket = packet;
+                        if (!CodecNegotiation.MIME_AVC.equals(mMimeType)) {
+                            switchCodec(CodecNegotiation.MIME_AVC);
+                        }
+                    }
+                    mFrameDropper.setMimeType(mMimeType);
+                    streaming = true;
+                    startOutput();
 
-                    Log.v(TAG, "Video streaming started");
+                    Log.v(TAG, "Video streaming started, async mode: " + mAsyncMode);
+                    // Frames before the first random access point would only show garbage
+                    boolean waitingForKeyframe = true;
 
                     int inIndex;
                     while (!mIsStopped) {
-                        packet = null;
-                        // TODO: No busy waiting
-                        while ((packet = client.getNextPacket()) == null && !mIsStopped) {
-                            SystemClock.sleep(1);
+                        if (firstPacket != null) {
+                            packet = firstPacket;
+                            firstPacket = null;
+                            NalUnits.tag(packet, mMimeType);
+                        } else {
+                            while ((packet = mFrameDropper.next(client, PACKET_WAIT_TIMEOUT_MS)) == null
+                                    && !mIsStopped) {
+                            }
+                        }
+                        int skipped = mFrameDropper.getLastSkippedFrames();
+                        if (skipped > 0) {
+                            Log.w(TAG, "Behind by more than " + LATENCY_BUDGET_MS + "ms, skipped "
+                                    + skipped + " frames (" + mFrameDropper.getLastSkippedBytes()
+                                    + " bytes), total skipped frames: " + mFrameDropper.getSkippedFrames());
+                            mFinishedPackets += skipped;
                         }
                         if (mIsStopped) {
+                            if (packet != null) {
+                                packet.release();
+                            }
                             break;
                         }
                         if (DEBUG) {
                             Log.v(TAG, "packets remain: " + client.packetQueueSize());
                         }
+                        long dequeuedNs = System.nanoTime();
+                        CongestionController congestion = mCongestionController;
+                        if (congestion != null) {
+                            if (skipped > 0) {
+                                congestion.onFrameReceived(mFrameDropper.getLastSkippedBytes(), 0, 0);
+                                congestion.onLateFrames(skipped);
+                            }
+                            congestion.onFrameReceived(packet.size, packet.receivedTimeNs, packet.captureTimeUs);
+                            congestion.onQueueDepth(client.packetQueueSize()
+                                    + mCodecQueueDepth.getDepth(dequeuedNs / 1000));
+                        }
+                        CodecNegotiation.Format newFormat = CodecNegotiation.Format.parse(packet);
+                        if (newFormat != null) {
+                            // In-band format change, the frames that follow have the new size
+                            boolean handled = onFormatChange(newFormat);
+                            packet.release();
+                            packetHandled();
+                            if (!handled) {
+                                break;
+                            }
+                            continue;
+                        }
+                        if (mCodecNeedsReset) {
+                            mCodecNeedsReset = false;
+                            if (configured) {
+                                // Stays off until the keyframe the reset codec starts with
+                                mCodecStarted = false;
+                                reconfigure(mConfiguredWidth, mConfiguredHeight);
+                                waitingForKeyframe = true;
+                            }
+                        }
+                        int frameType = packet.frameType;
+                        boolean keyframe = frameType == NalUnits.FRAME_KEY || frameType == NalUnits.FRAME_CONFIG;
+                        if (waitingForKeyframe && !keyframe) {
+                            packet.release();
+                            packetHandled();
+                            continue;
+                        }
+                        if (keyframe && CodecNegotiation.MIME_AVC.equals(mMimeType)
+                                && mSpsParser.parseAccessUnit(packet.bytes, packet.size)) {
+                            // The SPS has the final word on the size, even over the preamble
+                            if (cache != null) {
+                                cache.setSize(mSpsParser.getWidth(), mSpsParser.getHeight());
+                                cache.onFrame(packet.bytes, packet.size);
+                            }
+                            configureFor(mSpsParser.getWidth(), mSpsParser.getHeight());
+                        } else if (cache != null) {
+                            cache.onFrame(packet.bytes, packet.size);
+                        }
+                        if (!configured) {
+                            // No size to configure with yet
+                            packet.release();
+                            packetHandled();
+                            continue;
+                        }
+                        if (waitingForKeyframe) {
+                            waitingForKeyframe = false;
+                            // Direct receive may start from here on
+                            mCodecStarted = true;
+                        }
 
-                        while ((inIndex = decoder.dequeueInputBuffer(100_000)) == -1 && !mIsStopped) {
-                            SystemClock.sleep(1);
+                        MediaCodec decoder = mDecoder;
+                        while ((inIndex = dequeueInputIndex(decoder, 100_000)) < 0 && !mIsStopped) {
                         }
                         if (mIsStopped) {
+                            packet.release();
                             break;
                         }
 
@@ -114,21 +719,185 @@ public class VideoDecoder {
                         ByteBuffer codecBuffer = decoder.getInputBuffer(inIndex);
                         codecBuffer.clear();
                         codecBuffer.put(packet.bytes, 0, packet.size);
-                        // Somehow uses BUFFER_FLAG_CODEC_CONFIG will have corrupted image?
-                        //decoder.queueInputBuffer(inIndex, 0, packet.size, 0, firstFrame && !"Oculus".equals(
-                        //         Build.MANUFACTURER) ? MediaCodec.BUFFER_FLAG_CODEC_CONFIG : 0);
-                        decoder.queueInputBuffer(inIndex, 0, packet.size, 0, 0);
+                        long ptsUs = System.nanoTime() / 1000;
+                        if (frameType == NalUnits.FRAME_CONFIG) {
+                            // Only packets with nothing but parameter sets: flagging a whole
+                            // keyframe as codec config is what used to corrupt the image.
+                            decoder.queueInputBuffer(inIndex, 0, packet.size, ptsUs,
+                                    MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                        } else {
+                            long arrivalNs = packet.receivedTimeNs > 0 ? packet.receivedTimeNs : ptsUs * 1000;
+                            mFramePacer.onFrameQueued(ptsUs, packet.captureTimeUs > 0
+                                    ? packet.captureTimeUs : arrivalNs / 1000, arrivalNs);
+                            decoder.queueInputBuffer(inIndex, 0, packet.size, ptsUs, 0);
+                            mCodecQueueDepth.onQueued(ptsUs);
+                            PipelineStats stats = mPipelineStats;
+                            if (stats != null) {
+                                stats.onVideoQueued(ptsUs, packet.receivedTimeNs, dequeuedNs,
+                                        System.nanoTime(), packet.captureTimeUs);
+                                if (queuedFrames++ % 60 == 0) {
+                                    stats.setMinRttUs(client.getLinkMonitor().getMinRttUs());
+                                }
+                            }
+                        }
+                        packet.release();
+                        packetHandled();
                         firstFrame = false;
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
+                    failed = true;
                 } finally {
-                    decoder.stop();
-                    mCountDownLatch.countDown();
+                    if (failed) {
+                        // The reconnect starts over with a new codec
+                        client.stop();
+                    }
+                    mCodecStarted = false;
+                    mFrameDropper.clear();
+                    if (mDirectReceive) {
+                        client.setDirectReceiver(null);
+                    }
+                    // The output loop has to let go of the codec before it is parked
                     mIsStopped = true;
+                    if (outputStarted) {
+                        try {
+                            mOutputStopped.await();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    releaseDecoder(failed, configured ? new RunningConfig(surface, isLandscapeScreen,
+                            mConfiguredWidth, mConfiguredHeight, mAdaptiveMaxWidth, mAdaptiveMaxHeight,
+                            mIsRotated) : null);
+                    if (!outputStarted) {
+                        // Count down for the output loop as well, async mode never starts it
+                        mCountDownLatch.countDown();
+                    }
+                    mCountDownLatch.countDown();
+                }
+            }
+        });
+    }
+
+    private void createDecoder(String mimeType) {
+        mMimeType = mimeType;
+        mDecoderInfo = null;
+        mResumedConfig = null;
+        MediaCodec decoder = null;
+        try {
+            decoder = mCodecLifecycle.acquire(mimeType);
+            mResumedConfig = (RunningConfig) mCodecLifecycle.getRunningConfig();
+        } catch (IllegalStateException e) {
+            // Released by a stopping MirrorEngine
+            Log.w(TAG, "Cannot get a decoder: " + e.getMessage());
+        }
+        if (decoder != null) {
+            // Render times for the pipeline stats, may not be reported while the screen is off
+            decoder.setOnFrameRenderedListener(mFrameRenderedListener,
+                    MirrorExecutors.getDefault().codecHandler());
+            String name = decoder.getName();
+            for (DecoderSelector.DecoderInfo info : DecoderSelector.getRankedDecoders(mimeType)) {
+                if (info.name.equals(name)) {
+                    mDecoderInfo = info;
+                    break;
                 }
             }
-        }).start();
+        }
+        Log.i(TAG, "Using decoder " + mDecoderInfo + " for " + mimeType + ", " + mCodecLifecycle);
+        mDecoder = decoder;
+    }
+
+    /**
+     * Give the codec back to the lifecycle, started with runningConfig if the connection ended
+     * cleanly in sync mode. Async callbacks stay bound to this decoder, so the codec is stopped
+     * then.
+     */
+    private void releaseDecoder(boolean failed, RunningConfig runningConfig) {
+        MediaCodec decoder = mDecoder;
+        if (decoder != null) {
+            if (failed) {
+                mCodecLifecycle.discard(decoder);
+            } else {
+                mCodecLifecycle.park(decoder, mAsyncMode ? null : runningConfig);
+            }
+        }
+        if (mOwnsCodecLifecycle) {
+            mCodecLifecycle.release();
+        }
+    }
+
+    /**
+     * @return index of a free input buffer, or a negative value if none got free within timeoutUs.
+     */
+    private int dequeueInputIndex(MediaCodec decoder, long timeoutUs) {
+        if (!mAsyncMode) {
+            return decoder.dequeueInputBuffer(timeoutUs);
+        }
+        if (mCodecFailed) {
+            throw new IllegalStateException("Codec failed");
+        }
+        try {
+            Integer index = timeoutUs == 0 ? mFreeInputBuffers.poll()
+                    : mFreeInputBuffers.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        } catch (InterruptedException e) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    /**
+     * Render an output buffer, or drop it if it is stale. Input buffers are queued with
+     * System.nanoTime() in us as presentation time, which gives the decode latency.
+     */
+    private void handleOutputBuffer(MediaCodec decoder, int index, MediaCodec.BufferInfo info) {
+        mCodecQueueDepth.onOutput(info.presentationTimeUs);
+        PipelineStats stats = mPipelineStats;
+        if (stats != null) {
+            stats.onVideoOutput(info.presentationTimeUs, System.nanoTime());
+        }
+        if (!mVsyncRendering) {
+            decoder.releaseOutputBuffer(index, true);
+        } else {
+            long renderTimeNs = mFramePacer.onFrameDecoded(info.presentationTimeUs, System.nanoTime());
+            if (renderTimeNs == FramePacer.DROP) {
+                decoder.releaseOutputBuffer(index, false);
+                CongestionController congestion = mCongestionController;
+                if (congestion != null) {
+                    congestion.onLateFrames(1);
+                }
+                if (DEBUG && mFramePacer.getDroppedFrames() % 100 == 1) {
+                    Log.w(TAG, "Dropped stale frame, total dropped: " + mFramePacer.getDroppedFrames()
+                            + ", rendered: " + mFramePacer.getRenderedFrames());
+                }
+                return;
+            }
+            decoder.releaseOutputBuffer(index, renderTimeNs);
+        }
+        if (!mFirstFrameRendered) {
+            mFirstFrameRendered = true;
+            Runnable callback = mFirstFrameCallback;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+        if (info.presentationTimeUs > 0) {
+            mDecodeLatencySumUs += System.nanoTime() / 1000 - info.presentationTimeUs;
+            if (++mDecodeLatencyFrames == LATENCY_LOG_INTERVAL_FRAMES) {
+                mAverageDecodeLatencyUs = mDecodeLatencySumUs / mDecodeLatencyFrames;
+                mDecodeLatencySumUs = 0;
+                mDecodeLatencyFrames = 0;
+                Log.i(TAG, "Average decode latency: " + mAverageDecodeLatencyUs + "us, async mode: "
+                        + mAsyncMode);
+                if (stats != null) {
+                    Log.i(TAG, stats.toString());
+                }
+            }
+        }
+    }
+
+    private void packetHandled() {
+        // Only the input thread writes it
+        mFinishedPackets++;
     }
 
     public void waitUntilStopped() {
@@ -141,32 +910,127 @@ public class VideoDecoder {
         }
     }
 
-    private MediaFormat createFormat(Packet configPacket, boolean isLandscapeScreen) {
-        int width = (configPacket.bytes[0] & 0xff) * 256  + (configPacket.bytes[1] & 0xff);
-        int height = (configPacket.bytes[2] & 0xff) * 256 + (configPacket.bytes[3] & 0xff);
+    private void configure(MediaCodec decoder, int width, int height, Surface surface,
+            boolean isLandscapeScreen) {
+        String name = mDecoderInfo != null ? mDecoderInfo.name : mMimeType;
+        int tuningLevel = DecoderSelector.getTuningLevel(name);
+        while (true) {
+            if (mAsyncMode) {
+                // Indices of a previous configuration are stale
+                mFreeInputBuffers.clear();
+                decoder.setCallback(mCodecCallback, MirrorExecutors.getDefault().codecHandler());
+            }
+            try {
+                decoder.configure(createFormat(width, height, isLandscapeScreen, tuningLevel),
+                        surface, null, 0);
+                break;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                if (tuningLevel >= DecoderSelector.TUNING_NONE) {
+                    throw e;
+                }
+                Log.w(TAG, "Configure failed at tuning level " + tuningLevel + ", retrying with less: "
+                        + e.getMessage());
+                DecoderSelector.onTuningFailed(name, tuningLevel);
+                tuningLevel++;
+                decoder.reset();
+            }
+        }
+        // Whatever was in there got flushed
+        mCodecQueueDepth.clear();
+        Log.i(TAG, "Configured " + name + " at tuning level " + tuningLevel
+                + ", adaptive up to " + mAdaptiveMaxWidth + "x" + mAdaptiveMaxHeight);
+        decoder.start();
+        mConfiguredWidth = width;
+        mConfiguredHeight = height;
+    }
 
-        Log.i(TAG, "createFormat with width: " + width + ", height: " + height + ", mime_type: " + MIME_TYPE);
+    private MediaFormat createFormat(int width, int height, boolean isLandscapeScreen, int tuningLevel) {
+        Log.i(TAG, "createFormat with width: " + width + ", height: " + height + ", mime_type: " + mMimeType);
 
-        MediaFormat result = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        MediaFormat result = MediaFormat.createVideoFormat(mMimeType, width, height);
         result.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         // result.setInteger("allow-frame-drop", 0);
+        for (Map.Entry<String, Integer> key : DecoderSelector.getTuningKeys(mDecoderInfo, tuningLevel,
+                Build.VERSION.SDK_INT).entrySet()) {
+            result.setInteger(key.getKey(), key.getValue());
+        }
+        int[] maxSize = tuningLevel < DecoderSelector.TUNING_NONE
+                ? DecoderSelector.getAdaptiveMaxSize(mDecoderInfo, width, height) : null;
+        if (maxSize != null) {
+            // Resolution changes within this size need no reconfigure, see canAdapt
+            result.setInteger(MediaFormat.KEY_MAX_WIDTH, maxSize[0]);
+            result.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxSize[1]);
+            mAdaptiveMaxWidth = maxSize[0];
+            mAdaptiveMaxHeight = maxSize[1];
+        } else {
+            mAdaptiveMaxWidth = 0;
+            mAdaptiveMaxHeight = 0;
+        }
+        VideoConfigCache cache = mConfigCache;
+        if (cache != null) {
+            byte[] sps = cache.getSps();
+            byte[] pps = cache.getPps();
+            if (sps != null && pps != null) {
+                // Lets the codec decode the first IDR even if its parameter sets got lost
+                result.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+                result.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+            }
+        }
 
-        boolean isLandscapeVideo = width > height;
-        if (isLandscapeVideo && !isLandscapeScreen) {
+        mIsRotated = isRotated(width, height, isLandscapeScreen);
+        if (mIsRotated) {
             result.setInteger(MediaFormat.KEY_ROTATION, 90);
-            mWidth = height;
-            mHeight = width;
-            mIsRotated = true;
-        } else {
-            mWidth = width;
-            mHeight = height;
-            mIsRotated = false;
         }
 
         return result;
     }
 
+    private static boolean isRotated(int width, int height, boolean isLandscapeScreen) {
+        return width > height && !isLandscapeScreen;
+    }
+
+    /**
+     * @return true if the configured codec takes a stream of this size as it is. The rotation
+     * is fixed at configure time, so a change of orientation still needs a reconfigure.
+     */
+    private boolean canAdapt(int width, int height, boolean isLandscapeScreen) {
+        return width <= mAdaptiveMaxWidth && height <= mAdaptiveMaxHeight
+                && isRotated(width, height, isLandscapeScreen) == mIsRotated;
+    }
+
+    /**
+     * Report the size of the decoded picture, from the codec's own output format so the view
+     * changes with the first frame of the new size rather than ahead of it.
+     */
+    private void reportOutputSize(MediaFormat format) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (format.containsKey("crop-left") && format.containsKey("crop-right")
+                && format.containsKey("crop-top") && format.containsKey("crop-bottom")) {
+            width = format.getInteger("crop-right") - format.getInteger("crop-left") + 1;
+            height = format.getInteger("crop-bottom") - format.getInteger("crop-top") + 1;
+        }
+        boolean rotated = mIsRotated;
+        if (rotated) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        if (width == mWidth && height == mHeight && rotated == mReportedRotated) {
+            return;
+        }
+        Log.i(TAG, "Output size changed to " + width + "x" + height + ", rotated: " + rotated);
+        mWidth = width;
+        mHeight = height;
+        mReportedRotated = rotated;
+        OnSizeChangeCallback callback = mOnSizeChangeCallback;
+        if (callback != null) {
+            callback.onChange(width, height, rotated);
+        }
+    }
+
     public void stop() {
         mIsStopped = true;
+        mCodecStarted = false;
     }
 }
@@ -0,0 +1,196 @@
+package dev.hihi.virtualmobilevrheadset;
+
+/**
+ * Decides which received access units the decoder gets to see.
+ *
+ * Dropping a single P-frame corrupts every following frame until the next keyframe, so frames
+ * are only ever dropped as a run that ends right before a random access point (IDR, recovery
+ * point SEI or parameter sets on their own). When the frame about to be decoded has waited
+ * longer than the latency budget, everything queued in the client is pulled into a local
+ * backlog and all frames before the newest random access point in there are skipped. If there is none, only non reference
+ * frames are dropped, as nothing depends on them, and the check repeats on the next frame.
+ *
+ * A frame the transport had to drop on a full queue breaks the references of the frames after it
+ * ({@link Packet#followsDrop}), so from there on everything up to the next random access point is
+ * skipped as well.
+ *
+ * Every frame handed out is tagged with its {@link Packet#frameType}. A
+ * {@link CodecNegotiation.Format} is never skipped, the frames after it depend on it.
+ *
+ * Only the decoder's input thread may use an instance.
+ */
+public class VideoFrameDropper {
+
+    // A bit more than the client's own queue, which is drained into it
+    private static final int BACKLOG_CAPACITY = 512;
+
+    private final long mLatencyBudgetNs;
+    private String mMimeType = CodecNegotiation.MIME_AVC;
+    private PacketRingBuffer mBacklog = new PacketRingBuffer(BACKLOG_CAPACITY);
+    private PacketRingBuffer mSpare = new PacketRingBuffer(BACKLOG_CAPACITY);
+
+    private long mSkippedFrames = 0;
+    private long mSkippedBytes = 0;
+    private int mSkipEvents = 0;
+    private int mLastSkippedFrames = 0;
+    private int mLastSkippedBytes = 0;
+    // Whether the last call to next() handed out a frame, the skip counts start over after one
+    private boolean mHandedOut = true;
+    // Skipping up to a random access point after a frame lost in transport
+    private boolean mAfterDrop = false;
+
+    public VideoFrameDropper(long latencyBudgetMs) {
+        mLatencyBudgetNs = latencyBudgetMs * 1_000_000L;
+    }
+
+    /**
+     * Codec of the stream, frames are classified as H.264 by default.
+     */
+    public void setMimeType(String mimeType) {
+        mMimeType = mimeType;
+    }
+
+    /**
+     * @return the next frame to decode, or null if nothing arrived within timeoutMs.
+     */
+    public Packet next(MirrorClientInterface client, long timeoutMs) {
+        if (mHandedOut) {
+            mLastSkippedFrames = 0;
+            mLastSkippedBytes = 0;
+        }
+        Packet packet = nextDecodable(client, timeoutMs);
+        mHandedOut = packet != null;
+        return packet;
+    }
+
+    /**
+     * @return the next frame that can be decoded, null if nothing arrived within timeoutMs.
+     */
+    private Packet nextDecodable(MirrorClientInterface client, long timeoutMs) {
+        boolean caughtUp = false;
+        while (true) {
+            Packet packet = mBacklog.poll();
+            if (packet == null) {
+                packet = client.takeNextPacket(timeoutMs);
+                if (packet == null) {
+                    return null;
+                }
+            }
+            int frameType = NalUnits.tag(packet, mMimeType);
+            if (!caughtUp && packet.receivedTimeNs != 0
+                    && System.nanoTime() - packet.receivedTimeNs > mLatencyBudgetNs) {
+                catchUp(client, packet);
+                caughtUp = true;
+                continue;
+            }
+            if (packet.followsDrop && !mAfterDrop) {
+                mAfterDrop = true;
+                mSkipEvents++;
+            }
+            if (mAfterDrop && !CodecNegotiation.Format.matches(packet)) {
+                if (frameType != NalUnits.FRAME_KEY && frameType != NalUnits.FRAME_CONFIG) {
+                    skip(packet);
+                    continue;
+                }
+                mAfterDrop = false;
+            }
+            return packet;
+        }
+    }
+
+    /**
+     * Line up [packet, backlog, everything queued in the client] in the backlog and skip what
+     * can be skipped of it.
+     */
+    private void catchUp(MirrorClientInterface client, Packet packet) {
+        mSpare.offer(packet);
+        Packet p;
+        while ((p = mBacklog.poll()) != null) {
+            mSpare.offer(p);
+        }
+        while (mSpare.size() < mSpare.capacity() && (p = client.getNextPacket()) != null) {
+            mSpare.offer(p);
+        }
+        PacketRingBuffer swap = mBacklog;
+        mBacklog = mSpare;
+        mSpare = swap;
+
+        int skip = -1;
+        for (int i = mBacklog.size() - 1; i > 0; i--) {
+            Packet candidate = mBacklog.peek(i);
+            int frameType = NalUnits.tag(candidate, mMimeType);
+            if (frameType == NalUnits.FRAME_KEY || frameType == NalUnits.FRAME_CONFIG) {
+                skip = i;
+                break;
+            }
+        }
+        // Keeps the order of the rest, mSpare is empty after the swap
+        int skippedBefore = mLastSkippedFrames;
+        // A skipped frame that followed a lost one hands that on to the next frame kept
+        boolean followsDrop = false;
+        for (int i = 0; (p = mBacklog.poll()) != null; i++) {
+            boolean skippable = skip >= 0 ? i < skip
+                    : NalUnits.tag(p, mMimeType) == NalUnits.FRAME_NON_REFERENCE;
+            if (skippable && !CodecNegotiation.Format.matches(p)) {
+                // Up to a random access point it does not matter any more
+                followsDrop = skip < 0 && (followsDrop || p.followsDrop);
+                skip(p);
+            } else {
+                p.followsDrop |= followsDrop;
+                followsDrop = false;
+                mSpare.offer(p);
+            }
+        }
+        if (followsDrop) {
+            mAfterDrop = true;
+        }
+        swap = mBacklog;
+        mBacklog = mSpare;
+        mSpare = swap;
+        if (mLastSkippedFrames > skippedBefore) {
+            mSkipEvents++;
+        }
+    }
+
+    private void skip(Packet packet) {
+        mLastSkippedFrames++;
+        mLastSkippedBytes += packet.size;
+        mSkippedFrames++;
+        mSkippedBytes += packet.size;
+        packet.release();
+    }
+
+    /**
+     * @return frames skipped by the last call to {@link #next} that handed out a frame and the
+     * calls without one before it.
+     */
+    public int getLastSkippedFrames() {
+        return mLastSkippedFrames;
+    }
+
+    /**
+     * @return bytes skipped along with {@link #getLastSkippedFrames()}.
+     */
+    public int getLastSkippedBytes() {
+        return mLastSkippedBytes;
+    }
+
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    public int getSkipEvents() {
+        return mSkipEvents;
+    }
+
+    /**
+     * Release everything still held in the backlog.
+     */
+    public void clear() {
+        mBacklog.clear();
+    }
+}
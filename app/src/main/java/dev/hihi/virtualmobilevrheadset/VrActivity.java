@@ -124,6 +124,9 @@ public class VrActivity extends android.app.NativeActivity {
       return;
     }
 
+    mMirrorEngine.applyOptions(getIntent().getExtras());
+    // The VR renderer samples the texture on its own frame loop, vsync pacing cannot line up with it
+    mMirrorEngine.setUseVsyncRendering(false);
     mMirrorEngine.startClient(ip, true, new VideoDecoder.OnSizeChangeCallback() {
       @Override
       public void onChange(int width, int height, boolean isRotated) {
@@ -0,0 +1,89 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioCodecNegotiationTest {
+
+    private static Packet packetOf(byte[] bytes) {
+        Packet packet = Packet.obtain(bytes.length);
+        System.arraycopy(bytes, 0, packet.bytes, 0, bytes.length);
+        return packet;
+    }
+
+    @Test
+    public void capabilitiesCommand_roundTrips() {
+        List<Integer> codecs = Arrays.asList(AudioCodecNegotiation.AUDIO_OPUS,
+                AudioCodecNegotiation.AUDIO_AAC, AudioCodecNegotiation.AUDIO_PCM);
+        byte[] command = AudioCodecNegotiation.buildCapabilitiesCommand(codecs, 96_000);
+        assertEquals(AudioCodecNegotiation.COMMAND_AUDIO_CAPABILITIES, command[0]);
+        assertEquals(codecs, AudioCodecNegotiation.parseCapabilitiesCommand(command, command.length));
+        assertEquals(96_000, AudioCodecNegotiation.parseBitrate(command, command.length));
+    }
+
+    @Test
+    public void parseCapabilitiesCommand_rejectsTruncatedAndOtherCommands() {
+        byte[] command = AudioCodecNegotiation.buildCapabilitiesCommand(
+                Arrays.asList(AudioCodecNegotiation.AUDIO_PCM), 96_000);
+        assertNull(AudioCodecNegotiation.parseCapabilitiesCommand(command, command.length - 1));
+        command[0] = (byte) CodecNegotiation.COMMAND_CODEC_CAPABILITIES;
+        assertNull(AudioCodecNegotiation.parseCapabilitiesCommand(command, command.length));
+    }
+
+    @Test
+    public void format_roundTrips() {
+        byte[] config = {0x12, 0x10};
+        AudioCodecNegotiation.Format format = new AudioCodecNegotiation.Format(
+                AudioCodecNegotiation.AUDIO_AAC, 2, 48000, config);
+        Packet packet = packetOf(format.toBytes());
+        AudioCodecNegotiation.Format parsed = AudioCodecNegotiation.Format.parse(packet);
+        packet.release();
+        assertEquals(AudioCodecNegotiation.AUDIO_AAC, parsed.codec);
+        assertEquals(2, parsed.channels);
+        assertEquals(48000, parsed.sampleRate);
+        assertArrayEquals(config, parsed.config);
+    }
+
+    @Test
+    public void format_isNotFoundInPcm() {
+        byte[] pcm = new byte[1024];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (byte) (i * 7);
+        }
+        Packet packet = packetOf(pcm);
+        assertNull(AudioCodecNegotiation.Format.parse(packet));
+        packet.release();
+
+        // Truncated config
+        byte[] bytes = new AudioCodecNegotiation.Format(AudioCodecNegotiation.AUDIO_OPUS, 2, 48000,
+                new byte[19]).toBytes();
+        packet = packetOf(Arrays.copyOf(bytes, bytes.length - 1));
+        assertNull(AudioCodecNegotiation.Format.parse(packet));
+        packet.release();
+    }
+
+    @Test
+    public void format_rejectsMoreThanStereo() {
+        Packet packet = packetOf(new AudioCodecNegotiation.Format(AudioCodecNegotiation.AUDIO_AAC,
+                6, 48000, new byte[2]).toBytes());
+        assertNull(AudioCodecNegotiation.Format.parse(packet));
+        packet.release();
+        packet = packetOf(new AudioCodecNegotiation.Format(AudioCodecNegotiation.AUDIO_AAC,
+                1, 48000, new byte[2]).toBytes());
+        assertEquals(1, AudioCodecNegotiation.Format.parse(packet).channels);
+        packet.release();
+    }
+
+    @Test
+    public void opusCodecDelay_comesFromPreSkip() {
+        // OpusHead with a pre-skip of 312 samples at 48kHz
+        byte[] opusHead = {'O', 'p', 'u', 's', 'H', 'e', 'a', 'd', 1, 2, 0x38, 0x01,
+                (byte) 0x80, (byte) 0xbb, 0, 0, 0, 0, 0};
+        assertEquals(6_500_000L, AudioCodecNegotiation.getOpusCodecDelayNs(opusHead));
+        assertEquals(0, AudioCodecNegotiation.getOpusCodecDelayNs(new byte[8]));
+    }
+}
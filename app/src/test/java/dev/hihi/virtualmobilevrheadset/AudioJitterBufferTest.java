@@ -0,0 +1,143 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioJitterBufferTest {
+
+    private static final int FRAME_MS = 10;
+
+    private static Packet frame(int seq) {
+        Packet packet = Packet.obtain(4);
+        // Two samples of 1000 * (seq + 1), little endian
+        int sample = 1000 * (seq + 1);
+        packet.bytes[0] = packet.bytes[2] = (byte) sample;
+        packet.bytes[1] = packet.bytes[3] = (byte) (sample >> 8);
+        return packet;
+    }
+
+    private static int firstSample(Packet packet) {
+        return (short) ((packet.bytes[0] & 0xff) | (packet.bytes[1] << 8));
+    }
+
+    private static void releaseIfNotNull(Packet packet) {
+        if (packet != null) {
+            packet.release();
+        }
+    }
+
+    @Test
+    public void poll_reordersFrames() {
+        AudioJitterBuffer buffer = new AudioJitterBuffer(3, 16);
+        buffer.put(0, 0, 0, frame(0));
+        buffer.put(2, 20, 20, frame(2));
+        assertNull("Still priming", buffer.poll());
+        buffer.put(1, 10, 10, frame(1));
+
+        for (int seq = 0; seq < 3; seq++) {
+            Packet packet = buffer.poll();
+            assertEquals(1000 * (seq + 1), firstSample(packet));
+            packet.release();
+        }
+        assertEquals(0, buffer.getConcealedCount());
+    }
+
+    @Test
+    public void poll_concealsLostFrameWithFadedCopy() {
+        AudioJitterBuffer buffer = new AudioJitterBuffer(1, 16);
+        Packet first = frame(0);
+        first.receivedTimeNs = 123_000_000L;
+        buffer.put(0, 0, 0, first);
+        buffer.put(2, 20, 20, frame(2));
+
+        buffer.poll().release();
+        Packet concealed = buffer.poll();
+        assertEquals(1, buffer.getConcealedCount());
+        // Plays the audio of the last frame, so it carries its receive time for PipelineStats
+        assertEquals(123_000_000L, concealed.receivedTimeNs);
+        // Fades from the last frame's level towards half of it
+        assertEquals(1000, firstSample(concealed));
+        int last = (short) ((concealed.bytes[2] & 0xff) | (concealed.bytes[3] << 8));
+        assertTrue(last < 1000 && last >= 500);
+        concealed.release();
+        assertEquals(3000, firstSample(buffer.poll()));
+    }
+
+    @Test
+    public void put_dropsLateAndOverflowingFrames() {
+        AudioJitterBuffer buffer = new AudioJitterBuffer(1, 4);
+        buffer.put(0, 0, 0, frame(0));
+        buffer.poll().release();
+        buffer.put(0, 0, 5, frame(0));
+        assertEquals(1, buffer.getLateCount());
+
+        for (int seq = 1; seq <= 6; seq++) {
+            buffer.put(seq, seq * FRAME_MS, seq * FRAME_MS, frame(seq));
+        }
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(4, buffer.size());
+        assertEquals(4000, firstSample(buffer.poll()));
+    }
+
+    @Test
+    public void targetDelay_growsWithJitter() {
+        AudioJitterBuffer steady = new AudioJitterBuffer(2, 16);
+        AudioJitterBuffer jittery = new AudioJitterBuffer(2, 16);
+        for (int seq = 0; seq < 100; seq++) {
+            long sent = seq * FRAME_MS;
+            steady.put(seq, sent, sent + 5, frame(seq));
+            jittery.put(seq, sent, sent + 5 + (seq % 2) * 30, frame(seq));
+            releaseIfNotNull(steady.poll());
+            releaseIfNotNull(jittery.poll());
+        }
+        assertEquals(2, steady.getTargetDelayFrames());
+        assertTrue(jittery.getTargetDelayFrames() >= 6);
+    }
+
+    @Test
+    public void poll_reprimesAfterUnderrun() {
+        AudioJitterBuffer buffer = new AudioJitterBuffer(2, 16);
+        buffer.put(0, 0, 0, frame(0));
+        buffer.put(1, 10, 10, frame(1));
+        buffer.poll().release();
+        buffer.poll().release();
+        assertNull(buffer.poll());
+        assertEquals(1, buffer.getUnderrunCount());
+
+        buffer.put(2, 20, 20, frame(2));
+        assertNull("Waits for the target delay again", buffer.poll());
+        buffer.put(3, 30, 30, frame(3));
+        assertEquals(3000, firstSample(buffer.poll()));
+    }
+
+    @Test
+    public void put_resyncsWhenSenderRestarts() {
+        AudioJitterBuffer buffer = new AudioJitterBuffer(1, 16);
+        for (int seq = 1000; seq < 1010; seq++) {
+            buffer.put(seq, seq * FRAME_MS, seq * FRAME_MS, frame(seq));
+            buffer.poll().release();
+        }
+        // Restarted sender, counting from 0 again
+        for (int seq = 0; seq < 10; seq++) {
+            buffer.put(seq, seq * FRAME_MS, 20_000 + seq * FRAME_MS, frame(seq));
+            Packet packet = buffer.poll();
+            assertEquals(1000 * (seq + 1), firstSample(packet));
+            packet.release();
+        }
+        assertEquals(0, buffer.getLateCount());
+        assertEquals(1, buffer.getResyncCount());
+    }
+
+    @Test
+    public void put_resyncsOnBigForwardJumpWithoutDroppingEveryFrame() {
+        AudioJitterBuffer buffer = new AudioJitterBuffer(1, 16);
+        buffer.put(0, 0, 0, frame(0));
+        buffer.poll().release();
+        int seq = 1_000_000_000;
+        buffer.put(seq, 10, 10, frame(1));
+        assertEquals(1, buffer.getResyncCount());
+        assertEquals(0, buffer.getDroppedCount());
+        assertEquals(2000, firstSample(buffer.poll()));
+    }
+}
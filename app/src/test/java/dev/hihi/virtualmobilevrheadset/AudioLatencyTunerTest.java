@@ -0,0 +1,133 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioLatencyTunerTest {
+
+    private static final int BLOCK = 192;
+    // 4ms bursts at 48kHz
+    private static final int BURST_MS = 4;
+
+    /**
+     * Track that underruns on every burst while its buffer is smaller than neededBlocks.
+     */
+    private static class FakeTrack implements AudioLatencyTuner.Track {
+        int bufferSize = 16 * BLOCK;
+        int neededBlocks = 3;
+        int underruns = 0;
+        int head = 0;
+        int sizeChanges = 0;
+
+        void playBurst() {
+            head += BLOCK;
+            if (bufferSize < neededBlocks * BLOCK) {
+                underruns++;
+            }
+        }
+
+        @Override
+        public int getUnderrunCount() {
+            return underruns;
+        }
+
+        @Override
+        public int getBufferSizeInFrames() {
+            return bufferSize;
+        }
+
+        @Override
+        public int setBufferSizeInFrames(int frames) {
+            if (frames != bufferSize) {
+                sizeChanges++;
+            }
+            bufferSize = frames;
+            return bufferSize;
+        }
+
+        @Override
+        public int getBufferCapacityInFrames() {
+            return 32 * BLOCK;
+        }
+
+        @Override
+        public int getPlaybackHeadPosition() {
+            return head;
+        }
+    }
+
+    private final FakeTrack mTrack = new FakeTrack();
+    private final AudioLatencyTuner mTuner = new AudioLatencyTuner(mTrack, BLOCK, 0);
+    private long mNowMs = 0;
+
+    private void run(int ms) {
+        for (long end = mNowMs + ms; mNowMs < end; mNowMs += BURST_MS) {
+            mTrack.playBurst();
+            mTuner.update(mNowMs);
+        }
+    }
+
+    @Test
+    public void update_lowersToTheSmallestSizeWithoutUnderruns() {
+        run(100);
+        assertEquals(AudioLatencyTuner.STATE_LOWERING, mTuner.getState());
+        run(2_000);
+        assertEquals(AudioLatencyTuner.STATE_STABLE, mTuner.getState());
+        assertEquals(3 * BLOCK, mTuner.getBufferSizeInFrames());
+    }
+
+    @Test
+    public void update_comesBackDownAfterAGlitch() {
+        run(2_000);
+        // Wi-Fi glitch that needs a bigger buffer for a while
+        mTrack.neededBlocks = 6;
+        run(1_000);
+        assertEquals(6 * BLOCK, mTuner.getBufferSizeInFrames());
+        mTrack.neededBlocks = 3;
+        run(2 * AudioLatencyTuner.DECAY_MS);
+        assertTrue(mTuner.getBufferSizeInFrames() < 6 * BLOCK);
+        run(3 * AudioLatencyTuner.DECAY_MS);
+        assertEquals(3 * BLOCK, mTuner.getBufferSizeInFrames());
+    }
+
+    @Test
+    public void update_backsOffProbingASizeThatFails() {
+        run(2_000);
+        assertEquals(3 * BLOCK, mTuner.getBufferSizeInFrames());
+        int changes = mTrack.sizeChanges;
+        // Ten minutes of probing 2 blocks, which always fails
+        run(600_000);
+        assertEquals(3 * BLOCK, mTuner.getBufferSizeInFrames());
+        assertEquals(AudioLatencyTuner.MAX_DECAY_MS, mTuner.getDecayMs());
+        // 10 + 20 + 40 + 80 + 160 + 160 + 160 seconds, down and up again each
+        assertTrue(mTrack.sizeChanges - changes <= 14);
+    }
+
+    @Test
+    public void update_raisesOncePerGlitch() {
+        run(2_000);
+        // Several underruns reported at once
+        mTrack.underruns += 5;
+        mTuner.update(mNowMs);
+        assertEquals(4 * BLOCK, mTuner.getBufferSizeInFrames());
+    }
+
+    @Test
+    public void stats_reportUnderrunRateAndTimeInState() {
+        run(2_000);
+        assertTrue(mTuner.getTimeInStateMs(mNowMs) > 0);
+        assertTrue(mTuner.getTimeInStateMs(mNowMs) < 2_000);
+        mTrack.underruns += 10;
+        run(12_000);
+        assertEquals(60f, mTuner.getUnderrunsPerMinute(), 20f);
+    }
+
+    @Test
+    public void reset_startsOverFromTheInitialSize() {
+        run(2_000);
+        mTuner.reset(mNowMs);
+        assertEquals(AudioLatencyTuner.STATE_PRIMING, mTuner.getState());
+        assertEquals(16 * BLOCK, mTuner.getBufferSizeInFrames());
+    }
+}
@@ -0,0 +1,42 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Av1ObusTest {
+
+    // OBU headers with has_size_field set
+    private static final byte TEMPORAL_DELIMITER = 0x12;
+    private static final byte SEQUENCE_HEADER = 0x0a;
+    private static final byte FRAME = 0x32;
+
+    @Test
+    public void frameType_classifiesTemporalUnits() {
+        // show_existing_frame 0, frame_type KEY_FRAME
+        byte[] keyframe = {TEMPORAL_DELIMITER, 0, SEQUENCE_HEADER, 2, 0, 0, FRAME, 3, 0x10, 1, 2};
+        assertEquals(NalUnits.FRAME_KEY, Av1Obus.frameType(keyframe, keyframe.length));
+
+        // frame_type INTER_FRAME
+        byte[] interFrame = {TEMPORAL_DELIMITER, 0, FRAME, 2, 0x30, 1};
+        assertEquals(NalUnits.FRAME_REFERENCE, Av1Obus.frameType(interFrame, interFrame.length));
+
+        byte[] sequenceHeader = {TEMPORAL_DELIMITER, 0, SEQUENCE_HEADER, 1, 0};
+        assertEquals(NalUnits.FRAME_CONFIG, Av1Obus.frameType(sequenceHeader, sequenceHeader.length));
+    }
+
+    @Test
+    public void frameType_readsMultiByteSizes() {
+        byte[] unit = new byte[4 + 200 + 3];
+        unit[0] = SEQUENCE_HEADER;
+        // 200 as leb128
+        unit[1] = (byte) 0xc8;
+        unit[2] = 0x01;
+        unit[203] = FRAME;
+        unit[204] = 2;
+        unit[205] = 0x10;
+        assertEquals(NalUnits.FRAME_KEY, Av1Obus.frameType(unit, unit.length));
+        // Cut inside the size field
+        assertEquals(NalUnits.FRAME_UNKNOWN, Av1Obus.frameType(unit, 2));
+    }
+}
@@ -0,0 +1,72 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_roundsUpToSizeClassAndReuses() {
+        BufferPool pool = new BufferPool();
+        byte[] bytes = pool.acquire(3000);
+        assertEquals(4096, bytes.length);
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getOutstandingCount());
+
+        pool.release(bytes);
+        assertEquals(0, pool.getOutstandingCount());
+        assertSame(bytes, pool.acquire(4096));
+        assertEquals(1, pool.getHitCount());
+    }
+
+    @Test
+    public void acquire_oversizedIsNotPooled() {
+        BufferPool pool = new BufferPool();
+        byte[] bytes = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+        assertEquals(BufferPool.MAX_CLASS_SIZE + 1, bytes.length);
+        pool.release(bytes);
+        assertNotSame(bytes, pool.acquire(BufferPool.MAX_CLASS_SIZE + 1));
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void release_keepsRetainedBytesUnderTotal() {
+        BufferPool pool = new BufferPool();
+        byte[][] arrays = new byte[BufferPool.MAX_FREE_PER_CLASS][];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = pool.acquire(BufferPool.MAX_CLASS_SIZE);
+        }
+        for (byte[] bytes : arrays) {
+            pool.release(bytes);
+        }
+        assertEquals(BufferPool.MAX_RETAINED_BYTES, pool.getRetainedBytes());
+        assertEquals(0, pool.getOutstandingCount());
+
+        // Taking one out makes room again
+        pool.acquire(BufferPool.MAX_CLASS_SIZE);
+        assertEquals(BufferPool.MAX_RETAINED_BYTES - BufferPool.MAX_CLASS_SIZE,
+                pool.getRetainedBytes());
+        pool.release(pool.acquire(1000));
+        assertEquals(BufferPool.MAX_RETAINED_BYTES - BufferPool.MAX_CLASS_SIZE
+                + BufferPool.MIN_CLASS_SIZE, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void packet_returnsBytesOnLastRelease() {
+        int outstanding = BufferPool.getDefault().getOutstandingCount();
+        Packet packet = Packet.obtain(100);
+        assertEquals(100, packet.size);
+        packet.retain();
+        packet.release();
+        assertNotNull(packet.bytes);
+        packet.release();
+        assertNull(packet.bytes);
+        assertEquals(outstanding, BufferPool.getDefault().getOutstandingCount());
+        try {
+            packet.release();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
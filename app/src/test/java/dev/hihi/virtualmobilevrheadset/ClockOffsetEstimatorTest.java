@@ -0,0 +1,37 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClockOffsetEstimatorTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void offset_isSmallestArrivalMinusCapture() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        assertFalse(estimator.hasOffset());
+        // Sender clock 1 s behind, 10 ms usual transit
+        estimator.onArrival(1_010 * MS, 10_000);
+        estimator.onArrival(1_050 * MS, 20_000);
+        estimator.onArrival(1_040 * MS, 30_000);
+        assertTrue(estimator.hasOffset());
+        assertEquals(1_000_000, estimator.getOffsetUs());
+    }
+
+    @Test
+    public void offset_followsSlowerRouteAfterTwoWindows() {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        long window = ClockOffsetEstimator.WINDOW_MS;
+        for (long t = 0; t < 3 * window; t += 100) {
+            // 10 ms transit, then 30 ms from one window on
+            long transitMs = t < window ? 10 : 30;
+            estimator.onArrival((t + transitMs) * MS, t * 1000);
+            if (t < 2 * window + 100) {
+                assertEquals(10_000, estimator.getOffsetUs());
+            }
+        }
+        assertEquals(30_000, estimator.getOffsetUs());
+    }
+}
@@ -0,0 +1,166 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CodecLifecycleTest {
+
+    private static final String AVC = CodecNegotiation.MIME_AVC;
+    private static final String HEVC = CodecNegotiation.MIME_HEVC;
+
+    private static class FakeCodec {
+        final String mimeType;
+        boolean started = true;
+
+        FakeCodec(String mimeType) {
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * Counts live codecs and fails on anything done to a released one.
+     */
+    private static class FakeOperations implements CodecLifecycle.Operations<FakeCodec> {
+        final Set<FakeCodec> live = new HashSet<>();
+        int flushes = 0;
+        boolean failFlush = false;
+
+        @Override
+        public FakeCodec create(String mimeType) {
+            FakeCodec codec = new FakeCodec(mimeType);
+            live.add(codec);
+            return codec;
+        }
+
+        @Override
+        public void flush(FakeCodec codec) {
+            assertTrue(live.contains(codec));
+            if (failFlush) {
+                throw new IllegalStateException("flush");
+            }
+            flushes++;
+        }
+
+        @Override
+        public void stop(FakeCodec codec) {
+            assertTrue(live.contains(codec));
+            codec.started = false;
+        }
+
+        @Override
+        public void release(FakeCodec codec) {
+            assertTrue("released twice", live.remove(codec));
+        }
+    }
+
+    @Test
+    public void acquire_reusesFlushedCodecWithItsConfig() {
+        FakeOperations operations = new FakeOperations();
+        CodecLifecycle<FakeCodec> lifecycle = new CodecLifecycle<>(operations);
+        FakeCodec codec = lifecycle.acquire(AVC);
+        assertNull(lifecycle.getRunningConfig());
+        lifecycle.park(codec, "1920x1080");
+
+        assertSame(codec, lifecycle.acquire(AVC));
+        assertEquals("1920x1080", lifecycle.getRunningConfig());
+        assertTrue(codec.started);
+        assertEquals(1, operations.flushes);
+
+        // Stopped without a config
+        lifecycle.park(codec, null);
+        assertSame(codec, lifecycle.acquire(AVC));
+        assertNull(lifecycle.getRunningConfig());
+        assertFalse(codec.started);
+        assertEquals(1, lifecycle.getCreatedCount());
+        assertEquals(2, lifecycle.getReuseCount());
+    }
+
+    @Test
+    public void acquire_replacesCodecOfOtherMimeType() {
+        FakeOperations operations = new FakeOperations();
+        CodecLifecycle<FakeCodec> lifecycle = new CodecLifecycle<>(operations);
+        FakeCodec avc = lifecycle.acquire(AVC);
+        lifecycle.park(avc, "config");
+        FakeCodec hevc = lifecycle.acquire(HEVC);
+        assertEquals(HEVC, hevc.mimeType);
+        assertNull(lifecycle.getRunningConfig());
+        assertEquals(1, operations.live.size());
+    }
+
+    @Test
+    public void acquire_failsWhileInUse() {
+        CodecLifecycle<FakeCodec> lifecycle = new CodecLifecycle<>(new FakeOperations());
+        lifecycle.acquire(AVC);
+        try {
+            lifecycle.acquire(AVC);
+            fail("Acquired twice");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void release_waitsForTheCodecInUse() {
+        FakeOperations operations = new FakeOperations();
+        CodecLifecycle<FakeCodec> lifecycle = new CodecLifecycle<>(operations);
+        FakeCodec codec = lifecycle.acquire(AVC);
+        lifecycle.release();
+        assertEquals(1, operations.live.size());
+
+        lifecycle.park(codec, "config");
+        assertEquals(0, operations.live.size());
+        assertEquals(0, operations.flushes);
+        lifecycle.release();
+        assertEquals(1, lifecycle.getReleasedCount());
+        try {
+            lifecycle.acquire(AVC);
+            fail("Acquired after release");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void park_releasesCodecThatFailsToFlush() {
+        FakeOperations operations = new FakeOperations();
+        CodecLifecycle<FakeCodec> lifecycle = new CodecLifecycle<>(operations);
+        operations.failFlush = true;
+        lifecycle.park(lifecycle.acquire(AVC), "config");
+        assertEquals(0, operations.live.size());
+        operations.failFlush = false;
+        assertNotNull(lifecycle.acquire(AVC));
+        assertEquals(2, lifecycle.getCreatedCount());
+    }
+
+    @Test
+    public void reconnectCycles_neverLeakCodecs() {
+        FakeOperations operations = new FakeOperations();
+        CodecLifecycle<FakeCodec> lifecycle = new CodecLifecycle<>(operations);
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            FakeCodec codec = lifecycle.acquire(random.nextInt(50) == 0 ? HEVC : AVC);
+            int outcome = random.nextInt(10);
+            if (outcome == 0) {
+                lifecycle.discard(codec);
+            } else if (outcome == 1) {
+                // Codec changed mid-stream
+                lifecycle.discard(codec);
+                codec = lifecycle.acquire(codec.mimeType.equals(AVC) ? HEVC : AVC);
+                lifecycle.park(codec, null);
+            } else {
+                lifecycle.park(codec, outcome < 5 ? null : "config");
+            }
+            assertTrue(operations.live.size() <= 1);
+        }
+        lifecycle.release();
+        assertEquals(0, operations.live.size());
+        assertEquals(lifecycle.getCreatedCount(), lifecycle.getReleasedCount());
+        // Most reconnects kept the codec
+        assertTrue(lifecycle.getReuseCount() > lifecycle.getCreatedCount());
+    }
+}
@@ -0,0 +1,102 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CodecNegotiationTest {
+
+    private static Packet packetOf(byte[] bytes) {
+        return new Packet(bytes, bytes.length);
+    }
+
+    @Test
+    public void capabilitiesCommand_roundTrips() {
+        List<CodecNegotiation.CodecSupport> codecs = Arrays.asList(
+                new CodecNegotiation.CodecSupport(CodecNegotiation.CODEC_HEVC,
+                        new int[] {1, 2}, new int[] {0x10000, 0x4000}),
+                new CodecNegotiation.CodecSupport(CodecNegotiation.CODEC_AVC,
+                        new int[] {8}, new int[] {0x10000}));
+        byte[] command = CodecNegotiation.buildCapabilitiesCommand(codecs);
+        assertEquals(CodecNegotiation.COMMAND_CODEC_CAPABILITIES, command[0]);
+        assertEquals(2 + (2 + 16) + (2 + 8), command.length);
+
+        List<CodecNegotiation.CodecSupport> parsed =
+                CodecNegotiation.parseCapabilitiesCommand(command, command.length);
+        assertEquals(2, parsed.size());
+        assertEquals(CodecNegotiation.CODEC_HEVC, parsed.get(0).codec);
+        assertArrayEquals(new int[] {1, 2}, parsed.get(0).profiles);
+        assertArrayEquals(new int[] {0x10000, 0x4000}, parsed.get(0).levels);
+        assertEquals(CodecNegotiation.CODEC_AVC, parsed.get(1).codec);
+        assertArrayEquals(new int[] {8}, parsed.get(1).profiles);
+    }
+
+    @Test
+    public void parseCapabilitiesCommand_rejectsTruncatedAndOtherCommands() {
+        byte[] command = CodecNegotiation.buildCapabilitiesCommand(Arrays.asList(
+                new CodecNegotiation.CodecSupport(CodecNegotiation.CODEC_AV1, new int[] {1}, new int[] {1})));
+        assertNull(CodecNegotiation.parseCapabilitiesCommand(command, command.length - 1));
+        byte[] gesture = {1, 3, 0, 10, 0, 20};
+        assertNull(CodecNegotiation.parseCapabilitiesCommand(gesture, gesture.length));
+    }
+
+    @Test
+    public void withFallback_alwaysAdvertisesAvc() {
+        List<CodecNegotiation.CodecSupport> codecs = CodecNegotiation.withFallback(
+                new ArrayList<CodecNegotiation.CodecSupport>());
+        assertEquals(1, codecs.size());
+        assertEquals(CodecNegotiation.CODEC_AVC, codecs.get(0).codec);
+
+        codecs = CodecNegotiation.withFallback(Arrays.asList(
+                new CodecNegotiation.CodecSupport(CodecNegotiation.CODEC_AVC, new int[0], new int[0]),
+                new CodecNegotiation.CodecSupport(CodecNegotiation.CODEC_HEVC, new int[0], new int[0])));
+        assertEquals(2, codecs.size());
+    }
+
+    @Test
+    public void mimeTypes_mapToCodecIds() {
+        for (int codec = CodecNegotiation.CODEC_AVC; codec <= CodecNegotiation.CODEC_AV1; codec++) {
+            assertEquals(codec, CodecNegotiation.getCodec(CodecNegotiation.getMimeType(codec)));
+        }
+        assertEquals("video/hevc", CodecNegotiation.getMimeType(CodecNegotiation.CODEC_HEVC));
+        assertNull(CodecNegotiation.getMimeType(7));
+        assertEquals(-1, CodecNegotiation.getCodec("video/x-vnd.on2.vp8"));
+    }
+
+    @Test
+    public void format_roundTrips() {
+        byte[] bytes = new CodecNegotiation.Format(CodecNegotiation.CODEC_AV1, 2560, 1440).toBytes();
+        CodecNegotiation.Format format = CodecNegotiation.Format.parse(packetOf(bytes));
+        assertEquals(CodecNegotiation.CODEC_AV1, format.codec);
+        assertEquals(2560, format.width);
+        assertEquals(1440, format.height);
+        // Only the first packet may be a legacy preamble
+        assertNull(CodecNegotiation.Format.parseLegacyPreamble(packetOf(bytes)));
+    }
+
+    @Test
+    public void format_isNotFoundInTinyFrames() {
+        // AV1 temporal delimiter + padding OBU, 4 and 5 bytes, and a 9 byte frame
+        assertNull(CodecNegotiation.Format.parse(packetOf(new byte[] {0x12, 0, 0x7a, 0})));
+        assertNull(CodecNegotiation.Format.parse(packetOf(new byte[] {0x12, 0, 0x7a, 1, 0})));
+        assertNull(CodecNegotiation.Format.parse(packetOf(new byte[] {0x12, 0, 0x32, 5, 1, 2, 3, 4, 5})));
+        // Magic with an unknown codec
+        byte[] bytes = new CodecNegotiation.Format(7, 1920, 1080).toBytes();
+        assertNull(CodecNegotiation.Format.parse(packetOf(bytes)));
+    }
+
+    @Test
+    public void legacyPreamble_isH264Size() {
+        CodecNegotiation.Format format = CodecNegotiation.Format.parseLegacyPreamble(
+                packetOf(new byte[] {0x07, (byte) 0x80, 0x04, 0x38}));
+        assertEquals(CodecNegotiation.CODEC_AVC, format.codec);
+        assertEquals(1920, format.width);
+        assertEquals(1080, format.height);
+        // A start code makes it a frame
+        assertNull(CodecNegotiation.Format.parseLegacyPreamble(packetOf(new byte[] {0, 0, 1, 0x65})));
+    }
+}
@@ -0,0 +1,46 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CodecQueueDepthTest {
+
+    @Test
+    public void outputs_takeFramesOut() {
+        CodecQueueDepth depth = new CodecQueueDepth();
+        depth.onQueued(1000);
+        depth.onQueued(2000);
+        assertEquals(2, depth.getDepth(3000));
+        depth.onOutput(1000);
+        assertEquals(1, depth.getDepth(3000));
+        // Unknown presentation times change nothing
+        depth.onOutput(5000);
+        assertEquals(1, depth.getDepth(3000));
+    }
+
+    @Test
+    public void inputsWithoutOutput_ageOutInsteadOfPilingUp() {
+        CodecQueueDepth depth = new CodecQueueDepth();
+        long nowUs = 1_000_000;
+        // Every third input never comes out, as if the decoder skipped it
+        for (int i = 0; i < 3000; i++) {
+            nowUs += 16_667;
+            depth.onQueued(nowUs);
+            if (i % 3 != 0) {
+                depth.onOutput(nowUs);
+            }
+        }
+        // A counter would be at 1000 by now
+        assertTrue(depth.getDepth(nowUs) <= CodecQueueDepth.MAX_AGE_US / 16_667 / 3 + 1);
+        assertEquals(0, depth.getDepth(nowUs + CodecQueueDepth.MAX_AGE_US + 1));
+    }
+
+    @Test
+    public void clear_forgetsEverything() {
+        CodecQueueDepth depth = new CodecQueueDepth();
+        depth.onQueued(1000);
+        depth.clear();
+        assertEquals(0, depth.getDepth(1000));
+    }
+}
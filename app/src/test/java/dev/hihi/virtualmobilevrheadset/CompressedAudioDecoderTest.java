@@ -0,0 +1,33 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompressedAudioDecoderTest {
+
+    private static byte[] pcm(int... samples) {
+        byte[] bytes = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void convertChannels_upmixesMono() {
+        byte[] out = new byte[8];
+        CompressedAudioDecoder.convertChannels(pcm(1000, -2000), 0, 1, out, 0, 2, 2);
+        assertArrayEquals(pcm(1000, 1000, -2000, -2000), out);
+    }
+
+    @Test
+    public void convertChannels_mixesStereoDownInPlace() {
+        byte[] bytes = pcm(1000, 3000, -1000, -3000, 7, 9);
+        CompressedAudioDecoder.convertChannels(bytes, 0, 2, bytes, 0, 1, 3);
+        assertArrayEquals(pcm(2000, -2000, 8), Arrays.copyOf(bytes, 6));
+    }
+}
@@ -0,0 +1,168 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+public class CongestionControllerTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long SECOND = 1000 * MS;
+    // Sender clock, far away from ours
+    private static final long SENDER_OFFSET_US = 987_654_321_000L;
+
+    /**
+     * A bottleneck of fixed capacity with an unbounded FIFO in front of it, fed by a server that
+     * sends 60 frames a second at whatever bitrate the controller asked for.
+     */
+    private static class SimulatedLink {
+        final CongestionController controller;
+        long capacityBps;
+        final long propagationNs;
+        long linkFreeAtNs = 0;
+        long nowNs = 0;
+        CongestionController.Targets targets;
+        // {arrival, bytes, capture time} of frames still on their way
+        final ArrayDeque<long[]> inFlight = new ArrayDeque<>();
+        // Over the last run
+        long maxQueueDelayNs;
+        long bitrateSum;
+        int updates;
+
+        SimulatedLink(CongestionController controller, long capacityBps, long propagationMs) {
+            this.controller = controller;
+            this.capacityBps = capacityBps;
+            this.propagationNs = propagationMs * MS;
+            targets = controller.update(0);
+        }
+
+        void run(long durationNs) {
+            maxQueueDelayNs = 0;
+            bitrateSum = 0;
+            updates = 0;
+            long end = nowNs + durationNs;
+            long nextUpdateNs = nowNs + CongestionController.FEEDBACK_INTERVAL_MS * MS;
+            while (nowNs < end) {
+                int bytes = targets.bitrateBps / 8 / targets.fps;
+                long departureNs = Math.max(nowNs, linkFreeAtNs) + bytes * 8 * SECOND / capacityBps;
+                maxQueueDelayNs = Math.max(maxQueueDelayNs, Math.max(0, linkFreeAtNs - nowNs));
+                linkFreeAtNs = departureNs;
+                inFlight.add(new long[] {departureNs + propagationNs, bytes, SENDER_OFFSET_US + nowNs / 1000});
+                nowNs += SECOND / targets.fps;
+                while (!inFlight.isEmpty() && inFlight.peek()[0] <= nowNs) {
+                    long[] frame = inFlight.poll();
+                    controller.onFrameReceived((int) frame[1], frame[0], frame[2]);
+                }
+                if (nowNs >= nextUpdateNs) {
+                    // Feedback reaches the server right away, a few ms do not matter at 500ms
+                    targets = controller.update(nextUpdateNs);
+                    bitrateSum += targets.bitrateBps;
+                    updates++;
+                    nextUpdateNs += CongestionController.FEEDBACK_INTERVAL_MS * MS;
+                }
+            }
+        }
+
+        long averageBitrate() {
+            return bitrateSum / updates;
+        }
+    }
+
+    private static CongestionController newController() {
+        CongestionController controller = new CongestionController(60);
+        controller.setBitrateRange(500_000, 50_000_000);
+        return controller;
+    }
+
+    @Test
+    public void update_convergesBelowLinkCapacity() {
+        SimulatedLink link = new SimulatedLink(newController(), 20_000_000, 10);
+        link.run(30 * SECOND);
+        link.run(20 * SECOND);
+        assertTrue("average " + link.averageBitrate(), link.averageBitrate() > 14_000_000);
+        assertTrue("average " + link.averageBitrate(), link.averageBitrate() < 20_000_000);
+        assertTrue("queue delay " + link.maxQueueDelayNs / MS + "ms", link.maxQueueDelayNs < 150 * MS);
+    }
+
+    @Test
+    public void update_backsOffWhenCapacityDrops() {
+        SimulatedLink link = new SimulatedLink(newController(), 20_000_000, 10);
+        link.run(30 * SECOND);
+        link.capacityBps = 5_000_000;
+        link.run(2 * SECOND);
+        assertTrue("bitrate " + link.targets.bitrateBps, link.targets.bitrateBps < 5_000_000);
+
+        // Queue drained, steady again around the new capacity
+        link.run(10 * SECOND);
+        link.run(20 * SECOND);
+        assertTrue("average " + link.averageBitrate(), link.averageBitrate() > 3_500_000);
+        assertTrue("average " + link.averageBitrate(), link.averageBitrate() < 5_000_000);
+        assertTrue("queue delay " + link.maxQueueDelayNs / MS + "ms", link.maxQueueDelayNs < 150 * MS);
+    }
+
+    @Test
+    public void update_lowersResolutionBeforeFrameRate() {
+        CongestionController controller = newController();
+        controller.onStreamSize(1920, 1080);
+        SimulatedLink link = new SimulatedLink(controller, 5_000_000, 10);
+        link.run(30 * SECOND);
+        assertTrue(link.targets.resolutionPercent < 100);
+        assertEquals(60, link.targets.fps);
+
+        link.capacityBps = 1_000_000;
+        link.run(30 * SECOND);
+        assertEquals(50, link.targets.resolutionPercent);
+        assertEquals(30, link.targets.fps);
+
+        // And back up once the link recovers
+        link.capacityBps = 40_000_000;
+        link.run(60 * SECOND);
+        assertEquals(100, link.targets.resolutionPercent);
+        assertEquals(60, link.targets.fps);
+    }
+
+    @Test
+    public void update_backsOffOnLateFramesAndAudioDrops() {
+        CongestionController controller = newController();
+        controller.update(0);
+        int start = controller.getTargets().bitrateBps;
+
+        controller.onFrameReceived(100_000, 0, 0);
+        controller.onLateFrames(3);
+        CongestionController.Targets targets = controller.update(500 * MS);
+        assertTrue(controller.isOverused());
+        // 1.6Mbps delivered
+        assertEquals((int) (1_600_000 * CongestionController.DECREASE_FACTOR), targets.bitrateBps);
+
+        // Holds after a decrease even if the audio drops right away
+        controller.onAudioDrops(1);
+        assertEquals(targets.bitrateBps, controller.update(1000 * MS).bitrateBps);
+        assertTrue(targets.bitrateBps < start);
+    }
+
+    @Test
+    public void update_backsOffWhenQueuesBackUp() {
+        CongestionController controller = newController();
+        controller.update(0);
+        controller.onQueueDepth(CongestionController.MAX_QUEUED_FRAMES + 1);
+        controller.update(500 * MS);
+        assertTrue(controller.isOverused());
+        controller.onQueueDepth(1);
+        controller.update(2000 * MS);
+        assertFalse(controller.isOverused());
+    }
+
+    @Test
+    public void targetsCommand_roundTrips() {
+        byte[] command = CongestionController.buildTargetsCommand(
+                new CongestionController.Targets(25_000_000, 75, 60));
+        assertEquals(CongestionController.COMMAND_SIZE, command.length);
+        CongestionController.Targets targets = CongestionController.parseTargetsCommand(command, command.length);
+        assertEquals(25_000_000, targets.bitrateBps);
+        assertEquals(75, targets.resolutionPercent);
+        assertEquals(60, targets.fps);
+        assertNull(CongestionController.parseTargetsCommand(new byte[] {1, 0, 0, 0, 0, 0, 0}, 7));
+    }
+}
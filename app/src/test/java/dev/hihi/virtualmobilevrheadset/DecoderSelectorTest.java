@@ -0,0 +1,89 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DecoderSelectorTest {
+
+    private static final DecoderSelector.DecoderInfo SOFTWARE =
+            new DecoderSelector.DecoderInfo("c2.android.avc.decoder", false, false);
+    private static final DecoderSelector.DecoderInfo HARDWARE =
+            new DecoderSelector.DecoderInfo("OMX.Exynos.avc.dec", true, false);
+    private static final DecoderSelector.DecoderInfo HARDWARE_LOW_LATENCY =
+            new DecoderSelector.DecoderInfo("c2.qti.avc.decoder", true, true);
+    private static final DecoderSelector.DecoderInfo HARDWARE_2 =
+            new DecoderSelector.DecoderInfo("OMX.MTK.VIDEO.DECODER.AVC", true, false);
+
+    @Test
+    public void rank_prefersHardwareThenLowLatency() {
+        List<DecoderSelector.DecoderInfo> decoders =
+                Arrays.asList(SOFTWARE, HARDWARE, HARDWARE_LOW_LATENCY, HARDWARE_2);
+        List<DecoderSelector.DecoderInfo> ranked = DecoderSelector.rank(decoders);
+        // Equally ranked decoders keep the platform order
+        assertEquals(Arrays.asList(HARDWARE_LOW_LATENCY, HARDWARE, HARDWARE_2, SOFTWARE), ranked);
+        assertEquals(SOFTWARE, decoders.get(0));
+        assertTrue(DecoderSelector.rank(new ArrayList<DecoderSelector.DecoderInfo>()).isEmpty());
+    }
+
+    @Test
+    public void isSoftwareName_knowsPlatformDecoders() {
+        assertTrue(DecoderSelector.isSoftwareName("OMX.google.h264.decoder"));
+        assertTrue(DecoderSelector.isSoftwareName("c2.android.avc.decoder"));
+        assertFalse(DecoderSelector.isSoftwareName("OMX.qcom.video.decoder.avc"));
+    }
+
+    @Test
+    public void tuningKeys_dependOnLevelVendorAndApi() {
+        Map<String, Integer> full = DecoderSelector.getTuningKeys(HARDWARE_LOW_LATENCY,
+                DecoderSelector.TUNING_FULL, 30);
+        assertEquals(Integer.valueOf(1), full.get(DecoderSelector.KEY_LOW_LATENCY));
+        assertEquals(Integer.valueOf(0), full.get("priority"));
+        assertEquals(Integer.valueOf(Short.MAX_VALUE), full.get("operating-rate"));
+        assertEquals(Integer.valueOf(1), full.get("vendor.qti-ext-dec-low-latency.enable"));
+
+        Map<String, Integer> exynos = DecoderSelector.getTuningKeys(HARDWARE,
+                DecoderSelector.TUNING_FULL, 29);
+        assertFalse(exynos.containsKey(DecoderSelector.KEY_LOW_LATENCY));
+        assertEquals(Integer.valueOf(1), exynos.get("vendor.rtc-ext-dec-low-latency.enable"));
+        assertFalse(exynos.containsKey("vendor.qti-ext-dec-low-latency.enable"));
+
+        Map<String, Integer> standard = DecoderSelector.getTuningKeys(HARDWARE_LOW_LATENCY,
+                DecoderSelector.TUNING_STANDARD, 30);
+        assertEquals(3, standard.size());
+        assertFalse(standard.containsKey("vendor.qti-ext-dec-low-latency.enable"));
+
+        assertTrue(DecoderSelector.getTuningKeys(HARDWARE, DecoderSelector.TUNING_NONE, 30).isEmpty());
+        assertEquals(2, DecoderSelector.getTuningKeys(null, DecoderSelector.TUNING_FULL, 23).size());
+    }
+
+    @Test
+    public void tuningLevel_remembersFailures() {
+        String name = "test.decoder.tuning";
+        assertEquals(DecoderSelector.TUNING_FULL, DecoderSelector.getTuningLevel(name));
+        DecoderSelector.onTuningFailed(name, DecoderSelector.TUNING_FULL);
+        assertEquals(DecoderSelector.TUNING_STANDARD, DecoderSelector.getTuningLevel(name));
+        DecoderSelector.onTuningFailed(name, DecoderSelector.TUNING_NONE);
+        assertEquals(DecoderSelector.TUNING_NONE, DecoderSelector.getTuningLevel(name));
+    }
+
+    @Test
+    public void getAdaptiveMaxSize_nullWithoutAdaptivePlayback() {
+        assertNull(DecoderSelector.getAdaptiveMaxSize(HARDWARE_LOW_LATENCY, 1920, 1080));
+        assertNull(DecoderSelector.getAdaptiveMaxSize(null, 1920, 1080));
+    }
+
+    @Test
+    public void getAdaptiveMaxSize_coversBothOrientationsWithinDecoderLimits() {
+        DecoderSelector.DecoderInfo adaptive = new DecoderSelector.DecoderInfo(
+                "c2.qti.avc.decoder", true, true, true, 4096, 2176);
+        assertArrayEquals(new int[] {1920, 1920}, DecoderSelector.getAdaptiveMaxSize(adaptive, 1920, 1080));
+        assertArrayEquals(new int[] {2160, 2160}, DecoderSelector.getAdaptiveMaxSize(adaptive, 1080, 2160));
+        assertArrayEquals(new int[] {4096, 2176}, DecoderSelector.getAdaptiveMaxSize(adaptive, 4096, 2160));
+    }
+}
@@ -0,0 +1,121 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FramePacerTest {
+
+    private static final long MS = 1_000_000L;
+    private static final long PERIOD = 16_666_667L;
+    // Sender clock, far away from ours
+    private static final long SENDER_OFFSET_US = 123_456_789_000L;
+
+    private static FramePacer pacerWithVsync(long firstVsyncNs) {
+        FramePacer pacer = new FramePacer(60);
+        for (int i = 0; i < 10; i++) {
+            pacer.onVsync(firstVsyncNs + i * PERIOD);
+        }
+        return pacer;
+    }
+
+    @Test
+    public void withoutVsync_rendersRightAway() {
+        FramePacer pacer = new FramePacer(60);
+        pacer.onFrameQueued(1000, 1000, 1000 * 1000);
+        assertEquals(5 * MS, pacer.onFrameDecoded(1000, 5 * MS));
+    }
+
+    @Test
+    public void onVsync_estimatesPeriodAcrossSkippedCallbacks() {
+        FramePacer pacer = pacerWithVsync(1000 * MS);
+        assertEquals(PERIOD, pacer.getVsyncPeriodNs());
+        // Two vsyncs without a callback, then a pause much longer than any refresh period
+        pacer.onVsync(1000 * MS + 12 * PERIOD);
+        pacer.onVsync(2000 * MS);
+        assertEquals(PERIOD, pacer.getVsyncPeriodNs(), 1000);
+    }
+
+    @Test
+    public void onFrameDecoded_targetsNextVsyncWithMargin() {
+        long vsync = 1000 * MS;
+        FramePacer pacer = pacerWithVsync(vsync);
+        long lastVsync = vsync + 9 * PERIOD;
+
+        pacer.onFrameQueued(1, 1, lastVsync);
+        assertEquals(lastVsync + PERIOD, pacer.onFrameDecoded(1, lastVsync + 5 * MS));
+
+        // Too close to the next vsync to make it
+        pacer.onFrameQueued(2, 2 + PERIOD / 1000, lastVsync + PERIOD);
+        assertEquals(lastVsync + 3 * PERIOD, pacer.onFrameDecoded(2, lastVsync + 2 * PERIOD - MS));
+    }
+
+    @Test
+    public void onFrameDecoded_spreadsBurstOverVsyncs() {
+        long vsync = 1000 * MS;
+        FramePacer pacer = pacerWithVsync(vsync);
+        long now = vsync + 9 * PERIOD + MS;
+        pacer.onFrameQueued(1, 1, now);
+        pacer.onFrameQueued(2, 1, now);
+        pacer.onFrameQueued(3, 1, now);
+
+        long first = pacer.onFrameDecoded(1, now);
+        assertEquals(first + PERIOD, pacer.onFrameDecoded(2, now));
+        assertEquals(first + 2 * PERIOD, pacer.onFrameDecoded(3, now));
+        // Pushed back two vsyncs already, the frame replaces the previous one instead
+        pacer.onFrameQueued(4, 1, now);
+        assertEquals(first + 2 * PERIOD, pacer.onFrameDecoded(4, now + MS));
+        assertEquals(0, pacer.getDroppedFrames());
+    }
+
+    @Test
+    public void onFrameDecoded_dropsStaleFramesAcrossClockDomains() {
+        FramePacer pacer = new FramePacer(60);
+        long arrivalNs = 5000 * MS;
+        // 20ms transit, the sender's clock is way off ours
+        for (int i = 1; i <= 10; i++) {
+            long captureUs = SENDER_OFFSET_US + i * 16_667;
+            pacer.onFrameQueued(i, captureUs, arrivalNs + (i * 16_667 + 20_000) * 1000);
+        }
+        long lastArrival = arrivalNs + (10 * 16_667 + 20_000) * 1000L;
+        assertTrue(pacer.onFrameDecoded(10, lastArrival + 5 * MS) != FramePacer.DROP);
+
+        // Held up for 100ms, then the backlog arrives at once
+        long stalledArrival = lastArrival + 116 * MS;
+        for (int i = 11; i <= 16; i++) {
+            pacer.onFrameQueued(i, SENDER_OFFSET_US + i * 16_667, stalledArrival);
+        }
+        long now = stalledArrival + 5 * MS;
+        // Nothing was shown for longer than the threshold, so the first one is
+        assertTrue(pacer.onFrameDecoded(11, now) != FramePacer.DROP);
+        assertEquals(FramePacer.DROP, pacer.onFrameDecoded(12, now));
+        assertEquals(FramePacer.DROP, pacer.onFrameDecoded(13, now));
+        // Less than 60ms late
+        assertTrue(pacer.onFrameDecoded(14, now) != FramePacer.DROP);
+        assertTrue(pacer.onFrameDecoded(15, now) != FramePacer.DROP);
+        assertTrue(pacer.onFrameDecoded(16, now) != FramePacer.DROP);
+        assertEquals(2, pacer.getDroppedFrames());
+        assertEquals(5, pacer.getRenderedFrames());
+    }
+
+    @Test
+    public void onFrameDecoded_rendersStaleFramesRatherThanFreezing() {
+        FramePacer pacer = new FramePacer(60);
+        long now = 5000 * MS;
+        pacer.onFrameQueued(1, 1000, now);
+        assertTrue(pacer.onFrameDecoded(1, now) != FramePacer.DROP);
+
+        // Every frame from now on is 100ms late
+        int rendered = 0;
+        for (int i = 2; i < 30; i++) {
+            now += 17 * MS;
+            long captureUs = 1000 + (i - 1) * 17_000;
+            pacer.onFrameQueued(i, captureUs, now + 100 * MS);
+            if (pacer.onFrameDecoded(i, now + 101 * MS) != FramePacer.DROP) {
+                rendered++;
+            }
+        }
+        assertTrue(rendered > 0);
+        assertTrue(pacer.getDroppedFrames() > rendered);
+    }
+}
@@ -0,0 +1,47 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketOf_isExactForSmallValuesAndWithinOneSubBucketAbove() {
+        for (long value = 0; value < LatencyHistogram.SUB_BUCKETS; value++) {
+            assertEquals(value, LatencyHistogram.valueOf(LatencyHistogram.bucketOf(value)));
+        }
+        for (long value = 16; value < 10_000_000; value = value * 3 / 2 + 7) {
+            long bucketValue = LatencyHistogram.valueOf(LatencyHistogram.bucketOf(value));
+            assertEquals(value, bucketValue, value / LatencyHistogram.SUB_BUCKETS + 1);
+        }
+        assertEquals(LatencyHistogram.bucketOf(LatencyHistogram.MAX_VALUE_US),
+                LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+    }
+
+    @Test
+    public void getPercentile_findsTail() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        // 1000 values of 1ms to 1000ms... 990 fast ones and a slow tail
+        for (int i = 0; i < 990; i++) {
+            histogram.record(2_000);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(50_000);
+        }
+        histogram.record(400_000);
+
+        assertEquals(2_000, histogram.getPercentile(50), 2_000 / 16);
+        assertEquals(2_000, histogram.getPercentile(99), 2_000 / 16);
+        assertEquals(50_000, histogram.getPercentile(99.5), 50_000 / 16);
+        assertEquals(400_000, histogram.getPercentile(99.95), 400_000 / 16);
+        assertEquals(400_000, histogram.getMaxUs());
+        assertEquals(1000, histogram.getCount());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99.9));
+    }
+}
@@ -0,0 +1,129 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.net.ServerSocket;
+
+import static org.junit.Assert.*;
+
+public class LinkMonitorTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void onPong_smoothsRttAndVariance() {
+        LinkMonitor monitor = new LinkMonitor();
+        assertEquals(-1, monitor.getSmoothedRttUs());
+
+        monitor.onPong(0, 8000);
+        assertEquals(8000, monitor.getSmoothedRttUs());
+        assertEquals(4000, monitor.getRttVarianceUs());
+
+        // A single spike moves SRTT by 1/8 of the difference
+        monitor.onPong(0, 16000);
+        assertEquals(9000, monitor.getSmoothedRttUs());
+        assertEquals(5000, monitor.getRttVarianceUs());
+        assertEquals(16000, monitor.getLastRttUs());
+        assertEquals(8000, monitor.getMinRttUs());
+
+        for (int i = 0; i < 100; i++) {
+            monitor.onPong(0, 8000);
+        }
+        assertEquals(8000, monitor.getSmoothedRttUs(), 10);
+        assertTrue(monitor.getRttVarianceUs() < 100);
+        assertEquals(102, monitor.getSampleCount());
+    }
+
+    @Test
+    public void isPeerDead_onlyForPeersThatSendHeartbeats() {
+        LinkMonitor monitor = new LinkMonitor();
+        long start = System.nanoTime();
+        monitor.onPeerActivity(start);
+        assertFalse(monitor.isPeerDead(start + 60_000 * MS));
+
+        monitor.onHeartbeat(start);
+        assertFalse(monitor.isPeerDead(start + LinkMonitor.MIN_DEAD_PEER_TIMEOUT_MS * MS));
+        assertTrue(monitor.isPeerDead(start + (LinkMonitor.MIN_DEAD_PEER_TIMEOUT_MS + 1) * MS));
+    }
+
+    @Test
+    public void deadPeerTimeout_growsWithRtt() {
+        LinkMonitor monitor = new LinkMonitor();
+        monitor.onPong(0, 1000);
+        assertEquals(LinkMonitor.MIN_DEAD_PEER_TIMEOUT_MS, monitor.getDeadPeerTimeoutMs());
+
+        monitor = new LinkMonitor();
+        // SRTT 400ms, RTTVAR 200ms: RTO 1.2s
+        monitor.onPong(0, 400_000);
+        assertEquals(LinkMonitor.PING_INTERVAL_MS + 4 * 1200, monitor.getDeadPeerTimeoutMs());
+    }
+
+    @Test
+    public void message_roundTrips() {
+        byte[] buf = new byte[LinkMonitor.MESSAGE_SIZE + 2];
+        LinkMonitor.writeMessage(buf, 2, LinkMonitor.TYPE_PONG, 0x0123456789abcdefL);
+        assertEquals(LinkMonitor.TYPE_PONG, buf[2]);
+        assertEquals(0x0123456789abcdefL, LinkMonitor.readTimestamp(buf, 2));
+        assertEquals(1, LinkMonitor.messageSize(LinkMonitor.TYPE_KEEPALIVE));
+        assertEquals(LinkMonitor.MESSAGE_SIZE, LinkMonitor.messageSize(LinkMonitor.TYPE_PING));
+    }
+
+    @Test
+    public void tcp_bothSidesMeasureRttWhileFramesFlow() throws Exception {
+        assertBothSidesMeasureRtt(new NioTcp("LinkMonitorTest-client", 0));
+        assertBothSidesMeasureRtt(new Tcp("LinkMonitorTest-client", false));
+    }
+
+    private static void assertBothSidesMeasureRtt(MirrorClientInterface client) throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+
+        Tcp server = new Tcp("LinkMonitorTest-server", true);
+        server.start(null, port, null, null, false);
+        try {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (server.mServerSocket == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            client.start("127.0.0.1", port, null, null, true);
+            deadline = System.currentTimeMillis() + 2000;
+            while (!server.isConnected() && System.currentTimeMillis() < deadline) {
+                // Frames queued before the connection are discarded
+                Thread.sleep(5);
+            }
+
+            byte[] frame = new byte[1000];
+            int sent = 0;
+            int received = 0;
+            deadline = System.currentTimeMillis() + 5000;
+            while ((client.getLinkMonitor().getSampleCount() == 0
+                    || server.getLinkMonitor().getSampleCount() == 0)
+                    && System.currentTimeMillis() < deadline) {
+                frame[0] = (byte) sent;
+                frame[frame.length - 1] = (byte) sent;
+                server.sendBuf(frame, frame.length);
+                sent++;
+                Packet packet;
+                while ((packet = client.takeNextPacket(10)) != null) {
+                    // Control frames never show up as packets or corrupt the framing
+                    assertEquals(frame.length, packet.size);
+                    assertEquals((byte) received, packet.bytes[0]);
+                    assertEquals((byte) received, packet.bytes[frame.length - 1]);
+                    received++;
+                    packet.release();
+                }
+            }
+            assertTrue(received > 0);
+            assertTrue(client.getLinkMonitor().toString(), client.getLinkMonitor().getSmoothedRttUs() >= 0);
+            assertTrue(server.getLinkMonitor().toString(), server.getLinkMonitor().getSmoothedRttUs() >= 0);
+            assertTrue(client.getLinkMonitor().peerSupportsHeartbeat());
+            assertTrue(server.getLinkMonitor().peerSupportsHeartbeat());
+        } finally {
+            client.stop();
+            server.stop();
+            client.waitUntilStopped();
+            server.waitUntilStopped();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MirrorExecutorsTest {
+
+    @Test
+    public void pool_queuesBeyondItsSizeInsteadOfGrowing() throws Exception {
+        ThreadPoolExecutor pool = MirrorExecutors.newPool("test", 0, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertEquals(2, pool.getPoolSize());
+        assertEquals(1, pool.getQueue().size());
+
+        // The waiting loop gets a thread once one is free
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getLargestPoolSize());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,151 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * End to end over loopback, with the test playing the server side of the session.
+ */
+public class MuxSessionTest {
+
+    private ServerSocketChannel mServer;
+    private MuxSession mSession;
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+
+    private SocketChannel connect(MuxSession session) throws Exception {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mSession = session;
+        session.start("127.0.0.1", mServer.socket().getLocalPort(), new Runnable() {
+            @Override
+            public void run() {
+                mStopped.countDown();
+            }
+        });
+        return mServer.accept();
+    }
+
+    private void close(SocketChannel channel) throws Exception {
+        mSession.stop();
+        channel.close();
+        mServer.close();
+    }
+
+    private static void writeFragment(SocketChannel channel, int streamId, int flags,
+            int messageLength, byte[] bytes, int offset, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(MuxSession.HEADER_SIZE + length);
+        buffer.put((byte) streamId);
+        buffer.put((byte) flags);
+        buffer.putInt(messageLength);
+        buffer.putInt(length);
+        buffer.put(bytes, offset, length);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int size) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            assertTrue(channel.read(buffer) >= 0);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void messages_roundTripAcrossFragments() throws Exception {
+        MuxSession session = new MuxSession("MuxSessionTest", 0);
+        MirrorClientInterface video = session.openStream(MuxSession.STREAM_VIDEO, "Video");
+        MirrorClientInterface command = session.openStream(MuxSession.STREAM_COMMAND, "Command");
+        SocketChannel channel = connect(session);
+        try {
+            byte[] frame = new byte[MuxSession.MAX_FRAGMENT_SIZE * 2 + 100];
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = (byte) (i * 31);
+            }
+            byte[] gesture = {1, 2, 3, 4, 5};
+            // A command overtakes the rest of the keyframe
+            writeFragment(channel, MuxSession.STREAM_VIDEO, MuxSession.FLAG_FIRST, frame.length,
+                    frame, 0, MuxSession.MAX_FRAGMENT_SIZE);
+            writeFragment(channel, MuxSession.STREAM_COMMAND,
+                    MuxSession.FLAG_FIRST | MuxSession.FLAG_LAST, gesture.length, gesture, 0,
+                    gesture.length);
+            writeFragment(channel, MuxSession.STREAM_VIDEO, 0, frame.length,
+                    frame, MuxSession.MAX_FRAGMENT_SIZE, MuxSession.MAX_FRAGMENT_SIZE);
+            writeFragment(channel, MuxSession.STREAM_VIDEO, MuxSession.FLAG_LAST, frame.length,
+                    frame, 2 * MuxSession.MAX_FRAGMENT_SIZE, 100);
+
+            Packet packet = command.takeNextPacket(2000);
+            assertNotNull(packet);
+            assertArrayEquals(gesture, Arrays.copyOf(packet.bytes, packet.size));
+            packet.release();
+            packet = video.takeNextPacket(2000);
+            assertNotNull(packet);
+            assertArrayEquals(frame, Arrays.copyOf(packet.bytes, packet.size));
+            packet.release();
+
+            // And back, skipping the session's pings
+            command.sendBuf(gesture, gesture.length);
+            while (true) {
+                ByteBuffer header = readFully(channel, MuxSession.HEADER_SIZE);
+                int streamId = header.get();
+                int flags = header.get();
+                int messageLength = header.getInt();
+                ByteBuffer payload = readFully(channel, header.getInt());
+                if (streamId == MuxSession.STREAM_COMMAND) {
+                    assertEquals(MuxSession.FLAG_FIRST | MuxSession.FLAG_LAST, flags);
+                    assertEquals(gesture.length, messageLength);
+                    byte[] sent = new byte[payload.remaining()];
+                    payload.get(sent);
+                    assertArrayEquals(gesture, sent);
+                    break;
+                }
+            }
+            assertEquals(1, mStopped.getCount());
+        } finally {
+            close(channel);
+        }
+    }
+
+    @Test
+    public void oversizedMessageLength_closesSession() throws Exception {
+        MuxSession session = new MuxSession("MuxSessionTest", 0);
+        MirrorClientInterface video = session.openStream(MuxSession.STREAM_VIDEO, "Video");
+        SocketChannel channel = connect(session);
+        try {
+            writeFragment(channel, MuxSession.STREAM_VIDEO, MuxSession.FLAG_FIRST,
+                    MuxSession.MAX_MESSAGE_SIZE + 1, new byte[16], 0, 16);
+            assertTrue(mStopped.await(2, TimeUnit.SECONDS));
+            assertNull(video.getNextPacket());
+        } finally {
+            close(channel);
+        }
+    }
+
+    @Test
+    public void fragmentBeyondMessageLength_closesSession() throws Exception {
+        MuxSession session = new MuxSession("MuxSessionTest", 0);
+        MirrorClientInterface video = session.openStream(MuxSession.STREAM_VIDEO, "Video");
+        SocketChannel channel = connect(session);
+        try {
+            writeFragment(channel, MuxSession.STREAM_VIDEO, MuxSession.FLAG_FIRST, 8,
+                    new byte[16], 0, 16);
+            assertTrue(mStopped.await(2, TimeUnit.SECONDS));
+            assertNull(video.getNextPacket());
+        } finally {
+            close(channel);
+        }
+    }
+}
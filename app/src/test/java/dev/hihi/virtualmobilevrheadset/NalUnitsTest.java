@@ -0,0 +1,73 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NalUnitsTest {
+
+    private static final byte[] CONFIG = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1f, 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c};
+    private static final byte[] IDR = {0, 0, 0, 1, 0x09, 0x10, 0, 0, 1, 0x65, (byte) 0x88, 0};
+    private static final byte[] SPS_AND_SLICE = {0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x41, 1};
+    private static final byte[] RECOVERY_POINT = {0, 0, 1, 0x06, 0x06, 0x01, (byte) 0x80, 0, 0, 1, 0x41, 5};
+    private static final byte[] P_FRAME = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0x00};
+    // nal_ref_idc 0
+    private static final byte[] B_FRAME = {0, 0, 0, 1, 0x01, (byte) 0x9e, 0x00};
+    private static final byte[] SEI_ONLY = {0, 0, 0, 1, 0x06, 0x05, 0x01, 0x00};
+
+    @Test
+    public void frameType_classifiesAccessUnits() {
+        assertEquals(NalUnits.FRAME_CONFIG, NalUnits.frameType(CONFIG, CONFIG.length));
+        assertEquals(NalUnits.FRAME_KEY, NalUnits.frameType(IDR, IDR.length));
+        // Parameter sets do not turn a P slice into a keyframe, as for H.265
+        assertEquals(NalUnits.FRAME_REFERENCE, NalUnits.frameType(SPS_AND_SLICE, SPS_AND_SLICE.length));
+        assertEquals(NalUnits.FRAME_KEY, NalUnits.frameType(RECOVERY_POINT, RECOVERY_POINT.length));
+        assertEquals(NalUnits.FRAME_REFERENCE, NalUnits.frameType(P_FRAME, P_FRAME.length));
+        assertEquals(NalUnits.FRAME_NON_REFERENCE, NalUnits.frameType(B_FRAME, B_FRAME.length));
+        assertEquals(NalUnits.FRAME_UNKNOWN, NalUnits.frameType(SEI_ONLY, SEI_ONLY.length));
+        assertEquals(NalUnits.FRAME_UNKNOWN, NalUnits.frameType(new byte[0], 0));
+    }
+
+    @Test
+    public void tag_storesFrameTypeInPacket() {
+        Packet packet = new Packet(IDR, IDR.length);
+        assertEquals(NalUnits.FRAME_KEY, NalUnits.tag(packet, CodecNegotiation.MIME_AVC));
+        assertEquals(NalUnits.FRAME_KEY, packet.frameType);
+    }
+
+    @Test
+    public void findNalAndNalEnd_splitNalUnits() {
+        int sps = NalUnits.findNal(CONFIG, CONFIG.length, NalUnits.TYPE_SPS);
+        assertEquals(4, sps);
+        // The zero in front of the 4 byte start code is not part of the SPS
+        assertEquals(8, NalUnits.nalEnd(CONFIG, sps, CONFIG.length));
+        int pps = NalUnits.findNal(CONFIG, CONFIG.length, NalUnits.TYPE_PPS);
+        assertEquals(12, pps);
+        assertEquals(CONFIG.length, NalUnits.nalEnd(CONFIG, pps, CONFIG.length));
+        // Only NAL units in front of the first slice count
+        assertEquals(-1, NalUnits.findNal(P_FRAME, P_FRAME.length, NalUnits.TYPE_SPS));
+    }
+
+    @Test
+    public void hevcFrameType_classifiesAccessUnits() {
+        // VPS, SPS, PPS, IDR_W_RADL
+        byte[] idr = {0, 0, 0, 1, 0x40, 0x01, 0, 0, 1, 0x42, 0x01, 0, 0, 1, 0x44, 0x01, 0, 0, 1, 0x26, 0x01, 5};
+        assertEquals(NalUnits.FRAME_KEY, NalUnits.hevcFrameType(idr, idr.length));
+        byte[] config = {0, 0, 0, 1, 0x40, 0x01, 0, 0, 1, 0x42, 0x01, 0};
+        assertEquals(NalUnits.FRAME_CONFIG, NalUnits.hevcFrameType(config, config.length));
+        // TRAIL_R
+        byte[] trailR = {0, 0, 0, 1, 0x02, 0x01, (byte) 0xd0};
+        assertEquals(NalUnits.FRAME_REFERENCE, NalUnits.hevcFrameType(trailR, trailR.length));
+        // VPS, SPS, TRAIL_R is no keyframe either
+        byte[] configAndTrailR = {0, 0, 0, 1, 0x40, 0x01, 0, 0, 1, 0x42, 0x01, 0, 0, 1, 0x02, 0x01, (byte) 0xd0};
+        assertEquals(NalUnits.FRAME_REFERENCE,
+                NalUnits.hevcFrameType(configAndTrailR, configAndTrailR.length));
+        // TRAIL_N
+        byte[] trailN = {0, 0, 0, 1, 0x00, 0x01, (byte) 0xd0};
+        assertEquals(NalUnits.FRAME_NON_REFERENCE, NalUnits.hevcFrameType(trailN, trailN.length));
+
+        // The same bytes mean something else in H.264
+        assertEquals(NalUnits.FRAME_KEY, NalUnits.frameType(CodecNegotiation.MIME_HEVC, idr, idr.length));
+        assertEquals(NalUnits.FRAME_UNKNOWN, NalUnits.frameType(CodecNegotiation.MIME_AVC, trailN, trailN.length));
+    }
+}
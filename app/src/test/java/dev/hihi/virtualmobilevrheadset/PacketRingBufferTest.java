@@ -0,0 +1,131 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class PacketRingBufferTest {
+
+    @Test
+    public void offerAndPoll_keepOrderAndCapacity() {
+        PacketRingBuffer ring = new PacketRingBuffer(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(new Packet(null, i)));
+        }
+        assertFalse(ring.offer(new Packet(null, 4)));
+        assertEquals(4, ring.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, ring.poll().size);
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void take_timesOutWhenEmpty() {
+        PacketRingBuffer ring = new PacketRingBuffer(4);
+        long start = System.nanoTime();
+        assertNull(ring.take(20));
+        assertTrue(System.nanoTime() - start >= 15_000_000L);
+    }
+
+    @Test
+    public void take_returnsAtOnceAfterEarlierWakeUp() {
+        PacketRingBuffer ring = new PacketRingBuffer(4);
+        // Nobody is parked yet, the next take must not miss it
+        ring.wakeUp();
+        long start = System.nanoTime();
+        assertNull(ring.take(60_000));
+        assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        // Seen once only
+        assertNull(ring.take(20));
+        assertTrue(System.nanoTime() - start >= 15_000_000L);
+    }
+
+    @Test
+    public void offerWithTimeout_waitsForConsumer() throws Exception {
+        final PacketRingBuffer ring = new PacketRingBuffer(2);
+        assertTrue(ring.offer(new Packet(null, 0)));
+        assertTrue(ring.offer(new Packet(null, 1)));
+        assertFalse(ring.offer(new Packet(null, 2), 20));
+
+        final CountDownLatch offering = new CountDownLatch(1);
+        final boolean[] queued = new boolean[1];
+        Thread producer = new Thread() {
+            public void run() {
+                offering.countDown();
+                // Far longer than the test waits for it
+                queued[0] = ring.offer(new Packet(null, 2), 60_000);
+            }
+        };
+        producer.start();
+        offering.await();
+        assertEquals(0, ring.poll().size);
+        producer.join(10_000);
+        assertFalse(producer.isAlive());
+        assertTrue(queued[0]);
+        assertEquals(1, ring.poll().size);
+        assertEquals(2, ring.poll().size);
+    }
+
+    @Test
+    public void offerShared_losesNothingWithConcurrentSenders() throws Exception {
+        final PacketRingBuffer ring = new PacketRingBuffer(64);
+        final int senders = 4;
+        final int perSender = 5000;
+        Thread[] threads = new Thread[senders];
+        for (int s = 0; s < senders; s++) {
+            final int sender = s;
+            threads[s] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perSender; i++) {
+                        // Size carries the sender and sequence number
+                        Packet packet = new Packet(null, sender * perSender + i);
+                        while (!ring.offerShared(packet)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[s].start();
+        }
+        int[] nextPerSender = new int[senders];
+        for (int received = 0; received < senders * perSender; received++) {
+            Packet packet;
+            while ((packet = ring.take(100)) == null) {
+            }
+            int sender = packet.size / perSender;
+            // Each sender's packets come out once and in order
+            assertEquals(nextPerSender[sender]++, packet.size % perSender);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void take_wakesUpOnOffer() throws Exception {
+        final PacketRingBuffer ring = new PacketRingBuffer(4);
+        final CountDownLatch taking = new CountDownLatch(1);
+        final Packet[] taken = new Packet[1];
+        Thread consumer = new Thread() {
+            public void run() {
+                taking.countDown();
+                // Far longer than the test waits for it
+                taken[0] = ring.take(60_000);
+            }
+        };
+        consumer.start();
+        taking.await();
+        Packet packet = new Packet(null, 7);
+        assertTrue(ring.offer(packet));
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertSame(packet, taken[0]);
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,213 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PcmJitterBufferTest {
+
+    private static final int RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final long SECOND_NS = 1_000_000_000L;
+    // 10ms packets from the sender, 256 frame bursts to the AudioTrack
+    private static final int PACKET_FRAMES = 441;
+    private static final int READ_FRAMES = 256;
+
+    /**
+     * Sender with a clock off by driftPpm, whose packets are held back by a Wi-Fi stall of
+     * stallMs every stallIntervalMs, against a receiver reading at its own steady rate.
+     */
+    private static class Trace {
+        final int outputRate;
+        final PcmJitterBuffer buffer;
+        final byte[] packet = new byte[PACKET_FRAMES * CHANNELS * 2];
+        final byte[] out = new byte[READ_FRAMES * CHANNELS * 2];
+        double driftPpm = 0;
+        int stallIntervalMs = 0;
+        int stallMs = 0;
+        // The sender sends nothing for pauseMs from pauseAtMs on, then carries on
+        int pauseAtMs = 0;
+        int pauseMs = 0;
+        long underrunsAfterWarmUp = 0;
+        int maxBufferedFrames = 0;
+
+        Trace() {
+            this(RATE);
+        }
+
+        Trace(int outputRate) {
+            this.outputRate = outputRate;
+            buffer = new PcmJitterBuffer(RATE, outputRate, CHANNELS, 20, 250);
+        }
+
+        long arrivalNs(long sentNs) {
+            if (stallIntervalMs == 0) {
+                return sentNs;
+            }
+            long interval = stallIntervalMs * 1_000_000L;
+            long intoInterval = sentNs % interval;
+            long stall = stallMs * 1_000_000L;
+            // Everything sent during the stall arrives at its end
+            return intoInterval < stall ? sentNs - intoInterval + stall : sentNs;
+        }
+
+        void run(int seconds) {
+            double packetIntervalNs = (double) PACKET_FRAMES * SECOND_NS / (RATE * (1 + driftPpm / 1e6));
+            double readIntervalNs = (double) READ_FRAMES * SECOND_NS / outputRate;
+            long packets = 0;
+            long reads = 0;
+            long endNs = seconds * SECOND_NS;
+            long warmUpNs = endNs / 2;
+            while (true) {
+                long sentNs = (long) (packets * packetIntervalNs);
+                if (pauseMs > 0 && sentNs >= pauseAtMs * 1_000_000L) {
+                    sentNs += pauseMs * 1_000_000L;
+                }
+                long nextArrivalNs = arrivalNs(sentNs);
+                long nextReadNs = (long) (reads * readIntervalNs);
+                if (Math.min(nextArrivalNs, nextReadNs) > endNs) {
+                    return;
+                }
+                if (nextArrivalNs <= nextReadNs) {
+                    buffer.put(packet, packet.length, nextArrivalNs);
+                    packets++;
+                } else {
+                    long underruns = buffer.getUnderrunCount();
+                    buffer.read(out, READ_FRAMES);
+                    if (nextReadNs > warmUpNs) {
+                        underrunsAfterWarmUp += buffer.getUnderrunCount() - underruns;
+                        maxBufferedFrames = Math.max(maxBufferedFrames, buffer.getBufferedFrames());
+                    }
+                    reads++;
+                }
+            }
+        }
+    }
+
+    private static void putFrames(PcmJitterBuffer buffer, int frames, int firstValue, long arrivalNs) {
+        byte[] pcm = new byte[frames * CHANNELS * 2];
+        for (int i = 0; i < frames * CHANNELS; i++) {
+            short value = (short) (firstValue + i / CHANNELS);
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        buffer.put(pcm, pcm.length, arrivalNs);
+    }
+
+    @Test
+    public void read_passesSamplesThroughWithoutDrift() {
+        PcmJitterBuffer buffer = new PcmJitterBuffer(RATE, CHANNELS, 10, 100);
+        // Right at the target
+        putFrames(buffer, RATE / 100, -1000, 0);
+        byte[] out = new byte[16 * CHANNELS * 2];
+        assertEquals(16, buffer.read(out, 16));
+        assertEquals(1.0, buffer.getRatio(), 1e-9);
+        for (int i = 0; i < 16 * CHANNELS; i++) {
+            short value = (short) ((out[2 * i] & 0xff) | (out[2 * i + 1] << 8));
+            assertEquals(-1000 + i / CHANNELS, value);
+        }
+    }
+
+    @Test
+    public void read_waitsForTargetAndCountsUnderrun() {
+        PcmJitterBuffer buffer = new PcmJitterBuffer(RATE, CHANNELS, 10, 100);
+        byte[] out = new byte[READ_FRAMES * CHANNELS * 2];
+        putFrames(buffer, 200, 0, 0);
+        // Below the 10ms target
+        assertEquals(0, buffer.read(out, READ_FRAMES));
+        assertEquals(0, buffer.getUnderrunCount());
+
+        // On time
+        putFrames(buffer, 300, 0, 200 * SECOND_NS / RATE);
+        assertEquals(READ_FRAMES, buffer.read(out, READ_FRAMES));
+        assertTrue(buffer.read(out, READ_FRAMES) < READ_FRAMES);
+        assertEquals(1, buffer.getUnderrunCount());
+        // Priming again
+        putFrames(buffer, 100, 0, 500 * SECOND_NS / RATE);
+        assertEquals(0, buffer.read(out, READ_FRAMES));
+        assertEquals(1, buffer.getUnderrunCount());
+    }
+
+    @Test
+    public void put_dropsToTargetBeyondMaxDelay() {
+        PcmJitterBuffer buffer = new PcmJitterBuffer(RATE, CHANNELS, 10, 100);
+        for (int i = 0; i < 11; i++) {
+            putFrames(buffer, RATE / 100, 0, i * 10_000_000L);
+        }
+        assertEquals(1, buffer.getOverflowCount());
+        assertTrue(buffer.getDroppedFrames() > 0);
+        assertTrue(buffer.getBufferedFrames() <= RATE / 10);
+    }
+
+    @Test
+    public void fastSenderClock_isAbsorbedWithoutOverflow() {
+        Trace trace = new Trace();
+        // Without compensation 300ms of audio piles up
+        trace.driftPpm = 1000;
+        trace.run(300);
+        assertEquals(0, trace.buffer.getOverflowCount());
+        assertEquals(0, trace.buffer.getUnderrunCount());
+        assertTrue(trace.buffer.getRatio() > 1.0005);
+        assertTrue(trace.maxBufferedFrames < trace.buffer.getTargetDelayFrames() + 2 * PACKET_FRAMES);
+    }
+
+    @Test
+    public void slowSenderClock_isAbsorbedWithoutUnderrun() {
+        Trace trace = new Trace();
+        trace.driftPpm = -1000;
+        trace.run(300);
+        assertEquals(0, trace.buffer.getUnderrunCount());
+        assertEquals(0, trace.buffer.getOverflowCount());
+        assertTrue(trace.buffer.getRatio() < 0.9995);
+    }
+
+    @Test
+    public void wifiStalls_raiseTargetUntilTheyAreCovered() {
+        Trace trace = new Trace();
+        trace.driftPpm = 200;
+        trace.stallIntervalMs = 2000;
+        trace.stallMs = 60;
+        trace.run(120);
+        assertTrue(trace.buffer.getJitterMs() > 0);
+        assertTrue(trace.buffer.getTargetDelayFrames() > RATE * 60 / 1000);
+        assertEquals(0, trace.underrunsAfterWarmUp);
+        assertEquals(0, trace.buffer.getOverflowCount());
+    }
+
+    @Test
+    public void senderPause_doesNotRaiseTarget() {
+        Trace trace = new Trace();
+        trace.driftPpm = 200;
+        trace.pauseAtMs = 12_000;
+        trace.pauseMs = 3000;
+        trace.run(30);
+        // Only the underrun of the pause itself
+        assertEquals(1, trace.buffer.getUnderrunCount());
+        assertEquals(0, trace.buffer.getOverflowCount());
+        // Back to the minimum plus the drift, not raised by the length of the pause
+        assertTrue(trace.buffer.getTargetDelayFrames() < RATE * 30 / 1000);
+        assertTrue(trace.maxBufferedFrames < trace.buffer.getTargetDelayFrames() + 2 * PACKET_FRAMES);
+    }
+
+    @Test
+    public void read_convertsToOutputSampleRate() {
+        PcmJitterBuffer buffer = new PcmJitterBuffer(RATE, 48000, CHANNELS, 10, 100);
+        putFrames(buffer, RATE / 100, 0, 0);
+        byte[] out = new byte[64 * CHANNELS * 2];
+        assertEquals(64, buffer.read(out, 64));
+        assertEquals(44100.0 / 48000, buffer.getRatio(), 1e-9);
+        // Sample values count up by one per input frame
+        short last = (short) ((out[out.length - 2] & 0xff) | (out[out.length - 1] << 8));
+        assertEquals(Math.round(63 * 44100.0 / 48000), last);
+    }
+
+    @Test
+    public void nativeRateOutput_keepsUpWithDrift() {
+        Trace trace = new Trace(48000);
+        trace.driftPpm = 500;
+        trace.run(120);
+        assertEquals(0, trace.buffer.getUnderrunCount());
+        assertEquals(0, trace.buffer.getOverflowCount());
+        assertTrue(trace.buffer.getRatio() > 44100.0 / 48000);
+    }
+}
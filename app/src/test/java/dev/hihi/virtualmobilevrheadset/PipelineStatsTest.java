@@ -0,0 +1,66 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PipelineStatsTest {
+
+    private static final long MS = 1_000_000L;
+    // Sender clock, far away from ours
+    private static final long SENDER_OFFSET_US = 555_000_000_000L;
+
+    @Test
+    public void videoStages_areMatchedByPresentationTime() {
+        PipelineStats stats = new PipelineStats();
+        stats.setMinRttUs(10_000);
+        long t = 1000 * MS;
+        for (int i = 0; i < 100; i++) {
+            long receivedNs = t + i * 16 * MS;
+            // 5ms transit from capture, on the sender's clock
+            long captureUs = SENDER_OFFSET_US + (receivedNs - 5 * MS) / 1000;
+            long ptsUs = (receivedNs + 2 * MS) / 1000;
+            stats.onVideoQueued(ptsUs, receivedNs, receivedNs + MS, receivedNs + 2 * MS, captureUs);
+            if (i >= 2) {
+                // Two frames in the codec, frame 50 never renders
+                long earlierReceivedNs = receivedNs - 32 * MS;
+                long earlierPtsUs = (earlierReceivedNs + 2 * MS) / 1000;
+                stats.onVideoOutput(earlierPtsUs, earlierReceivedNs + 6 * MS);
+                if (i - 2 != 50) {
+                    stats.onVideoRendered(earlierPtsUs, earlierReceivedNs + 14 * MS);
+                }
+            }
+        }
+        assertEquals(1000, stats.getHistogram(PipelineStats.VIDEO_RECEIVE_QUEUE).getPercentile(50));
+        assertEquals(1000, stats.getHistogram(PipelineStats.VIDEO_INPUT_WAIT).getPercentile(99));
+        assertEquals(4000, stats.getHistogram(PipelineStats.VIDEO_DECODE).getPercentile(50), 4000 / 16);
+        assertEquals(8000, stats.getHistogram(PipelineStats.VIDEO_RENDER).getPercentile(50), 8000 / 16);
+        assertEquals(14000, stats.getHistogram(PipelineStats.VIDEO_TOTAL).getPercentile(99.9), 14000 / 16);
+        assertEquals(97, stats.getHistogram(PipelineStats.VIDEO_TOTAL).getCount());
+        // Fastest transit taken as half the min RTT: 14ms + 5ms
+        assertEquals(19000, stats.getHistogram(PipelineStats.VIDEO_GLASS_TO_GLASS).getPercentile(50),
+                19000 / 16);
+    }
+
+    @Test
+    public void onVideoRendered_ignoresFramesOutOfTheRing() {
+        PipelineStats stats = new PipelineStats();
+        for (int i = 1; i <= PipelineStats.MAX_FRAMES_IN_FLIGHT + 1; i++) {
+            stats.onVideoQueued(i, i * MS, i * MS, i * MS, 0);
+        }
+        stats.onVideoRendered(1, 100 * MS);
+        stats.onVideoRendered(2, 100 * MS);
+        stats.onVideoRendered(2, 200 * MS);
+        assertEquals(1, stats.getHistogram(PipelineStats.VIDEO_TOTAL).getCount());
+        assertEquals(0, stats.getHistogram(PipelineStats.VIDEO_GLASS_TO_GLASS).getCount());
+    }
+
+    @Test
+    public void onAudioWritten_addsQueueAndPlayout() {
+        PipelineStats stats = new PipelineStats();
+        stats.onAudioWritten(10 * MS, 13 * MS, 40 * MS);
+        assertEquals(3000, stats.getHistogram(PipelineStats.AUDIO_QUEUE).getPercentile(50), 3000 / 16);
+        assertEquals(40000, stats.getHistogram(PipelineStats.AUDIO_PLAYOUT).getPercentile(50), 40000 / 16);
+        assertEquals(43000, stats.getHistogram(PipelineStats.AUDIO_TOTAL).getPercentile(50), 43000 / 16);
+    }
+}
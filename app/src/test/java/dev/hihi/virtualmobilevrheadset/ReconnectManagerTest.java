@@ -0,0 +1,71 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectManagerTest {
+
+    @Test
+    public void nextDelay_backsOffExponentiallyWithJitterUpToMax() {
+        ReconnectManager manager = new ReconnectManager("test", 100, 1000, new Random(1));
+        long[] caps = {100, 200, 400, 800, 1000, 1000, 1000};
+        for (long cap : caps) {
+            long delay = manager.nextDelayMs();
+            assertTrue("delay " + delay + " cap " + cap, delay >= cap / 2 && delay <= cap);
+        }
+        assertEquals(caps.length, manager.getAttempts());
+    }
+
+    @Test
+    public void nextDelay_isJittered() {
+        ReconnectManager a = new ReconnectManager("a", 1000, 1000, new Random(1));
+        ReconnectManager b = new ReconnectManager("b", 1000, 1000, new Random(2));
+        boolean differs = false;
+        for (int i = 0; i < 5; i++) {
+            differs |= a.nextDelayMs() != b.nextDelayMs();
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void onRecovered_measuresTimeAndResetsBackoff() throws Exception {
+        ReconnectManager manager = new ReconnectManager("test", 100, 1000, new Random(1));
+        assertEquals(-1, manager.onRecovered());
+
+        manager.onDisconnected();
+        manager.nextDelayMs();
+        manager.nextDelayMs();
+        Thread.sleep(20);
+        // A second drop while recovering does not restart the clock
+        manager.onDisconnected();
+        long recoveryMs = manager.onRecovered();
+        assertTrue(recoveryMs >= 20);
+        assertEquals(recoveryMs, manager.getLastRecoveryMs());
+        assertEquals(1, manager.getRecoveryCount());
+        assertEquals(0, manager.getAttempts());
+        assertTrue(manager.nextDelayMs() <= 100);
+    }
+
+    @Test
+    public void cancel_wakesUpWaiter() throws Exception {
+        final ReconnectManager manager = new ReconnectManager("test", 10_000, 10_000, new Random(1));
+        final boolean[] result = {true};
+        Thread waiter = new Thread() {
+            public void run() {
+                result[0] = manager.awaitNextAttempt();
+            }
+        };
+        long start = System.nanoTime();
+        waiter.start();
+        Thread.sleep(20);
+        manager.cancel();
+        waiter.join(2000);
+        assertFalse(waiter.isAlive());
+        assertFalse(result[0]);
+        assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        assertFalse(manager.awaitNextAttempt());
+    }
+}
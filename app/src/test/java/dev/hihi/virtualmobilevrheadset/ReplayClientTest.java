@@ -0,0 +1,131 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ReplayClientTest {
+
+    private static final long MS = 1_000_000;
+
+    private static byte[] capture(int frames) throws IOException {
+        return capture(frames, 1000 * MS, 5000);
+    }
+
+    private static byte[] capture(int frames, long firstArrivalNs, long firstCaptureUs)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamRecorder recorder = new StreamRecorder(out, true);
+        for (int i = 0; i < frames; i++) {
+            // 16ms apart, an audio packet after every frame
+            Packet video = StreamRecorderTest.packet(100, (byte) i, firstArrivalNs + i * 16 * MS,
+                    firstCaptureUs + i * 16_000);
+            Packet audio = StreamRecorderTest.packet(10, (byte) i, firstArrivalNs + i * 16 * MS + MS, 0);
+            recorder.record(MuxSession.STREAM_VIDEO, video);
+            recorder.record(MuxSession.STREAM_AUDIO, audio);
+            video.release();
+            audio.release();
+        }
+        recorder.writePending(false);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void dueTimeNs_scalesSpacingWithSpeed() {
+        assertEquals(500, ReplayClient.dueTimeNs(1000, 1000, 500, 1));
+        assertEquals(500 + 16 * MS, ReplayClient.dueTimeNs(1000, 1000 + 16 * MS, 500, 1));
+        assertEquals(500 + 4 * MS, ReplayClient.dueTimeNs(1000, 1000 + 16 * MS, 500, 4));
+        assertEquals(500, ReplayClient.dueTimeNs(1000, 1000 + 16 * MS, 500, ReplayClient.SPEED_UNLIMITED));
+    }
+
+    private static File captureFile(int frames) throws IOException {
+        File file = File.createTempFile("capture", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(capture(frames));
+        }
+        return file;
+    }
+
+    @Test
+    public void replay_unlimitedPlaysOneStreamWithoutDrops() throws IOException {
+        int frames = 100;
+        ReplayClient client = new ReplayClient("Test", captureFile(frames), MuxSession.STREAM_VIDEO,
+                ReplayClient.SPEED_UNLIMITED);
+        client.start(null, 0, null, null, true);
+        client.waitUntilStopped();
+
+        assertEquals(frames, client.getReplayedCount());
+        assertEquals(0, client.getDroppedCount());
+        for (int i = 0; i < frames; i++) {
+            Packet packet = client.getNextPacket();
+            assertEquals(100, packet.size);
+            assertEquals((byte) i, packet.bytes[0]);
+            assertEquals(5000 + i * 16_000, packet.captureTimeUs);
+            packet.release();
+        }
+        assertNull(client.getNextPacket());
+    }
+
+    @Test
+    public void replay_pacedKeepsScaledSpacing() throws IOException {
+        int frames = 10;
+        ReplayClient client = new ReplayClient("Test", captureFile(frames), MuxSession.STREAM_VIDEO, 4);
+        long startNs = System.nanoTime();
+        client.start(null, 0, null, null, true);
+        client.waitUntilStopped();
+
+        // 9 gaps of 16ms at 4x
+        assertTrue(System.nanoTime() - startNs >= 9 * 4 * MS);
+        assertEquals(frames, client.getReplayedCount());
+        for (int i = 0; i < frames; i++) {
+            Packet packet = client.getNextPacket();
+            assertEquals(5000 + i * 4000, packet.captureTimeUs);
+            packet.release();
+        }
+    }
+
+    @Test
+    public void replay_joinsSessionsWithoutThePauseBetween() throws IOException {
+        File file = File.createTempFile("capture", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(capture(5));
+            // Reconnected an hour later
+            out.write(capture(5, 3_600_000 * MS, 900_000));
+        }
+        ReplayClient client = new ReplayClient("Test", file, MuxSession.STREAM_VIDEO, 4);
+        long startNs = System.nanoTime();
+        client.start(null, 0, null, null, true);
+        client.waitUntilStopped();
+
+        assertTrue(System.nanoTime() - startNs < 10_000 * MS);
+        assertEquals(10, client.getReplayedCount());
+        long previousUs = 0;
+        for (int i = 0; i < 10; i++) {
+            Packet packet = client.getNextPacket();
+            assertTrue(packet.captureTimeUs >= previousUs);
+            assertTrue(packet.captureTimeUs - previousUs <= 4000 || i == 0);
+            previousUs = packet.captureTimeUs;
+            packet.release();
+        }
+    }
+
+    @Test
+    public void replay_rejectsOtherFiles() throws IOException {
+        ReplayClient client = new ReplayClient("Test", new File("unused"), MuxSession.STREAM_VIDEO, 1);
+        try {
+            client.replay(new DataInputStream(new ByteArrayInputStream(new byte[16])));
+            fail("Replayed a file without the header");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
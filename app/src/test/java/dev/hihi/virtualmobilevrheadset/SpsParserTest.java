@@ -0,0 +1,168 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class SpsParserTest {
+
+    // SPS NAL units of real encoders, emulation prevention bytes included
+    private static final String[][] CORPUS = {
+            // profile, level, width, height, SPS
+            {"66", "30", "640", "480", "6742001e95a8280f64"},
+            {"66", "31", "1280", "720", "6742c01fda014016e840000003004000000c83c60c92"},
+            {"77", "31", "1280", "720", "674d401fe8802802dd80b501010140000003004000000c83c60c4480"},
+            {"100", "31", "1280", "720", "6764001facd9405005bb011000000300100000030300f1831960"},
+            // 1088 coded lines cropped to 1080
+            {"100", "40", "1920", "1080", "67640028acd940780227e5c044000003000400000300f03c60c658"},
+    };
+
+    private static byte[] hex(String s) {
+        if (s.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + s);
+        }
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(s.charAt(2 * i), 16);
+            int low = Character.digit(s.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a hex digit at " + 2 * i + ": " + s);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes an SPS bit by bit, adding emulation prevention bytes like an encoder.
+     */
+    private static class SpsWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private int mByte = 0;
+        private int mBits = 0;
+        private int mZeros = 0;
+
+        SpsWriter bits(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                mByte = (mByte << 1) | ((value >> i) & 1);
+                if (++mBits == 8) {
+                    if (mZeros >= 2 && mByte <= 3) {
+                        mOut.write(3);
+                        mZeros = 0;
+                    }
+                    mOut.write(mByte);
+                    mZeros = mByte == 0 ? mZeros + 1 : 0;
+                    mByte = 0;
+                    mBits = 0;
+                }
+            }
+            return this;
+        }
+
+        SpsWriter ue(int value) {
+            int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+            return bits(0, length - 1).bits(value + 1, length);
+        }
+
+        SpsWriter se(int value) {
+            return ue(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        byte[] finish() {
+            bits(1, 1);
+            while (mBits != 0) {
+                bits(0, 1);
+            }
+            return mOut.toByteArray();
+        }
+    }
+
+    @Test
+    public void parse_readsCorpus() {
+        SpsParser parser = new SpsParser();
+        for (String[] entry : CORPUS) {
+            byte[] sps = hex(entry[4]);
+            assertTrue(entry[4], parser.parse(sps, 0, sps.length));
+            assertEquals(entry[4], Integer.parseInt(entry[0]), parser.getProfileIdc());
+            assertEquals(entry[4], Integer.parseInt(entry[1]), parser.getLevelIdc());
+            assertEquals(entry[4], Integer.parseInt(entry[2]), parser.getWidth());
+            assertEquals(entry[4], Integer.parseInt(entry[3]), parser.getHeight());
+        }
+    }
+
+    @Test
+    public void parse_handlesScalingListsInterlaceAnd444Cropping() {
+        SpsWriter writer = new SpsWriter();
+        writer.bits(0x67, 8).bits(244, 8).bits(0, 8).bits(51, 8).ue(0)
+                .ue(3).bits(0, 1)  // 4:4:4, no separate colour planes
+                .ue(2).ue(2).bits(0, 1)
+                .bits(1, 1);  // scaling matrix present
+        for (int i = 0; i < 12; i++) {
+            writer.bits(i % 2, 1);
+            if (i % 2 == 1) {
+                int size = i < 6 ? 16 : 64;
+                for (int j = 0; j < size; j++) {
+                    writer.se(j == 0 ? 8 : (j % 3) - 1);
+                }
+            }
+        }
+        writer.ue(0)
+                .ue(1).bits(0, 1).se(-3).se(2).ue(2).se(1).se(-1)  // pic_order_cnt_type 1
+                .ue(4).bits(0, 1)
+                .ue(119).ue(33)  // 1920 x (34 * 2 * 16 = 1088)
+                .bits(0, 1).bits(1, 1)  // fields, mb adaptive
+                .bits(1, 1)
+                .bits(1, 1).ue(2).ue(6).ue(0).ue(2);  // crop 8 columns, 4 field lines
+        byte[] sps = writer.finish();
+
+        SpsParser parser = new SpsParser();
+        assertTrue(parser.parse(sps, 0, sps.length));
+        assertEquals(244, parser.getProfileIdc());
+        assertEquals(1920 - 8, parser.getWidth());
+        assertEquals(1088 - 4, parser.getHeight());
+    }
+
+    @Test
+    public void parse_skipsEmulationPreventionBytes() {
+        // Level 0 and a seq_parameter_set_id starting with 6 zero bits: 00 00 02 is escaped
+        byte[] sps = new SpsWriter().bits(0x67, 8).bits(66, 8).bits(0, 8).bits(0, 8).ue(63)
+                .ue(0).ue(2).ue(0).bits(0, 1)
+                .ue(0).ue(0).bits(1, 1).bits(0, 1).bits(0, 1).finish();
+        assertEquals(3, sps[4]);
+        SpsParser parser = new SpsParser();
+        assertTrue(parser.parse(sps, 0, sps.length));
+        assertEquals(16, parser.getWidth());
+        assertEquals(16, parser.getHeight());
+        assertEquals(0, parser.getLevelIdc());
+    }
+
+    @Test
+    public void parse_rejectsTruncatedAndOtherNalUnits() {
+        SpsParser parser = new SpsParser();
+        byte[] sps = hex(CORPUS[4][4]);
+        assertFalse(parser.parse(sps, 0, 8));
+        byte[] pps = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+        assertFalse(parser.parse(pps, 0, pps.length));
+    }
+
+    @Test
+    public void parseAccessUnit_findsSpsInFrontOfTheSlice() {
+        byte[] sps = hex(CORPUS[4][4]);
+        byte[] frame = new byte[4 + sps.length + 8 + 6];
+        frame[3] = 1;
+        System.arraycopy(sps, 0, frame, 4, sps.length);
+        int offset = 4 + sps.length;
+        byte[] rest = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80, 0, 0, 1, 0x65, (byte) 0x88, 0};
+        System.arraycopy(rest, 0, frame, offset, rest.length);
+
+        SpsParser parser = new SpsParser();
+        assertTrue(parser.parseAccessUnit(frame, frame.length));
+        assertEquals(1920, parser.getWidth());
+        assertEquals(1080, parser.getHeight());
+
+        byte[] pFrame = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0x00};
+        assertFalse(parser.parseAccessUnit(pFrame, pFrame.length));
+    }
+}
@@ -0,0 +1,137 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StreamRecorderTest {
+
+    static Packet packet(int size, byte fill, long receivedTimeNs, long captureTimeUs) {
+        Packet packet = Packet.obtain(size);
+        Arrays.fill(packet.bytes, 0, size, fill);
+        packet.receivedTimeNs = receivedTimeNs;
+        packet.captureTimeUs = captureTimeUs;
+        return packet;
+    }
+
+    @Test
+    public void recordedPackets_readBackInOrder() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamRecorder recorder = new StreamRecorder(out, true);
+        Packet video = packet(1000, (byte) 7, 1_000_000, 50);
+        Packet audio = packet(20, (byte) 3, 2_000_000, 0);
+        recorder.record(MuxSession.STREAM_VIDEO, video);
+        recorder.record(MuxSession.STREAM_AUDIO, audio);
+        // The recorder holds its own reference
+        video.release();
+        audio.release();
+        assertTrue(recorder.writePending(false));
+        assertEquals(2, recorder.getRecordedCount());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(StreamRecorder.MAGIC, in.readLong());
+        StreamRecorder.Record record = new StreamRecorder.Record();
+        assertNotNull(StreamRecorder.readRecord(in, record));
+        assertEquals(MuxSession.STREAM_VIDEO, record.streamId);
+        assertEquals(1_000_000, record.arrivalTimeNs);
+        assertEquals(50, record.captureTimeUs);
+        assertEquals(1000, record.packet.size);
+        assertEquals(7, record.packet.bytes[999]);
+        record.packet.release();
+        assertNotNull(StreamRecorder.readRecord(in, record));
+        assertEquals(MuxSession.STREAM_AUDIO, record.streamId);
+        assertEquals(20, record.packet.size);
+        record.packet.release();
+        assertNull(StreamRecorder.readRecord(in, record));
+    }
+
+    @Test
+    public void record_dropsWhenWriterFallsBehind() throws IOException {
+        StreamRecorder recorder = new StreamRecorder(new ByteArrayOutputStream(), true);
+        for (int i = 0; i < StreamRecorder.MAX_QUEUED_PACKETS + 10; i++) {
+            Packet packet = packet(4, (byte) i, i, 0);
+            recorder.record(MuxSession.STREAM_AUDIO, packet);
+            packet.release();
+        }
+        assertEquals(10, recorder.getDroppedCount());
+        recorder.writePending(false);
+        assertEquals(StreamRecorder.MAX_QUEUED_PACKETS, recorder.getRecordedCount());
+    }
+
+    @Test
+    public void readRecord_stopsAtTruncatedRecord() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamRecorder recorder = new StreamRecorder(out, false);
+        Packet packet = packet(100, (byte) 1, 1, 0);
+        recorder.record(MuxSession.STREAM_VIDEO, packet);
+        packet.release();
+        recorder.writePending(false);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 10);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        assertNull(StreamRecorder.readRecord(in, new StreamRecorder.Record()));
+    }
+
+    @Test
+    public void appendedSessions_readBackWithSessionStart() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int session = 0; session < 2; session++) {
+            // Every session writes its own header, the second one after a reboot
+            StreamRecorder recorder = new StreamRecorder(out, true);
+            Packet packet = packet(10, (byte) session, 1000 - session * 900, 0);
+            recorder.record(MuxSession.STREAM_VIDEO, packet);
+            packet.release();
+            recorder.writePending(false);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(StreamRecorder.MAGIC, in.readLong());
+        StreamRecorder.Record record = new StreamRecorder.Record();
+        assertNotNull(StreamRecorder.readRecord(in, record));
+        assertFalse(record.sessionStart);
+        assertEquals(1000, record.arrivalTimeNs);
+        record.packet.release();
+        assertNotNull(StreamRecorder.readRecord(in, record));
+        assertTrue(record.sessionStart);
+        assertEquals(100, record.arrivalTimeNs);
+        assertEquals(1, record.packet.bytes[0]);
+        record.packet.release();
+        assertNull(StreamRecorder.readRecord(in, record));
+    }
+
+    @Test
+    public void readRecord_rejectsOversizedRecord() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MuxSession.STREAM_VIDEO);
+        out.writeLong(1);
+        out.writeLong(0);
+        out.writeInt(StreamRecorder.MAX_RECORD_SIZE + 1);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            StreamRecorder.readRecord(in, new StreamRecorder.Record());
+            fail("Read an oversized record");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void close_stopsTakingPackets() throws IOException {
+        StreamRecorder recorder = new StreamRecorder(new ByteArrayOutputStream(), true);
+        recorder.close();
+        Packet packet = packet(4, (byte) 1, 1, 0);
+        recorder.record(MuxSession.STREAM_VIDEO, packet);
+        packet.release();
+        assertEquals(1, recorder.getDroppedCount());
+        assertFalse(recorder.writePending(true));
+    }
+}
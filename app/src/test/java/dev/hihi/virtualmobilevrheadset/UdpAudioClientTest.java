@@ -0,0 +1,79 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+/**
+ * End to end over loopback, with a fake server that drops every 10th frame.
+ */
+public class UdpAudioClientTest {
+
+    private static final int FRAME_COUNT = 50;
+    private static final int FRAME_SIZE = 64;
+    private static final int FRAME_MS = 5;
+
+    @Test
+    public void lossIsConcealedWithoutStalling() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        UdpAudioClient client = new UdpAudioClient("UdpAudioClientTest");
+        client.start("127.0.0.1", server.getLocalPort(), null, null, true);
+        try {
+            // Wait for the hello so we know where the client is
+            DatagramPacket hello = new DatagramPacket(new byte[16], 16);
+            server.setSoTimeout(2000);
+            server.receive(hello);
+
+            final DatagramPacket peer = hello;
+            Thread sender = new Thread() {
+                public void run() {
+                    byte[] datagram = new byte[UdpAudioClient.HEADER_SIZE + FRAME_SIZE];
+                    try {
+                        for (int seq = 0; seq < FRAME_COUNT; seq++) {
+                            Thread.sleep(FRAME_MS);
+                            if (seq % 10 == 5) {
+                                continue;
+                            }
+                            UdpAudioClient.writeHeader(datagram, seq, seq * FRAME_MS);
+                            datagram[UdpAudioClient.HEADER_SIZE] = (byte) seq;
+                            datagram[UdpAudioClient.HEADER_SIZE + 1] = 0x40;
+                            server.send(new DatagramPacket(datagram, datagram.length,
+                                    peer.getSocketAddress()));
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            sender.start();
+
+            int played = 0;
+            int concealed = 0;
+            Packet packet;
+            while ((packet = client.takeNextPacket(500)) != null) {
+                assertEquals(FRAME_SIZE, packet.size);
+                if ((packet.bytes[0] & 0xff) == played && packet.bytes[1] == 0x40) {
+                    // Original frame
+                } else {
+                    concealed++;
+                }
+                played++;
+                packet.release();
+            }
+            sender.join();
+            // The tail of the stream may stay buffered while waiting for the target delay
+            assertEquals(FRAME_COUNT, played + client.packetQueueSize());
+            assertEquals(5, concealed);
+            assertEquals(5, client.getJitterBuffer().getConcealedCount());
+            assertTrue(client.isConnected());
+        } finally {
+            client.stop();
+            client.waitUntilStopped();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoConfigCacheTest {
+
+    private static final byte[] KEYFRAME = {
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f,     // SPS
+            0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80,  // PPS
+            0, 0, 0, 1, 0x65, (byte) 0x88, 0x00, 0x00, 0x10};  // IDR slice
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Test
+    public void onFrame_capturesParameterSets() {
+        VideoConfigCache cache = new VideoConfigCache();
+        assertFalse(cache.hasConfig());
+        cache.setSize(1920, 1080);
+        assertTrue(cache.hasConfig());
+
+        cache.onFrame(KEYFRAME, KEYFRAME.length);
+        assertArrayEquals(SPS, cache.getSps());
+        assertArrayEquals(PPS, cache.getPps());
+
+        // Plain P frames leave them alone
+        byte[] pFrame = {0, 0, 0, 1, 0x41, (byte) 0x9a, 0x00};
+        cache.onFrame(pFrame, pFrame.length);
+        assertArrayEquals(SPS, cache.getSps());
+    }
+
+    @Test
+    public void setSize_dropsParameterSetsOfOtherSize() {
+        VideoConfigCache cache = new VideoConfigCache();
+        cache.setSize(1920, 1080);
+        cache.onFrame(KEYFRAME, KEYFRAME.length);
+
+        cache.setSize(1920, 1080);
+        assertNotNull(cache.getSps());
+
+        cache.setSize(1280, 720);
+        assertEquals(1280, cache.getWidth());
+        assertNull(cache.getSps());
+        assertNull(cache.getPps());
+    }
+
+    @Test
+    public void setMimeType_dropsConfigOfOtherCodec() {
+        VideoConfigCache cache = new VideoConfigCache();
+        assertEquals(CodecNegotiation.MIME_AVC, cache.getMimeType());
+        cache.setSize(1920, 1080);
+        cache.onFrame(KEYFRAME, KEYFRAME.length);
+
+        cache.setMimeType(CodecNegotiation.MIME_HEVC);
+        assertFalse(cache.hasConfig());
+        assertNull(cache.getSps());
+        // H.265 parameter sets are not picked up
+        cache.setSize(1920, 1080);
+        cache.onFrame(KEYFRAME, KEYFRAME.length);
+        assertNull(cache.getSps());
+    }
+}
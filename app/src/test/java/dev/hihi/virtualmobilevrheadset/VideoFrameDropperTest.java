@@ -0,0 +1,173 @@
+package dev.hihi.virtualmobilevrheadset;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class VideoFrameDropperTest {
+
+    private static final byte[] IDR = {0, 0, 0, 1, 0x67, 0x42, 0, 0, 1, 0x68, 0, 0, 1, 0x65, 1, 2};
+    private static final byte[] P_FRAME = {0, 0, 0, 1, 0x09, 0x10, 0, 0, 1, 0x41, 1, 2, 3};
+    private static final byte[] NON_REFERENCE = {0, 0, 0, 1, 0x01, (byte) 0x9e, 0x00};
+    private static final byte[] RECOVERY_POINT = {0, 0, 1, 0x06, 0x06, 0x01, (byte) 0x80, 0, 0, 1, 0x41, 5};
+
+    private static class FakeClient implements MirrorClientInterface {
+        final PacketRingBuffer mQueue = new PacketRingBuffer(64);
+
+        void receive(byte[] bytes, long ageMs) {
+            Packet packet = Packet.obtain(bytes.length);
+            System.arraycopy(bytes, 0, packet.bytes, 0, bytes.length);
+            packet.receivedTimeNs = System.nanoTime() - ageMs * 1_000_000L;
+            mQueue.offer(packet);
+        }
+
+        @Override public void start(String ip, int port, Runnable connectedCallback,
+                Runnable stoppedCallback, boolean receiveMode) {}
+        @Override public void stop() {}
+        @Override public boolean isConnected() { return true; }
+        @Override public void waitUntilStopped() {}
+        @Override public Packet getNextPacket() { return mQueue.poll(); }
+        @Override public Packet takeNextPacket(long timeoutMs) { return mQueue.poll(); }
+        @Override public int packetQueueSize() { return mQueue.size(); }
+        @Override public void sendBuf(byte[] buf, int len) {}
+        @Override public void setDirectReceiver(DirectReceiver receiver) {}
+        @Override public void awaitDirectReceiveIdle() {}
+        @Override public LinkMonitor getLinkMonitor() { return null; }
+    }
+
+    @Test
+    public void isRandomAccessPoint_detectsIdrSpsAndRecoveryPoint() {
+        assertTrue(NalUnits.isRandomAccessPoint(IDR, IDR.length));
+        assertTrue(NalUnits.isRandomAccessPoint(RECOVERY_POINT, RECOVERY_POINT.length));
+        assertFalse(NalUnits.isRandomAccessPoint(P_FRAME, P_FRAME.length));
+    }
+
+    @Test
+    public void next_keepsFramesWithinBudget() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        client.receive(P_FRAME, 10);
+        client.receive(P_FRAME, 5);
+        dropper.next(client, 0).release();
+        dropper.next(client, 0).release();
+        assertNull(dropper.next(client, 0));
+        assertEquals(0, dropper.getSkippedFrames());
+    }
+
+    @Test
+    public void next_skipsFramesAfterTransportDropUpToKeyframe() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        client.receive(P_FRAME, 0);
+        // The transport dropped what came between these two
+        client.receive(P_FRAME, 0);
+        client.mQueue.peek(1).followsDrop = true;
+        client.receive(NON_REFERENCE, 0);
+        client.receive(IDR, 0);
+        client.receive(P_FRAME, 0);
+
+        dropper.next(client, 0).release();
+        assertEquals(0, dropper.getLastSkippedFrames());
+        Packet packet = dropper.next(client, 0);
+        assertEquals(IDR.length, packet.size);
+        packet.release();
+        assertEquals(2, dropper.getLastSkippedFrames());
+        assertEquals(1, dropper.getSkipEvents());
+        packet = dropper.next(client, 0);
+        assertEquals(P_FRAME.length, packet.size);
+        packet.release();
+        assertEquals(0, dropper.getLastSkippedFrames());
+    }
+
+    @Test
+    public void next_countsSkipsUntilAFrameIsHandedOut() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        client.receive(P_FRAME, 0);
+        client.mQueue.peek(0).followsDrop = true;
+        assertNull(dropper.next(client, 0));
+        client.receive(P_FRAME, 0);
+        assertNull(dropper.next(client, 0));
+        client.receive(IDR, 0);
+        dropper.next(client, 0).release();
+        assertEquals(2, dropper.getLastSkippedFrames());
+        assertEquals(2, dropper.getSkippedFrames());
+    }
+
+    @Test
+    public void next_skipsToNewestKeyframeWhenLate() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        client.receive(P_FRAME, 500);
+        client.receive(IDR, 480);
+        client.receive(P_FRAME, 460);
+        client.receive(RECOVERY_POINT, 440);
+        client.receive(P_FRAME, 420);
+
+        Packet packet = dropper.next(client, 0);
+        assertEquals(RECOVERY_POINT.length, packet.size);
+        packet.release();
+        assertEquals(3, dropper.getLastSkippedFrames());
+        assertEquals(P_FRAME.length * 2 + IDR.length, dropper.getLastSkippedBytes());
+        assertEquals(1, dropper.getSkipEvents());
+
+        // The frame after the keyframe comes from the backlog and is not dropped again
+        packet = dropper.next(client, 0);
+        assertEquals(P_FRAME.length, packet.size);
+        packet.release();
+        assertEquals(0, dropper.getLastSkippedFrames());
+    }
+
+    @Test
+    public void next_keepsFormatAmongSkippedFrames() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        byte[] format = new CodecNegotiation.Format(CodecNegotiation.CODEC_AVC, 1280, 720).toBytes();
+        client.receive(P_FRAME, 500);
+        client.receive(format, 480);
+        client.receive(P_FRAME, 460);
+        client.receive(IDR, 440);
+
+        Packet packet = dropper.next(client, 0);
+        assertArrayEquals(format, Arrays.copyOf(packet.bytes, packet.size));
+        packet.release();
+        assertEquals(2, dropper.getLastSkippedFrames());
+        packet = dropper.next(client, 0);
+        assertEquals(IDR.length, packet.size);
+        packet.release();
+    }
+
+    @Test
+    public void next_dropsNothingWithoutKeyframe() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        for (int i = 0; i < 5; i++) {
+            client.receive(P_FRAME, 500);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(dropper.next(client, 0));
+        }
+        assertEquals(0, dropper.getSkippedFrames());
+    }
+
+    @Test
+    public void next_dropsOnlyNonReferenceFramesWithoutKeyframe() {
+        FakeClient client = new FakeClient();
+        VideoFrameDropper dropper = new VideoFrameDropper(100);
+        client.receive(P_FRAME, 500);
+        client.receive(NON_REFERENCE, 480);
+        client.receive(P_FRAME, 460);
+        client.receive(NON_REFERENCE, 440);
+
+        Packet packet = dropper.next(client, 0);
+        assertEquals(NalUnits.FRAME_REFERENCE, packet.frameType);
+        packet.release();
+        assertEquals(2, dropper.getLastSkippedFrames());
+        packet = dropper.next(client, 0);
+        assertEquals(P_FRAME.length, packet.size);
+        packet.release();
+        assertNull(dropper.next(client, 0));
+    }
+}